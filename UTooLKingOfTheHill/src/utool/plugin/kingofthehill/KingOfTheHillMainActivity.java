@@ -7,7 +7,7 @@ import java.util.List;
 import utool.plugin.Player;
 import utool.plugin.activity.AbstractPluginMainReference;
 import utool.plugin.activity.PluginCommonActivityHelper;
-import utool.plugin.kingofthehill.communications.IncomingCommandHandler;
+import utool.plugin.kingofthehill.communications.ReceiveQueue;
 import utool.plugin.kingofthehill.tournament.KingOfTheHillPlayerExtra;
 import utool.plugin.kingofthehill.tournament.KingOfTheHillTournament;
 import utool.plugin.kingofthehill.tournament.TournamentLogic;
@@ -65,6 +65,11 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 	 */
 	private final Handler updateHandler = new Handler();
 	
+	/**
+	 * True while an update of the views is posted to updateHandler and hasn't run
+	 */
+	private volatile boolean updatePosted = false;
+	
 	/**
 	 * "Null" value for player moving
 	 */
@@ -85,6 +90,7 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 	 */
 	private final Runnable updateRunnable = new Runnable() {
         public void run() {
+            updatePosted = false;
             //call the activity method that updates the UI
             updateActivity();
         }
@@ -96,12 +102,24 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 	Handler timerHandler = new Handler();
 	
 	/**
-	 * Timer updater runnable
+	 * Game timer view, looked up on the first timer update
+	 */
+	private TextView gameTimerView;
+	
+	/**
+	 * Round timer view, looked up on the first timer update
+	 */
+	private TextView roundTimerView;
+	
+	/**
+	 * Timer updater runnable. Runs again when a running timer's seconds next change, and not at all while no timer runs.
 	 */
 	private final Runnable timerRunnable = new Runnable() {
 		public void run() {
-			TextView gameTimerView = (TextView) findViewById(R.id.gameTimerTextView);
-			TextView roundTimerView = (TextView) findViewById(R.id.roundTimerTextView);
+			if (gameTimerView == null){
+				gameTimerView = (TextView) findViewById(R.id.gameTimerTextView);
+				roundTimerView = (TextView) findViewById(R.id.roundTimerTextView);
+			}
 			
 			int gameTimer = tournament.getRemainingGameTime();
 			int roundTimer = tournament.getRemainingRoundTime();
@@ -115,10 +133,37 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 			} else {
 				roundTimerView.setText(secondsToHHmmss(roundTimer));
 			}
-			timerHandler.postDelayed(timerRunnable, 500);
+			long delay = tournament.getMillisToNextSecond();
+			if (delay >= 0){
+				timerHandler.postDelayed(timerRunnable, delay);
+			}
 		}
 	};
 	
+	/**
+	 * Redraw the timers now, and from now on whenever their seconds change
+	 */
+	private void updateTimers(){
+		timerHandler.removeCallbacks(timerRunnable);
+		timerRunnable.run();
+	}
+	
+	/**
+	 * Called on the tournament's timer thread when the game or round timer reaches zero.
+	 * The host is offered to end the tournament when the game timer expires.
+	 * @param game True if the game timer expired, false for the round timer
+	 */
+	public void timerExpired(final boolean game){
+		timerHandler.post(new Runnable() {
+			public void run() {
+				updateTimers();
+				if (game && pluginHelper.getPermissionLevel() == Player.HOST){
+					promptEndTournament();
+				}
+			}
+		});
+	}
+	
 	/**
 	 * Convert seconds to HHmmss format
 	 * @param seconds Seconds to convert
@@ -197,8 +242,7 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 						Log.d("KOTH", "Receive thread closing");
 						return;
 					}
-					runOnUiThread(new MessageHandler(msg));
-					
+					tournament.getIncomingCommandHandler().receive(msg);
 				}
 			} catch (RemoteException e) {
 				e.printStackTrace();
@@ -206,34 +250,6 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 		}
 	};
 	
-	/**
-	 * Runnable class for handling received messages on the UI thread.
-	 * Handling these messages on a separate thread causes issues when updating the UI with the new data.
-	 * @author Cory
-	 *
-	 */
-	private class MessageHandler implements Runnable{
-		/**
-		 * The message received
-		 */
-		private String message;
-		
-		/**
-		 * Constructor
-		 * @param message The message received
-		 */
-		public MessageHandler(String message){
-			this.message = message;
-		}
-
-		@Override
-		public void run() {
-			IncomingCommandHandler handler = tournament.getIncomingCommandHandler();
-			handler.handleMessage(message);
-		}
-		
-	}
-
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -292,6 +308,12 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 			Intent standingsIntent = pluginHelper.getNewIntent(this, StandingsActivity.class);
 			startActivity(standingsIntent);
 			return true;
+		case R.id.menu_undo:
+			((KingOfTheHillTournament)tournament).undo();
+			return true;
+		case R.id.menu_redo:
+			((KingOfTheHillTournament)tournament).redo();
+			return true;
 		case R.id.menu_restart:
 			promptRestartTournament();
 			return true;
@@ -451,7 +473,7 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 		if (playerIndex == TournamentLogic.KING_POSITION){
 			extra = tournament.getPlayerExtra(tournament.getKing());
 		} else {
-			extra = tournament.getPlayerExtra(tournament.getPlayers().get(playerIndex));
+			extra = tournament.getPlayerExtra((Player)tournament.getItem(playerIndex));
 		}
 		//set wins/losses in view
 		EditText winsField = (EditText)dialog.findViewById(R.id.playerWinsScoreField);
@@ -532,7 +554,7 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 				if (playerToMove == TournamentLogic.KING_POSITION){
 					extra = tournament.getPlayerExtra(tournament.getKing());
 				} else {
-					extra = tournament.getPlayerExtra(tournament.getPlayers().get(playerToMove));
+					extra = tournament.getPlayerExtra((Player)tournament.getItem(playerToMove));
 				}
 				KingOfTheHillPlayerExtra newExtra = new KingOfTheHillPlayerExtra(extra.getPlayerUUID(), wins, losses);
 				tournament.setPlayerExtra(newExtra);
@@ -579,8 +601,18 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 				ListView playerListView = (ListView)findViewById(R.id.playersQueueListView);
 				playerListView.setAdapter(this.tournament);
 				tournament.getOutgoingCommandHandler().requestGameState();
+				tournament.getIncomingCommandHandler().syncClock();
 			}
 			
+			//messages are decoded on the receive thread and applied on the UI thread, at most once per frame.
+			//Handling them on a separate thread causes issues when updating the UI with the new data.
+			tournament.getIncomingCommandHandler().setScheduler(new ReceiveQueue.Scheduler() {
+				@Override
+				public void schedule(Runnable task, long delayMillis) {
+					updateHandler.postDelayed(task, delayMillis);
+				}
+			});
+			
 			Thread receiveThread = receiveThreads.get(pluginHelper.getTournamentId());
 			if (isNewInstance() || receiveThread == null || (receiveThread != null && !receiveThread.isAlive())){
 				Log.d("KOTH", "Creating receive thread");
@@ -590,7 +622,7 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 			} else {
 				Log.d("KOTH", "Not creating receive thread: " + isNewInstance() + " " + receiveThread.toString());
 			}
-			timerRunnable.run();
+			updateTimers();
 		} catch (RemoteException e) {
 		}
 	}
@@ -689,9 +721,8 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 		//tell the logic class to update after the animation has been performed
 		kingItem.postDelayed(new Runnable() {
 			public void run() {
-				KingOfTheHillTournament t = (KingOfTheHillTournament)tournament;
-				t.moveKingToEnd();
-				setKing(t.getKing());
+				//the king view follows once the list shows the change
+				((KingOfTheHillTournament)tournament).moveKingToEnd();
 			}
 		}, animation.getDuration());
 	}
@@ -713,16 +744,29 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 		view.postDelayed(new Runnable() {
 			public void run() {
 				((KingOfTheHillTournament)tournament).moveChallengerToEnd();
-				setKing(tournament.getKing());
 			}
 		}, animation.getDuration());
 	}
 	
+	/**
+	 * Show the king of the game state the player list was just updated to. Called on the UI thread.
+	 * @param king The king, or null if there is none
+	 */
+	public void gameStateShown(Player king){
+		if (king != null){
+			setKing(king);
+		}
+	}
+
 	/**
 	 * Notify the activity to update its views
 	 */
 	public void updateActivityExternal(){
-		updateHandler.post(updateRunnable);
+		//several changes applied together are drawn once
+		if (!updatePosted){
+			updatePosted = true;
+			updateHandler.post(updateRunnable);
+		}
 	}
 
 	/**
@@ -777,6 +821,8 @@ public class KingOfTheHillMainActivity extends AbstractPluginMainReference {
 				return true;
 			}
 		});
+		//timers may have been started or changed
+		updateTimers();
 	}
 	
 	/**
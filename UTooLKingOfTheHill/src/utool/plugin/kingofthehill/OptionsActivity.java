@@ -2,6 +2,7 @@ package utool.plugin.kingofthehill;
 
 import utool.plugin.activity.AbstractPluginCommonReference;
 import utool.plugin.kingofthehill.tournament.KingOfTheHillTournament;
+import utool.plugin.kingofthehill.tournament.TournamentBatch;
 import utool.plugin.kingofthehill.tournament.TournamentLogic;
 import android.os.Build;
 import android.os.Bundle;
@@ -11,6 +12,7 @@ import android.view.View;
 import android.view.Window;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 
 /**
@@ -84,6 +86,9 @@ public class OptionsActivity extends AbstractPluginCommonReference {
 		
 		roundTimerEditText.setText(Integer.toString(previousRoundTimerSetting));
 		gameTimerEditText.setText(Integer.toString(previousGameTimerSetting));
+		
+		CheckBox recordSessionCheckBox = (CheckBox)findViewById(R.id.recordSessionCheckBox);
+		recordSessionCheckBox.setChecked(tournament.isRecording());
 	}
 	
 	/**
@@ -102,14 +107,22 @@ public class OptionsActivity extends AbstractPluginCommonReference {
 			gameTimerSetting = Integer.parseInt(gameTimerEditText.getText().toString());
 		} catch (Exception e){/*dodge the crash*/}
 		
+		CheckBox recordSessionCheckBox = (CheckBox)findViewById(R.id.recordSessionCheckBox);
+		tournament.setRecording(recordSessionCheckBox.isChecked());
+		
 		if (tournament instanceof KingOfTheHillTournament){
+			TournamentBatch batch = new TournamentBatch();
 			if (roundTimerSetting != previousRoundTimerSetting || roundTimerSetting < 1){
-				((KingOfTheHillTournament)tournament).setRoundTimerSetting(roundTimerSetting);
+				batch.setRoundTimerSetting(roundTimerSetting);
 			}
 			if (gameTimerSetting != previousGameTimerSetting || gameTimerSetting < 1){
-				((KingOfTheHillTournament)tournament).setGameTimerSetting(gameTimerSetting);
+				batch.setGameTimerSetting(gameTimerSetting);
+			}
+			if (batch.isEmpty()){
+				((KingOfTheHillTournament)tournament).sendGameState();
+			} else {
+				tournament.apply(batch);
 			}
-			((KingOfTheHillTournament)tournament).sendGameState();
 		}
 		finish();
 	}
@@ -2,10 +2,8 @@ package utool.plugin.kingofthehill;
 
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.UUID;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -26,6 +24,7 @@ import android.widget.RadioButton;
 import android.widget.TextView;
 import utool.plugin.Player;
 import utool.plugin.activity.AbstractPluginCommonReference;
+import utool.plugin.kingofthehill.engine.PlayerStats;
 import utool.plugin.kingofthehill.tournament.KingOfTheHillPlayerExtra;
 import utool.plugin.kingofthehill.tournament.TournamentLogic;
 
@@ -91,9 +90,12 @@ public class StandingsActivity extends AbstractPluginCommonReference {
 		List<Player> players = tournament.getPlayers();
 		players.add(tournament.getKing());
 		
-		HashMap<Player, KingOfTheHillPlayerExtra> extras = tournament.getPlayerExtras();
-		
-		List<KingOfTheHillPlayerExtra> extras2 = new LinkedList<KingOfTheHillPlayerExtra>(extras.values());
+		//one set of statistics for the whole list, so sorting sees consistent scores
+		PlayerStats stats = tournament.getStats();
+		List<KingOfTheHillPlayerExtra> extras2 = new LinkedList<KingOfTheHillPlayerExtra>();
+		for (Player p : players){
+			extras2.add(new KingOfTheHillPlayerExtra(stats, p.getUUID()));
+		}
 		
 		RadioButton wins = (RadioButton) findViewById(R.id.sortByWinsRadioButton);
 		RadioButton losses = (RadioButton) findViewById(R.id.sortByLossesRadioButton);
@@ -119,13 +121,7 @@ public class StandingsActivity extends AbstractPluginCommonReference {
 		if (!name.isChecked()){
 			//sort players by extras
 			for (KingOfTheHillPlayerExtra e : extras2){
-				UUID uuid = e.getPlayerUUID();
-				for (Player p : players){
-					if (p.getUUID().equals(uuid)){
-						playersTemp.add(p);
-						break;
-					}
-				}
+				playersTemp.add(tournament.getPlayer(e.getPlayerUUID()));
 			}
 		} else {
 			//sort players by name
@@ -215,7 +211,7 @@ public class StandingsActivity extends AbstractPluginCommonReference {
 			if (tournament.getKing().equals(player)){
 				crown.setImageResource(R.drawable.crown);
 				row.setBackgroundResource(R.drawable.kingshape);
-			} else if (tournament.getPlayers().get(0).equals(player)){
+			} else if (player.getUUID().equals(tournament.getSnapshot().getChallenger())){
 				crown.setImageResource(R.drawable.sword);
 				row.setBackgroundResource(R.drawable.challengershape);
 			} else {
@@ -0,0 +1,664 @@
+package utool.plugin.kingofthehill.communications;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import utool.networking.XmlMessageTypeException;
+import utool.plugin.kingofthehill.engine.GameChange;
+import utool.plugin.kingofthehill.tournament.KingOfTheHillPlayerExtra;
+import android.util.Base64;
+
+/**
+ * Compact binary encoding of game state messages, used instead of XML with participants that accept it.
+ * Players are written as ids from a PlayerDictionary, numbers as varints, and queue positions are implied by order.
+ * Each message carries the dictionary entries the receivers may not have yet, so the UUID of a player is normally
+ * sent once per session. A receiver missing earlier entries can't read the message, and asks the host to catch up.
+ * Since the core only carries strings, the bytes are sent as base64 after TEXT_PREFIX.
+ * The host and participants each use one instance for the session. Its methods are synchronized.
+ * @author Cory
+ *
+ */
+public class BinaryGameStateCodec {
+	/**
+	 * Start of a binary message sent as text. XML messages can't start with it.
+	 */
+	public static final String TEXT_PREFIX = "KOTH1:";
+
+	/**
+	 * Flag set when the sender accepts binary messages
+	 */
+	private static final int FLAG_ACCEPTS_BINARY = 1;
+
+	/**
+	 * Flag set when the game timer end follows the timers
+	 */
+	private static final int FLAG_GAME_TIMER_END = 2;
+
+	/**
+	 * Flag set when the round timer end follows the timers
+	 */
+	private static final int FLAG_ROUND_TIMER_END = 4;
+
+	/**
+	 * Initial size of the encode buffer
+	 */
+	private static final int INITIAL_CAPACITY = 4096;
+
+	/**
+	 * Buffer messages are encoded into, grown when a message doesn't fit
+	 */
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+	/**
+	 * Player ids of the session. The host fills it when writing, participants when reading.
+	 */
+	private final PlayerDictionary dictionary;
+
+	/**
+	 * Number of dictionary entries that have been sent to every participant
+	 */
+	private int sent = 0;
+
+	/**
+	 * Constructor, starting a new session
+	 */
+	public BinaryGameStateCodec(){
+		Random random = new Random();
+		int session = 0;
+		while (session == 0){
+			session = random.nextInt();
+		}
+		dictionary = new PlayerDictionary(session);
+	}
+
+	/**
+	 * Get the player ids of the session
+	 * @return The dictionary
+	 */
+	public PlayerDictionary getDictionary(){
+		return dictionary;
+	}
+
+	/**
+	 * Check if a received string is a binary message
+	 * @param data The received string
+	 * @return True if the string should be decoded by this codec
+	 */
+	public static boolean isEncoded(String data){
+		return data.startsWith(TEXT_PREFIX);
+	}
+
+	/**
+	 * Add the dictionary entries known here to a request, so the answer only has to include the missing ones
+	 * @param request The request message
+	 */
+	public synchronized void addKnownPlayers(GameStateMessage request){
+		request.setKnownPlayers(dictionary.getSession(), dictionary.size());
+	}
+
+	/**
+	 * Encode a message sent to every participant
+	 * @param message The message
+	 * @return TEXT_PREFIX followed by the base64 encoded message
+	 */
+	public String encode(GameStateMessage message){
+		return encode(message, null);
+	}
+
+	/**
+	 * Encode a message as text that can be sent through the core
+	 * @param message The message
+	 * @param request The request the message answers, or null. The dictionary entries the requester is missing are included.
+	 * @return TEXT_PREFIX followed by the base64 encoded message
+	 */
+	public synchronized String encode(GameStateMessage message, GameStateMessage request){
+		ByteBuffer out = write(message, request);
+		return TEXT_PREFIX + Base64.encodeToString(out.array(), 0, out.limit(), Base64.NO_WRAP);
+	}
+
+	/**
+	 * Encode a message with the whole dictionary, so any participant can read it
+	 * @param message The message
+	 * @return TEXT_PREFIX followed by the base64 encoded message
+	 */
+	public synchronized String encodeComplete(GameStateMessage message){
+		ByteBuffer out = write(message, 0);
+		return TEXT_PREFIX + Base64.encodeToString(out.array(), 0, out.limit(), Base64.NO_WRAP);
+	}
+
+	/**
+	 * Replace the remaining times of a message encoded by encode() or encodeComplete(), leaving the rest as it is
+	 * @param data The encoded message
+	 * @param gameTimerRemaining Remaining game time
+	 * @param roundTimerRemaining Remaining round time
+	 * @return The encoded message with the new remaining times
+	 */
+	public static String setRemainingTimes(String data, int gameTimerRemaining, int roundTimerRemaining){
+		byte[] bytes = Base64.decode(data.substring(TEXT_PREFIX.length()), Base64.NO_WRAP);
+		ByteBuffer in = ByteBuffer.wrap(bytes);
+		//type and flags come first
+		in.position(2);
+		readVarint(in);
+		readVarint(in);
+		ByteBuffer out = ByteBuffer.allocate(bytes.length + 10);
+		out.put(bytes, 0, 2);
+		writeVarint(out, zigzag(gameTimerRemaining));
+		writeVarint(out, zigzag(roundTimerRemaining));
+		out.put(bytes, in.position(), bytes.length - in.position());
+		return TEXT_PREFIX + Base64.encodeToString(out.array(), 0, out.position(), Base64.NO_WRAP);
+	}
+
+	/**
+	 * Decode a message encoded by encode()
+	 * @param data The received string
+	 * @return The message, or null if the message uses dictionary entries that haven't been received
+	 * @throws XmlMessageTypeException If the string isn't a valid binary message
+	 */
+	public synchronized GameStateMessage decode(String data) throws XmlMessageTypeException{
+		if (!isEncoded(data)){
+			throw new XmlMessageTypeException("Not a binary game state message");
+		}
+		try {
+			return read(ByteBuffer.wrap(Base64.decode(data.substring(TEXT_PREFIX.length()), Base64.NO_WRAP)));
+		} catch (IllegalArgumentException e) {
+			throw new XmlMessageTypeException("Invalid binary game state message");
+		}
+	}
+
+	/**
+	 * Encode a message sent to every participant into the reusable buffer
+	 * @param message The message
+	 * @return The buffer, from position 0 to the end of the message. It is overwritten by the next call.
+	 */
+	public ByteBuffer write(GameStateMessage message){
+		return write(message, null);
+	}
+
+	/**
+	 * Encode a message into the reusable buffer
+	 * @param message The message
+	 * @param request The request the message answers, or null
+	 * @return The buffer, from position 0 to the end of the message. It is overwritten by the next call.
+	 */
+	public synchronized ByteBuffer write(GameStateMessage message, GameStateMessage request){
+		int base = sent;
+		if (request != null){
+			base = request.getPlayerSession() == dictionary.getSession() ? Math.min(request.getKnownPlayers(), sent) : 0;
+		}
+		return write(message, base);
+	}
+
+	/**
+	 * Encode a message into the reusable buffer
+	 * @param message The message
+	 * @param base Number of dictionary entries the receivers have
+	 * @return The buffer, from position 0 to the end of the message
+	 */
+	private ByteBuffer write(GameStateMessage message, int base){
+		boolean hasPlayers = register(message);
+		while (true){
+			buffer.clear();
+			try {
+				writeMessage(buffer, message, base);
+				buffer.flip();
+				break;
+			} catch (BufferOverflowException e) {
+				buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+			}
+		}
+		if (hasPlayers){
+			sent = dictionary.size();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Decode a message from a buffer, starting at its position
+	 * @param in The buffer. Its position is moved past the message.
+	 * @return The message, or null if the message uses dictionary entries that haven't been received
+	 * @throws XmlMessageTypeException If the buffer doesn't hold a valid message
+	 */
+	public synchronized GameStateMessage read(ByteBuffer in) throws XmlMessageTypeException{
+		try {
+			return readMessage(in);
+		} catch (BufferUnderflowException e) {
+			throw new XmlMessageTypeException("Truncated binary game state message");
+		} catch (IndexOutOfBoundsException e) {
+			throw new XmlMessageTypeException("Invalid binary game state message");
+		}
+	}
+
+	/**
+	 * Give ids to the players of a message that don't have one yet
+	 * @param message The message
+	 * @return True if the message type holds players and dictionary entries
+	 */
+	private boolean register(GameStateMessage message){
+		switch (message.getMessageType()){
+			case GameState:
+				if (message.getKing() != null){
+					dictionary.add(message.getKing());
+				}
+				for (UUID p : message.getPlayerList()){
+					dictionary.add(p);
+				}
+				return true;
+			case GameStateDelta:
+				for (GameChange change : message.getChanges()){
+					if (change.getPlayer() != null){
+						dictionary.add(change.getPlayer());
+					}
+					for (UUID p : change.getPlayers()){
+						dictionary.add(p);
+					}
+				}
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Write a message
+	 * @param out The buffer
+	 * @param message The message
+	 * @param base Number of dictionary entries the receivers have
+	 */
+	private void writeMessage(ByteBuffer out, GameStateMessage message, int base){
+		out.put((byte)message.getMessageType().ordinal());
+		int flags = message.acceptsBinary() ? FLAG_ACCEPTS_BINARY : 0;
+		if (message.getGameTimerEnd() != GameStateMessage.NO_DEADLINE){
+			flags |= FLAG_GAME_TIMER_END;
+		}
+		if (message.getRoundTimerEnd() != GameStateMessage.NO_DEADLINE){
+			flags |= FLAG_ROUND_TIMER_END;
+		}
+		out.put((byte)flags);
+		writeVarint(out, zigzag(message.getGameTimeRemaining()));
+		writeVarint(out, zigzag(message.getRoundTimeRemaining()));
+		if ((flags & FLAG_GAME_TIMER_END) != 0){
+			writeVarlong(out, zigzag(message.getGameTimerEnd()));
+		}
+		if ((flags & FLAG_ROUND_TIMER_END) != 0){
+			writeVarlong(out, zigzag(message.getRoundTimerEnd()));
+		}
+		writeVarlong(out, message.getVersion() + 1);
+		switch (message.getMessageType()){
+			case GameState:
+				writeDictionary(out, base);
+				UUID king = message.getKing();
+				out.put((byte)(king != null ? 1 : 0));
+				if (king != null){
+					writePlayer(out, king);
+					writeVarint(out, message.getKingWins());
+					writeStats(out, message.getPlayerExtras().get(king));
+				}
+				List<UUID> players = message.getPlayerList();
+				writeVarint(out, players.size());
+				for (UUID p : players){
+					writePlayer(out, p);
+					writeStats(out, message.getPlayerExtras().get(p));
+				}
+				break;
+			case GameStateDelta:
+				writeVarlong(out, message.getBaseVersion() + 1);
+				writeDictionary(out, base);
+				writeVarint(out, message.getChanges().size());
+				for (GameChange change : message.getChanges()){
+					writeChange(out, change);
+				}
+				break;
+			default:
+				out.putInt(message.getPlayerSession());
+				writeVarint(out, message.getKnownPlayers());
+				break;
+		}
+	}
+
+	/**
+	 * Read a message
+	 * @param in The buffer
+	 * @return The message, or null if dictionary entries are missing
+	 * @throws XmlMessageTypeException If the message type is unknown
+	 */
+	private GameStateMessage readMessage(ByteBuffer in) throws XmlMessageTypeException{
+		int type = in.get();
+		GameStateMessage.MessageType[] types = GameStateMessage.MessageType.values();
+		if (type < 0 || type >= types.length){
+			throw new XmlMessageTypeException("Unknown game state message type: " + type);
+		}
+		int flags = in.get();
+		int gameTimer = unzigzag(readVarint(in));
+		int roundTimer = unzigzag(readVarint(in));
+		long gameTimerEnd = GameStateMessage.NO_DEADLINE;
+		long roundTimerEnd = GameStateMessage.NO_DEADLINE;
+		if ((flags & FLAG_GAME_TIMER_END) != 0){
+			gameTimerEnd = unzigzag(readVarlong(in));
+		}
+		if ((flags & FLAG_ROUND_TIMER_END) != 0){
+			roundTimerEnd = unzigzag(readVarlong(in));
+		}
+		long version = readVarlong(in) - 1;
+		long baseVersion = GameStateMessage.NO_VERSION;
+		if (types[type] == GameStateMessage.MessageType.GameStateDelta){
+			baseVersion = readVarlong(in) - 1;
+		}
+		GameStateMessage message = new GameStateMessage(types[type], baseVersion, version, gameTimer, roundTimer);
+		message.setAcceptsBinary((flags & FLAG_ACCEPTS_BINARY) != 0);
+		message.setTimerEnds(gameTimerEnd, roundTimerEnd);
+		switch (types[type]){
+			case GameState:
+				if (!readDictionary(in)){
+					return null;
+				}
+				if (in.get() != 0){
+					UUID king = readPlayer(in);
+					message.setKing(king);
+					message.setKingWins(readVarint(in));
+					readStats(in, message, king);
+				}
+				int size = readVarint(in);
+				List<UUID> players = message.getPlayerList();
+				for (int i = 0; i < size; i++){
+					UUID p = readPlayer(in);
+					players.add(p);
+					readStats(in, message, p);
+				}
+				break;
+			case GameStateDelta:
+				if (!readDictionary(in)){
+					return null;
+				}
+				int count = readVarint(in);
+				List<GameChange> changes = message.getChanges();
+				for (int i = 0; i < count; i++){
+					changes.add(readChange(in));
+				}
+				break;
+			default:
+				int session = in.getInt();
+				message.setKnownPlayers(session, readVarint(in));
+				break;
+		}
+		return message;
+	}
+
+	/**
+	 * Write the session and the dictionary entries from base on
+	 * @param out The buffer
+	 * @param base Number of entries the receivers have
+	 */
+	private void writeDictionary(ByteBuffer out, int base){
+		out.putInt(dictionary.getSession());
+		writeVarint(out, base);
+		writeVarint(out, dictionary.size() - base);
+		for (int id = base; id < dictionary.size(); id++){
+			writeUUID(out, dictionary.get(id));
+		}
+	}
+
+	/**
+	 * Read the dictionary entries written by writeDictionary. A new session replaces the dictionary.
+	 * @param in The buffer
+	 * @return False if entries before the ones in the message are missing
+	 */
+	private boolean readDictionary(ByteBuffer in){
+		int session = in.getInt();
+		int base = readVarint(in);
+		int count = readVarint(in);
+		if (session != dictionary.getSession()){
+			if (base != 0){
+				return false;
+			}
+			dictionary.reset(session);
+		}
+		if (base > dictionary.size()){
+			return false;
+		}
+		for (int i = 0; i < count; i++){
+			UUID p = readUUID(in);
+			if (base + i == dictionary.size()){
+				dictionary.add(p);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write a player's id
+	 * @param out The buffer
+	 * @param player The player, which must be in the dictionary
+	 */
+	private void writePlayer(ByteBuffer out, UUID player){
+		writeVarint(out, dictionary.idOf(player));
+	}
+
+	/**
+	 * Read a player written by writePlayer
+	 * @param in The buffer
+	 * @return The player's UUID
+	 */
+	private UUID readPlayer(ByteBuffer in){
+		return dictionary.get(readVarint(in));
+	}
+
+	/**
+	 * Write a player's wins and losses, a single 0 if not known
+	 * @param out The buffer
+	 * @param extra The player's extra data, or null
+	 */
+	private static void writeStats(ByteBuffer out, KingOfTheHillPlayerExtra extra){
+		if (extra == null){
+			writeVarint(out, 0);
+		} else {
+			writeVarint(out, zigzag(extra.getWins()) + 1);
+			writeVarint(out, zigzag(extra.getLosses()));
+		}
+	}
+
+	/**
+	 * Read a player's wins and losses written by writeStats
+	 * @param in The buffer
+	 * @param message The message to add the player's extra data to
+	 * @param player The player
+	 */
+	private static void readStats(ByteBuffer in, GameStateMessage message, UUID player){
+		int wins = readVarint(in);
+		if (wins != 0){
+			message.putPlayerExtra(player, unzigzag(wins - 1), unzigzag(readVarint(in)));
+		}
+	}
+
+	/**
+	 * Write a change of a delta
+	 * @param out The buffer
+	 * @param change The change
+	 */
+	private void writeChange(ByteBuffer out, GameChange change){
+		out.put((byte)change.getType());
+		switch (change.getType()){
+			case GameChange.MOVE:
+				writePlayer(out, change.getPlayer());
+				writeVarint(out, zigzag(change.getPosition()));
+				break;
+			case GameChange.STATS:
+				writePlayer(out, change.getPlayer());
+				writeVarint(out, zigzag(change.getWins()));
+				writeVarint(out, zigzag(change.getLosses()));
+				break;
+			case GameChange.JOIN:
+			case GameChange.LEAVE:
+				writeVarint(out, change.getPlayers().size());
+				for (UUID p : change.getPlayers()){
+					writePlayer(out, p);
+				}
+				break;
+			case GameChange.KING:
+				writePlayer(out, change.getPlayer());
+				break;
+			case GameChange.STREAK:
+				writeVarint(out, zigzag(change.getStreak()));
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Read a change written by writeChange
+	 * @param in The buffer
+	 * @return The change
+	 * @throws XmlMessageTypeException If the change type is unknown
+	 */
+	private GameChange readChange(ByteBuffer in) throws XmlMessageTypeException{
+		int type = in.get();
+		switch (type){
+			case GameChange.ROTATE:
+				return GameChange.rotate();
+			case GameChange.DETHRONE:
+				return GameChange.dethrone();
+			case GameChange.MOVE:
+				UUID player = readPlayer(in);
+				return GameChange.move(player, unzigzag(readVarint(in)));
+			case GameChange.STATS:
+				player = readPlayer(in);
+				int wins = unzigzag(readVarint(in));
+				return GameChange.stats(player, wins, unzigzag(readVarint(in)));
+			case GameChange.JOIN:
+			case GameChange.LEAVE:
+				int size = readVarint(in);
+				List<UUID> players = new ArrayList<UUID>(Math.min(size, in.remaining()));
+				for (int i = 0; i < size; i++){
+					players.add(readPlayer(in));
+				}
+				return type == GameChange.JOIN ? GameChange.join(players) : GameChange.leave(players);
+			case GameChange.KING:
+				return GameChange.king(readPlayer(in));
+			case GameChange.STREAK:
+				return GameChange.streak(unzigzag(readVarint(in)));
+			default:
+				throw new XmlMessageTypeException("Unknown game change type: " + type);
+		}
+	}
+
+	/**
+	 * Write a UUID as 16 bytes
+	 * @param out The buffer
+	 * @param player The UUID
+	 */
+	private static void writeUUID(ByteBuffer out, UUID player){
+		out.putLong(player.getMostSignificantBits());
+		out.putLong(player.getLeastSignificantBits());
+	}
+
+	/**
+	 * Read a UUID written by writeUUID
+	 * @param in The buffer
+	 * @return The UUID
+	 */
+	private static UUID readUUID(ByteBuffer in){
+		long most = in.getLong();
+		return new UUID(most, in.getLong());
+	}
+
+	/**
+	 * Map a signed int to an unsigned one, so small negative numbers stay short
+	 * @param value The value
+	 * @return The zigzag encoded value
+	 */
+	private static int zigzag(int value){
+		return (value << 1) ^ (value >> 31);
+	}
+
+	/**
+	 * Reverse zigzag()
+	 * @param value The zigzag encoded value
+	 * @return The value
+	 */
+	private static int unzigzag(int value){
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Map a signed long to an unsigned one, so small negative numbers stay short
+	 * @param value The value
+	 * @return The zigzag encoded value
+	 */
+	private static long zigzag(long value){
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Reverse zigzag()
+	 * @param value The zigzag encoded value
+	 * @return The value
+	 */
+	private static long unzigzag(long value){
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Write an unsigned int using 7 bits per byte
+	 * @param out The buffer
+	 * @param value The value
+	 */
+	private static void writeVarint(ByteBuffer out, int value){
+		while ((value & ~0x7F) != 0){
+			out.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte)value);
+	}
+
+	/**
+	 * Read an int written by writeVarint
+	 * @param in The buffer
+	 * @return The value
+	 */
+	private static int readVarint(ByteBuffer in){
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7){
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0){
+				return value;
+			}
+		}
+		throw new IndexOutOfBoundsException("Varint too long");
+	}
+
+	/**
+	 * Write an unsigned long using 7 bits per byte
+	 * @param out The buffer
+	 * @param value The value
+	 */
+	private static void writeVarlong(ByteBuffer out, long value){
+		while ((value & ~0x7FL) != 0){
+			out.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte)value);
+	}
+
+	/**
+	 * Read a long written by writeVarlong
+	 * @param in The buffer
+	 * @return The value
+	 */
+	private static long readVarlong(ByteBuffer in){
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7){
+			byte b = in.get();
+			value |= (long)(b & 0x7F) << shift;
+			if (b >= 0){
+				return value;
+			}
+		}
+		throw new IndexOutOfBoundsException("Varlong too long");
+	}
+}
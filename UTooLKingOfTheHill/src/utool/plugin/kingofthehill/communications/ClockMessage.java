@@ -0,0 +1,195 @@
+package utool.plugin.kingofthehill.communications;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import utool.networking.XmlMessageTypeException;
+import utool.networking.packet.IXmlMessage;
+import android.util.Xml;
+
+/**
+ * A measurement of the clock offset between a participant and the host, see ClockSync.
+ * The participant sends a request with its time, and the host answers with the times it received and answered it.
+ * Answers reach every participant, so they carry the id of the participant that asked.
+ * @author Cory
+ *
+ */
+public class ClockMessage implements IXmlMessage {
+
+	/**
+	 * XML root tag
+	 */
+	public static final String ROOT_TAG = "utool_kingofthehill_clock";
+
+	/**
+	 * Requester id attribute
+	 */
+	private static final String ID_ATTRIB = "id";
+
+	/**
+	 * Requester's send time attribute
+	 */
+	private static final String REQUESTED_ATTRIB = "requested";
+
+	/**
+	 * Host's receive time attribute
+	 */
+	private static final String RECEIVED_ATTRIB = "received";
+
+	/**
+	 * Host's send time attribute, only in answers
+	 */
+	private static final String REPLIED_ATTRIB = "replied";
+
+	/**
+	 * Id of the participant that asked
+	 */
+	private long id;
+
+	/**
+	 * Participant's time the request was sent
+	 */
+	private long requested;
+
+	/**
+	 * Host's time the request arrived
+	 */
+	private long received;
+
+	/**
+	 * Host's time the answer was sent
+	 */
+	private long replied;
+
+	/**
+	 * True for an answer, false for a request
+	 */
+	private boolean reply = false;
+
+	/**
+	 * Constructor for a request
+	 * @param id Id of the participant asking
+	 * @param requested Participant's time, from ClockSync.now()
+	 */
+	public ClockMessage(long id, long requested){
+		this.id = id;
+		this.requested = requested;
+	}
+
+	/**
+	 * Read a received clock message
+	 * @param xml The XML string of the message
+	 * @throws XmlMessageTypeException If the string isn't a clock message
+	 */
+	public ClockMessage(String xml) throws XmlMessageTypeException{
+		try {
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+			parser.setInput(new StringReader(xml));
+			parser.nextTag();
+			if (!parser.getName().equals(ROOT_TAG)){
+				throw new XmlMessageTypeException("Not a clock message: " + parser.getName());
+			}
+			id = Long.parseLong(parser.getAttributeValue("", ID_ATTRIB));
+			requested = Long.parseLong(parser.getAttributeValue("", REQUESTED_ATTRIB));
+			String replied = parser.getAttributeValue("", REPLIED_ATTRIB);
+			if (replied != null){
+				reply = true;
+				this.replied = Long.parseLong(replied);
+				received = Long.parseLong(parser.getAttributeValue("", RECEIVED_ATTRIB));
+			}
+		} catch (XmlPullParserException e) {
+			throw new XmlMessageTypeException("Invalid clock message");
+		} catch (IOException e) {
+			throw new XmlMessageTypeException("Invalid clock message");
+		} catch (NumberFormatException e) {
+			throw new XmlMessageTypeException("Invalid clock message");
+		}
+	}
+
+	/**
+	 * Create the answer to this request
+	 * @param received Host's time the request arrived
+	 * @param replied Host's time the answer is sent
+	 * @return The answer
+	 */
+	public ClockMessage reply(long received, long replied){
+		ClockMessage answer = new ClockMessage(id, requested);
+		answer.reply = true;
+		answer.received = received;
+		answer.replied = replied;
+		return answer;
+	}
+
+	/**
+	 * Check if this is an answer
+	 * @return True for an answer, false for a request
+	 */
+	public boolean isReply(){
+		return reply;
+	}
+
+	/**
+	 * Get the id of the participant that asked
+	 * @return The id
+	 */
+	public long getId(){
+		return id;
+	}
+
+	/**
+	 * Get the participant's time the request was sent
+	 * @return Milliseconds
+	 */
+	public long getRequested(){
+		return requested;
+	}
+
+	/**
+	 * Get the host's time the request arrived
+	 * @return Milliseconds
+	 */
+	public long getReceived(){
+		return received;
+	}
+
+	/**
+	 * Get the host's time the answer was sent
+	 * @return Milliseconds
+	 */
+	public long getReplied(){
+		return replied;
+	}
+
+	@Override
+	public String getXml(){
+		String xml = "";
+		try {
+			XmlSerializer xmlSerializer = Xml.newSerializer();
+			StringWriter writer = new StringWriter();
+			xmlSerializer.setOutput(writer);
+			xmlSerializer.startDocument("UTF-8", true);
+			xmlSerializer.startTag("", ROOT_TAG);
+			xmlSerializer.attribute("", ID_ATTRIB, Long.toString(id));
+			xmlSerializer.attribute("", REQUESTED_ATTRIB, Long.toString(requested));
+			if (reply){
+				xmlSerializer.attribute("", RECEIVED_ATTRIB, Long.toString(received));
+				xmlSerializer.attribute("", REPLIED_ATTRIB, Long.toString(replied));
+			}
+			xmlSerializer.endTag("", ROOT_TAG);
+			xmlSerializer.endDocument();
+			xml = writer.toString();
+		} catch (Exception e) { }
+		return xml;
+	}
+
+	@Override
+	public boolean isOfMessageType(String xml){
+		return ROOT_TAG.equals(MessageDispatcher.rootTag(xml));
+	}
+}
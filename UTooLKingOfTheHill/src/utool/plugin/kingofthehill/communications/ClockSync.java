@@ -0,0 +1,135 @@
+package utool.plugin.kingofthehill.communications;
+
+import utool.plugin.kingofthehill.engine.Clock;
+
+/**
+ * Estimate of the offset between the host's clock and the local clock, measured NTP style.
+ * A participant sends its time t0, the host answers with its times t1 when the request arrived and t2 when the answer
+ * left, and the participant notes t3 when the answer arrived. The offset is ((t1 - t0) + (t2 - t3)) / 2, off by at most
+ * half the round trip (t3 - t0) - (t2 - t1). Of the last SAMPLES measurements, the one with the shortest round trip is used.
+ * Both sides use a monotonic millisecond clock, so the estimate survives changes of the wall clock.
+ * @author Cory
+ *
+ */
+public class ClockSync {
+	/**
+	 * Number of measurements the estimate is chosen from
+	 */
+	public static final int SAMPLES = 8;
+
+	/**
+	 * Offsets of the last measurements
+	 */
+	private final long[] offsets = new long[SAMPLES];
+
+	/**
+	 * Round trips of the last measurements
+	 */
+	private final long[] delays = new long[SAMPLES];
+
+	/**
+	 * Number of measurements made
+	 */
+	private int count = 0;
+
+	/**
+	 * Host time minus local time, in milliseconds
+	 */
+	private long offset = 0;
+
+	/**
+	 * Round trip of the measurement the offset comes from, in milliseconds
+	 */
+	private long delay = 0;
+
+	/**
+	 * The local clock
+	 */
+	private final Clock clock;
+
+	/**
+	 * Constructor for an estimate using the system clock
+	 */
+	public ClockSync(){
+		this(Clock.SYSTEM);
+	}
+
+	/**
+	 * Constructor
+	 * @param clock The local clock
+	 */
+	public ClockSync(Clock clock){
+		this.clock = clock;
+	}
+
+	/**
+	 * Get the local time
+	 * @return Milliseconds of the clock's monotonic time
+	 */
+	public long now(){
+		return clock.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Add a measurement
+	 * @param requested Local time the request was sent
+	 * @param received Host time the request arrived
+	 * @param replied Host time the answer was sent
+	 * @param returned Local time the answer arrived
+	 */
+	public synchronized void addSample(long requested, long received, long replied, long returned){
+		int i = count % SAMPLES;
+		offsets[i] = ((received - requested) + (replied - returned)) / 2;
+		delays[i] = Math.max(0, (returned - requested) - (replied - received));
+		count++;
+		int best = 0;
+		for (int j = 1; j < Math.min(count, SAMPLES); j++){
+			if (delays[j] < delays[best]){
+				best = j;
+			}
+		}
+		offset = offsets[best];
+		delay = delays[best];
+	}
+
+	/**
+	 * Check if the offset has been measured
+	 * @return True once a measurement was made
+	 */
+	public synchronized boolean isSynchronized(){
+		return count > 0;
+	}
+
+	/**
+	 * Get the number of measurements made
+	 * @return Number of measurements
+	 */
+	public synchronized int getSampleCount(){
+		return count;
+	}
+
+	/**
+	 * Get the host time minus the local time
+	 * @return Milliseconds
+	 */
+	public synchronized long getOffset(){
+		return offset;
+	}
+
+	/**
+	 * Get the round trip of the measurement the offset comes from. The offset is off by at most half of it.
+	 * @return Milliseconds
+	 */
+	public synchronized long getDelay(){
+		return delay;
+	}
+
+	/**
+	 * Convert a host time to local time
+	 * @param hostTime Host time in milliseconds
+	 * @return Local time in milliseconds
+	 */
+	public long toLocalTime(long hostTime){
+		return hostTime - getOffset();
+	}
+}
@@ -0,0 +1,128 @@
+package utool.plugin.kingofthehill.communications;
+
+/**
+ * The last encoded game state message, so participants asking at the same time don't each cost a rebuild and encode.
+ * The entry is keyed by the game state version, the timer ends and the encoding, so any change to the game or the
+ * timers makes it miss. A running timer doesn't: the remaining times, which participants without a synchronized clock
+ * count down from, are written into the cached message when they changed since it was encoded.
+ * A binary encoding with the whole player dictionary can be read by every participant, so it also serves broadcasts
+ * that only need the new entries.
+ * Used from the sender thread; the counters can be read from any thread.
+ * @author Cory
+ *
+ */
+public class GameStateCache {
+	/**
+	 * Version of the cached game state, NO_VERSION if empty
+	 */
+	private long version = GameStateMessage.NO_VERSION;
+
+	/**
+	 * Remaining game time written in the cached message
+	 */
+	private int gameTimer;
+
+	/**
+	 * Remaining round time written in the cached message
+	 */
+	private int roundTimer;
+
+	/**
+	 * Game timer end of the cached game state
+	 */
+	private long gameTimerEnd;
+
+	/**
+	 * Round timer end of the cached game state
+	 */
+	private long roundTimerEnd;
+
+	/**
+	 * True if the cached message is binary, false if XML
+	 */
+	private boolean binary;
+
+	/**
+	 * True if the cached message can be read by every participant
+	 */
+	private boolean complete;
+
+	/**
+	 * The encoded message, or null if empty
+	 */
+	private String data;
+
+	/**
+	 * Number of lookups answered from the cache
+	 */
+	private long hits = 0;
+
+	/**
+	 * Number of lookups that had to encode
+	 */
+	private long misses = 0;
+
+	/**
+	 * Get the encoded game state, if it is cached
+	 * @param version Version of the current game state
+	 * @param gameTimerEnd Time the game timer ends
+	 * @param roundTimerEnd Time the round timer ends
+	 * @param binary True for the binary encoding, false for XML
+	 * @param complete True if every participant must be able to read the message
+	 * @param gameTimer Remaining game time to write in the message
+	 * @param roundTimer Remaining round time to write in the message
+	 * @return The encoded message, or null if it isn't cached
+	 */
+	public synchronized String get(long version, long gameTimerEnd, long roundTimerEnd, boolean binary, boolean complete, int gameTimer, int roundTimer){
+		if (data == null || this.version != version || this.gameTimerEnd != gameTimerEnd || this.roundTimerEnd != roundTimerEnd
+				|| this.binary != binary || (complete && !this.complete)){
+			misses++;
+			return null;
+		}
+		if (this.gameTimer != gameTimer || this.roundTimer != roundTimer){
+			if (binary){
+				data = BinaryGameStateCodec.setRemainingTimes(data, gameTimer, roundTimer);
+			} else {
+				data = GameStateMessage.setRemainingTimes(data, gameTimer, roundTimer);
+			}
+			this.gameTimer = gameTimer;
+			this.roundTimer = roundTimer;
+		}
+		hits++;
+		return data;
+	}
+
+	/**
+	 * Cache an encoded game state, replacing the previous one
+	 * @param message The game state message that was encoded
+	 * @param binary True for the binary encoding, false for XML
+	 * @param complete True if every participant can read the message
+	 * @param data The encoded message
+	 */
+	public synchronized void put(GameStateMessage message, boolean binary, boolean complete, String data){
+		this.version = message.getVersion();
+		this.gameTimer = message.getGameTimeRemaining();
+		this.roundTimer = message.getRoundTimeRemaining();
+		this.gameTimerEnd = message.getGameTimerEnd();
+		this.roundTimerEnd = message.getRoundTimerEnd();
+		this.binary = binary;
+		this.complete = complete;
+		this.data = data;
+	}
+
+	/**
+	 * Get the number of lookups answered from the cache
+	 * @return Number of lookups
+	 */
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	/**
+	 * Get the number of lookups that had to encode
+	 * @return Number of lookups
+	 */
+	public synchronized long getMisses(){
+		return misses;
+	}
+}
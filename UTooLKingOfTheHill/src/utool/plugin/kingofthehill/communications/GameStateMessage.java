@@ -3,6 +3,7 @@ package utool.plugin.kingofthehill.communications;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -15,12 +16,19 @@ import org.xmlpull.v1.XmlSerializer;
 import utool.networking.XmlMessageTypeException;
 import utool.networking.packet.IXmlMessage;
 import utool.plugin.Player;
+import utool.plugin.kingofthehill.engine.GameChange;
+import utool.plugin.kingofthehill.engine.GameSnapshot;
+import utool.plugin.kingofthehill.engine.PlayerStats;
 import utool.plugin.kingofthehill.tournament.KingOfTheHillPlayerExtra;
 import android.util.SparseArray;
 import android.util.Xml;
 
 /**
- * This class handles encoding and decoding messages used for tournament synchronization
+ * This class handles encoding and decoding messages used for tournament synchronization.
+ * A GameState message holds the whole game. A GameStateDelta message holds only the changes that turn the game
+ * at its base version into the game at its version, so participants at the base version can apply it to their copy.
+ * A participant that missed a delta sends RequestChanges with its version, and the host answers with one delta
+ * holding every change since, or with the whole game state if it no longer has those changes.
  * @author Cory
  *
  */
@@ -29,7 +37,7 @@ public class GameStateMessage implements IXmlMessage {
 	/**
 	 * XML root tag
 	 */
-	private static final String ROOT_TAG = "utool_kingofthehill";
+	public static final String ROOT_TAG = "utool_kingofthehill";
 	
 	/**
 	 * Message type attribute
@@ -82,6 +90,96 @@ public class GameStateMessage implements IXmlMessage {
 	 */
 	private static final String PLAYER_LOSSES_ATTRIB = "player_losses";
 	
+	/**
+	 * Game state version attribute
+	 */
+	private static final String VERSION_ATTRIB = "version";
+	
+	/**
+	 * Version a delta applies to attribute
+	 */
+	private static final String BASE_VERSION_ATTRIB = "baseVersion";
+	
+	/**
+	 * XML tag of a change where the king beat the challenger
+	 */
+	private static final String ROTATE_TAG = "rotate";
+	
+	/**
+	 * XML tag of a change where the challenger beat the king
+	 */
+	private static final String DETHRONE_TAG = "dethrone";
+	
+	/**
+	 * XML tag of a player move
+	 */
+	private static final String MOVE_TAG = "move";
+	
+	/**
+	 * XML tag of a player score change
+	 */
+	private static final String STATS_TAG = "stats";
+	
+	/**
+	 * XML tag of players joining, holding player tags
+	 */
+	private static final String JOIN_TAG = "join";
+	
+	/**
+	 * XML tag of players leaving, holding player tags
+	 */
+	private static final String LEAVE_TAG = "leave";
+	
+	/**
+	 * XML tag of a new king
+	 */
+	private static final String SET_KING_TAG = "setKing";
+	
+	/**
+	 * XML tag of a king's streak change
+	 */
+	private static final String STREAK_TAG = "streak";
+	
+	/**
+	 * Codecs the sender accepts attribute
+	 */
+	private static final String CODECS_ATTRIB = "codecs";
+	
+	/**
+	 * Codecs attribute value of senders that accept binary messages
+	 */
+	private static final String BINARY_CODEC = "binary";
+	
+	/**
+	 * Player dictionary session of the requester attribute
+	 */
+	private static final String PLAYER_SESSION_ATTRIB = "playerSession";
+	
+	/**
+	 * Number of player dictionary entries the requester has attribute
+	 */
+	private static final String KNOWN_PLAYERS_ATTRIB = "knownPlayers";
+	
+	/**
+	 * Host time the game timer ends attribute
+	 */
+	private static final String GAME_TIMER_END_ATTRIB = "gameTimerEnd";
+	
+	/**
+	 * Host time the round timer ends attribute
+	 */
+	private static final String ROUND_TIMER_END_ATTRIB = "roundTimerEnd";
+	
+	/**
+	 * Version of messages without a version
+	 */
+	public static final long NO_VERSION = -1;
+	
+	/**
+	 * Timer end of a timer that isn't set, or of a message without timer ends
+	 */
+	public static final long NO_DEADLINE = Long.MIN_VALUE;
+	
 	/**
 	 * The players for this message
 	 */
@@ -92,6 +190,11 @@ public class GameStateMessage implements IXmlMessage {
 	 */
 	private HashMap<UUID, KingOfTheHillPlayerExtra> playersExtra = new HashMap<UUID, KingOfTheHillPlayerExtra>(); 
 	
+	/**
+	 * Statistics store backing the player extra data of a received message
+	 */
+	private PlayerStats stats;
+	
 	/**
 	 * The current king of the tournament
 	 */
@@ -117,6 +220,46 @@ public class GameStateMessage implements IXmlMessage {
 	 */
 	private int roundTimerRemaining;
 	
+	/**
+	 * Host time the game timer ends, in ClockSync milliseconds
+	 */
+	private long gameTimerEnd = NO_DEADLINE;
+	
+	/**
+	 * Host time the round timer ends, in ClockSync milliseconds
+	 */
+	private long roundTimerEnd = NO_DEADLINE;
+	
+	/**
+	 * Version of the game state in this message
+	 */
+	private long version = NO_VERSION;
+	
+	/**
+	 * Version of the game state a delta applies to
+	 */
+	private long baseVersion = NO_VERSION;
+	
+	/**
+	 * The changes of a delta
+	 */
+	private List<GameChange> changes = new ArrayList<GameChange>();
+	
+	/**
+	 * True if the sender accepts messages encoded by BinaryGameStateCodec
+	 */
+	private boolean acceptsBinary = false;
+	
+	/**
+	 * Player dictionary session of a requester, 0 if not sent
+	 */
+	private int playerSession = 0;
+	
+	/**
+	 * Number of player dictionary entries a requester has
+	 */
+	private int knownPlayers = 0;
+	
 	/**
 	 * Read a received PlayerRegisterMessage
 	 * @param message The XML string of the message
@@ -167,6 +310,33 @@ public class GameStateMessage implements IXmlMessage {
 		return roundTimerRemaining;
 	}
 	
+	/**
+	 * Get the host time the game timer ends. Participants that know the host's clock offset count down to it
+	 * instead of from the remaining seconds, which are late by the transit time.
+	 * @return Host time in milliseconds, or NO_DEADLINE
+	 */
+	public long getGameTimerEnd(){
+		return gameTimerEnd;
+	}
+	
+	/**
+	 * Get the host time the round timer ends
+	 * @return Host time in milliseconds, or NO_DEADLINE
+	 */
+	public long getRoundTimerEnd(){
+		return roundTimerEnd;
+	}
+	
+	/**
+	 * Set the host times the timers end
+	 * @param gameTimerEnd Host time in milliseconds the game timer ends, or NO_DEADLINE
+	 * @param roundTimerEnd Host time in milliseconds the round timer ends, or NO_DEADLINE
+	 */
+	public void setTimerEnds(long gameTimerEnd, long roundTimerEnd){
+		this.gameTimerEnd = gameTimerEnd;
+		this.roundTimerEnd = roundTimerEnd;
+	}
+	
 	/**
 	 * Get the king's wins this round
 	 * @return King's wins
@@ -183,6 +353,72 @@ public class GameStateMessage implements IXmlMessage {
 		kingWins = wins;
 	}
 	
+	/**
+	 * Get the version of the game state in this message
+	 * @return The version, or NO_VERSION if the sender doesn't send versions
+	 */
+	public long getVersion(){
+		return version;
+	}
+	
+	/**
+	 * Get the version of the game state a delta applies to
+	 * @return The base version
+	 */
+	public long getBaseVersion(){
+		return baseVersion;
+	}
+	
+	/**
+	 * Get the changes of a delta
+	 * @return The changes, in order
+	 */
+	public List<GameChange> getChanges(){
+		return changes;
+	}
+	
+	/**
+	 * Check if the sender accepts binary messages
+	 * @return True if BinaryGameStateCodec messages can be sent to the sender
+	 */
+	public boolean acceptsBinary(){
+		return acceptsBinary;
+	}
+	
+	/**
+	 * Set if the sender accepts binary messages. Older participants don't send this, so they keep getting XML.
+	 * @param acceptsBinary True if BinaryGameStateCodec messages can be sent to the sender
+	 */
+	public void setAcceptsBinary(boolean acceptsBinary){
+		this.acceptsBinary = acceptsBinary;
+	}
+	
+	/**
+	 * Get the player dictionary session of a requester
+	 * @return The session, 0 if not sent
+	 */
+	public int getPlayerSession(){
+		return playerSession;
+	}
+	
+	/**
+	 * Get the number of player dictionary entries a requester has
+	 * @return Number of entries
+	 */
+	public int getKnownPlayers(){
+		return knownPlayers;
+	}
+	
+	/**
+	 * Set the player dictionary entries a requester has, so the binary answer only includes the missing ones
+	 * @param playerSession The dictionary session
+	 * @param knownPlayers Number of entries
+	 */
+	public void setKnownPlayers(int playerSession, int knownPlayers){
+		this.playerSession = playerSession;
+		this.knownPlayers = knownPlayers;
+	}
+	
 	/**
 	 * Get the extra player data
 	 * @return HashMap of data
@@ -222,6 +458,75 @@ public class GameStateMessage implements IXmlMessage {
 		}
 	}
 	
+	/**
+	 * Constructor for the game state message from a published game state.
+	 * The wins and losses are copied, so the message doesn't change when the game does.
+	 * @param state The game state to send
+	 * @param stats The wins and losses of the game's players
+	 * @param gameTimerRemaining The number of seconds left in the game
+	 * @param roundTimerRemaining The number of seconds left in the round
+	 */
+	public GameStateMessage(GameSnapshot state, PlayerStats stats, int gameTimerRemaining, int roundTimerRemaining){
+		this.messageType = MessageType.GameState;
+		this.gameTimerRemaining = gameTimerRemaining;
+		this.roundTimerRemaining = roundTimerRemaining;
+		this.version = state.getVersion();
+		this.players = state.getQueue();
+		this.king = state.getKing();
+		this.kingWins = state.getKingWinsStreakCount();
+		for (UUID p : players){
+			if (stats.getWins(p) != PlayerStats.STAT_NOT_SET){
+				putPlayerExtra(p, stats.getWins(p), stats.getLosses(p));
+			}
+		}
+		if (king != null && stats.getWins(king) != PlayerStats.STAT_NOT_SET){
+			putPlayerExtra(king, stats.getWins(king), stats.getLosses(king));
+		}
+	}
+	
+	/**
+	 * Constructor for a game state delta message
+	 * @param baseVersion The version of the game state the changes apply to
+	 * @param version The version of the game state after the changes
+	 * @param changes The changes, in order
+	 * @param gameTimerRemaining The number of seconds left in the game
+	 * @param roundTimerRemaining The number of seconds left in the round
+	 */
+	public GameStateMessage(long baseVersion, long version, List<GameChange> changes, int gameTimerRemaining, int roundTimerRemaining){
+		this.messageType = MessageType.GameStateDelta;
+		this.baseVersion = baseVersion;
+		this.version = version;
+		this.changes = changes;
+		this.gameTimerRemaining = gameTimerRemaining;
+		this.roundTimerRemaining = roundTimerRemaining;
+		this.players = null;
+	}
+	
+	/**
+	 * Constructor for a message read by BinaryGameStateCodec, which adds the players or changes
+	 * @param messageType The message type
+	 * @param baseVersion The version of the game state a delta applies to
+	 * @param version The version of the game state
+	 * @param gameTimerRemaining The number of seconds left in the game
+	 * @param roundTimerRemaining The number of seconds left in the round
+	 */
+	GameStateMessage(MessageType messageType, long baseVersion, long version, int gameTimerRemaining, int roundTimerRemaining){
+		this.messageType = messageType;
+		this.baseVersion = baseVersion;
+		this.version = version;
+		this.gameTimerRemaining = gameTimerRemaining;
+		this.roundTimerRemaining = roundTimerRemaining;
+		this.players = new ArrayList<UUID>();
+	}
+	
+	/**
+	 * Set the king of a decoded message
+	 * @param king The king's UUID
+	 */
+	void setKing(UUID king){
+		this.king = king;
+	}
+	
 	/**
 	 * Constructor for game state request message
 	 */
@@ -229,6 +534,15 @@ public class GameStateMessage implements IXmlMessage {
 		this.messageType = MessageType.RequestGameState;
 	}
 	
+	/**
+	 * Constructor for a request for the changes made since a version
+	 * @param version The version of the game state the requester has
+	 */
+	public GameStateMessage(long version){
+		this.messageType = MessageType.RequestChanges;
+		this.version = version;
+	}
+	
 	@Override
 	public String getXml(){
 		String xml = "";
@@ -245,6 +559,28 @@ public class GameStateMessage implements IXmlMessage {
 			xmlSerializer.attribute("", MESSAGE_TYPE_ATTRIB, messageType.name());
 			xmlSerializer.attribute("", GAME_TIMER_REMAINING_SECONDS_ATTRIB, Integer.toString(gameTimerRemaining));
 			xmlSerializer.attribute("", ROUND_TIMER_REMAINING_ATTRIB, Integer.toString(roundTimerRemaining));
+			if (gameTimerEnd != NO_DEADLINE){
+				xmlSerializer.attribute("", GAME_TIMER_END_ATTRIB, Long.toString(gameTimerEnd));
+			}
+			if (roundTimerEnd != NO_DEADLINE){
+				xmlSerializer.attribute("", ROUND_TIMER_END_ATTRIB, Long.toString(roundTimerEnd));
+			}
+			if (version != NO_VERSION){
+				xmlSerializer.attribute("", VERSION_ATTRIB, Long.toString(version));
+			}
+			if (acceptsBinary){
+				xmlSerializer.attribute("", CODECS_ATTRIB, BINARY_CODEC);
+			}
+			if (playerSession != 0){
+				xmlSerializer.attribute("", PLAYER_SESSION_ATTRIB, Integer.toString(playerSession));
+				xmlSerializer.attribute("", KNOWN_PLAYERS_ATTRIB, Integer.toString(knownPlayers));
+			}
+			if (messageType == MessageType.GameStateDelta){
+				xmlSerializer.attribute("", BASE_VERSION_ATTRIB, Long.toString(baseVersion));
+				for (GameChange change : changes){
+					writeChange(xmlSerializer, change);
+				}
+			}
 
 			//Write the king
 			if (king != null){
@@ -285,6 +621,148 @@ public class GameStateMessage implements IXmlMessage {
 		return xml;
 	}
 	
+	/**
+	 * Replace the remaining times of a message encoded by getXml(), leaving the rest of the message as it is
+	 * @param xml The encoded message
+	 * @param gameTimerRemaining Remaining game time
+	 * @param roundTimerRemaining Remaining round time
+	 * @return The encoded message with the new remaining times
+	 */
+	public static String setRemainingTimes(String xml, int gameTimerRemaining, int roundTimerRemaining){
+		xml = replaceAttribute(xml, GAME_TIMER_REMAINING_SECONDS_ATTRIB, gameTimerRemaining);
+		return replaceAttribute(xml, ROUND_TIMER_REMAINING_ATTRIB, roundTimerRemaining);
+	}
+
+	/**
+	 * Replace the value of the first occurrence of an attribute, which for the remaining times is on the root tag
+	 * @param xml The encoded message
+	 * @param name Name of the attribute
+	 * @param value New value
+	 * @return The encoded message with the new value, or as it was if it doesn't have the attribute
+	 */
+	private static String replaceAttribute(String xml, String name, int value){
+		String start = " " + name + "=\"";
+		int from = xml.indexOf(start);
+		if (from < 0){
+			return xml;
+		}
+		from += start.length();
+		int to = xml.indexOf('"', from);
+		return xml.substring(0, from) + value + xml.substring(to);
+	}
+
+	/**
+	 * Write a change of a delta
+	 * @param xmlSerializer The serializer
+	 * @param change The change
+	 * @throws IOException If writing fails
+	 */
+	private static void writeChange(XmlSerializer xmlSerializer, GameChange change) throws IOException{
+		switch (change.getType()){
+			case GameChange.ROTATE:
+				xmlSerializer.startTag("", ROTATE_TAG);
+				xmlSerializer.endTag("", ROTATE_TAG);
+				break;
+			case GameChange.DETHRONE:
+				xmlSerializer.startTag("", DETHRONE_TAG);
+				xmlSerializer.endTag("", DETHRONE_TAG);
+				break;
+			case GameChange.MOVE:
+				xmlSerializer.startTag("", MOVE_TAG);
+				xmlSerializer.attribute("", PLAYER_UUID_ATTRIB, change.getPlayer().toString());
+				xmlSerializer.attribute("", PLAYER_POSITION_ATTRIB, Integer.toString(change.getPosition()));
+				xmlSerializer.endTag("", MOVE_TAG);
+				break;
+			case GameChange.STATS:
+				xmlSerializer.startTag("", STATS_TAG);
+				xmlSerializer.attribute("", PLAYER_UUID_ATTRIB, change.getPlayer().toString());
+				xmlSerializer.attribute("", PLAYER_WINS_ATTRIB, Integer.toString(change.getWins()));
+				xmlSerializer.attribute("", PLAYER_LOSSES_ATTRIB, Integer.toString(change.getLosses()));
+				xmlSerializer.endTag("", STATS_TAG);
+				break;
+			case GameChange.JOIN:
+			case GameChange.LEAVE:
+				String tag = change.getType() == GameChange.JOIN ? JOIN_TAG : LEAVE_TAG;
+				xmlSerializer.startTag("", tag);
+				for (UUID p : change.getPlayers()){
+					xmlSerializer.startTag("", PLAYER_TAG);
+					xmlSerializer.attribute("", PLAYER_UUID_ATTRIB, p.toString());
+					xmlSerializer.endTag("", PLAYER_TAG);
+				}
+				xmlSerializer.endTag("", tag);
+				break;
+			case GameChange.KING:
+				xmlSerializer.startTag("", SET_KING_TAG);
+				xmlSerializer.attribute("", PLAYER_UUID_ATTRIB, change.getPlayer().toString());
+				xmlSerializer.endTag("", SET_KING_TAG);
+				break;
+			case GameChange.STREAK:
+				xmlSerializer.startTag("", STREAK_TAG);
+				xmlSerializer.attribute("", KING_WINS_ATTRIB, Integer.toString(change.getStreak()));
+				xmlSerializer.endTag("", STREAK_TAG);
+				break;
+		}
+	}
+	
+	/**
+	 * Read the changes of a delta, after the root tag
+	 * @param parser The parser
+	 * @throws XmlPullParserException If the XML is invalid
+	 * @throws IOException If reading fails
+	 */
+	private void decodeChanges(XmlPullParser parser) throws XmlPullParserException, IOException{
+		List<UUID> list = null;
+		int next = parser.next();
+		while (next != XmlPullParser.END_DOCUMENT) {
+			String name = parser.getName();
+			if (next == XmlPullParser.START_TAG){
+				String uuid = parser.getAttributeValue("", PLAYER_UUID_ATTRIB);
+				UUID player = uuid == null ? null : UUID.fromString(uuid);
+				if (name.equals(ROTATE_TAG)){
+					changes.add(GameChange.rotate());
+				} else if (name.equals(DETHRONE_TAG)){
+					changes.add(GameChange.dethrone());
+				} else if (name.equals(MOVE_TAG)){
+					changes.add(GameChange.move(player, Integer.parseInt(parser.getAttributeValue("", PLAYER_POSITION_ATTRIB))));
+				} else if (name.equals(STATS_TAG)){
+					changes.add(GameChange.stats(player, Integer.parseInt(parser.getAttributeValue("", PLAYER_WINS_ATTRIB)),
+							Integer.parseInt(parser.getAttributeValue("", PLAYER_LOSSES_ATTRIB))));
+				} else if (name.equals(JOIN_TAG) || name.equals(LEAVE_TAG)){
+					list = new ArrayList<UUID>();
+				} else if (name.equals(PLAYER_TAG) && list != null){
+					list.add(player);
+				} else if (name.equals(SET_KING_TAG)){
+					changes.add(GameChange.king(player));
+				} else if (name.equals(STREAK_TAG)){
+					changes.add(GameChange.streak(Integer.parseInt(parser.getAttributeValue("", KING_WINS_ATTRIB))));
+				}
+			} else if (next == XmlPullParser.END_TAG){
+				if (name.equals(JOIN_TAG)){
+					changes.add(GameChange.join(list));
+					list = null;
+				} else if (name.equals(LEAVE_TAG)){
+					changes.add(GameChange.leave(list));
+					list = null;
+				}
+			}
+			next = parser.next();
+		}
+	}
+	
+	/**
+	 * Record a player's extra data read from a message
+	 * @param player The player's UUID
+	 * @param wins The player's wins
+	 * @param losses The player's losses
+	 */
+	void putPlayerExtra(UUID player, int wins, int losses){
+		if (stats == null){
+			stats = new PlayerStats();
+		}
+		stats.setStats(player, wins, losses);
+		playersExtra.put(player, new KingOfTheHillPlayerExtra(stats, player));
+	}
+	
 	/**
 	 * Decode an XML message to this object
 	 * @param xml string to parse
@@ -304,9 +782,36 @@ public class GameStateMessage implements IXmlMessage {
 				throw new XmlMessageTypeException("Not a game state message: " + parser.getName());
 			}
 			String messageType = parser.getAttributeValue("", MESSAGE_TYPE_ATTRIB);
-			this.messageType = MessageType.valueOf(messageType);
+			try {
+				this.messageType = MessageType.valueOf(messageType);
+			} catch (IllegalArgumentException e) {
+				throw new XmlMessageTypeException("Unknown game state message type: " + messageType);
+			}
 			this.gameTimerRemaining = Integer.parseInt(parser.getAttributeValue("", GAME_TIMER_REMAINING_SECONDS_ATTRIB));
 			this.roundTimerRemaining = Integer.parseInt(parser.getAttributeValue("", ROUND_TIMER_REMAINING_ATTRIB));
+			String gameTimerEnd = parser.getAttributeValue("", GAME_TIMER_END_ATTRIB);
+			if (gameTimerEnd != null){
+				this.gameTimerEnd = Long.parseLong(gameTimerEnd);
+			}
+			String roundTimerEnd = parser.getAttributeValue("", ROUND_TIMER_END_ATTRIB);
+			if (roundTimerEnd != null){
+				this.roundTimerEnd = Long.parseLong(roundTimerEnd);
+			}
+			String version = parser.getAttributeValue("", VERSION_ATTRIB);
+			if (version != null){
+				this.version = Long.parseLong(version);
+			}
+			this.acceptsBinary = BINARY_CODEC.equals(parser.getAttributeValue("", CODECS_ATTRIB));
+			String playerSession = parser.getAttributeValue("", PLAYER_SESSION_ATTRIB);
+			if (playerSession != null){
+				this.playerSession = Integer.parseInt(playerSession);
+				this.knownPlayers = Integer.parseInt(parser.getAttributeValue("", KNOWN_PLAYERS_ATTRIB));
+			}
+			if (this.messageType == MessageType.GameStateDelta){
+				this.baseVersion = Long.parseLong(parser.getAttributeValue("", BASE_VERSION_ATTRIB));
+				decodeChanges(parser);
+				return;
+			}
 
 			int next = parser.next();
 			UUID playerUUID = null;
@@ -350,12 +855,12 @@ public class GameStateMessage implements IXmlMessage {
 					if (name.equalsIgnoreCase(PLAYER_TAG)){
 						players.put(position, playerUUID);
 						if (wins != -1 && losses != -1){
-							playersExtra.put(playerUUID, new KingOfTheHillPlayerExtra(playerUUID, wins, losses));
+							putPlayerExtra(playerUUID, wins, losses);
 						}
 					}
 					else if (name.equalsIgnoreCase(KING_TAG)){
 						if (wins != -1 && losses != -1){
-							playersExtra.put(king, new KingOfTheHillPlayerExtra(king, wins, losses));
+							putPlayerExtra(king, wins, losses);
 						}
 					}
 				}
@@ -391,7 +896,15 @@ public class GameStateMessage implements IXmlMessage {
 		/**
 		 * The message is request for the current game state
 		 */
-		RequestGameState
+		RequestGameState,
+		/**
+		 * The message contains changes to the game state
+		 */
+		GameStateDelta,
+		/**
+		 * The message is a request for the changes since the message's version
+		 */
+		RequestChanges
 	}
 
 	@Override
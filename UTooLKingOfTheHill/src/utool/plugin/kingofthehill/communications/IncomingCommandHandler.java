@@ -1,12 +1,17 @@
 package utool.plugin.kingofthehill.communications;
 
+import java.util.Random;
+import java.util.UUID;
+
 import android.util.Log;
 import utool.networking.XmlMessageTypeException;
 import utool.networking.packet.PlayerMessage;
 import utool.networking.packet.PlayerMessage.MessageType;
 import utool.networking.packet.PluginTerminationMessage;
+import utool.plugin.kingofthehill.engine.GameChange;
 import utool.plugin.kingofthehill.tournament.KingOfTheHillParticipantTournament;
 import utool.plugin.kingofthehill.tournament.KingOfTheHillTournament;
+import utool.plugin.kingofthehill.tournament.TournamentBatch;
 import utool.plugin.kingofthehill.tournament.TournamentLogic;
 
 /**
@@ -21,59 +26,536 @@ public class IncomingCommandHandler {
 	 */
 	TournamentLogic tournament;
 
+	/**
+	 * Version of the host's game state the local game matches, or NO_VERSION if unknown.
+	 * Deltas are only applied on top of the version they were made for.
+	 */
+	private volatile long version = GameStateMessage.NO_VERSION;
+
+	/**
+	 * True while waiting for requested changes or game state
+	 */
+	private boolean resyncRequested = false;
+
+	/**
+	 * Number of deltas that couldn't be applied since changes or game state were requested
+	 */
+	private int missed = 0;
+
+	/**
+	 * Number of deltas missed while waiting before the whole game state is requested again
+	 */
+	private static final int RESYNC_RETRY = 8;
+
+	/**
+	 * Most deltas missed before the game state is requested again, after game states that didn't match
+	 */
+	private static final int RESYNC_RETRY_LIMIT = 256;
+
+	/**
+	 * Number of deltas to miss before requesting again. Doubles with every game state that doesn't match.
+	 */
+	private int retry = RESYNC_RETRY;
+
+	/**
+	 * Number of clock measurements made each time the clock is synchronized
+	 */
+	private static final int CLOCK_ROUNDS = 4;
+
+	/**
+	 * Id of this participant in clock messages
+	 */
+	private final long clockId = new Random().nextLong();
+
+	/**
+	 * Number of clock measurements left in the current synchronization
+	 */
+	private int clockRounds = 0;
+
+	/**
+	 * Host time the game timer ends, from the last game state or delta applied. Only used on the command loop.
+	 */
+	private long gameTimerEnd = GameStateMessage.NO_DEADLINE;
+
+	/**
+	 * Host time the round timer ends, from the last game state or delta applied. Only used on the command loop.
+	 */
+	private long roundTimerEnd = GameStateMessage.NO_DEADLINE;
+
+	/**
+	 * Routes received messages to the handler of their type
+	 */
+	private final MessageDispatcher dispatcher = new MessageDispatcher();
+
+	/**
+	 * Decoded messages waiting to be applied
+	 */
+	private final ReceiveQueue queue = new ReceiveQueue();
+
+	/**
+	 * Records the received messages, or null
+	 */
+	private volatile SessionRecorder recorder;
+
 	/**
 	 * Constructor
 	 * @param tournament Tournament logic class this handler is associated with
 	 */
 	public IncomingCommandHandler(TournamentLogic tournament){
 		this.tournament = tournament;
+		dispatcher.registerPrefix("binary", BinaryGameStateCodec.TEXT_PREFIX, new MessageDispatcher.Decoder(){
+			@Override
+			public boolean handle(String data){
+				return handleBinary(data);
+			}
+		});
+		dispatcher.registerRootTag("xml", GameStateMessage.ROOT_TAG, new MessageDispatcher.Decoder(){
+			@Override
+			public boolean handle(String data){
+				return handleXml(data);
+			}
+		});
+		dispatcher.registerRootTag("clock", ClockMessage.ROOT_TAG, new MessageDispatcher.Decoder(){
+			@Override
+			public boolean handle(String data){
+				return handleClock(data);
+			}
+		});
+		//the core's messages are recognized by their classes, which don't expose their root tags,
+		//so the dispatcher registers the tags they accept on first sight
+		dispatcher.registerFallback("player", new MessageDispatcher.Decoder(){
+			@Override
+			public boolean handle(String data){
+				return handlePlayerMessage(data);
+			}
+		});
+		dispatcher.registerFallback("termination", new MessageDispatcher.Decoder(){
+			@Override
+			public boolean handle(String data){
+				return handleTermination(data);
+			}
+		});
 	}
 
 	/**
-	 * Handle a received message
+	 * Handle a received message, and wait until the tournament applied it.
+	 * Blocks the caller, so never call this from the UI thread.
 	 * @param data The message string
 	 */
 	public void handleMessage(String data){
+		decode(data);
+		queue.drain();
+		tournament.awaitCommands();
+	}
+
+	/**
+	 * Decode a received message on the receive thread, and have it applied by the queue's scheduler.
+	 * Full game states replace game states and deltas still waiting to be applied.
+	 * @param data The message string
+	 */
+	public void receive(String data){
+		decode(data);
+		queue.flush();
+	}
+
+	/**
+	 * Set what applies received messages, such as a handler posting to the UI thread once per frame
+	 * @param scheduler The scheduler, or null to apply them on the receive thread
+	 */
+	public void setScheduler(ReceiveQueue.Scheduler scheduler){
+		queue.setScheduler(scheduler);
+	}
+
+	/**
+	 * Get the queue of decoded messages waiting to be applied
+	 * @return The queue
+	 */
+	public ReceiveQueue getQueue(){
+		return queue;
+	}
+
+	/**
+	 * Decode a message and queue its handling
+	 * @param data The message string
+	 */
+	private void decode(String data){
+		SessionRecorder recorder = this.recorder;
+		if (recorder != null){
+			recorder.record(SessionRecorder.INCOMING, data);
+		}
+		if (!dispatcher.dispatch(data)){
+			Log.d("KOTH", "Ignored unknown message");
+		}
+	}
+
+	/**
+	 * Set the recorder of received messages
+	 * @param recorder The recorder, or null to stop recording
+	 */
+	public void setRecorder(SessionRecorder recorder){
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Get the version of the host's game state the local game matches
+	 * @return The version, or NO_VERSION if unknown
+	 */
+	public long getVersion(){
+		return version;
+	}
+
+	/**
+	 * Get the dispatcher of received messages, which counts the messages of each type
+	 * @return The dispatcher
+	 */
+	public MessageDispatcher getDispatcher(){
+		return dispatcher;
+	}
+
+	/**
+	 * Handle a binary game state message
+	 * @param data The message string
+	 * @return False if the message is invalid
+	 */
+	private boolean handleBinary(String data){
+		GameStateMessage message;
 		try {
-			GameStateMessage message = new GameStateMessage(data);
-			switch (message.getMessageType()) {
-				case GameState:
-					if (tournament instanceof KingOfTheHillParticipantTournament){
-						Log.d("KOTH", "Game state received from host");
-						tournament.setPlayerExtras(message.getPlayerExtras());
-						tournament.setKing(message.getKing());
-						tournament.setPlayers(message.getPlayerList());
-						tournament.setRemainingGameTime(message.getGameTimeRemaining());
-						tournament.setRemainingRoundTime(message.getRoundTimeRemaining());
-						tournament.setKingWinsStreakCount(message.getKingWins());
-					}
-					break;
-				case RequestGameState:
-					if (tournament instanceof KingOfTheHillTournament){
-						Log.d("KOTH", "Game state requested from client");
-						tournament.getOutgoingCommandHandler().sendGameState();
+			message = tournament.getOutgoingCommandHandler().getCodec().decode(data);
+		} catch (XmlMessageTypeException e) {
+			return false;
+		}
+		if (message == null){
+			//uses players sent in a message that was missed
+			if (tournament instanceof KingOfTheHillParticipantTournament){
+				Log.d("KOTH", "Game state message with unknown players");
+				queue.add(ReceiveQueue.OTHER, new Runnable(){
+					@Override
+					public void run(){
+						resync();
 					}
-					break;
-				default:
-					break;
+				});
 			}
-			return;
+		} else {
+			queueGameState(message);
+		}
+		return true;
+	}
+
+	/**
+	 * Handle an XML game state message
+	 * @param data The message string
+	 * @return False if the message is invalid
+	 */
+	private boolean handleXml(String data){
+		try {
+			queueGameState(new GameStateMessage(data));
+			return true;
 		} catch (XmlMessageTypeException e) {
+			return false;
 		}
+	}
+
+	/**
+	 * Queue the handling of a game state message. It is handled on the tournament's command loop, so the batches
+	 * it applies are done before it compares the local game to the message.
+	 * @param message The message
+	 */
+	private void queueGameState(final GameStateMessage message){
+		int kind = ReceiveQueue.OTHER;
+		if (message.getMessageType() == GameStateMessage.MessageType.GameState){
+			kind = ReceiveQueue.SNAPSHOT;
+		} else if (message.getMessageType() == GameStateMessage.MessageType.GameStateDelta){
+			kind = ReceiveQueue.DELTA;
+		}
+		queue.add(kind, asCommand(new Runnable(){
+			@Override
+			public void run(){
+				handleGameState(message);
+			}
+		}));
+	}
+
+	/**
+	 * Wrap an action so it runs on the tournament's command loop when the receive queue is drained
+	 * @param action The action
+	 * @return Action posting the action to the command loop
+	 */
+	private Runnable asCommand(final Runnable action){
+		return new Runnable(){
+			@Override
+			public void run(){
+				tournament.post(action);
+			}
+		};
+	}
+
+	/**
+	 * Handle a game state message
+	 * @param message The message
+	 */
+	private void handleGameState(GameStateMessage message){
+		switch (message.getMessageType()) {
+			case GameState:
+				if (tournament instanceof KingOfTheHillParticipantTournament){
+					Log.d("KOTH", "Game state received from host");
+					tournament.apply(setTimers(new TournamentBatch()
+							.setPlayerExtras(message.getPlayerExtras())
+							.setKing(message.getKing())
+							.reorderQueue(message.getPlayerList())
+							.setKingWinsStreakCount(message.getKingWins()), message));
+					missed = 0;
+					//deltas can only be applied if the local game now matches the host's
+					if (matches(message)){
+						version = message.getVersion();
+						resyncRequested = false;
+						retry = RESYNC_RETRY;
+					} else {
+						//players the core hasn't told us about yet; asking again at once gets the same answer,
+						//so wait for the core's player list, or a growing number of missed deltas
+						Log.d("KOTH", "Game state from host doesn't match the local players");
+						version = GameStateMessage.NO_VERSION;
+						resyncRequested = true;
+						retry = Math.min(retry * 2, RESYNC_RETRY_LIMIT);
+					}
+					tournament.updateActivity();
+				}
+				break;
+			case GameStateDelta:
+				if (tournament instanceof KingOfTheHillParticipantTournament){
+					if (version != GameStateMessage.NO_VERSION && message.getBaseVersion() == version && knowsPlayers(message)){
+						tournament.apply(setTimers(new TournamentBatch()
+								.applyChanges(message.getChanges()), message));
+						version = message.getVersion();
+						resyncRequested = false;
+						missed = 0;
+						tournament.updateActivity();
+					} else if (version != GameStateMessage.NO_VERSION && message.getVersion() <= version){
+						//already applied
+					} else {
+						Log.d("KOTH", "Game state delta for version " + message.getBaseVersion() + " at version " + version);
+						resync();
+					}
+				}
+				break;
+			case RequestGameState:
+				if (tournament instanceof KingOfTheHillTournament){
+					Log.d("KOTH", "Game state requested from client");
+					tournament.getOutgoingCommandHandler().clientRequested(message);
+					tournament.getOutgoingCommandHandler().sendGameState(message);
+				}
+				break;
+			case RequestChanges:
+				if (tournament instanceof KingOfTheHillTournament){
+					Log.d("KOTH", "Changes since " + message.getVersion() + " requested from client");
+					tournament.getOutgoingCommandHandler().clientRequested(message);
+					tournament.getOutgoingCommandHandler().sendChangesSince(message);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Set the timers of a received game state or delta. With a measured clock offset, the timers count down to the
+	 * host's timer ends, otherwise they restart from the remaining seconds.
+	 * @param batch The batch applying the message
+	 * @param message The message
+	 * @return The batch
+	 */
+	private TournamentBatch setTimers(TournamentBatch batch, GameStateMessage message){
+		gameTimerEnd = message.getGameTimerEnd();
+		roundTimerEnd = message.getRoundTimerEnd();
+		ClockSync clock = tournament.getClockSync();
+		if (clock.isSynchronized() && gameTimerEnd != GameStateMessage.NO_DEADLINE){
+			batch.setGameTimerEnd(clock.toLocalTime(gameTimerEnd));
+		} else {
+			batch.setRemainingGameTime(message.getGameTimeRemaining());
+		}
+		if (clock.isSynchronized() && roundTimerEnd != GameStateMessage.NO_DEADLINE){
+			batch.setRoundTimerEnd(clock.toLocalTime(roundTimerEnd));
+		} else {
+			batch.setRemainingRoundTime(message.getRoundTimeRemaining());
+		}
+		return batch;
+	}
+
+	/**
+	 * Measure the offset between the local clock and the host's, so timers can count down to the host's timer ends.
+	 * Only participants measure. Takes CLOCK_ROUNDS round trips, one at a time.
+	 */
+	public void syncClock(){
+		if (tournament instanceof KingOfTheHillParticipantTournament){
+			synchronized (this){
+				clockRounds = CLOCK_ROUNDS;
+			}
+			tournament.getOutgoingCommandHandler().requestClock(clockId);
+		}
+	}
+
+	/**
+	 * Handle a clock message on the receive thread, so queueing doesn't skew the measured times.
+	 * The host answers requests. A participant adds its own answers to the clock offset estimate, and once done
+	 * moves its timers to the host's timer ends.
+	 * @param data The message string
+	 * @return False if the message isn't a clock message
+	 */
+	private boolean handleClock(String data){
+		ClockSync clock = tournament.getClockSync();
+		long now = clock.now();
+		ClockMessage message;
 		try {
-			PlayerMessage message = new PlayerMessage(data);
-			if (message.getMessageType() == MessageType.PlayerRegister){
-				tournament.addNewPlayersToBottom(message.getPlayerList());
+			message = new ClockMessage(data);
+		} catch (XmlMessageTypeException e) {
+			return false;
+		}
+		if (!message.isReply()){
+			if (tournament instanceof KingOfTheHillTournament){
+				tournament.getOutgoingCommandHandler().sendClockReply(message, now);
 			}
-			else if (message.getMessageType() == MessageType.PlayerList){
-				tournament.updatePlayerList(message.getPlayerList());
-				tournament.updateActivity();
+		} else if (tournament instanceof KingOfTheHillParticipantTournament && message.getId() == clockId){
+			clock.addSample(message.getRequested(), message.getReceived(), message.getReplied(), now);
+			boolean more;
+			synchronized (this){
+				more = clockRounds > 0 && --clockRounds > 0;
+			}
+			if (more){
+				tournament.getOutgoingCommandHandler().requestClock(clockId);
+			} else {
+				queue.add(ReceiveQueue.OTHER, asCommand(new Runnable(){
+					@Override
+					public void run(){
+						applyTimerEnds();
+					}
+				}));
 			}
-			return;
+		}
+		return true;
+	}
+
+	/**
+	 * Move the timers to the host's timer ends from the last game state or delta, after the clock offset was measured
+	 */
+	private void applyTimerEnds(){
+		ClockSync clock = tournament.getClockSync();
+		TournamentBatch batch = new TournamentBatch();
+		if (gameTimerEnd != GameStateMessage.NO_DEADLINE){
+			batch.setGameTimerEnd(clock.toLocalTime(gameTimerEnd));
+		}
+		if (roundTimerEnd != GameStateMessage.NO_DEADLINE){
+			batch.setRoundTimerEnd(clock.toLocalTime(roundTimerEnd));
+		}
+		if (!batch.isEmpty()){
+			tournament.apply(batch);
+			tournament.updateActivity();
+		}
+	}
+
+	/**
+	 * Handle a player message from the core
+	 * @param data The message string
+	 * @return False if the message isn't a player message
+	 */
+	private boolean handlePlayerMessage(String data){
+		final PlayerMessage message;
+		try {
+			message = new PlayerMessage(data);
 		} catch (XmlMessageTypeException e){
+			return false;
 		}
+		queue.add(ReceiveQueue.OTHER, asCommand(new Runnable(){
+			@Override
+			public void run(){
+				if (message.getMessageType() == MessageType.PlayerRegister){
+					tournament.addNewPlayersToBottom(message.getPlayerList());
+				}
+				else if (message.getMessageType() == MessageType.PlayerList){
+					tournament.updatePlayerList(message.getPlayerList());
+					tournament.updateActivity();
+					if (tournament instanceof KingOfTheHillParticipantTournament){
+						//the queue now has the core's order instead of the host's
+						version = GameStateMessage.NO_VERSION;
+						requestState();
+					}
+				}
+			}
+		}));
+		return true;
+	}
+
+	/**
+	 * Handle a plugin termination message from the core
+	 * @param data The message string
+	 * @return False if the message isn't a termination message
+	 */
+	private boolean handleTermination(String data){
 		if (PluginTerminationMessage.isPluginTerminationMessage(data)){
-			tournament.endTournament();
+			queue.add(ReceiveQueue.OTHER, new Runnable(){
+				@Override
+				public void run(){
+					tournament.endTournament();
+				}
+			});
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Catch up after a missed delta, unless already catching up.
+	 * If the request seems lost, or the game state it got didn't match, the whole game state is requested again
+	 * after more missed deltas: RESYNC_RETRY at first, doubling with every game state that didn't match.
+	 */
+	private void resync(){
+		if (resyncRequested){
+			if (++missed < retry){
+				return;
+			}
+			version = GameStateMessage.NO_VERSION;
+		}
+		requestState();
+	}
+
+	/**
+	 * Request the changes since the local version from the host, or the whole game state if the version is unknown
+	 */
+	private void requestState(){
+		syncClock();
+		resyncRequested = true;
+		missed = 0;
+		if (version == GameStateMessage.NO_VERSION){
+			tournament.getOutgoingCommandHandler().requestGameState();
+		} else {
+			tournament.getOutgoingCommandHandler().requestChangesSince(version);
+		}
+	}
+
+	/**
+	 * Check if the local game matches a received game state
+	 * @param message The game state message
+	 * @return True if the king and queue are the same
+	 */
+	private boolean matches(GameStateMessage message){
+		UUID king = tournament.getSnapshot().getKing();
+		return (king == null ? message.getKing() == null : king.equals(message.getKing()))
+				&& tournament.getSnapshot().getQueue().equals(message.getPlayerList());
+	}
+
+	/**
+	 * Check if every player joining in a delta is known locally
+	 * @param message The delta message
+	 * @return True if all joining players are known
+	 */
+	private boolean knowsPlayers(GameStateMessage message){
+		for (GameChange change : message.getChanges()){
+			if (change.getType() == GameChange.JOIN){
+				for (UUID p : change.getPlayers()){
+					if (tournament.getPlayer(p) == null){
+						return false;
+					}
+				}
+			}
 		}
+		return true;
 	}
 }
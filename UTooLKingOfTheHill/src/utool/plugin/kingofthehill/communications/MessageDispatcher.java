@@ -0,0 +1,277 @@
+package utool.plugin.kingofthehill.communications;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes received messages to decoders by looking only at the start of the message.
+ * Messages are matched by a prefix, such as the binary message marker, or by the root tag of an XML message.
+ * Messages of other plugins or the core, whose root tags aren't registered, are offered to the fallback decoders in order.
+ * The root tags a fallback decoder accepts are registered for it, so later messages with those tags go straight to it,
+ * and other fallbacks are only tried if it rejects them. Root tags no fallback accepted after FOREIGN_LIMIT messages
+ * are registered as foreign, and later messages with them are ignored without being offered to any decoder.
+ * Messages no decoder accepts are counted and ignored.
+ * Register all decoders before dispatching. Dispatch from one thread; the counters can be read from any thread.
+ * @author Cory
+ *
+ */
+public class MessageDispatcher {
+	/**
+	 * Decoder of one type of message
+	 */
+	public interface Decoder {
+		/**
+		 * Decode and handle a message
+		 * @param data The received message
+		 * @return False if the message isn't of this decoder's type or is invalid
+		 */
+		boolean handle(String data);
+	}
+
+	/**
+	 * Counter name of messages no decoder accepted
+	 */
+	public static final String REJECTED = "rejected";
+
+	/**
+	 * Number of messages with an unregistered root tag every fallback must reject before the tag is ignored
+	 */
+	public static final int FOREIGN_LIMIT = 3;
+
+	/**
+	 * Decoders by message prefix
+	 */
+	private final LinkedHashMap<String, String> prefixes = new LinkedHashMap<String, String>();
+
+	/**
+	 * Decoders by XML root tag
+	 */
+	private final HashMap<String, String> tags = new HashMap<String, String>();
+
+	/**
+	 * Types of the fallback decoders, in the order they are tried
+	 */
+	private final List<String> fallbacks = new ArrayList<String>();
+
+	/**
+	 * Root tags accepted by fallback decoders, with the types of those decoders in the order they accepted them
+	 */
+	private final HashMap<String, List<String>> learned = new HashMap<String, List<String>>();
+
+	/**
+	 * Number of messages every fallback rejected, by root tags no fallback accepted yet
+	 */
+	private final HashMap<String, Integer> unclaimed = new HashMap<String, Integer>();
+
+	/**
+	 * Root tags of messages for other plugins, which no fallback accepts
+	 */
+	private final HashSet<String> foreign = new HashSet<String>();
+
+	/**
+	 * Decoders by type
+	 */
+	private final HashMap<String, Decoder> decoders = new HashMap<String, Decoder>();
+
+	/**
+	 * Number of messages handled by type
+	 */
+	private final ConcurrentHashMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Constructor
+	 */
+	public MessageDispatcher(){
+		counts.put(REJECTED, new AtomicLong());
+	}
+
+	/**
+	 * Register a decoder for messages starting with a prefix
+	 * @param type Name of the message type, used for the counters
+	 * @param prefix The prefix
+	 * @param decoder The decoder
+	 */
+	public void registerPrefix(String type, String prefix, Decoder decoder){
+		add(type, decoder);
+		prefixes.put(prefix, type);
+	}
+
+	/**
+	 * Register a decoder for XML messages with a root tag
+	 * @param type Name of the message type, used for the counters
+	 * @param rootTag The root tag
+	 * @param decoder The decoder
+	 */
+	public void registerRootTag(String type, String rootTag, Decoder decoder){
+		add(type, decoder);
+		tags.put(rootTag, type);
+	}
+
+	/**
+	 * Register a decoder for messages whose root tag isn't known in advance
+	 * @param type Name of the message type, used for the counters
+	 * @param decoder The decoder
+	 */
+	public void registerFallback(String type, Decoder decoder){
+		add(type, decoder);
+		fallbacks.add(type);
+	}
+
+	/**
+	 * Route a message to its decoder
+	 * @param data The received message
+	 * @return True if a decoder handled the message
+	 */
+	public boolean dispatch(String data){
+		for (Map.Entry<String, String> prefix : prefixes.entrySet()){
+			if (data.startsWith(prefix.getKey())){
+				return handle(prefix.getValue(), data);
+			}
+		}
+		String tag = rootTag(data);
+		if (tag == null){
+			counts.get(REJECTED).incrementAndGet();
+			return false;
+		}
+		String type = tags.get(tag);
+		if (type != null){
+			return handle(type, data);
+		}
+
+		if (foreign.contains(tag)){
+			counts.get(REJECTED).incrementAndGet();
+			return false;
+		}
+
+		List<String> known = learned.get(tag);
+		if (known != null){
+			for (String fallback : known){
+				if (handle(fallback, data)){
+					return true;
+				}
+			}
+		}
+		for (String fallback : fallbacks){
+			if ((known == null || !known.contains(fallback)) && handle(fallback, data)){
+				if (known == null){
+					known = new ArrayList<String>();
+					learned.put(tag, known);
+					unclaimed.remove(tag);
+				}
+				known.add(fallback);
+				return true;
+			}
+		}
+		if (known == null){
+			Integer rejected = unclaimed.get(tag);
+			int count = rejected == null ? 1 : rejected + 1;
+			if (count >= FOREIGN_LIMIT){
+				unclaimed.remove(tag);
+				foreign.add(tag);
+			} else {
+				unclaimed.put(tag, count);
+			}
+		}
+		counts.get(REJECTED).incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Get the number of messages handled by a type of decoder
+	 * @param type Name of the message type, or REJECTED
+	 * @return Number of messages
+	 */
+	public long getCount(String type){
+		AtomicLong count = counts.get(type);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * Get the number of messages handled by each type of decoder
+	 * @return Number of messages by type, including REJECTED
+	 */
+	public Map<String, Long> getCounts(){
+		Map<String, Long> result = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> count : counts.entrySet()){
+			result.put(count.getKey(), count.getValue().get());
+		}
+		return result;
+	}
+
+	/**
+	 * Find the root tag of an XML message, skipping the XML declaration, comments and doctype
+	 * @param data The message
+	 * @return The root tag, or null if the message doesn't start like XML
+	 */
+	public static String rootTag(String data){
+		int i = 0;
+		int length = data.length();
+		while (true){
+			while (i < length && (Character.isWhitespace(data.charAt(i)) || data.charAt(i) == '\uFEFF')){
+				i++;
+			}
+			if (i >= length || data.charAt(i) != '<'){
+				return null;
+			}
+			String end = null;
+			if (data.startsWith("<?", i)){
+				end = "?>";
+			} else if (data.startsWith("<!--", i)){
+				end = "-->";
+			} else if (data.startsWith("<!", i)){
+				end = ">";
+			}
+			if (end == null){
+				break;
+			}
+			i = data.indexOf(end, i + 2);
+			if (i < 0){
+				return null;
+			}
+			i += end.length();
+		}
+		int start = ++i;
+		while (i < length){
+			char c = data.charAt(i);
+			if (Character.isWhitespace(c) || c == '>' || c == '/'){
+				break;
+			}
+			i++;
+		}
+		return i > start ? data.substring(start, i) : null;
+	}
+
+	/**
+	 * Add a decoder and its counter
+	 * @param type Name of the message type
+	 * @param decoder The decoder
+	 */
+	private void add(String type, Decoder decoder){
+		decoders.put(type, decoder);
+		counts.put(type, new AtomicLong());
+	}
+
+	/**
+	 * Offer a message to a decoder, counting it if handled
+	 * @param type Name of the message type
+	 * @param data The message
+	 * @return True if the decoder handled the message
+	 */
+	private boolean handle(String type, String data){
+		Decoder decoder = decoders.get(type);
+		if (decoder != null && decoder.handle(data)){
+			counts.get(type).incrementAndGet();
+			return true;
+		}
+		if (!fallbacks.contains(type)){
+			counts.get(REJECTED).incrementAndGet();
+		}
+		return false;
+	}
+}
@@ -0,0 +1,359 @@
+package utool.plugin.kingofthehill.communications;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.os.RemoteException;
+
+/**
+ * Sends messages to the core on a dedicated thread, so callers never wait for encoding or the core.
+ * Messages wait in a bounded outbox and are encoded when their turn comes. A full game state broadcast makes the
+ * game state broadcasts and deltas queued before it pointless, so only the newest is sent.
+ * When the outbox is full, the queued broadcasts are replaced by one full game state.
+ * @author Cory
+ *
+ */
+public class MessageSender {
+	/**
+	 * Sends encoded messages
+	 */
+	public interface Transport {
+		/**
+		 * Send a message
+		 * @param data The encoded message
+		 * @throws RemoteException If the core can't be reached
+		 */
+		void send(String data) throws RemoteException;
+	}
+
+	/**
+	 * A message waiting to be sent
+	 */
+	public interface Message {
+		/**
+		 * Encode the message, on the sender thread
+		 * @return The encoded message, or null to send nothing
+		 */
+		String encode();
+	}
+
+	/**
+	 * A full game state broadcast, which replaces queued broadcasts
+	 */
+	public static final int STATE = 1;
+
+	/**
+	 * A delta broadcast, pointless once a later full game state is queued
+	 */
+	public static final int DELTA = 2;
+
+	/**
+	 * Anything else, such as answers to requests, always sent
+	 */
+	public static final int OTHER = 3;
+
+	/**
+	 * Default number of messages the outbox holds
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * A queued message
+	 */
+	private static class Entry {
+		/**
+		 * STATE, DELTA or OTHER
+		 */
+		final int kind;
+
+		/**
+		 * The message
+		 */
+		final Message message;
+
+		/**
+		 * System.nanoTime() when queued
+		 */
+		final long queued;
+
+		/**
+		 * Constructor
+		 * @param kind STATE, DELTA or OTHER
+		 * @param message The message
+		 */
+		Entry(int kind, Message message){
+			this.kind = kind;
+			this.message = message;
+			this.queued = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Messages waiting to be sent, oldest first
+	 */
+	private final LinkedList<Entry> outbox = new LinkedList<Entry>();
+
+	/**
+	 * Maximum number of queued messages
+	 */
+	private final int capacity;
+
+	/**
+	 * Sends encoded messages
+	 */
+	private final Transport transport;
+
+	/**
+	 * The current full game state, queued in place of broadcasts when the outbox is full
+	 */
+	private final Message fullState;
+
+	/**
+	 * Name of the sender thread
+	 */
+	private final String name;
+
+	/**
+	 * The sender thread, started with the first message
+	 */
+	private Thread thread;
+
+	/**
+	 * True while the sender thread is sending a message
+	 */
+	private boolean sending = false;
+
+	/**
+	 * True once close() was called
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Number of messages sent
+	 */
+	private long sent = 0;
+
+	/**
+	 * Number of messages dropped
+	 */
+	private long dropped = 0;
+
+	/**
+	 * Largest number of queued messages seen
+	 */
+	private int maxDepth = 0;
+
+	/**
+	 * Nanoseconds from queueing to sent of the last message
+	 */
+	private long lastLatency = 0;
+
+	/**
+	 * Largest nanoseconds from queueing to sent
+	 */
+	private long maxLatency = 0;
+
+	/**
+	 * Sum of the nanoseconds from queueing to sent
+	 */
+	private long totalLatency = 0;
+
+	/**
+	 * Constructor
+	 * @param name Name of the sender thread
+	 * @param transport Sends encoded messages
+	 * @param fullState The current full game state, sent when broadcasts don't fit in the outbox
+	 * @param capacity Maximum number of queued messages
+	 */
+	public MessageSender(String name, Transport transport, Message fullState, int capacity){
+		this.name = name;
+		this.transport = transport;
+		this.fullState = fullState;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Queue a message
+	 * @param kind STATE, DELTA or OTHER
+	 * @param message The message
+	 */
+	public synchronized void post(int kind, Message message){
+		if (closed){
+			return;
+		}
+		if (kind == STATE){
+			dropBroadcasts();
+		}
+		if (outbox.size() >= capacity){
+			int removed = dropBroadcasts();
+			if (kind == DELTA){
+				//the full state covers the dropped broadcasts and the delta
+				dropped++;
+				kind = STATE;
+				message = fullState;
+			} else if (removed > 0 && kind == OTHER){
+				outbox.add(new Entry(STATE, fullState));
+			}
+			while (outbox.size() >= capacity){
+				outbox.poll();
+				dropped++;
+			}
+		}
+		outbox.add(new Entry(kind, message));
+		maxDepth = Math.max(maxDepth, outbox.size());
+		if (thread == null){
+			thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					sendLoop();
+				}
+			}, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Send the queued messages, then stop the sender thread. Later messages are ignored.
+	 * Queued broadcasts are dropped, since they would read a game that is being torn down.
+	 */
+	public synchronized void close(){
+		closed = true;
+		dropBroadcasts();
+		notifyAll();
+	}
+
+	/**
+	 * Wait until every queued message is sent
+	 * @param timeoutMillis Maximum milliseconds to wait
+	 * @return True if the outbox is empty
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public synchronized boolean awaitIdle(long timeoutMillis) throws InterruptedException{
+		long end = System.currentTimeMillis() + timeoutMillis;
+		while (!outbox.isEmpty() || sending){
+			long wait = end - System.currentTimeMillis();
+			if (wait <= 0){
+				return false;
+			}
+			wait(wait);
+		}
+		return true;
+	}
+
+	/**
+	 * Get the number of queued messages
+	 * @return Number of messages
+	 */
+	public synchronized int getQueueDepth(){
+		return outbox.size();
+	}
+
+	/**
+	 * Get the largest number of queued messages seen
+	 * @return Number of messages
+	 */
+	public synchronized int getMaxQueueDepth(){
+		return maxDepth;
+	}
+
+	/**
+	 * Get the number of messages sent
+	 * @return Number of messages
+	 */
+	public synchronized long getSent(){
+		return sent;
+	}
+
+	/**
+	 * Get the number of messages dropped, because a later game state replaced them or the outbox was full
+	 * @return Number of messages
+	 */
+	public synchronized long getDropped(){
+		return dropped;
+	}
+
+	/**
+	 * Get the time from queueing to sent of the last message, including encoding
+	 * @return Nanoseconds
+	 */
+	public synchronized long getLastLatency(){
+		return lastLatency;
+	}
+
+	/**
+	 * Get the largest time from queueing to sent
+	 * @return Nanoseconds
+	 */
+	public synchronized long getMaxLatency(){
+		return maxLatency;
+	}
+
+	/**
+	 * Get the average time from queueing to sent
+	 * @return Nanoseconds, 0 if nothing was sent
+	 */
+	public synchronized long getAverageLatency(){
+		return sent == 0 ? 0 : totalLatency / sent;
+	}
+
+	/**
+	 * Remove the queued broadcasts
+	 * @return Number of messages removed
+	 */
+	private int dropBroadcasts(){
+		int removed = 0;
+		Iterator<Entry> i = outbox.iterator();
+		while (i.hasNext()){
+			if (i.next().kind != OTHER){
+				i.remove();
+				removed++;
+			}
+		}
+		dropped += removed;
+		return removed;
+	}
+
+	/**
+	 * Send queued messages until closed
+	 */
+	private void sendLoop(){
+		while (true){
+			Entry entry;
+			synchronized (this){
+				sending = false;
+				notifyAll();
+				while (outbox.isEmpty() && !closed){
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				entry = outbox.poll();
+				if (entry == null){
+					return;
+				}
+				sending = true;
+			}
+			try {
+				String data = entry.message.encode();
+				if (data != null){
+					transport.send(data);
+				}
+			} catch (RemoteException e) {
+				e.printStackTrace();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			long latency = System.nanoTime() - entry.queued;
+			synchronized (this){
+				sent++;
+				lastLatency = latency;
+				maxLatency = Math.max(maxLatency, latency);
+				totalLatency += latency;
+			}
+		}
+	}
+}
@@ -1,12 +1,11 @@
 package utool.plugin.kingofthehill.communications;
 
-import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.os.RemoteException;
 import android.util.Log;
 
 import utool.plugin.IUTooLCore;
-import utool.plugin.Player;
 import utool.plugin.kingofthehill.tournament.TournamentLogic;
 
 /**
@@ -24,7 +23,62 @@ public class OutgoingCommandHandler {
 	/**
 	 * Service connection associated with this tournament
 	 */
-	IUTooLCore service;
+	volatile IUTooLCore service;
+	
+	/**
+	 * Transport used instead of the service, or null to send to the service
+	 */
+	private volatile MessageSender.Transport transport;
+	
+	/**
+	 * Records the sent messages, or null
+	 */
+	private volatile SessionRecorder recorder;
+	
+	/**
+	 * Codec of binary messages
+	 */
+	private final BinaryGameStateCodec codec = new BinaryGameStateCodec();
+	
+	/**
+	 * The last encoded game state, reused until the game or the timers change
+	 */
+	private final GameStateCache cache = new GameStateCache();
+	
+	/**
+	 * True if a participant asked for the game state and the next one sent must include every player id
+	 */
+	private final AtomicBoolean answerPending = new AtomicBoolean(false);
+	
+	/**
+	 * True if game state is sent as binary, because every participant that asked for it accepts binary
+	 */
+	private volatile boolean sendBinary = false;
+	
+	/**
+	 * True once a participant that only reads XML asked for game state
+	 */
+	private volatile boolean legacyClients = false;
+	
+	/**
+	 * Sends queued messages on a dedicated thread, so callers on the UI thread never wait for the core
+	 */
+	private final MessageSender sender = new MessageSender("KOTH sender", new MessageSender.Transport(){
+		@Override
+		public void send(String data) throws RemoteException{
+			MessageSender.Transport t = transport;
+			IUTooLCore core = service;
+			SessionRecorder r = recorder;
+			if (r != null && (t != null || core != null)){
+				r.record(SessionRecorder.OUTGOING, data);
+			}
+			if (t != null){
+				t.send(data);
+			} else if (core != null){
+				core.send(data);
+			}
+		}
+	}, gameState(), MessageSender.DEFAULT_CAPACITY);
 	
 	/**
 	 * Constructor
@@ -45,40 +99,265 @@ public class OutgoingCommandHandler {
 	}
 	
 	/**
-	 * Send the game state
+	 * Get the codec of binary messages, which holds the session's player dictionary
+	 * @return The codec
+	 */
+	public BinaryGameStateCodec getCodec(){
+		return codec;
+	}
+	
+	/**
+	 * Set the service connection messages are sent to
+	 * @param service The mICore service from the main activity
+	 */
+	public void setService(IUTooLCore service){
+		this.service = service;
+	}
+	
+	/**
+	 * Send messages through a transport instead of the service, such as a simulated core in tests
+	 * @param transport The transport, or null to send to the service again
+	 */
+	public void setTransport(MessageSender.Transport transport){
+		this.transport = transport;
+	}
+	
+	/**
+	 * Set the recorder of sent messages
+	 * @param recorder The recorder, or null to stop recording
+	 */
+	public void setRecorder(SessionRecorder recorder){
+		this.recorder = recorder;
+	}
+	
+	/**
+	 * Get the sender, which reports the outbox depth and send latency
+	 * @return The sender
+	 */
+	public MessageSender getSender(){
+		return sender;
+	}
+	
+	/**
+	 * Send the messages already queued, then stop sending
+	 */
+	public void close(){
+		sender.close();
+	}
+	
+	/**
+	 * Get the cache of the encoded game state
+	 * @return The cache
+	 */
+	public GameStateCache getCache(){
+		return cache;
+	}
+	
+	/**
+	 * Send the game state. It is read when sent, and replaces game states and deltas that haven't been sent yet.
 	 */
 	public void sendGameState(){
-		Player king = tournament.getKing();
-		List<Player> players = tournament.getPlayers();
-		
-		GameStateMessage message = new GameStateMessage(king, players, tournament.getPlayerExtras(), tournament.getRemainingGameTime(), tournament.getRemainingRoundTime());
-		message.setKingWins(tournament.getKingWinsStreakCount());
-		String xml = message.getXml();
-
-		try {
-			if (service != null)
-				service.send(xml);
-		} catch (RemoteException e) {
-			e.printStackTrace();
+		sender.post(MessageSender.STATE, gameState());
+	}
+	
+	/**
+	 * Send the game state in answer to a request.
+	 * The answer is a broadcast, so requests that arrive while it is queued share it, and it usually comes from the cache.
+	 * @param request The request, or null
+	 */
+	public void sendGameState(GameStateMessage request){
+		answerPending.set(true);
+		sendGameState();
+	}
+	
+	/**
+	 * Send the changes of a batch. Participants get deltas only while game state is sent as binary, since
+	 * participants that only read XML don't know delta messages; otherwise the whole game state is sent.
+	 * @param update Delta message of the changes, or null to send the whole game state
+	 */
+	public void sendUpdate(GameStateMessage update){
+		if (update == null || !sendsDeltas()){
+			sendGameState();
+		} else {
+			sender.post(MessageSender.DELTA, message(update, null));
+		}
+	}
+	
+	/**
+	 * Send the changes made since the version of a request, or the game state if they are no longer known
+	 * @param request The request for changes
+	 */
+	public void sendChangesSince(GameStateMessage request){
+		GameStateMessage update = sendsDeltas() ? tournament.getChangesSince(request.getVersion()) : null;
+		if (update == null){
+			sendGameState(request);
+		} else {
+			sender.post(MessageSender.OTHER, message(update, request));
+		}
+	}
+	
+	/**
+	 * Record the codecs of a participant asking for game state.
+	 * Every participant asks when it starts, so binary is only sent while no participant that only reads XML has asked.
+	 * A participant that can't read binary ignores it until it asks, and from then on everyone gets XML.
+	 * @param request The request message
+	 */
+	public void clientRequested(GameStateMessage request){
+		if (!request.acceptsBinary()){
+			if (!legacyClients){
+				Log.d("KOTH", "Participant without binary support, sending XML");
+			}
+			legacyClients = true;
+			sendBinary = false;
+		} else if (!legacyClients){
+			sendBinary = true;
 		}
 	}
 	
+	/**
+	 * Check if game state is sent as binary
+	 * @return True if binary is sent
+	 */
+	public boolean isSendingBinary(){
+		return sendBinary;
+	}
+
+	/**
+	 * Check if changes can be sent as deltas, which only participants reading binary understand
+	 * @return True if deltas can be sent
+	 */
+	private boolean sendsDeltas(){
+		return sendBinary && !legacyClients;
+	}
+	
+	/**
+	 * Request the changes made since a version from the host
+	 * @param version The version of the local game state
+	 */
+	public void requestChangesSince(long version){
+		GameStateMessage message = new GameStateMessage(version);
+		message.setAcceptsBinary(true);
+		codec.addKnownPlayers(message);
+		Log.d("KOTH", "Requesting changes since " + version);
+		sender.post(MessageSender.OTHER, xml(message));
+	}
+	
 	/**
 	 * Request the current game state from the host
 	 */
 	public void requestGameState(){
 		GameStateMessage message = new GameStateMessage();
-		String xml = message.getXml();
-		
-		try {
-			if (service != null){
-				Log.d("KOTH", "Requesting game state");
-				service.send(xml);
+		message.setAcceptsBinary(true);
+		codec.addKnownPlayers(message);
+		if (service != null || transport != null){
+			Log.d("KOTH", "Requesting game state");
+		} else {
+			Log.d("KOTH", "Error requesting game state, service is null");
+		}
+		sender.post(MessageSender.OTHER, xml(message));
+	}
+	
+	/**
+	 * Ask the host for its clock, for measuring the clock offset. The local time is taken when the request is sent.
+	 * @param id Id of this participant in clock messages
+	 */
+	public void requestClock(final long id){
+		sender.post(MessageSender.OTHER, new MessageSender.Message(){
+			@Override
+			public String encode(){
+				return new ClockMessage(id, tournament.getClockSync().now()).getXml();
+			}
+		});
+	}
+	
+	/**
+	 * Answer a participant's clock request. The answer's time is taken when it is sent.
+	 * @param request The request
+	 * @param received Time the request arrived
+	 */
+	public void sendClockReply(final ClockMessage request, final long received){
+		sender.post(MessageSender.OTHER, new MessageSender.Message(){
+			@Override
+			public String encode(){
+				return request.reply(received, tournament.getClockSync().now()).getXml();
+			}
+		});
+	}
+	
+	/**
+	 * Create a queued message sending the game state as it is when sent
+	 * @return The queued message
+	 */
+	private MessageSender.Message gameState(){
+		return new MessageSender.Message(){
+			@Override
+			public String encode(){
+				return encodeGameState();
+			}
+		};
+	}
+	
+	/**
+	 * Encode the current game state, or reuse the cached encoding if the game and the timers haven't changed.
+	 * Called on the sender thread.
+	 * @return The encoded message
+	 */
+	private String encodeGameState(){
+		boolean binary = sendBinary;
+		boolean complete = answerPending.getAndSet(false) || !binary;
+		String data = cache.get(tournament.getSnapshot().getVersion(), tournament.getGameTimerEnd(), tournament.getRoundTimerEnd(),
+				binary, complete, tournament.getRemainingGameTime(), tournament.getRemainingRoundTime());
+		if (data == null){
+			GameStateMessage message = tournament.getGameStateMessage();
+			if (!binary){
+				data = message.getXml();
+			} else if (complete){
+				data = codec.encodeComplete(message);
 			} else {
-				Log.d("KOTH", "Error requesting game state, service is null");
+				data = codec.encode(message);
 			}
-		} catch (RemoteException e) {
-			e.printStackTrace();
+			cache.put(message, binary, complete, data);
 		}
+		return data;
+	}
+	
+	/**
+	 * Create a queued message sending a game state message
+	 * @param message The message
+	 * @param request The request answered, or null
+	 * @return The queued message
+	 */
+	private MessageSender.Message message(final GameStateMessage message, final GameStateMessage request){
+		return new MessageSender.Message(){
+			@Override
+			public String encode(){
+				return OutgoingCommandHandler.this.encode(message, request);
+			}
+		};
+	}
+	
+	/**
+	 * Create a queued message always sent as XML, which every host reads
+	 * @param message The message
+	 * @return The queued message
+	 */
+	private MessageSender.Message xml(final GameStateMessage message){
+		return new MessageSender.Message(){
+			@Override
+			public String encode(){
+				return message.getXml();
+			}
+		};
+	}
+	
+	/**
+	 * Encode a delta message for the participants. Called on the sender thread, in send order.
+	 * If a participant that only reads XML asked for game state since the delta was queued, the whole game state is sent instead.
+	 * @param message The message
+	 * @param request The request answered, or null
+	 * @return The encoded message
+	 */
+	private String encode(GameStateMessage message, GameStateMessage request){
+		return sendsDeltas() ? codec.encode(message, request) : encodeGameState();
 	}
 }
@@ -0,0 +1,104 @@
+package utool.plugin.kingofthehill.communications;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Table of small ids for the players of a session, so binary messages don't repeat 16 byte UUIDs.
+ * The host gives each player the next id the first time the player is sent, and sends new entries along with the
+ * messages that use them. Ids are never reused or changed within a session.
+ * @author Cory
+ *
+ */
+public class PlayerDictionary {
+	/**
+	 * Session of an empty dictionary
+	 */
+	public static final int NO_SESSION = 0;
+
+	/**
+	 * Session the ids belong to, chosen by the host
+	 */
+	private int session;
+
+	/**
+	 * Players by id
+	 */
+	private final List<UUID> players = new ArrayList<UUID>();
+
+	/**
+	 * Ids by player
+	 */
+	private final HashMap<UUID, Integer> ids = new HashMap<UUID, Integer>();
+
+	/**
+	 * Constructor for an empty dictionary
+	 * @param session The session, NO_SESSION for a dictionary filled from received messages
+	 */
+	public PlayerDictionary(int session){
+		this.session = session;
+	}
+
+	/**
+	 * Get the session the ids belong to
+	 * @return The session
+	 */
+	public int getSession(){
+		return session;
+	}
+
+	/**
+	 * Get the number of players
+	 * @return Number of ids given out
+	 */
+	public int size(){
+		return players.size();
+	}
+
+	/**
+	 * Get a player by id
+	 * @param id The id
+	 * @return The player's UUID
+	 * @throws IndexOutOfBoundsException If the id isn't known
+	 */
+	public UUID get(int id){
+		return players.get(id);
+	}
+
+	/**
+	 * Get a player's id
+	 * @param player The player's UUID
+	 * @return The id, or -1 if the player has none
+	 */
+	public int idOf(UUID player){
+		Integer id = ids.get(player);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Give a player the next id, unless it already has one
+	 * @param player The player's UUID
+	 * @return The player's id
+	 */
+	public int add(UUID player){
+		Integer id = ids.get(player);
+		if (id == null){
+			id = players.size();
+			players.add(player);
+			ids.put(player, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Remove all players and start a new session
+	 * @param session The new session
+	 */
+	public void reset(int session){
+		this.session = session;
+		players.clear();
+		ids.clear();
+	}
+}
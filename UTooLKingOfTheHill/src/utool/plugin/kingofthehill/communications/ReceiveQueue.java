@@ -0,0 +1,191 @@
+package utool.plugin.kingofthehill.communications;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Queue between the thread receiving messages and the thread applying them.
+ * Messages are decoded on the receive thread and queued as actions. The queue is drained on the applying thread
+ * at most once per frame, running every queued action. A full game state makes the game states and deltas queued
+ * before it pointless, so they are dropped instead of being applied and drawn in turn.
+ * @author Cory
+ *
+ */
+public class ReceiveQueue {
+	/**
+	 * Runs the drain on the applying thread
+	 */
+	public interface Scheduler {
+		/**
+		 * Run a task on the applying thread
+		 * @param task The task
+		 * @param delayMillis Milliseconds to wait before running it
+		 */
+		void schedule(Runnable task, long delayMillis);
+	}
+
+	/**
+	 * A full game state, which replaces queued game states and deltas
+	 */
+	public static final int SNAPSHOT = 1;
+
+	/**
+	 * Changes to the game state, pointless once a later full game state arrives
+	 */
+	public static final int DELTA = 2;
+
+	/**
+	 * Anything else, always applied
+	 */
+	public static final int OTHER = 3;
+
+	/**
+	 * Minimum time between drains, one frame at 60 frames per second
+	 */
+	public static final long FRAME_MILLIS = 16;
+
+	/**
+	 * A queued action
+	 */
+	private static class Entry {
+		/**
+		 * SNAPSHOT, DELTA or OTHER
+		 */
+		final int kind;
+
+		/**
+		 * The action
+		 */
+		final Runnable action;
+
+		/**
+		 * Constructor
+		 * @param kind SNAPSHOT, DELTA or OTHER
+		 * @param action The action
+		 */
+		Entry(int kind, Runnable action){
+			this.kind = kind;
+			this.action = action;
+		}
+	}
+
+	/**
+	 * Queued actions, oldest first
+	 */
+	private final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+	/**
+	 * Runs the drain, or null to drain right away on the adding thread
+	 */
+	private Scheduler scheduler;
+
+	/**
+	 * True if a drain is scheduled and hasn't started
+	 */
+	private boolean scheduled = false;
+
+	/**
+	 * System.nanoTime() of the last drain
+	 */
+	private long lastDrain = System.nanoTime() - FRAME_MILLIS * 1000000;
+
+	/**
+	 * Number of actions dropped because a later game state replaced them
+	 */
+	private long dropped = 0;
+
+	/**
+	 * Task draining the queue
+	 */
+	private final Runnable drainTask = new Runnable(){
+		@Override
+		public void run(){
+			drain();
+		}
+	};
+
+	/**
+	 * Set what runs the drain
+	 * @param scheduler The scheduler, or null to drain on the thread that calls flush()
+	 */
+	public synchronized void setScheduler(Scheduler scheduler){
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Queue an action
+	 * @param kind SNAPSHOT, DELTA or OTHER
+	 * @param action The action
+	 */
+	public synchronized void add(int kind, Runnable action){
+		if (kind == SNAPSHOT){
+			Iterator<Entry> i = entries.iterator();
+			while (i.hasNext()){
+				if (i.next().kind != OTHER){
+					i.remove();
+					dropped++;
+				}
+			}
+		}
+		entries.add(new Entry(kind, action));
+	}
+
+	/**
+	 * Schedule a drain if actions are queued, or drain right away if there is no scheduler
+	 */
+	public void flush(){
+		Scheduler scheduler;
+		long delay;
+		synchronized (this){
+			if (entries.isEmpty() || scheduled){
+				return;
+			}
+			scheduler = this.scheduler;
+			if (scheduler == null){
+				delay = 0;
+			} else {
+				scheduled = true;
+				delay = Math.max(0, FRAME_MILLIS - (System.nanoTime() - lastDrain) / 1000000);
+			}
+		}
+		if (scheduler == null){
+			drain();
+		} else {
+			scheduler.schedule(drainTask, delay);
+		}
+	}
+
+	/**
+	 * Run every queued action. Called on the applying thread.
+	 */
+	public void drain(){
+		List<Entry> batch;
+		synchronized (this){
+			scheduled = false;
+			lastDrain = System.nanoTime();
+			batch = new ArrayList<Entry>(entries);
+			entries.clear();
+		}
+		for (Entry e : batch){
+			e.action.run();
+		}
+	}
+
+	/**
+	 * Get the number of queued actions
+	 * @return Number of actions
+	 */
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Get the number of actions dropped because a later game state replaced them
+	 * @return Number of actions
+	 */
+	public synchronized long getDropped(){
+		return dropped;
+	}
+}
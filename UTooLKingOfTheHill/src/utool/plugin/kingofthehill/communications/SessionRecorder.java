@@ -0,0 +1,196 @@
+package utool.plugin.kingofthehill.communications;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Records every message a tournament receives and sends, with the time it passed, so a session can be replayed later
+ * with SessionReplayer. Each record is the direction, the microseconds since the previous record as a varint, the
+ * length of the message as UTF-8 and the deflated message, each record compressed on its own. The file is flushed
+ * after every record, so a crash loses at most the record being written, and a file still being recorded can be read.
+ * Recording never disturbs the game: if writing fails, the recorder stops.
+ * Its methods are synchronized, since messages are received and sent on different threads.
+ * @author Cory
+ *
+ */
+public class SessionRecorder {
+	/**
+	 * Direction of a message received from the core
+	 */
+	public static final int INCOMING = 1;
+
+	/**
+	 * Direction of a message sent to the core
+	 */
+	public static final int OUTGOING = 2;
+
+	/**
+	 * First bytes of a session file, "KOTR"
+	 */
+	static final int MAGIC = 0x4B4F5452;
+
+	/**
+	 * Session file format version
+	 */
+	static final int FORMAT_VERSION = 2;
+
+	/**
+	 * The open file, or null once closed or failed
+	 */
+	private DataOutputStream out;
+
+	/**
+	 * Compresses each message
+	 */
+	private final Deflater deflater = new Deflater();
+
+	/**
+	 * The last compressed message, reused between records
+	 */
+	private byte[] compressed = new byte[4096];
+
+	/**
+	 * System.nanoTime() of the previous record, in microseconds
+	 */
+	private long last;
+
+	/**
+	 * Number of messages recorded
+	 */
+	private long count = 0;
+
+	/**
+	 * Constructor. Creates the file and writes the session header.
+	 * @param file The file to record to. It is replaced if it exists.
+	 * @throws IOException If the file can't be written
+	 */
+	public SessionRecorder(File file) throws IOException {
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.flush();
+		} catch (IOException e) {
+			deflater.end();
+			stream.close();
+			throw e;
+		}
+		last = System.nanoTime() / 1000;
+	}
+
+	/**
+	 * Record a message and flush it to the file
+	 * @param direction INCOMING or OUTGOING
+	 * @param data The message
+	 */
+	public synchronized void record(int direction, String data){
+		if (out == null){
+			return;
+		}
+		long now = System.nanoTime() / 1000;
+		try {
+			byte[] bytes = data.getBytes("UTF-8");
+			int length = compress(bytes);
+			out.writeByte(direction);
+			writeVarlong(out, now - last);
+			writeVarlong(out, bytes.length);
+			writeVarlong(out, length);
+			out.write(compressed, 0, length);
+			out.flush();
+			last = now;
+			count++;
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Deflate a message into compressed
+	 * @param bytes The message
+	 * @return Number of compressed bytes
+	 */
+	private int compress(byte[] bytes){
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+		int length = 0;
+		while (!deflater.finished()){
+			if (length == compressed.length){
+				byte[] grown = new byte[compressed.length * 2];
+				System.arraycopy(compressed, 0, grown, 0, length);
+				compressed = grown;
+			}
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+		return length;
+	}
+
+	/**
+	 * Get the number of messages recorded
+	 * @return Number of messages
+	 */
+	public synchronized long getCount(){
+		return count;
+	}
+
+	/**
+	 * Finish the file. Later messages aren't recorded.
+	 */
+	public synchronized void close(){
+		if (out != null){
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			out = null;
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Write a non-negative long as a varint
+	 * @param out The stream to write to
+	 * @param value The value
+	 * @throws IOException If writing fails
+	 */
+	static void writeVarlong(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0){
+			out.write((int)(value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+
+	/**
+	 * Read a varint written by writeVarlong
+	 * @param in The stream to read from
+	 * @return The value
+	 * @throws EOFException If the stream ends within the varint
+	 * @throws IOException If reading fails or the varint is invalid
+	 */
+	static long readVarlong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7){
+			int b = in.read();
+			if (b < 0){
+				throw new EOFException("Truncated varint");
+			}
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0){
+				return value;
+			}
+		}
+		throw new IOException("Invalid varint");
+	}
+}
@@ -0,0 +1,210 @@
+package utool.plugin.kingofthehill.communications;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import utool.plugin.kingofthehill.tournament.TournamentLogic;
+
+/**
+ * Replays a session recorded by SessionRecorder into a tournament, timing how long each received message takes.
+ * The received messages are handled in order by the tournament's IncomingCommandHandler, decoded and applied on
+ * the replaying thread. They are fed as fast as possible, or at the pacing they were recorded with.
+ * The sent messages are kept for comparison, but not replayed.
+ * @author Cory
+ *
+ */
+public class SessionReplayer {
+	/**
+	 * Wall clock time the session started, in milliseconds since the epoch
+	 */
+	private final long started;
+
+	/**
+	 * Direction of each message, SessionRecorder.INCOMING or OUTGOING
+	 */
+	private final List<Integer> directions = new ArrayList<Integer>();
+
+	/**
+	 * Microseconds from the start of the session to each message
+	 */
+	private final List<Long> times = new ArrayList<Long>();
+
+	/**
+	 * The messages
+	 */
+	private final List<String> messages = new ArrayList<String>();
+
+	/**
+	 * Nanoseconds each received message took in the last replay
+	 */
+	private long[] processing = new long[0];
+
+	/**
+	 * Constructor. Reads the whole session, so replaying doesn't wait for the file.
+	 * A file cut short, by a crash or because it is still being recorded, is read up to the last complete message.
+	 * @param file The session file
+	 * @throws IOException If the file can't be read or isn't a session file
+	 */
+	public SessionReplayer(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		Inflater inflater = new Inflater();
+		try {
+			if (in.readInt() != SessionRecorder.MAGIC){
+				throw new IOException("Not a session file");
+			}
+			int version = in.readInt();
+			if (version != SessionRecorder.FORMAT_VERSION){
+				throw new IOException("Unknown session format version " + version);
+			}
+			started = in.readLong();
+			try {
+				long time = 0;
+				while (true){
+					int direction = in.read();
+					if (direction < 0){
+						break;
+					}
+					time += SessionRecorder.readVarlong(in);
+					byte[] bytes = new byte[(int)SessionRecorder.readVarlong(in)];
+					byte[] compressed = new byte[(int)SessionRecorder.readVarlong(in)];
+					in.readFully(compressed);
+					inflater.reset();
+					inflater.setInput(compressed);
+					if (inflater.inflate(bytes) != bytes.length || !inflater.finished()){
+						throw new IOException("Damaged message " + messages.size());
+					}
+					directions.add(direction);
+					times.add(time);
+					messages.add(new String(bytes, "UTF-8"));
+				}
+			} catch (EOFException e) {
+				//truncated, keep the complete messages
+			} catch (DataFormatException e) {
+				IOException damaged = new IOException("Damaged message " + messages.size());
+				damaged.initCause(e);
+				throw damaged;
+			}
+		} finally {
+			inflater.end();
+			in.close();
+		}
+	}
+
+	/**
+	 * Get the wall clock time the session started
+	 * @return Milliseconds since the epoch
+	 */
+	public long getStarted(){
+		return started;
+	}
+
+	/**
+	 * Get the number of recorded messages, in both directions
+	 * @return Number of messages
+	 */
+	public int size(){
+		return messages.size();
+	}
+
+	/**
+	 * Get the direction of a recorded message
+	 * @param index Index of the message
+	 * @return SessionRecorder.INCOMING or OUTGOING
+	 */
+	public int getDirection(int index){
+		return directions.get(index);
+	}
+
+	/**
+	 * Get the time of a recorded message
+	 * @param index Index of the message
+	 * @return Microseconds from the start of the session
+	 */
+	public long getTime(int index){
+		return times.get(index);
+	}
+
+	/**
+	 * Get a recorded message
+	 * @param index Index of the message
+	 * @return The message
+	 */
+	public String getMessage(int index){
+		return messages.get(index);
+	}
+
+	/**
+	 * Feed the received messages to a tournament, one at a time
+	 * @param tournament The tournament, normally new and of the same role as the recorded one
+	 * @param paced True to wait between messages as recorded, false to feed them as fast as possible
+	 * @return Nanoseconds each received message took to decode and apply, in order
+	 * @throws InterruptedException If interrupted while waiting for the next message
+	 */
+	public long[] replay(TournamentLogic tournament, boolean paced) throws InterruptedException {
+		IncomingCommandHandler handler = tournament.getIncomingCommandHandler();
+		List<Long> result = new ArrayList<Long>();
+		long start = System.nanoTime();
+		long first = -1;
+		for (int i = 0; i < messages.size(); i++){
+			if (directions.get(i) != SessionRecorder.INCOMING){
+				continue;
+			}
+			if (paced){
+				if (first < 0){
+					first = times.get(i);
+				}
+				long wait = (times.get(i) - first) * 1000 - (System.nanoTime() - start);
+				if (wait > 0){
+					Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+				}
+			}
+			long begin = System.nanoTime();
+			handler.handleMessage(messages.get(i));
+			result.add(System.nanoTime() - begin);
+		}
+		long[] nanos = new long[result.size()];
+		for (int i = 0; i < nanos.length; i++){
+			nanos[i] = result.get(i);
+		}
+		synchronized (this){
+			processing = nanos;
+		}
+		return nanos;
+	}
+
+	/**
+	 * Get the processing time below which a share of the received messages of the last replay took
+	 * @param percentile Share of the messages, from 0 to 100
+	 * @return Nanoseconds, 0 if nothing was replayed
+	 */
+	public synchronized long getPercentile(double percentile){
+		if (processing.length == 0){
+			return 0;
+		}
+		long[] sorted = processing.clone();
+		Arrays.sort(sorted);
+		int index = (int)Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * Get the total processing time of the last replay
+	 * @return Nanoseconds
+	 */
+	public synchronized long getTotalTime(){
+		long total = 0;
+		for (long t : processing){
+			total += t;
+		}
+		return total;
+	}
+}
@@ -1,8 +1,8 @@
 package utool.plugin.kingofthehill.tournament;
 
-import java.util.LinkedList;
 import java.util.List;
 import utool.plugin.Player;
+import utool.plugin.kingofthehill.engine.Clock;
 import android.content.Context;
 
 /**
@@ -17,23 +17,17 @@ public class KingOfTheHillParticipantTournament extends TournamentLogic {
 	 * @param tournamentId Tournament id from the core
 	 * @param context Android context
 	 * @param players Players in the game queue
+	 * @param clock Source of time for the timers
 	 */
-	protected KingOfTheHillParticipantTournament(long tournamentId, Context context, List<Player> players) {
-		super(tournamentId, context);
+	protected KingOfTheHillParticipantTournament(long tournamentId, Context context, List<Player> players, Clock clock) {
+		super(tournamentId, context, clock);
 		
 		updatePlayerList(players);
 	}
 
 	@Override
 	public void updatePlayerList(List<Player> players) {
-		synchronized (playerListLock) {
-			this.players = new LinkedList<Player>(players);
-			if (this.players.contains(king)){
-				this.players.remove(king);
-			}
-		}
-		if (activity != null)
-			notifyDataSetChanged();
+		apply(new TournamentBatch().replaceQueue(players));
 	}
 
 	@Override
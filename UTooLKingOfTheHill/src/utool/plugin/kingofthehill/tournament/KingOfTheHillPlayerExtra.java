@@ -2,25 +2,43 @@ package utool.plugin.kingofthehill.tournament;
 
 import java.util.UUID;
 
+import utool.plugin.kingofthehill.engine.PlayerStats;
+
 /**
- * Extra data class for players
+ * Extra data class for players.
+ * This is a lightweight view of one player's entry in a PlayerStats snapshot, it holds no statistics itself.
+ * Extras made without a store, for local tournaments and preset data, keep their wins and losses in plain fields.
  * @author Cory
  *
  */
 public class KingOfTheHillPlayerExtra implements Comparable<KingOfTheHillPlayerExtra> {
 	/**
-	 * The number of games the player has won. -1 for unset
+	 * The store holding the player's statistics, or null if they are kept in this extra
+	 */
+	private PlayerStats stats;
+	/**
+	 * The number of games the player has won, when there is no store. STAT_NOT_SET for unset
 	 */
-	private int wins = -1;
+	private int wins = PlayerStats.STAT_NOT_SET;
 	/**
-	 * The number of games the player has lost. -1 for unset
+	 * The number of games the player has lost, when there is no store. STAT_NOT_SET for unset
 	 */
-	private int losses = -1;
+	private int losses = PlayerStats.STAT_NOT_SET;
 	/**
 	 * The player's UUID
 	 */
 	private UUID playerUUID;
-	
+
+	/**
+	 * Constructor for a view of a player in a statistics store
+	 * @param stats The store holding the player's statistics
+	 * @param playerUUID Player's UUID
+	 */
+	public KingOfTheHillPlayerExtra(PlayerStats stats, UUID playerUUID){
+		this.stats = stats;
+		this.playerUUID = playerUUID;
+	}
+
 	/**
 	 * Constructor for local tournaments
 	 * @param playerUUID Player's UUID
@@ -28,7 +46,7 @@ public class KingOfTheHillPlayerExtra implements Comparable<KingOfTheHillPlayerE
 	public KingOfTheHillPlayerExtra(UUID playerUUID){
 		this.playerUUID = playerUUID;
 	}
-	
+
 	/**
 	 * Constructor for preset data
 	 * @param playerUUID Player's UUID
@@ -40,23 +58,29 @@ public class KingOfTheHillPlayerExtra implements Comparable<KingOfTheHillPlayerE
 		this.wins = wins;
 		this.losses = losses;
 	}
-	
+
 	/**
 	 * Get wins
 	 * @return wins
 	 */
 	public int getWins(){
-		return wins;
+		if (stats == null){
+			return wins;
+		}
+		return stats.getWins(playerUUID);
 	}
-	
+
 	/**
 	 * Get losses
 	 * @return losses
 	 */
 	public int getLosses(){
-		return losses;
+		if (stats == null){
+			return losses;
+		}
+		return stats.getLosses(playerUUID);
 	}
-	
+
 	/**
 	 * Get player's UUID
 	 * @return UUID
@@ -64,51 +88,53 @@ public class KingOfTheHillPlayerExtra implements Comparable<KingOfTheHillPlayerE
 	public UUID getPlayerUUID(){
 		return playerUUID;
 	}
-	
+
 	/**
 	 * Get total number of games the player has been in
 	 * @return wins + losses
 	 */
 	public int getGames(){
-		return wins + losses;
-	}
-	
-	/**
-	 * Add 1 to wins
-	 */
-	public void addWin(){
-		prepareWinLoss();
-		wins += 1;
-	}
-	
-	/**
-	 * Add 1 to losses
-	 */
-	public void addLoss(){
-		prepareWinLoss();
-		losses += 1;
+		if (stats == null){
+			return Math.max(wins, 0) + Math.max(losses, 0);
+		}
+		return stats.getGames(playerUUID);
 	}
-	
+
 	/**
-	 * Prepare the data for adding wins and losses.
+	 * Get the player's current winning streak
+	 * @return Wins since the player's last loss, 0 for extras without a store, which don't track it
 	 */
-	private void prepareWinLoss(){
-		if (wins == -1){
-			wins = 0;
-		}
-		if (losses == -1){
-			losses = 0;
+	public int getStreak(){
+		if (stats == null){
+			return 0;
 		}
+		return stats.getStreak(playerUUID);
 	}
 
 	@Override
 	public int compareTo(KingOfTheHillPlayerExtra another) {
-		if (another.wins < this.wins){
+		int wins = this.getWins();
+		int anotherWins = another.getWins();
+		if (anotherWins < wins){
 			return -1;
-		} else if (another.wins > this.wins) {
+		} else if (anotherWins > wins) {
 			return 1;
 		} else {
 			return 0;
 		}
 	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof KingOfTheHillPlayerExtra)){
+			return false;
+		}
+		KingOfTheHillPlayerExtra another = (KingOfTheHillPlayerExtra)o;
+		return playerUUID.equals(another.playerUUID) && getWins() == another.getWins() && getLosses() == another.getLosses();
+	}
+
+	@Override
+	public int hashCode() {
+		return playerUUID.hashCode();
+	}
 }
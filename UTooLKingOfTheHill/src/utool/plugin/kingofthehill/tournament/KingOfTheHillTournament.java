@@ -1,9 +1,13 @@
 package utool.plugin.kingofthehill.tournament;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+
 import android.content.Context;
 import utool.plugin.Player;
+import utool.plugin.kingofthehill.communications.GameStateMessage;
+import utool.plugin.kingofthehill.engine.Clock;
 
 /**
  * This class controls the host-side logic for the King of the Hill plugin.
@@ -13,19 +17,21 @@ import utool.plugin.Player;
 public class KingOfTheHillTournament extends TournamentLogic {
 
 	/**
-	 * Constructor
+	 * Constructor. If the plugin was restarted during this tournament, the stored game is restored
+	 * and the given players are only used to update the player list.
 	 * @param context Android context.
 	 * @param tournamentId Tournament ID from the core
 	 * @param players List of players to start the game with.
 	 * @param king The player to make the king.
+	 * @param clock Source of time for the timers
 	 */
-	protected KingOfTheHillTournament(Context context, long tournamentId, LinkedList<Player> players, Player king){
-		super(tournamentId, context);
-		this.players = new LinkedList<Player>(players);
-		this.king = king;
-		if (this.players.contains(king)){
-			this.players.remove(king);
+	protected KingOfTheHillTournament(Context context, long tournamentId, LinkedList<Player> players, Player king, Clock clock){
+		super(tournamentId, context, clock);
+		List<Player> all = new ArrayList<Player>(players);
+		if (king != null){
+			all.add(0, king);
 		}
+		openStore(new TournamentBatch().restart(king, players), new TournamentBatch().updatePlayerList(all));
 	}
 	
 	/**
@@ -34,41 +40,44 @@ public class KingOfTheHillTournament extends TournamentLogic {
 	 * @param players The list of players
 	 */
 	public void restartTournament(Player king, LinkedList<Player> players){
-		this.king = king;
-		this.players = new LinkedList<Player>(players);
-		if (this.players.contains(king)){
-			this.players.remove(king);
-		}
-		this.playersExtraData.clear();
-		this.kingWins = 0;
-		activity.updateActivityExternal();
+		apply(new TournamentBatch().restart(king, players), new Runnable() {
+			@Override
+			public void run() {
+				updateActivity();
+			}
+		});
+	}
+
+	/**
+	 * Notify the list and update clients with the changes, or the new game state
+	 */
+	@Override
+	protected void batchApplied(GameStateMessage update){
+		super.batchApplied(update);
+		outgoingCommandHandler.sendUpdate(update);
+	}
+	
+	/**
+	 * Send participants the game state as the timer expires, so those without the host's timer ends show it too
+	 */
+	@Override
+	protected void timerExpired(boolean game){
+		super.timerExpired(game);
 		outgoingCommandHandler.sendGameState();
 	}
 	
 	/**
-	 * Pop the player at the top of the game queue. The player is removed from the queue after this method has been executed.
+	 * Pop the player at the top of the game queue. The player is removed from the queue by a command, without waiting for it.
 	 * @param enableAnimations Set whether to (re)enable slide animations with this call. Use false when calling as part of a move operation.
-	 * @return The player at the top of the queue.
+	 * @return The player at the top of the published queue, which the command removes unless another change comes first.
 	 */
 	public Player popTopPlayer(boolean enableAnimations){
 		if (enableAnimations){
 			setUseSlideAnimations(true);
 		}
-		Player p = players.poll();
-		notifyDataSetChanged();
-		return p;
-	}
-	
-	/**
-	 * Add a player to the bottom of the game queue. If the player is already a part of the game queue, this method does nothing.
-	 * @param player The player to add.
-	 */
-	private void addPlayerToBottom(Player player){
-		setUseSlideAnimations(true);
-		if (!this.players.contains(player)){
-			players.add(player);
-			notifyDataSetChanged();
-		}
+		Player challenger = getPlayer(getSnapshot().getChallenger());
+		apply(new TournamentBatch().pollChallenger());
+		return challenger;
 	}
 	
 	/**
@@ -81,36 +90,10 @@ public class KingOfTheHillTournament extends TournamentLogic {
 		//Block slide animations
 		setUseSlideAnimations(false);
 		
-		if (player.equals(king)){
-			Player newKing = popTopPlayer(false);
-			setKing(newKing);
-		}
-		if (destinationPosition == KING_POSITION){
-			//move current king to top of queue
-			players.add(0, getKing());
-			
-			//set new king
-			setKing(player);
-			
-			//remove player from queue
-			players.remove(player);
-			
-		} else if (destinationPosition < players.size()) {
-			//remove player from queue
-			players.remove(player);
-			//insert in new position
-			players.add(destinationPosition, player);
-		} else {
-			//insert at end of queue
-			players.remove(player);
-			players.add(player);
-		}
-		notifyDataSetChanged();
+		apply(new TournamentBatch().movePlayer(player.getUUID(), destinationPosition));
 		if (activity != null){
 			activity.setKing(getKing());
 		}
-		
-		outgoingCommandHandler.sendGameState();
 	}
 	
 	/**
@@ -120,15 +103,11 @@ public class KingOfTheHillTournament extends TournamentLogic {
 	 */
 	public void movePlayer(int currentPosition, int destinationPosition){
 		setUseSlideAnimations(false);
-		Player player;
-		if (currentPosition == KING_POSITION){
-			player = getKing();
-		} else {
-			player = players.get(currentPosition);
-		}
-		movePlayer(player, destinationPosition);
 		
-		outgoingCommandHandler.sendGameState();
+		apply(new TournamentBatch().movePlayer(currentPosition, destinationPosition));
+		if (activity != null){
+			activity.setKing(getKing());
+		}
 	}
 	
 	/**
@@ -137,18 +116,7 @@ public class KingOfTheHillTournament extends TournamentLogic {
 	 */
 	public void addNewPlayersToBottom(List<Player> players){
 		setUseSlideAnimations(true);
-		for (Player p: players){
-			if (king == null){
-				setKing(p);
-			}
-			if (!this.players.contains(p) && !king.equals(p)){
-				this.players.add(p);
-			}
-		}
-		notifyDataSetChanged();
-		
-		//update game state
-		outgoingCommandHandler.sendGameState();
+		apply(new TournamentBatch().addNewPlayersToBottom(players));
 	}
 	
 	/**
@@ -157,35 +125,7 @@ public class KingOfTheHillTournament extends TournamentLogic {
 	 */
 	public void updatePlayerList(List<Player> players){
 		setUseSlideAnimations(true);
-		List<Player> removed = new LinkedList<Player>();
-		//Add new players
-		addNewPlayersToBottom(players);
-		
-		//Remove players not in the list
-		for (Player p: this.players){
-			if (!players.contains(p) && !king.equals(p)){
-				removed.add(p);
-			}
-		}
-		
-		//Check if current king has been removed from the game
-		if (!players.contains(king)){
-			removed.add(king);
-		}
-		
-		//Remove removed players from tournament
-		for (Player p: removed){
-			if (king != null && king.equals(p)){
-				setKing(popTopPlayer(true));
-			} else {
-				this.players.remove(p);
-			}
-		}
-		
-		notifyDataSetChanged();
-		
-		//update game state
-		outgoingCommandHandler.sendGameState();
+		apply(new TournamentBatch().updatePlayerList(players));
 	}
 	
 	/**
@@ -193,47 +133,40 @@ public class KingOfTheHillTournament extends TournamentLogic {
 	 */
 	public void moveKingToEnd(){
 		setUseSlideAnimations(true);
-		Player oldKing = getKing();
-		addPlayerToBottom(oldKing);
-		
-		Player newKing = popTopPlayer(true);
-		setKing(newKing);
-		kingWins = 1;
-		
-		getPlayerExtra(oldKing).addLoss();
-		getPlayerExtra(newKing).addWin();
-		
-		notifyDataSetChanged();
-		startRound();
-		outgoingCommandHandler.sendGameState();
+		apply(new TournamentBatch().moveKingToEnd().startRound());
 	}
 	
 	/**
-	 * Move the current challenger to the end of the game queue.
-	 * @return The player who was moved.
+	 * Move the current challenger to the end of the game queue, without waiting for the command.
+	 * @return The challenger of the published queue, which the command moves unless another change comes first.
 	 */
 	public Player moveChallengerToEnd(){
 		setUseSlideAnimations(true);
-		Player challenger = popTopPlayer(true);
-		addPlayerToBottom(challenger);
-		
-		kingWins += 1;
-		getPlayerExtra(getKing()).addWin();
-		getPlayerExtra(challenger).addLoss();
-		
-		notifyDataSetChanged();
-		startRound();
-		outgoingCommandHandler.sendGameState();
+		Player challenger = getPlayer(getSnapshot().getChallenger());
+		apply(new TournamentBatch().moveChallengerToEnd().startRound());
 		return challenger;
 	}
 	
 	/**
-	 * Set the king to the specified player, overriding the current king.
-	 * This method does not move the current king to the game queue, or remove the given player from the game queue.
-	 * @param player The player to set as king.
+	 * Undo the most recent game result, move or score change, including the wins, losses and streak it changed.
+	 */
+	public void undo(){
+		setUseSlideAnimations(false);
+		apply(new TournamentBatch().undo());
+		if (activity != null){
+			activity.setKing(getKing());
+		}
+	}
+	
+	/**
+	 * Redo the most recently undone change
 	 */
-	private void setKing(Player player){
-		this.king = player;
+	public void redo(){
+		setUseSlideAnimations(false);
+		apply(new TournamentBatch().redo());
+		if (activity != null){
+			activity.setKing(getKing());
+		}
 	}
 	
 	/**
@@ -241,12 +174,7 @@ public class KingOfTheHillTournament extends TournamentLogic {
 	 * @param seconds The number of seconds to make the game. Sets to TIMER_NOT_SET if < 1
 	 */
 	public void setGameTimerSetting(int seconds){
-		if (seconds < 1){
-			this.gameTimerSetting = TIMER_NOT_SET;
-		} else {
-			this.gameTimerSetting = seconds;
-		}
-		this.gameTimerStart = System.nanoTime();
+		apply(new TournamentBatch().setGameTimerSetting(seconds));
 	}
 	
 	/**
@@ -254,12 +182,7 @@ public class KingOfTheHillTournament extends TournamentLogic {
 	 * @param seconds The number of seconds to make the round. Sets to TIMER_NOT_SET if < 1
 	 */
 	public void setRoundTimerSetting(int seconds){
-		if (seconds < 1){
-			this.roundTimerSetting = TIMER_NOT_SET;
-		} else {
-			this.roundTimerSetting = seconds;
-		}
-		this.roundTimerStart = System.nanoTime();
+		apply(new TournamentBatch().setRoundTimerSetting(seconds));
 	}
 	
 	/**
@@ -0,0 +1,433 @@
+package utool.plugin.kingofthehill.tournament;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+import utool.plugin.Player;
+import utool.plugin.kingofthehill.engine.GameChange;
+
+/**
+ * A list of queue, stat and timer changes applied to a tournament together.
+ * Build the batch, then pass it to TournamentLogic.apply. All changes are applied in one command and published as
+ * one game state, followed by one list notification and, on the host, one game state broadcast.
+ * @author Cory
+ *
+ */
+public class TournamentBatch {
+	/**
+	 * The changes in this batch, in order
+	 */
+	private final List<Operation> operations = new ArrayList<Operation>();
+
+	/**
+	 * The player moved by the last pollChallenger or moveChallengerToEnd operation, set on the command loop when the batch is applied
+	 */
+	private volatile UUID movedPlayer;
+
+	/**
+	 * Check if the batch has no changes
+	 * @return True if empty
+	 */
+	public boolean isEmpty(){
+		return operations.isEmpty();
+	}
+
+	/**
+	 * Get the player moved by the last pollChallenger or moveChallengerToEnd operation.
+	 * Batches are applied without waiting, so read it in the callback of TournamentLogic.apply(batch, applied).
+	 * @return The player's UUID, or null before the batch is applied or if there was no challenger
+	 */
+	public UUID getMovedPlayer(){
+		return movedPlayer;
+	}
+
+	/**
+	 * Restart the game with the given players, clearing all wins and losses
+	 * @param king The king to set, may be null
+	 * @param players The game queue
+	 * @return This batch
+	 */
+	public TournamentBatch restart(final Player king, final List<Player> players){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				List<UUID> queue = tournament.syncRoster(players);
+				tournament.engine.restart(tournament.registerKing(king), queue);
+			}
+		});
+	}
+
+	/**
+	 * Remove the player at the top of the game queue
+	 * @return This batch
+	 */
+	public TournamentBatch pollChallenger(){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				movedPlayer = tournament.engine.pollChallenger();
+			}
+		});
+	}
+
+	/**
+	 * Move the current king to the end of the game queue, and promote the challenger
+	 * @return This batch
+	 */
+	public TournamentBatch moveKingToEnd(){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.engine.moveKingToEnd();
+			}
+		});
+	}
+
+	/**
+	 * Move the current challenger to the end of the game queue
+	 * @return This batch
+	 */
+	public TournamentBatch moveChallengerToEnd(){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				movedPlayer = tournament.engine.moveChallengerToEnd();
+			}
+		});
+	}
+
+	/**
+	 * Move a player to another location
+	 * @param player The player to move. Can be the king.
+	 * @param destinationPosition The position to move to. KING_POSITION for the king, otherwise the 0-based position in the queue.
+	 * @return This batch
+	 */
+	public TournamentBatch movePlayer(final UUID player, final int destinationPosition){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				if (tournament.engine.contains(player)){
+					tournament.engine.movePlayer(player, destinationPosition);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Move the player at a position to another location. The position is resolved when the batch is applied.
+	 * @param currentPosition The position the player is at. King is at KING_POSITION.
+	 * @param destinationPosition The position to move to.
+	 * @return This batch
+	 */
+	public TournamentBatch movePlayer(final int currentPosition, final int destinationPosition){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.engine.movePlayer(currentPosition, destinationPosition);
+			}
+		});
+	}
+
+	/**
+	 * Set the current king. The old king goes to the bottom of the queue.
+	 * @param king The new king's UUID
+	 * @return This batch
+	 */
+	public TournamentBatch setKing(final UUID king){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.engine.setKing(king);
+			}
+		});
+	}
+
+	/**
+	 * Add players to the bottom of the game queue
+	 * @param players The players to add. Players already in the game are ignored.
+	 * @return This batch
+	 */
+	public TournamentBatch addNewPlayersToBottom(final List<Player> players){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.engine.addNewPlayersToBottom(tournament.addToRoster(players));
+			}
+		});
+	}
+
+	/**
+	 * Fully update the players in the game. New players are added to the bottom, players not in the list are removed.
+	 * @param players The complete player list
+	 * @return This batch
+	 */
+	public TournamentBatch updatePlayerList(final List<Player> players){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.removeFromRoster(tournament.engine.updatePlayerList(tournament.addToRoster(players)));
+			}
+		});
+	}
+
+	/**
+	 * Replace the game queue with the given players, for participant devices
+	 * @param players The complete game queue
+	 * @return This batch
+	 */
+	public TournamentBatch replaceQueue(final List<Player> players){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.engine.replaceQueue(tournament.syncRoster(players));
+			}
+		});
+	}
+
+	/**
+	 * Reorder the game queue
+	 * @param order The ordered game queue
+	 * @return This batch
+	 */
+	public TournamentBatch reorderQueue(final List<UUID> order){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.engine.reorderQueue(order);
+			}
+		});
+	}
+
+	/**
+	 * Set a player's wins and losses. Ignored if the player isn't in the game.
+	 * @param player The player's UUID
+	 * @param wins Number of wins
+	 * @param losses Number of losses
+	 * @return This batch
+	 */
+	public TournamentBatch setStats(final UUID player, final int wins, final int losses){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				if (tournament.engine.contains(player)){
+					tournament.engine.setStats(player, wins, losses);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Apply changes received from the host
+	 * @param changes The changes, in order
+	 * @return This batch
+	 */
+	public TournamentBatch applyChanges(final List<GameChange> changes){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				for (GameChange change : changes){
+					change.applyTo(tournament.engine);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Set the wins and losses of several players. An empty or null map clears all wins and losses.
+	 * @param extras Player extra data by UUID
+	 * @return This batch
+	 */
+	public TournamentBatch setPlayerExtras(HashMap<UUID, KingOfTheHillPlayerExtra> extras){
+		if (extras == null || extras.isEmpty()){
+			return add(new Operation() {
+				@Override
+				void apply(TournamentLogic tournament) {
+					tournament.engine.clearStats();
+				}
+			});
+		}
+		for (KingOfTheHillPlayerExtra extra : extras.values()){
+			setStats(extra.getPlayerUUID(), extra.getWins(), extra.getLosses());
+		}
+		return this;
+	}
+
+	/**
+	 * Set the current king's wins this round
+	 * @param count Number of wins
+	 * @return This batch
+	 */
+	public TournamentBatch setKingWinsStreakCount(final int count){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.engine.setKingWinsStreakCount(count);
+			}
+		});
+	}
+
+	/**
+	 * Undo the most recent game result, move or score change
+	 * @return This batch
+	 */
+	public TournamentBatch undo(){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.engine.undo();
+			}
+		});
+	}
+
+	/**
+	 * Redo the most recently undone change
+	 * @return This batch
+	 */
+	public TournamentBatch redo(){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.engine.redo();
+			}
+		});
+	}
+
+	/**
+	 * Start the round timer
+	 * @return This batch
+	 */
+	public TournamentBatch startRound(){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.roundTimerStart = tournament.clock.nanoTime();
+			}
+		});
+	}
+
+	/**
+	 * Start the game timer
+	 * @return This batch
+	 */
+	public TournamentBatch startGame(){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.gameTimerStart = tournament.clock.nanoTime();
+			}
+		});
+	}
+
+	/**
+	 * Set the game timer to a specific value
+	 * @param timeRemaining The number of seconds to set the timer to
+	 * @return This batch
+	 */
+	public TournamentBatch setRemainingGameTime(final int timeRemaining){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.gameTimerStart = tournament.clock.nanoTime();
+				tournament.gameTimerSetting = timeRemaining;
+			}
+		});
+	}
+
+	/**
+	 * Set the round timer to a specific value
+	 * @param timeRemaining The number of seconds to set the timer to
+	 * @return This batch
+	 */
+	public TournamentBatch setRemainingRoundTime(final int timeRemaining){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				tournament.roundTimerStart = tournament.clock.nanoTime();
+				tournament.roundTimerSetting = timeRemaining;
+			}
+		});
+	}
+
+	/**
+	 * Set the game timer to end at a time. The setting becomes the seconds left, rounded up.
+	 * @param end Time the timer ends, in milliseconds of ClockSync.now()
+	 * @return This batch
+	 */
+	public TournamentBatch setGameTimerEnd(final long end){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				int seconds = (int)Math.max(0, (end - tournament.clock.nanoTime() / 1000000 + 999) / 1000);
+				tournament.gameTimerStart = (end - seconds * 1000L) * 1000000;
+				tournament.gameTimerSetting = seconds;
+			}
+		});
+	}
+
+	/**
+	 * Set the round timer to end at a time. The setting becomes the seconds left, rounded up.
+	 * @param end Time the timer ends, in milliseconds of ClockSync.now()
+	 * @return This batch
+	 */
+	public TournamentBatch setRoundTimerEnd(final long end){
+		return add(new Operation() {
+			@Override
+			void apply(TournamentLogic tournament) {
+				int seconds = (int)Math.max(0, (end - tournament.clock.nanoTime() / 1000000 + 999) / 1000);
+				tournament.roundTimerStart = (end - seconds * 1000L) * 1000000;
+				tournament.roundTimerSetting = seconds;
+			}
+		});
+	}
+
+	/**
+	 * Configure and restart the game timer
+	 * @param seconds The number of seconds to make the game. Sets to TIMER_NOT_SET if < 1
+	 * @return This batch
+	 */
+	public TournamentBatch setGameTimerSetting(int seconds){
+		return setRemainingGameTime(seconds < 1 ? TournamentLogic.TIMER_NOT_SET : seconds);
+	}
+
+	/**
+	 * Configure and restart the round timer
+	 * @param seconds The number of seconds to make the round. Sets to TIMER_NOT_SET if < 1
+	 * @return This batch
+	 */
+	public TournamentBatch setRoundTimerSetting(int seconds){
+		return setRemainingRoundTime(seconds < 1 ? TournamentLogic.TIMER_NOT_SET : seconds);
+	}
+
+	/**
+	 * Apply every change in order. Must run on the tournament's command loop.
+	 * @param tournament The tournament to change
+	 */
+	void applyTo(TournamentLogic tournament){
+		for (Operation operation : operations){
+			operation.apply(tournament);
+		}
+	}
+
+	/**
+	 * Add a change to the batch
+	 * @param operation The change
+	 * @return This batch
+	 */
+	private TournamentBatch add(Operation operation){
+		operations.add(operation);
+		return this;
+	}
+
+	/**
+	 * A single change to a tournament
+	 */
+	private abstract static class Operation {
+		/**
+		 * Apply the change
+		 * @param tournament The tournament to change
+		 */
+		abstract void apply(TournamentLogic tournament);
+	}
+}
@@ -1,14 +1,23 @@
 package utool.plugin.kingofthehill.tournament;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -23,8 +32,21 @@ import utool.plugin.Player;
 import utool.plugin.kingofthehill.KingOfTheHillMainActivity;
 import utool.plugin.kingofthehill.R;
 import utool.plugin.kingofthehill.communications.AutomaticMessageHandler;
+import utool.plugin.kingofthehill.communications.ClockSync;
+import utool.plugin.kingofthehill.communications.GameStateMessage;
 import utool.plugin.kingofthehill.communications.IncomingCommandHandler;
 import utool.plugin.kingofthehill.communications.OutgoingCommandHandler;
+import utool.plugin.kingofthehill.communications.SessionRecorder;
+import utool.plugin.kingofthehill.engine.ChangeBuffer;
+import utool.plugin.kingofthehill.engine.Clock;
+import utool.plugin.kingofthehill.engine.CommandLoop;
+import utool.plugin.kingofthehill.engine.EventLog;
+import utool.plugin.kingofthehill.engine.GameChange;
+import utool.plugin.kingofthehill.engine.GameSnapshot;
+import utool.plugin.kingofthehill.engine.KingOfTheHillEngine;
+import utool.plugin.kingofthehill.engine.PlayerStats;
+import utool.plugin.kingofthehill.engine.TimerScheduler;
+import utool.plugin.kingofthehill.engine.TournamentStore;
 
 /**
  * Base class for tournament logic classes, as well as game instance handler and UI list adapter.
@@ -36,7 +58,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * "Index" that the king is at in the player queue.
 	 * Not really an index, but is used by almost all tournament logic as the king position value.
 	 */
-	public static final int KING_POSITION = -1;
+	public static final int KING_POSITION = KingOfTheHillEngine.KING_POSITION;
 	
 	/**
 	 * HashMap storing instances for all tournaments
@@ -59,24 +81,43 @@ public abstract class TournamentLogic extends BaseAdapter {
 	protected OutgoingCommandHandler outgoingCommandHandler;
 
 	/**
-	 * The list of players in the game, excluding the current king
+	 * Source of time for the timers
 	 */
-	protected volatile LinkedList<Player> players;
+	protected final Clock clock;
 
 	/**
-	 * Mapping of players to extra player data
+	 * The local clock and, on participants, its offset to the host's clock
 	 */
-	protected HashMap<Player, KingOfTheHillPlayerExtra> playersExtraData = new HashMap<Player, KingOfTheHillPlayerExtra>();
+	private final ClockSync clockSync;
 
 	/**
-	 * The current king of the game
+	 * The game rules and state: king, player queue, winning streak and player wins/losses.
+	 * This class only adapts the engine to Android and the core.
+	 * Every change to the engine is recorded in its event log.
 	 */
-	protected Player king;
-	
+	protected KingOfTheHillEngine engine = new KingOfTheHillEngine();
+
+	/**
+	 * Index of player UUIDs to the core's player objects, for all players in this tournament.
+	 * Updated incrementally as players join or leave. Every UUID is resolved through this index.
+	 * Written by commands, read without locking.
+	 */
+	protected ConcurrentHashMap<UUID, Player> roster = new ConcurrentHashMap<UUID, Player>();
+
+	/**
+	 * The most recently published game state. Readers use this instead of locking the engine.
+	 */
+	private volatile GameSnapshot state = engine.snapshot();
+
+	/**
+	 * The game state the list shows. Only used on the UI thread, so the list's count only changes when it is notified.
+	 */
+	private GameSnapshot shown = state;
+
 	/**
-	 * Winning streak count for the king
+	 * Runs list updates on the UI thread
 	 */
-	protected int kingWins = 0;
+	private final Handler uiHandler = new Handler(Looper.getMainLooper());
 	
 	/**
 	 * The UUID of the player on the local device
@@ -94,24 +135,24 @@ public abstract class TournamentLogic extends BaseAdapter {
 	protected Context context;
 
 	/**
-	 * The time the game timer was started, from System.nanoTime()
+	 * The time the game timer was started, from clock.nanoTime()
 	 */
-	protected long gameTimerStart;
+	protected volatile long gameTimerStart;
 
 	/**
 	 * The user-configured game timer setting in seconds
 	 */
-	protected int gameTimerSetting = TIMER_NOT_SET;
+	protected volatile int gameTimerSetting = TIMER_NOT_SET;
 
 	/**
-	 * The time the round timer was started, from System.nanoTime()
+	 * The time the round timer was started, from clock.nanoTime()
 	 */
-	protected long roundTimerStart;
+	protected volatile long roundTimerStart;
 
 	/**
 	 * The user-configured round timer setting in seconds
 	 */
-	protected int roundTimerSetting = TIMER_NOT_SET;
+	protected volatile int roundTimerSetting = TIMER_NOT_SET;
 	
 	/**
 	 * The value returned by timer methods when the timer isn't configured
@@ -119,9 +160,66 @@ public abstract class TournamentLogic extends BaseAdapter {
 	public static final int TIMER_NOT_SET = -1;
 
 	/**
-	 * Sync lock object for player list
+	 * Stored value index of the game timer start, in wall clock milliseconds
+	 */
+	private static final int STORED_GAME_TIMER_START = 0;
+
+	/**
+	 * Stored value index of the game timer setting
+	 */
+	private static final int STORED_GAME_TIMER_SETTING = 1;
+
+	/**
+	 * Stored value index of the round timer start, in wall clock milliseconds
+	 */
+	private static final int STORED_ROUND_TIMER_START = 2;
+
+	/**
+	 * Stored value index of the round timer setting
+	 */
+	private static final int STORED_ROUND_TIMER_SETTING = 3;
+
+	/**
+	 * The changes of the most recent versions, for participants catching up. Only used by commands.
+	 */
+	private final ChangeBuffer recentChanges = new ChangeBuffer();
+
+	/**
+	 * Crash safe storage of the game and timers, or null if this tournament isn't stored.
+	 * Only used by commands.
+	 */
+	private TournamentStore store;
+
+	/**
+	 * The recorder started by setRecording, or null if this tournament isn't recording
+	 */
+	private SessionRecorder recording;
+
+	/**
+	 * Number of events after which the log of a tournament without a store is cleared.
+	 * Only the current batch's events are read from it, the store starts a new log at each checkpoint itself.
 	 */
-	protected Object playerListLock = new Object();
+	private static final int LOG_LIMIT = 1024;
+
+	/**
+	 * Single writer for this tournament. The engine, the roster and the timers are only changed by commands run on this loop.
+	 */
+	protected final CommandLoop commands;
+
+	/**
+	 * Runs the expiry actions of the round and game timers
+	 */
+	protected final TimerScheduler timers;
+
+	/**
+	 * Timer scheduler key of the game timer
+	 */
+	private static final String GAME_TIMER = "game";
+
+	/**
+	 * Timer scheduler key of the round timer
+	 */
+	private static final String ROUND_TIMER = "round";
 	
 	/**
 	 * Email handler for this tournament
@@ -132,10 +230,16 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * Basic abstract constructor
 	 * @param tournamentId Core tournament id
 	 * @param context Android context
+	 * @param clock Source of time for the timers
 	 */
-	protected TournamentLogic(long tournamentId, Context context){
+	protected TournamentLogic(long tournamentId, Context context, Clock clock){
 		this.tournamentId = tournamentId;
 		this.context = context;
+		this.clock = clock;
+		clockSync = new ClockSync(clock);
+		commands = new CommandLoop("KOTH tournament " + tournamentId);
+		timers = new TimerScheduler("KOTH timers " + tournamentId, clock);
+		engine.setLog(new EventLog());
 		incommingCommandHandler = new IncomingCommandHandler(this);
 		outgoingCommandHandler = new OutgoingCommandHandler(this);
 		emailHandler = new AutomaticMessageHandler(tournamentId);
@@ -169,6 +273,21 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @return New or existing instance of a tournament instance.
 	 */
 	public static TournamentLogic getNewInstance(Context context, long tournamentId, List<Player> players, int permissionLevel)
+	{
+		return getNewInstance(context, tournamentId, players, permissionLevel, Clock.SYSTEM);
+	}
+
+	/**
+	 * Method for creating new singleton instance of this TournamentLogic with its own source of time, such as a VirtualClock.
+	 * If an instance already exists with the given tournament id, the parameters will be ignored and that instance returned.
+	 * @param context Android context
+	 * @param tournamentId Core tournament id
+	 * @param players List of players to add to the game
+	 * @param permissionLevel Permission level the plugin was started with. If Player.HOST, this method creates a KingOfTheHillTournament. Otherwise, KingOfTheHillParticipantTournament
+	 * @param clock Source of time for the timers
+	 * @return New or existing instance of a tournament instance.
+	 */
+	public static TournamentLogic getNewInstance(Context context, long tournamentId, List<Player> players, int permissionLevel, Clock clock)
 	{
 		TournamentLogic tournament = tournamentInstances.get(tournamentId);
 		LinkedList<Player> playersLinked = new LinkedList<Player>(players);
@@ -178,12 +297,12 @@ public abstract class TournamentLogic extends BaseAdapter {
 			if(permissionLevel == Player.HOST)
 			{
 				Player king = playersLinked.poll();
-				tournament = new KingOfTheHillTournament(context, tournamentId, playersLinked, king);
+				tournament = new KingOfTheHillTournament(context, tournamentId, playersLinked, king, clock);
 			}
 			else
 			{
 				//participant tournament class
-				tournament = new KingOfTheHillParticipantTournament(tournamentId, context, playersLinked);
+				tournament = new KingOfTheHillParticipantTournament(tournamentId, context, playersLinked, clock);
 			}
 
 			tournamentInstances.put(tournamentId, tournament);
@@ -196,7 +315,58 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @param tournamentId Core tournament id
 	 */
 	public static void removeInstance(long tournamentId){
-		tournamentInstances.remove(tournamentId);
+		TournamentLogic tournament = tournamentInstances.remove(tournamentId);
+		if (tournament != null){
+			tournament.deleteStore();
+			tournament.setRecording(false);
+			tournament.outgoingCommandHandler.close();
+			tournament.timers.close();
+			tournament.commands.shutdown();
+		}
+	}
+
+	/**
+	 * Record the messages received and sent from now on, for replaying with SessionReplayer
+	 * @param recorder The recorder, or null to stop recording. The caller closes it.
+	 */
+	public void setRecorder(SessionRecorder recorder){
+		incommingCommandHandler.setRecorder(recorder);
+		outgoingCommandHandler.setRecorder(recorder);
+	}
+
+	/**
+	 * Start or stop recording the messages received and sent to a new file in the app's files directory,
+	 * named koth-(tournament id)-(start time).session, for replaying with SessionReplayer.
+	 * Does nothing without an Android context.
+	 * @param record True to start recording, false to stop
+	 * @return True if this tournament is recording
+	 */
+	public synchronized boolean setRecording(boolean record){
+		if (record && recording == null){
+			if (context == null || context.getFilesDir() == null){
+				return false;
+			}
+			try {
+				recording = new SessionRecorder(new File(context.getFilesDir(), "koth-" + tournamentId + "-" + System.currentTimeMillis() + ".session"));
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+			setRecorder(recording);
+		} else if (!record && recording != null){
+			setRecorder(null);
+			recording.close();
+			recording = null;
+		}
+		return recording != null;
+	}
+
+	/**
+	 * Check if setRecording started recording this tournament
+	 * @return True if recording
+	 */
+	public synchronized boolean isRecording(){
+		return recording != null;
 	}
 
 	/**
@@ -206,39 +376,424 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 */
 	public void setMatchupActivity(KingOfTheHillMainActivity activity, IUTooLCore service){
 		this.activity = activity;
-		this.outgoingCommandHandler = new OutgoingCommandHandler(this, service);
+		this.outgoingCommandHandler.setService(service);
+	}
+
+	/**
+	 * Get the current game state. O(1) and lock free, the returned state never changes.
+	 * @return The most recently published game state
+	 */
+	public GameSnapshot getSnapshot(){
+		return state;
+	}
+
+	/**
+	 * Publish the engine's current state to readers. Call from a command, after changing the engine.
+	 */
+	protected void publish(){
+		state = engine.snapshot();
+	}
+
+	/**
+	 * Apply a batch of changes. The changes are applied together on the command loop and published as one game state.
+	 * Returns without waiting for them; afterwards the list is notified once on the UI thread, and the host broadcasts the changes once.
+	 * @param batch The changes to apply
+	 */
+	public void apply(TournamentBatch batch){
+		apply(batch, null);
+	}
+
+	/**
+	 * Apply a batch of changes without waiting for them, like apply(batch)
+	 * @param batch The changes to apply
+	 * @param applied Run on the UI thread once the list shows the changes, or null
+	 */
+	public void apply(final TournamentBatch batch, final Runnable applied){
+		if (batch.isEmpty()){
+			if (applied != null){
+				uiHandler.post(applied);
+			}
+			return;
+		}
+		commands.post(new Runnable() {
+			@Override
+			public void run() {
+				batchApplied(applyNow(batch));
+				if (applied != null){
+					uiHandler.post(applied);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run a command on the command loop, after the commands already submitted, without waiting for it.
+	 * Batches applied by the command are applied right away, so the command sees their results.
+	 * @param command The command
+	 */
+	public void post(Runnable command){
+		commands.post(command);
+	}
+
+	/**
+	 * Wait until the commands submitted so far have been applied.
+	 * Blocks the caller, so never call this from the UI thread; it is meant for background threads and tests.
+	 */
+	public void awaitCommands(){
+		commands.execute(new Runnable() {
+			@Override
+			public void run() {
+				//nothing, the commands before it are done
+			}
+		});
+	}
+
+	/**
+	 * Apply a batch of changes and publish the new state. Call from a command.
+	 * @param batch The changes to apply
+	 * @return A delta message with the batch's changes, or null if the changes can only be sent as a whole game state
+	 */
+	private GameStateMessage applyNow(TournamentBatch batch){
+		EventLog log = engine.getLog();
+		int mark = log.mark();
+		long baseVersion = state.getVersion();
+		batch.applyTo(this);
+		publish();
+		scheduleTimers();
+		List<GameChange> changes = log.changesSince(mark);
+		recentChanges.add(baseVersion, state.getVersion(), changes);
+		save();
+		if (store == null && log.size() >= LOG_LIMIT){
+			log.clear();
+		}
+		if (changes == null){
+			return null;
+		}
+		return withTimerEnds(new GameStateMessage(baseVersion, state.getVersion(), changes, getRemainingGameTime(), getRemainingRoundTime()));
+	}
+
+	/**
+	 * Get a delta message holding every change made since a version.
+	 * Runs on the command loop, so call it from a command or a thread that may wait for the loop, never from the UI thread.
+	 * @param version The version to start from
+	 * @return The delta message, or null if the changes since the version are no longer known
+	 */
+	public GameStateMessage getChangesSince(final long version){
+		return commands.call(new Callable<GameStateMessage>() {
+			@Override
+			public GameStateMessage call() {
+				List<GameChange> changes;
+				if (version == state.getVersion()){
+					changes = new ArrayList<GameChange>();
+				} else {
+					changes = recentChanges.since(version);
+				}
+				if (changes == null){
+					return null;
+				}
+				return withTimerEnds(new GameStateMessage(version, state.getVersion(), changes, getRemainingGameTime(), getRemainingRoundTime()));
+			}
+		});
+	}
+
+	/**
+	 * Get a message holding the whole current game state.
+	 * The message is built from the published game state, whose version, queue and scores match, without waiting for the command loop.
+	 * @return The game state message
+	 */
+	public GameStateMessage getGameStateMessage(){
+		GameSnapshot current = state;
+		return withTimerEnds(new GameStateMessage(current, current.getStats(), getRemainingGameTime(), getRemainingRoundTime()));
+	}
+
+	/**
+	 * Schedule the expiry of the running timers, replacing their previous expiry. Call from a command, after changing the timers.
+	 */
+	private void scheduleTimers(){
+		scheduleTimer(GAME_TIMER, gameTimerStart, gameTimerSetting, true);
+		scheduleTimer(ROUND_TIMER, roundTimerStart, roundTimerSetting, false);
+	}
+
+	/**
+	 * Schedule the expiry of a timer, or cancel it if the timer isn't set or already expired
+	 * @param key Timer scheduler key of the timer
+	 * @param start Time the timer started, from clock.nanoTime()
+	 * @param setting The timer setting in seconds
+	 * @param game True for the game timer, false for the round timer
+	 */
+	private void scheduleTimer(String key, long start, int setting, final boolean game){
+		long end = start + setting * 1000000000L;
+		if (setting == TIMER_NOT_SET || end - timers.now() <= 0){
+			timers.cancel(key);
+			return;
+		}
+		timers.schedule(key, end, new Runnable() {
+			@Override
+			public void run() {
+				timerExpired(game);
+			}
+		});
+	}
+
+	/**
+	 * Called on the timer thread when the game or round timer reaches zero
+	 * @param game True if the game timer expired, false for the round timer
+	 */
+	protected void timerExpired(boolean game){
+		KingOfTheHillMainActivity activity = this.activity;
+		if (activity != null){
+			activity.timerExpired(game);
+		}
+	}
+
+	/**
+	 * Get the time until the remaining seconds of a running timer next change, for redrawing the timers
+	 * @return Milliseconds, or -1 if no timer is running
+	 */
+	public long getMillisToNextSecond(){
+		long now = clock.nanoTime();
+		long next = Math.min(nanosToNextSecond(now, gameTimerStart, gameTimerSetting), nanosToNextSecond(now, roundTimerStart, roundTimerSetting));
+		if (next == Long.MAX_VALUE){
+			return -1;
+		}
+		return next / 1000000 + 1;
+	}
+
+	/**
+	 * Get the time until the remaining seconds of a timer next change
+	 * @param now The current time, from clock.nanoTime()
+	 * @param start Time the timer started
+	 * @param setting The timer setting in seconds
+	 * @return Nanoseconds, or Long.MAX_VALUE if the timer isn't running
+	 */
+	private static long nanosToNextSecond(long now, long start, int setting){
+		long elapsed = now - start;
+		if (setting == TIMER_NOT_SET || elapsed >= setting * 1000000000L){
+			return Long.MAX_VALUE;
+		}
+		if (elapsed < 0){
+			//elapsed seconds are rounded toward zero
+			return 1000000000L - elapsed;
+		}
+		return 1000000000L - elapsed % 1000000000L;
 	}
 
 	/**
-	 * Get all players in the game, excluding the king
+	 * Add the times the timers end to a message
+	 * @param message The message
+	 * @return The message
+	 */
+	private GameStateMessage withTimerEnds(GameStateMessage message){
+		message.setTimerEnds(getGameTimerEnd(), getRoundTimerEnd());
+		return message;
+	}
+
+	/**
+	 * Restore the game stored by an earlier run of the plugin, if any, and store every following change.
+	 * Runs on the command loop without waiting for it. Without an Android context nothing is stored.
+	 * @param start The changes starting a new game, applied if no game was restored
+	 * @param resume The changes applied to a restored game, normally updating the player list, since players may have left
+	 */
+	protected void openStore(final TournamentBatch start, final TournamentBatch resume){
+		commands.post(new Runnable() {
+			@Override
+			public void run() {
+				if (restoreStore()){
+					//show and send the restored game, then bring it up to date
+					batchApplied(null);
+					apply(resume);
+				} else {
+					apply(start);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Open the store and restore the game stored in it, if any. Call from a command.
+	 * @return True if a stored game was restored
+	 */
+	private boolean restoreStore(){
+		if (context == null || context.getFilesDir() == null){
+			return false;
+		}
+		File directory = new File(context.getFilesDir(), "koth-" + tournamentId);
+		store = new TournamentStore(directory);
+		KingOfTheHillEngine restored = null;
+		try {
+			restored = store.restore();
+		} catch (IOException e) {
+			//unreadable, start over
+			e.printStackTrace();
+		}
+		try {
+			if (restored != null){
+				//a restored engine has no log, and keeps this one if attaching fails
+				restored.setLog(new EventLog());
+				engine = restored;
+				gameTimerSetting = (int)store.getValue(STORED_GAME_TIMER_SETTING);
+				gameTimerStart = toNanoTime(store.getValue(STORED_GAME_TIMER_START));
+				roundTimerSetting = (int)store.getValue(STORED_ROUND_TIMER_SETTING);
+				roundTimerStart = toNanoTime(store.getValue(STORED_ROUND_TIMER_START));
+			}
+			store.attach(engine);
+		} catch (IOException e) {
+			e.printStackTrace();
+			store = null;
+		}
+		if (restored != null){
+			publish();
+			scheduleTimers();
+		}
+		return restored != null;
+	}
+
+	/**
+	 * Write the changes of the last batch and the timers to the store. Call from a command.
+	 */
+	private void save(){
+		if (store == null){
+			return;
+		}
+		try {
+			store.sync();
+			store.setValue(STORED_GAME_TIMER_SETTING, gameTimerSetting);
+			store.setValue(STORED_GAME_TIMER_START, toWallClock(gameTimerStart));
+			store.setValue(STORED_ROUND_TIMER_SETTING, roundTimerSetting);
+			store.setValue(STORED_ROUND_TIMER_START, toWallClock(roundTimerStart));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop storing this tournament and delete the stored game, after the commands already submitted
+	 */
+	private void deleteStore(){
+		commands.post(new Runnable() {
+			@Override
+			public void run() {
+				if (store != null){
+					try {
+						store.delete();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					store = null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Convert a clock.nanoTime() time to wall clock time, which is still valid after a restart
+	 * @param nanoTime The time from clock.nanoTime()
+	 * @return The time in milliseconds since the epoch
+	 */
+	private long toWallClock(long nanoTime){
+		return clock.currentTimeMillis() - (clock.nanoTime() - nanoTime) / 1000000;
+	}
+
+	/**
+	 * Convert a wall clock time to a clock.nanoTime() time
+	 * @param wallClock The time in milliseconds since the epoch
+	 * @return The time for comparing to clock.nanoTime()
+	 */
+	private long toNanoTime(long wallClock){
+		return clock.nanoTime() - (clock.currentTimeMillis() - wallClock) * 1000000;
+	}
+
+	/**
+	 * Called once after each applied batch, on the command loop. Shows the new game state in the list on the UI thread.
+	 * @param update A delta message with the batch's changes, or null if the changes can only be sent as a whole game state
+	 */
+	protected void batchApplied(GameStateMessage update){
+		final GameSnapshot applied = state;
+		uiHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				show(applied);
+			}
+		});
+	}
+
+	/**
+	 * Show a game state in the list and the main activity. Call on the UI thread.
+	 * @param applied The game state
+	 */
+	private void show(GameSnapshot applied){
+		shown = applied;
+		notifyDataSetChanged();
+		KingOfTheHillMainActivity activity = this.activity;
+		if (activity != null){
+			activity.gameStateShown(getPlayer(applied.getKing()));
+		}
+	}
+
+	/**
+	 * Add the king to the known players
+	 * @param king The king, may be null
+	 * @return The king's UUID, or null if there is no king
+	 */
+	protected UUID registerKing(Player king){
+		if (king == null){
+			return null;
+		}
+		roster.put(king.getUUID(), king);
+		return king.getUUID();
+	}
+
+	/**
+	 * Get all players in the game, excluding the king.
+	 * Prefer getSnapshot() where UUIDs are enough, it doesn't allocate.
 	 * @return List of players
 	 */
 	public List<Player> getPlayers(){
-		synchronized (playerListLock) {
-			return new LinkedList<Player>(players);
+		List<UUID> queue = state.getQueue();
+		LinkedList<Player> players = new LinkedList<Player>();
+		for (UUID p : queue){
+			players.add(getPlayer(p));
 		}
+		return players;
 	}
 
 	/**
-	 * Get extra data associated with a player
+	 * Get extra data associated with a player.
+	 * The returned object is a view of the most recently published statistics and doesn't change,
+	 * use setPlayerExtra to change a player's data.
 	 * @param player The player to get the data for
 	 * @return Extra data for the player
 	 */
 	public KingOfTheHillPlayerExtra getPlayerExtra(Player player){
-		KingOfTheHillPlayerExtra extra =  playersExtraData.get(player);
-		if (extra == null){
-			extra = new KingOfTheHillPlayerExtra(player.getUUID());
-			playersExtraData.put(player, extra);
-		}
-		return extra;
+		return new KingOfTheHillPlayerExtra(state.getStats(), player.getUUID());
+	}
+
+	/**
+	 * Get the wins and losses of all players. O(1) and lock free, the returned statistics never change.
+	 * @return The most recently published statistics
+	 */
+	public PlayerStats getStats(){
+		return state.getStats();
 	}
 
 	/**
 	 * Get all player extra data
-	 * @return Player extra data
+	 * @return Player extra data for every player in the game that has played at least one match
 	 */
 	public HashMap<Player, KingOfTheHillPlayerExtra> getPlayerExtras(){
-		return playersExtraData;
+		HashMap<Player, KingOfTheHillPlayerExtra> extras = new HashMap<Player, KingOfTheHillPlayerExtra>();
+		List<Player> players = getPlayers();
+		Player king = getKing();
+		if (king != null){
+			players.add(king);
+		}
+		for (Player p : players){
+			KingOfTheHillPlayerExtra extra = getPlayerExtra(p);
+			if (extra.getWins() != KingOfTheHillEngine.STAT_NOT_SET){
+				extras.put(p, extra);
+			}
+		}
+		return extras;
 	}
 
 	/**
@@ -246,7 +801,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @return The king
 	 */
 	public Player getKing(){
-		return king;
+		return getPlayer(state.getKing());
 	}
 	
 	/**
@@ -254,7 +809,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @return Number of wins
 	 */
 	public int getKingWinsStreakCount(){
-		return kingWins;
+		return state.getKingWinsStreakCount();
 	}
 	
 	/**
@@ -262,19 +817,73 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @param count Number of wins
 	 */
 	public void setKingWinsStreakCount(int count){
-		kingWins = count;
+		apply(new TournamentBatch().setKingWinsStreakCount(count));
+	}
+
+	/**
+	 * Get the player object for a UUID in O(1)
+	 * @param uuid The player's UUID
+	 * @return The player, or null if the player isn't known to this tournament
+	 */
+	public Player getPlayer(UUID uuid){
+		if (uuid == null){
+			return null;
+		}
+		return roster.get(uuid);
+	}
+
+	/**
+	 * Update the known players of this tournament to match a complete player list.
+	 * New players are added and players that left are removed, the rest of the index is kept.
+	 * @param players All players in the tournament
+	 * @return The UUIDs of the given players, in the same order
+	 */
+	protected List<UUID> syncRoster(List<Player> players){
+		List<UUID> uuids = addToRoster(players);
+		if (roster.size() > uuids.size()){
+			HashSet<UUID> current = new HashSet<UUID>(uuids);
+			Iterator<UUID> it = roster.keySet().iterator();
+			while (it.hasNext()){
+				if (!current.contains(it.next())){
+					it.remove();
+				}
+			}
+		}
+		return uuids;
+	}
+
+	/**
+	 * Remove players from the known players of this tournament
+	 * @param players The UUIDs of the players that left
+	 */
+	protected void removeFromRoster(List<UUID> players){
+		for (UUID p : players){
+			roster.remove(p);
+		}
+	}
+
+	/**
+	 * Add players to the known players of this tournament
+	 * @param players The players to add
+	 * @return The UUIDs of the given players, in the same order
+	 */
+	protected List<UUID> addToRoster(List<Player> players){
+		List<UUID> uuids = new ArrayList<UUID>(players.size());
+		for (Player p : players){
+			roster.put(p.getUUID(), p);
+			uuids.add(p.getUUID());
+		}
+		return uuids;
 	}
 
 	@Override
 	public int getCount() {
-		synchronized (playerListLock) {
-			return players.size();
-		}
+		return shown.getQueue().size();
 	}
 
 	@Override
 	public Object getItem(int arg0) {
-		return players.get(arg0);
+		return getPlayer(shown.getQueue().get(arg0));
 	}
 
 	@Override
@@ -301,23 +910,28 @@ public abstract class TournamentLogic extends BaseAdapter {
 		return incommingCommandHandler;
 	}
 
+	/**
+	 * Get the source of time for the timers
+	 * @return The clock
+	 */
+	public Clock getClock(){
+		return clock;
+	}
+
+	/**
+	 * Get the local clock, which participants also use to convert the host's timer ends
+	 * @return The clock
+	 */
+	public ClockSync getClockSync(){
+		return clockSync;
+	}
+
 	/**
 	 * Set the current king of the tournament
 	 * @param king The player UUID to set as the king
 	 */
 	public void setKing(UUID king){
-		Player oldKing = this.king;
-		if (this.king == null || !this.king.getUUID().equals(king)){
-			for (Player p:players){
-				if (p.getUUID().equals(king)){
-					this.king = p;
-					continue;
-				}
-			}
-			if (oldKing != null){
-				players.add(oldKing);
-			}
-		}
+		apply(new TournamentBatch().setKing(king));
 	}
 
 	/**
@@ -329,7 +943,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 	}
 
 	/**
-	 * Get the nano time the round timer was started. Compare to System.nanoTime()
+	 * Get the nano time the round timer was started. Compare to getClock().nanoTime()
 	 * @return Start time of the round
 	 */
 	public long getRoundTimerStartTime(){
@@ -341,7 +955,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @return Current round time in seconds
 	 */
 	public int getElapsedRoundTime(){
-		long time = System.nanoTime() - roundTimerStart;
+		long time = clock.nanoTime() - roundTimerStart;
 		time /= 1000000000;
 		return (int)time;
 	}
@@ -371,25 +985,49 @@ public abstract class TournamentLogic extends BaseAdapter {
 	}
 
 	/**
-	 * Get the nano time the game timer was started. Compare to System.nanoTime()
+	 * Get the nano time the game timer was started. Compare to getClock().nanoTime()
 	 * @return Start time of the game
 	 */
 	public long getGameTimerStartTime(){
 		return gameTimerStart;
 	}
 
+	/**
+	 * Get the time the round timer ends
+	 * @return Milliseconds of ClockSync.now(), or GameStateMessage.NO_DEADLINE if the timer isn't set
+	 */
+	public long getRoundTimerEnd(){
+		int setting = roundTimerSetting;
+		if (setting == TIMER_NOT_SET){
+			return GameStateMessage.NO_DEADLINE;
+		}
+		return roundTimerStart / 1000000 + setting * 1000L;
+	}
+
+	/**
+	 * Get the time the game timer ends
+	 * @return Milliseconds of ClockSync.now(), or GameStateMessage.NO_DEADLINE if the timer isn't set
+	 */
+	public long getGameTimerEnd(){
+		int setting = gameTimerSetting;
+		if (setting == TIMER_NOT_SET){
+			return GameStateMessage.NO_DEADLINE;
+		}
+		return gameTimerStart / 1000000 + setting * 1000L;
+	}
+
 	/**
 	 * Start the round timer
 	 */
 	public void startRound(){
-		roundTimerStart = System.nanoTime();
+		apply(new TournamentBatch().startRound());
 	}
 
 	/**
 	 * Start the game timer
 	 */
 	public void startGame(){
-		gameTimerStart = System.nanoTime();
+		apply(new TournamentBatch().startGame());
 	}
 
 	/**
@@ -397,7 +1035,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @return Current game time in seconds
 	 */
 	public int getElapsedGameTime(){
-		long time = System.nanoTime() - gameTimerStart;
+		long time = clock.nanoTime() - gameTimerStart;
 		time /= 1000000000;
 		return (int)time;
 	}
@@ -423,8 +1061,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @param timeRemaining The number of seconds to set the timer to
 	 */
 	public void setRemainingGameTime(int timeRemaining){
-		gameTimerStart = System.nanoTime();
-		gameTimerSetting = timeRemaining;
+		apply(new TournamentBatch().setRemainingGameTime(timeRemaining));
 	}
 	
 	/**
@@ -432,15 +1069,17 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @param timeRemaining The number of seconds to set the timer to
 	 */
 	public void setRemainingRoundTime(int timeRemaining){
-		roundTimerStart = System.nanoTime();
-		roundTimerSetting = timeRemaining;
+		apply(new TournamentBatch().setRemainingRoundTime(timeRemaining));
 	}
 
 	/**
-	 * Notify the main activity to update itself
+	 * Notify the main activity to update itself, if there is one
 	 */
 	public void updateActivity(){
-		activity.updateActivityExternal();
+		KingOfTheHillMainActivity activity = this.activity;
+		if (activity != null){
+			activity.updateActivityExternal();
+		}
 	}
 
 	/**
@@ -460,21 +1099,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @param players The ordered game queue player list
 	 */
 	public void setPlayers(List<UUID> players){
-		synchronized (playerListLock) {
-			LinkedList<Player> tempCurrent = new LinkedList<Player>(TournamentLogic.this.players);
-			LinkedList<Player> tempSorted = new LinkedList<Player>();
-
-			for (UUID player:players){
-				for (int i = 0; i < tempCurrent.size(); i++){
-					Player p = TournamentLogic.this.players.get(i);
-					if (p.getUUID().equals(player)){
-						tempSorted.add(p);
-					}
-				}
-			}
-			TournamentLogic.this.players = tempSorted;
-		}
-		notifyDataSetChanged();
+		apply(new TournamentBatch().reorderQueue(players));
 		updateActivity();
 	}
 
@@ -483,37 +1108,15 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @param extras HashMap of player extra data
 	 */
 	public void setPlayerExtras(HashMap<UUID, KingOfTheHillPlayerExtra> extras){
-		if (extras == null || extras.size() == 0){
-			this.playersExtraData.clear();
-		}
-		for (UUID uuid: extras.keySet()){
-			if (king != null && king.getUUID().equals(uuid)){
-				this.playersExtraData.put(king, extras.get(uuid));
-			} else {
-				for (Player p : players){
-					if (p.getUUID().equals(uuid)){
-						this.playersExtraData.put(p, extras.get(uuid));
-					}
-				}
-			}
-
-		}
+		apply(new TournamentBatch().setPlayerExtras(extras));
 	}
 	
 	/**
-	 * Set player's extra data
+	 * Set player's extra data. Ignored if the player isn't in the game.
 	 * @param extra KingOfTheHillPlayerExtra
 	 */
 	public void setPlayerExtra(KingOfTheHillPlayerExtra extra){
-		if (king != null && king.getUUID().equals(extra.getPlayerUUID())){
-			this.playersExtraData.put(king, extra);
-		} else {
-			for (Player p : players){
-				if (p.getUUID().equals(extra.getPlayerUUID())){
-					this.playersExtraData.put(p, extra);
-				}
-			}
-		}
+		apply(new TournamentBatch().setStats(extra.getPlayerUUID(), extra.getWins(), extra.getLosses()));
 	}
 	
 	/**
@@ -523,6 +1126,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 */
 	public String getTournamentData(){
 		StringBuilder s = new StringBuilder();
+		Player king = getKing();
 		s.append("Current King: ");
 		s.append(king.getName());
 		s.append("\n\t");
@@ -531,7 +1135,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 		s.append("\n\tLosses: ");
 		s.append(getPlayerExtra(king).getLosses());
 		
-		for (Player p : players){
+		for (Player p : getPlayers()){
 			s.append("\n\n");
 			s.append(p.getName());
 			s.append("\n\t");
@@ -548,6 +1152,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 * @return Tournament data
 	 */
 	public String getTournamentDataText(){
+		Player king = getKing();
 		String s = "";
 		s+=("Current King: ");
 		s+=(king.getName());
@@ -557,7 +1162,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 		s+=("\nLosses: ");
 		s+=(getPlayerExtra(king).getLosses());
 		
-		for (Player p : players){
+		for (Player p : getPlayers()){
 			s+=("\n\n");
 			s+=(p.getName());
 			s+=("\n");
@@ -574,6 +1179,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 	 */
 	public String getTournamentDataHTML(){
 		StringBuilder s = new StringBuilder();
+		Player king = getKing();
 		s.append("<b>Current King: </b>");
 		s.append("<b>"+king.getName()+"</b>");
 		s.append("<br>\t");
@@ -582,7 +1188,7 @@ public abstract class TournamentLogic extends BaseAdapter {
 		s.append("<br>\tLosses: ");
 		s.append(getPlayerExtra(king).getLosses());
 		
-		for (Player p : players){
+		for (Player p : getPlayers()){
 			s.append("<br>\n");
 			s.append("<b>"+p.getName()+"</b>");
 			s.append("<br>\t");
@@ -603,61 +1209,58 @@ public abstract class TournamentLogic extends BaseAdapter {
 
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent){
-		synchronized (playerListLock) {
-			Player player = players.get(position);
+		Player player = (Player)getItem(position);
 
-			View row = convertView;
-			if (row == null) {
-				LayoutInflater vi = (LayoutInflater)this.context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-				row = vi.inflate(R.layout.list_player_item, parent, false);
-			}
+		View row = convertView;
+		if (row == null) {
+			LayoutInflater vi = (LayoutInflater)this.context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+			row = vi.inflate(R.layout.list_player_item, parent, false);
+		}
 
-			//set the player name
-			TextView profileName = (TextView)row.findViewById(R.id.playerName);
-			profileName.setText(player.getName());
-			if (localPlayer != null && localPlayer.equals(player.getUUID())){
-				profileName.setTextColor(Color.CYAN);
-			} else {
-				profileName.setTextColor(Color.WHITE);
-			}
+		//set the player name
+		TextView profileName = (TextView)row.findViewById(R.id.playerName);
+		profileName.setText(player.getName());
+		if (localPlayer != null && localPlayer.equals(player.getUUID())){
+			profileName.setTextColor(Color.CYAN);
+		} else {
+			profileName.setTextColor(Color.WHITE);
+		}
 
-			//set the profile picture
-			ImageView portrait = (ImageView)row.findViewById(R.id.playerPortrait);
-			portrait.setImageBitmap(player.getPortrait());
-
-			//set player wins/losses
-			TextView standings = (TextView)row.findViewById(R.id.playerStanding);
-			KingOfTheHillPlayerExtra extra = getPlayerExtra(player);
-			if (extra.getWins() != -1 && extra.getLosses() != -1){
-				standings.setText(extra.getWins() + "W " + extra.getLosses() + "L");
-			} else {
-				standings.setText("");
-			}
-			
-			//set background if challenger
-			ImageView crown = (ImageView)row.findViewById(R.id.playerKingImage);
-			if (position == 0){
-				row.setBackgroundResource(R.drawable.challengershape);
-				crown.setImageResource(R.drawable.sword);
-			} else {
-				if (defaultRowBackground != null){
-					defaultRowBackground = row.getBackground();
-				}
-				crown.setImageBitmap(Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
-				row.setBackgroundDrawable(defaultRowBackground);
-			}
+		//set the profile picture
+		ImageView portrait = (ImageView)row.findViewById(R.id.playerPortrait);
+		portrait.setImageBitmap(player.getPortrait());
 
-			//set the slide up animation on this row
-			if (scrollState == 0 && useSlideAnimations){
-				Animation animation = AnimationUtils.loadAnimation(context, R.anim.anim_slide_up);
-				row.setAnimation(animation);
-			} else if (!useSlideAnimations){
-				row.clearAnimation();
+		//set player wins/losses
+		TextView standings = (TextView)row.findViewById(R.id.playerStanding);
+		KingOfTheHillPlayerExtra extra = new KingOfTheHillPlayerExtra(shown.getStats(), player.getUUID());
+		if (extra.getWins() != -1 && extra.getLosses() != -1){
+			standings.setText(extra.getWins() + "W " + extra.getLosses() + "L");
+		} else {
+			standings.setText("");
+		}
+		
+		//set background if challenger
+		ImageView crown = (ImageView)row.findViewById(R.id.playerKingImage);
+		if (position == 0){
+			row.setBackgroundResource(R.drawable.challengershape);
+			crown.setImageResource(R.drawable.sword);
+		} else {
+			if (defaultRowBackground != null){
+				defaultRowBackground = row.getBackground();
 			}
-			
-			return row;
+			crown.setImageBitmap(Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+			row.setBackgroundDrawable(defaultRowBackground);
+		}
 
+		//set the slide up animation on this row
+		if (scrollState == 0 && useSlideAnimations){
+			Animation animation = AnimationUtils.loadAnimation(context, R.anim.anim_slide_up);
+			row.setAnimation(animation);
+		} else if (!useSlideAnimations){
+			row.clearAnimation();
 		}
+		
+		return row;
 	}
 	
 	/**
@@ -0,0 +1,195 @@
+package utool.plugin.kingofthehill.benchmark;
+
+import java.lang.reflect.Method;
+
+/**
+ * Small benchmark harness, measuring throughput and allocation per operation.
+ * An operation is run untimed for a warm up period, then timed in batches until the measuring period is over.
+ * Allocation is read from the JVM's per thread counters, summed over all threads so work handed to other threads
+ * is included. It is only available on JVMs with com.sun.management.ThreadMXBean, and is reported as -1 elsewhere.
+ * The periods can be set with the system properties benchmark.warmup and benchmark.millis.
+ * @author Cory
+ *
+ */
+public class Benchmark {
+	/**
+	 * An operation to measure
+	 */
+	public interface Operation {
+		/**
+		 * Run the operation once
+		 * @param iteration Number of times the operation ran before
+		 */
+		void run(int iteration);
+	}
+
+	/**
+	 * Milliseconds of untimed runs before measuring
+	 */
+	private static final long WARMUP_MILLIS = Long.getLong("benchmark.warmup", 100);
+
+	/**
+	 * Milliseconds to measure each operation
+	 */
+	private static final long MEASURE_MILLIS = Long.getLong("benchmark.millis", 200);
+
+	/**
+	 * The JVM's thread bean, or null if allocation can't be measured
+	 */
+	private static final Object threads;
+
+	/**
+	 * ThreadMXBean.getAllThreadIds()
+	 */
+	private static final Method allThreadIds;
+
+	/**
+	 * com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long[])
+	 */
+	private static final Method allocatedBytes;
+
+	static {
+		Object bean = null;
+		Method ids = null;
+		Method bytes = null;
+		try {
+			//through reflection, since com.sun.management only exists on some JVMs
+			bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+			ids = type.getMethod("getAllThreadIds");
+			bytes = type.getMethod("getThreadAllocatedBytes", long[].class);
+			if (!type.isInstance(bean)){
+				bean = null;
+			}
+		} catch (Exception e) {
+			bean = null;
+		}
+		threads = bean;
+		allThreadIds = ids;
+		allocatedBytes = bytes;
+	}
+
+	/**
+	 * Name of the operation
+	 */
+	private final String name;
+
+	/**
+	 * Number of timed runs
+	 */
+	private long operations;
+
+	/**
+	 * Nanoseconds of the timed runs
+	 */
+	private long nanos;
+
+	/**
+	 * Bytes allocated by the timed runs, or -1 if unknown
+	 */
+	private long bytes;
+
+	/**
+	 * Constructor
+	 * @param name Name of the operation
+	 */
+	private Benchmark(String name){
+		this.name = name;
+	}
+
+	/**
+	 * Warm up and measure an operation
+	 * @param name Name of the operation, for the report
+	 * @param operation The operation
+	 * @return The measurement
+	 */
+	public static Benchmark measure(String name, Operation operation){
+		Benchmark result = new Benchmark(name);
+		int iteration = 0;
+		long end = System.nanoTime() + WARMUP_MILLIS * 1000000;
+		while (System.nanoTime() - end < 0){
+			operation.run(iteration++);
+		}
+
+		long startBytes = allocated();
+		long start = System.nanoTime();
+		end = start + MEASURE_MILLIS * 1000000;
+		long now;
+		int batch = 1;
+		do {
+			for (int i = 0; i < batch; i++){
+				operation.run(iteration++);
+			}
+			result.operations += batch;
+			batch = Math.min(batch * 2, 1024);
+			now = System.nanoTime();
+		} while (now - end < 0);
+		result.nanos = now - start;
+		long endBytes = allocated();
+		result.bytes = startBytes < 0 || endBytes < 0 ? -1 : endBytes - startBytes;
+		return result;
+	}
+
+	/**
+	 * Get the bytes allocated so far by all live threads
+	 * @return Bytes, or -1 if unknown
+	 */
+	private static long allocated(){
+		if (threads == null){
+			return -1;
+		}
+		try {
+			long total = 0;
+			for (long b : (long[])allocatedBytes.invoke(threads, allThreadIds.invoke(threads))){
+				if (b > 0){
+					total += b;
+				}
+			}
+			return total;
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the name of the operation
+	 * @return The name
+	 */
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * Get the number of timed runs
+	 * @return Number of runs
+	 */
+	public long getOperations(){
+		return operations;
+	}
+
+	/**
+	 * Get the throughput
+	 * @return Operations per second
+	 */
+	public double getOpsPerSecond(){
+		return operations * 1e9 / nanos;
+	}
+
+	/**
+	 * Get the allocation per operation
+	 * @return Bytes per operation, or -1 if unknown
+	 */
+	public long getBytesPerOp(){
+		return bytes < 0 ? -1 : bytes / operations;
+	}
+
+	/**
+	 * Format the measurement for printing
+	 * @return Name, throughput and allocation
+	 */
+	@Override
+	public String toString(){
+		return name + ": " + Math.round(getOpsPerSecond()) + " ops/s, "
+				+ (bytes < 0 ? "allocation unknown" : getBytesPerOp() + " B/op");
+	}
+}
@@ -0,0 +1,250 @@
+package utool.plugin.kingofthehill.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import utool.plugin.kingofthehill.engine.EventLog;
+import utool.plugin.kingofthehill.engine.KingOfTheHillEngine;
+import utool.plugin.kingofthehill.engine.TournamentStore;
+
+/**
+ * Benchmarks of the engine behind the host's tournament operations, the participant's queue reorder, replaying the
+ * event log and restoring a stored game, from 10 to 10,000 players. Runs on a plain JVM, as a Java application.
+ * Every operation publishes a snapshot afterwards, as the tournament does after each batch.
+ * The throughput and allocation per operation of each measurement are written as CSV to the report file, set with
+ * the system property benchmark.report, benchmark-results.csv by default.
+ * @author Cory
+ *
+ */
+public class EngineBenchmark {
+
+	/**
+	 * Roster sizes to measure
+	 */
+	private static final int[] SIZES = {10, 100, 1000, 10000};
+
+	/**
+	 * Where the results are written
+	 */
+	private final PrintWriter report;
+
+	/**
+	 * Constructor
+	 * @param report Where the results are written
+	 */
+	public EngineBenchmark(PrintWriter report){
+		this.report = report;
+	}
+
+	/**
+	 * Run every benchmark and write the report
+	 * @param args Not used
+	 * @throws IOException If the report or the stored games can't be written
+	 */
+	public static void main(String[] args) throws IOException{
+		PrintWriter report = new PrintWriter(new FileWriter(System.getProperty("benchmark.report", "benchmark-results.csv")));
+		try {
+			EngineBenchmark benchmark = new EngineBenchmark(report);
+			report.println("benchmark,players,operations,ops/s,B/op");
+			benchmark.tournamentOperations();
+			benchmark.reorderQueue();
+			benchmark.eventLogReplay();
+			benchmark.storeRestore();
+		} finally {
+			report.close();
+		}
+	}
+
+	/**
+	 * Write a measurement to the report
+	 * @param players Number of players
+	 * @param result The measurement
+	 */
+	private void record(int players, Benchmark result){
+		report.println(result.getName() + "," + players + "," + result.getOperations() + ","
+				+ Math.round(result.getOpsPerSecond()) + "," + result.getBytesPerOp());
+		report.flush();
+	}
+
+	/**
+	 * Fail the run if a benchmark left the engine in the wrong state
+	 * @param condition The condition that must hold
+	 * @param message What went wrong
+	 */
+	private static void check(boolean condition, String message){
+		if (!condition){
+			throw new IllegalStateException(message);
+		}
+	}
+
+	/**
+	 * Create players with random UUIDs
+	 * @param count Number of players
+	 * @return The players
+	 */
+	private static List<UUID> players(int count){
+		List<UUID> players = new ArrayList<UUID>(count);
+		for (int i = 0; i < count; i++){
+			players.add(UUID.randomUUID());
+		}
+		return players;
+	}
+
+	/**
+	 * Measure rotating the challenger, dethroning the king, moving players and replacing part of the roster
+	 */
+	public void tournamentOperations(){
+		for (int size : SIZES){
+			List<UUID> players = players(size);
+			final KingOfTheHillEngine engine = new KingOfTheHillEngine(players.get(0), players);
+			record(size, Benchmark.measure("rotate challenger", new Benchmark.Operation(){
+				@Override
+				public void run(int iteration){
+					engine.moveChallengerToEnd();
+					engine.snapshot();
+				}
+			}));
+			record(size, Benchmark.measure("dethrone king", new Benchmark.Operation(){
+				@Override
+				public void run(int iteration){
+					engine.moveKingToEnd();
+					engine.snapshot();
+				}
+			}));
+
+			final Random random = new Random(size);
+			final int queue = size - 1;
+			record(size, Benchmark.measure("movePlayer", new Benchmark.Operation(){
+				@Override
+				public void run(int iteration){
+					engine.movePlayer(random.nextInt(queue), random.nextInt(queue));
+					engine.snapshot();
+				}
+			}));
+
+			//each update drops the 1% of players after the king and adds as many others at the end
+			final List<UUID> roster = new ArrayList<UUID>(engine.getQueue());
+			roster.add(0, engine.getKing());
+			final LinkedList<UUID> bench = new LinkedList<UUID>(players(Math.max(1, size / 100)));
+			record(size, Benchmark.measure("updatePlayerList with churn", new Benchmark.Operation(){
+				@Override
+				public void run(int iteration){
+					int churn = bench.size();
+					for (int i = 0; i < churn; i++){
+						bench.addLast(roster.remove(1));
+					}
+					for (int i = 0; i < churn; i++){
+						roster.add(bench.removeFirst());
+					}
+					engine.updatePlayerList(roster);
+					engine.snapshot();
+				}
+			}));
+
+			check(engine.getQueueSize() == size - 1, "Queue has " + engine.getQueueSize() + " players, not " + (size - 1));
+		}
+	}
+
+	/**
+	 * Measure reordering the queue from an incoming game state, as a participant does
+	 */
+	public void reorderQueue(){
+		for (int size : SIZES){
+			List<UUID> players = players(size);
+			final KingOfTheHillEngine engine = new KingOfTheHillEngine(null, players);
+			//a few shuffled orders, so the measurement isn't of shuffling
+			final List<List<UUID>> orders = new ArrayList<List<UUID>>();
+			Random random = new Random(size);
+			for (int i = 0; i < 8; i++){
+				List<UUID> order = new ArrayList<UUID>(players);
+				Collections.shuffle(order, random);
+				orders.add(order);
+			}
+			record(size, Benchmark.measure("reorderQueue", new Benchmark.Operation(){
+				@Override
+				public void run(int iteration){
+					engine.reorderQueue(orders.get(iteration % orders.size()));
+					engine.snapshot();
+				}
+			}));
+			check(engine.getQueueSize() == size, "Queue has " + engine.getQueueSize() + " players, not " + size);
+		}
+	}
+
+	/**
+	 * Measure replaying a 100,000 match session from the event log into a new engine
+	 */
+	public void eventLogReplay(){
+		for (int size : SIZES){
+			List<UUID> players = players(size);
+			KingOfTheHillEngine engine = new KingOfTheHillEngine();
+			final EventLog log = new EventLog();
+			engine.setLog(log);
+			engine.restart(players.get(0), players);
+			for (int i = 0; i < 100000; i++){
+				if (i % 3 == 0){
+					engine.moveKingToEnd();
+				} else {
+					engine.moveChallengerToEnd();
+				}
+			}
+			final KingOfTheHillEngine[] rebuilt = new KingOfTheHillEngine[1];
+			record(size, Benchmark.measure("replay " + log.size() + " events", new Benchmark.Operation(){
+				@Override
+				public void run(int iteration){
+					rebuilt[0] = new KingOfTheHillEngine();
+					log.replay(rebuilt[0]);
+				}
+			}));
+			check(engine.getQueue().equals(rebuilt[0].getQueue()), "Replayed queue differs");
+		}
+	}
+
+	/**
+	 * Measure restoring a stored game from its checkpoint and a 5,000 change journal
+	 * @throws IOException If the game can't be stored
+	 */
+	public void storeRestore() throws IOException{
+		for (int size : SIZES){
+			List<UUID> players = players(size);
+			KingOfTheHillEngine engine = new KingOfTheHillEngine();
+			engine.setLog(new EventLog());
+			engine.restart(players.get(0), players);
+			for (int i = 0; i < 50000; i++){
+				engine.moveKingToEnd();
+			}
+			final File directory = new File(System.getProperty("java.io.tmpdir"), "koth-benchmark-" + UUID.randomUUID());
+			TournamentStore store = new TournamentStore(directory);
+			try {
+				store.attach(engine);
+				for (int i = 0; i < 5000; i++){
+					engine.moveChallengerToEnd();
+				}
+				store.sync();
+
+				final KingOfTheHillEngine[] restored = new KingOfTheHillEngine[1];
+				record(size, Benchmark.measure("restore", new Benchmark.Operation(){
+					@Override
+					public void run(int iteration){
+						try {
+							restored[0] = new TournamentStore(directory).restore();
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}));
+				check(engine.getQueue().equals(restored[0].getQueue()), "Restored queue differs");
+			} finally {
+				store.delete();
+			}
+		}
+	}
+}
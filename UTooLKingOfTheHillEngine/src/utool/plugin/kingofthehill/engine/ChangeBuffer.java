@@ -0,0 +1,141 @@
+package utool.plugin.kingofthehill.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded ring buffer of the most recent game changes, by version.
+ * Lets the host answer "give me the changes since version N" without sending the whole game.
+ * This class is not thread safe.
+ * @author Cory
+ *
+ */
+public class ChangeBuffer {
+	/**
+	 * Default number of versions kept
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * Version each entry applies to
+	 */
+	private final long[] baseVersions;
+
+	/**
+	 * Version each entry produces
+	 */
+	private final long[] versions;
+
+	/**
+	 * Changes of each entry
+	 */
+	private final List<List<GameChange>> changes;
+
+	/**
+	 * Index of the oldest entry
+	 */
+	private int start = 0;
+
+	/**
+	 * Number of entries
+	 */
+	private int size = 0;
+
+	/**
+	 * Constructor with the default capacity
+	 */
+	public ChangeBuffer(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor
+	 * @param capacity Number of versions kept
+	 */
+	public ChangeBuffer(int capacity){
+		baseVersions = new long[capacity];
+		versions = new long[capacity];
+		changes = new ArrayList<List<GameChange>>(capacity);
+		for (int i = 0; i < capacity; i++){
+			changes.add(null);
+		}
+	}
+
+	/**
+	 * Add the changes that turned one version into the next. The oldest entry is dropped when the buffer is full.
+	 * @param baseVersion The version before the changes
+	 * @param version The version after the changes
+	 * @param changes The changes, or null if they can't be sent as changes. Older entries are then dropped,
+	 * since the versions before can only be caught up by sending the whole game.
+	 */
+	public void add(long baseVersion, long version, List<GameChange> changes){
+		if (changes == null || (size > 0 && baseVersion != versions[index(size - 1)])){
+			clear();
+			if (changes == null){
+				return;
+			}
+		}
+		if (baseVersion == version){
+			return;
+		}
+		if (size == versions.length){
+			this.changes.set(start, null);
+			start = (start + 1) % versions.length;
+			size--;
+		}
+		int i = index(size);
+		baseVersions[i] = baseVersion;
+		versions[i] = version;
+		this.changes.set(i, changes);
+		size++;
+	}
+
+	/**
+	 * Get all changes made since a version
+	 * @param version The version
+	 * @return The changes in order, empty if the version is the latest, or null if the version isn't in the buffer
+	 */
+	public List<GameChange> since(long version){
+		List<GameChange> result = new ArrayList<GameChange>();
+		if (size > 0 && versions[index(size - 1)] == version){
+			return result;
+		}
+		for (int n = 0; n < size; n++){
+			if (baseVersions[index(n)] == version){
+				for (int m = n; m < size; m++){
+					result.addAll(changes.get(index(m)));
+				}
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the latest version in the buffer
+	 * @return The version, or -1 if the buffer is empty
+	 */
+	public long getLatestVersion(){
+		return size == 0 ? -1 : versions[index(size - 1)];
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	public void clear(){
+		for (int n = 0; n < size; n++){
+			changes.set(index(n), null);
+		}
+		start = 0;
+		size = 0;
+	}
+
+	/**
+	 * Get the array index of an entry
+	 * @param n Entry number, 0 for the oldest
+	 * @return Array index
+	 */
+	private int index(int n){
+		return (start + n) % versions.length;
+	}
+}
@@ -0,0 +1,36 @@
+package utool.plugin.kingofthehill.engine;
+
+/**
+ * Source of time for the timers. Every timer reads this instead of the system, so a VirtualClock can run them
+ * in simulated time.
+ * @author Cory
+ *
+ */
+public interface Clock {
+	/**
+	 * The system clock
+	 */
+	Clock SYSTEM = new Clock() {
+		@Override
+		public long nanoTime(){
+			return System.nanoTime();
+		}
+
+		@Override
+		public long currentTimeMillis(){
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * Get the monotonic time, like System.nanoTime()
+	 * @return Nanoseconds with an arbitrary origin
+	 */
+	long nanoTime();
+
+	/**
+	 * Get the wall clock time, like System.currentTimeMillis()
+	 * @return Milliseconds since the epoch
+	 */
+	long currentTimeMillis();
+}
@@ -0,0 +1,126 @@
+package utool.plugin.kingofthehill.engine;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Single writer command loop. Commands are applied one at a time, in submission order, on one dedicated thread.
+ * State that is only changed by commands needs no locking, other threads read the snapshots the commands publish.
+ * Commands submitted from the loop thread itself are run immediately, so commands can call each other.
+ * @author Cory
+ *
+ */
+public class CommandLoop {
+	/**
+	 * The executor owning the loop thread and the command mailbox
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The loop thread
+	 */
+	private volatile Thread loopThread;
+
+	/**
+	 * Constructor. Starts the loop thread.
+	 * @param name Name of the loop thread
+	 */
+	public CommandLoop(final String name){
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				loopThread = thread;
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Check if the current thread is the loop thread
+	 * @return True if called from a command
+	 */
+	public boolean isLoopThread(){
+		return Thread.currentThread() == loopThread;
+	}
+
+	/**
+	 * Queue a command without waiting for it.
+	 * A command that throws is reported and the loop continues with the next command.
+	 * Commands posted after shutdown are dropped, like a click landing after the tournament was closed.
+	 * @param command The command
+	 */
+	public void post(final Runnable command){
+		if (isLoopThread()){
+			command.run();
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						command.run();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			//shut down
+		}
+	}
+
+	/**
+	 * Run a command and wait for it to finish
+	 * @param command The command
+	 */
+	public void execute(Runnable command){
+		call(Executors.callable(command));
+	}
+
+	/**
+	 * Run a command and wait for its result
+	 * @param command The command
+	 * @return The command's result
+	 * @throws RuntimeException If the command threw
+	 */
+	public <T> T call(Callable<T> command){
+		try {
+			if (isLoopThread()){
+				return command.call();
+			}
+			Future<T> result = executor.submit(command);
+			return result.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException){
+				throw (RuntimeException)cause;
+			}
+			if (cause instanceof Error){
+				throw (Error)cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Stop the loop after the commands already submitted
+	 */
+	public void shutdown(){
+		executor.shutdown();
+	}
+}
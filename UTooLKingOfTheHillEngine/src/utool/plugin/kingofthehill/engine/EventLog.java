@@ -0,0 +1,721 @@
+package utool.plugin.kingofthehill.engine;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Append-only log of every change made to a KingOfTheHillEngine.
+ * Replaying the log into an empty engine rebuilds the game: the king, the queue, the streak and every win and loss.
+ *
+ * Events are kept in a single int array as a type followed by the event's arguments. Players are stored as ids into
+ * a player table, so an ordinary match result takes one int. The log can also be streamed to an append-only file,
+ * using the same layout with variable length integers, and read back with read().
+ * This class is not thread safe, it is written by the engine that owns it.
+ * @author Cory
+ *
+ */
+public class EventLog {
+	/**
+	 * Restart: king, queue list
+	 */
+	public static final int RESTART = 1;
+	/**
+	 * Remove the challenger from the queue: no arguments
+	 */
+	public static final int POLL_CHALLENGER = 2;
+	/**
+	 * Add a player to the bottom of the queue: player
+	 */
+	public static final int ADD_TO_BOTTOM = 3;
+	/**
+	 * Move a player: player, destination position
+	 */
+	public static final int MOVE_PLAYER = 4;
+	/**
+	 * Challenger beat the king: no arguments
+	 */
+	public static final int KING_TO_END = 5;
+	/**
+	 * King beat the challenger: no arguments
+	 */
+	public static final int CHALLENGER_TO_END = 6;
+	/**
+	 * Add players to the bottom of the queue: player list
+	 */
+	public static final int ADD_PLAYERS = 7;
+	/**
+	 * Replace the player list: player list
+	 */
+	public static final int UPDATE_PLAYERS = 8;
+	/**
+	 * Replace the queue: player list
+	 */
+	public static final int REPLACE_QUEUE = 9;
+	/**
+	 * Reorder the queue: player list
+	 */
+	public static final int REORDER_QUEUE = 10;
+	/**
+	 * Set the king: player
+	 */
+	public static final int SET_KING = 11;
+	/**
+	 * Set the king's streak: count
+	 */
+	public static final int SET_STREAK = 12;
+	/**
+	 * Override a player's score: player, wins, losses
+	 */
+	public static final int SET_STATS = 13;
+	/**
+	 * Clear all scores: no arguments
+	 */
+	public static final int CLEAR_STATS = 14;
+	/**
+	 * Undo the last change: no arguments
+	 */
+	public static final int UNDO = 15;
+	/**
+	 * Redo the last undone change: no arguments
+	 */
+	public static final int REDO = 16;
+	/**
+	 * Remove players from the game: player list
+	 */
+	public static final int REMOVE_PLAYERS = 17;
+
+	/**
+	 * File record that adds a player to the player table: most and least significant UUID bits
+	 */
+	private static final int DEFINE_PLAYER = 0;
+
+	/**
+	 * Player id used for a null player
+	 */
+	private static final int NO_PLAYER = -1;
+
+	/**
+	 * The log, as event types each followed by their arguments
+	 */
+	private int[] data = new int[256];
+
+	/**
+	 * Number of ints used in data
+	 */
+	private int length = 0;
+
+	/**
+	 * Number of events in the log
+	 */
+	private int count = 0;
+
+	/**
+	 * Player table, indexed by player id
+	 */
+	private List<UUID> players = new ArrayList<UUID>();
+
+	/**
+	 * Player ids
+	 */
+	private HashMap<UUID, Integer> playerIds = new HashMap<UUID, Integer>();
+
+	/**
+	 * Changes another copy of the game applies for each undo, redo and player list update event, by position in the log.
+	 * They aren't written to streams, since replaying those events only needs the game they're applied to.
+	 */
+	private HashMap<Integer, List<GameChange>> effects = new HashMap<Integer, List<GameChange>>();
+
+	/**
+	 * Stream new events are also written to, or null
+	 */
+	private OutputStream out;
+
+	/**
+	 * Number of players already written to out
+	 */
+	private int playersWritten = 0;
+
+	/**
+	 * Event position already written to out
+	 */
+	private int written = 0;
+
+	/**
+	 * Get the number of events in the log
+	 * @return Event count
+	 */
+	public int size(){
+		return count;
+	}
+
+	/**
+	 * Remove all events and players from the log. An attached stream is not truncated.
+	 */
+	public void clear(){
+		length = 0;
+		count = 0;
+		written = 0;
+		playersWritten = 0;
+		players.clear();
+		playerIds.clear();
+		effects.clear();
+	}
+
+	/**
+	 * Stream the log to an append-only output, such as a file. Events already in the log are written first.
+	 * Writes are buffered by the caller's stream; call flush() to push them out.
+	 * @param out The stream, or null to stop streaming
+	 * @throws IOException If writing fails
+	 */
+	public void attach(OutputStream out) throws IOException {
+		this.out = out;
+		written = 0;
+		playersWritten = 0;
+		flush();
+	}
+
+	/**
+	 * Write events that haven't been written to the attached stream yet, and flush it
+	 * @throws IOException If writing fails
+	 */
+	public void flush() throws IOException {
+		if (out == null){
+			return;
+		}
+		while (written < length){
+			int type = data[written];
+			int end = written + 1 + arity(type, written);
+			for (int i = written + 1; i < end; i++){
+				if (isPlayerArgument(type, written, i)){
+					writePlayer(data[i]);
+				}
+			}
+			for (int i = written; i < end; i++){
+				writeVarint(out, data[i]);
+			}
+			written = end;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Get a mark of the end of the log, for changesSince
+	 * @return The mark
+	 */
+	public int mark(){
+		return length;
+	}
+
+	/**
+	 * Get the events recorded after a mark as changes that can be sent to other devices
+	 * @param mark A mark returned by mark(), since the log was last cleared
+	 * @return The changes in order, or null if an event has no matching change and the whole game has to be sent instead.
+	 * Undo, redo and player list update events only have matching changes in the log that recorded them, not in a log
+	 * read from a stream.
+	 */
+	public List<GameChange> changesSince(int mark){
+		List<GameChange> changes = new ArrayList<GameChange>();
+		int i = mark;
+		while (i < length){
+			int type = data[i];
+			switch (type){
+				case CHALLENGER_TO_END:
+					changes.add(GameChange.rotate());
+					break;
+				case KING_TO_END:
+					changes.add(GameChange.dethrone());
+					break;
+				case MOVE_PLAYER:
+					changes.add(GameChange.move(player(data[i + 1]), data[i + 2]));
+					break;
+				case SET_STATS:
+					changes.add(GameChange.stats(player(data[i + 1]), data[i + 2], data[i + 3]));
+					break;
+				case ADD_PLAYERS:
+					changes.add(GameChange.join(players(i + 2, data[i + 1])));
+					break;
+				case REMOVE_PLAYERS:
+					changes.add(GameChange.leave(players(i + 2, data[i + 1])));
+					break;
+				case SET_KING:
+					changes.add(GameChange.king(player(data[i + 1])));
+					break;
+				case SET_STREAK:
+					changes.add(GameChange.streak(data[i + 1]));
+					break;
+				case UNDO:
+				case REDO:
+				case UPDATE_PLAYERS:
+					List<GameChange> effect = effects.get(i);
+					if (effect == null){
+						return null;
+					}
+					changes.addAll(effect);
+					break;
+				default:
+					return null;
+			}
+			i += 1 + arity(type, i);
+		}
+		return changes;
+	}
+
+	/**
+	 * Replay every event into an engine. The events are not recorded again.
+	 * @param engine The engine to apply the events to, normally a new one
+	 */
+	public void replay(KingOfTheHillEngine engine){
+		EventLog target = engine.getLog();
+		engine.setLog(null);
+		try {
+			int i = 0;
+			while (i < length){
+				i = apply(engine, i);
+			}
+		} finally {
+			engine.setLog(target);
+		}
+	}
+
+	/**
+	 * Read a log written to a stream by attach()
+	 * A partly written last event, as left by a crash, is ignored. Other damage, such as an unknown event type,
+	 * a negative list length or an undefined player, is reported as an IOException. Lists are read as their players
+	 * arrive, so a damaged length can't allocate more than the stream holds.
+	 * @param in The stream
+	 * @return The log
+	 * @throws IOException If reading fails or the data is invalid
+	 */
+	public static EventLog read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		EventLog log = new EventLog();
+		int[] event = new int[16];
+		while (true){
+			int type;
+			try {
+				type = readVarint(data);
+			} catch (EOFException e) {
+				break;
+			}
+			try {
+				if (type == DEFINE_PLAYER){
+					UUID player = new UUID(data.readLong(), data.readLong());
+					log.playerId(player);
+					continue;
+				}
+				if (!isEventType(type)){
+					throw new IOException("Unknown event type " + type);
+				}
+				event[0] = type;
+				int n;
+				if (isListEvent(type)){
+					event[1] = readVarint(data);
+					if (event[1] < (type == RESTART ? 1 : 0) || event[1] > Integer.MAX_VALUE - 2){
+						throw new IOException("Invalid list length " + event[1]);
+					}
+					n = 2 + event[1];
+					for (int i = 2; i < n; i++){
+						if (i == event.length){
+							int[] grown = new int[Math.min(n, i * 2)];
+							System.arraycopy(event, 0, grown, 0, i);
+							event = grown;
+						}
+						event[i] = readVarint(data);
+					}
+				} else {
+					n = 1 + fixedArity(type);
+					for (int i = 1; i < n; i++){
+						event[i] = readVarint(data);
+					}
+				}
+				for (int i = 1; i < n; i++){
+					if (isPlayerArgument(type, 0, i) && (event[i] < NO_PLAYER || event[i] >= log.players.size())){
+						throw new IOException("Undefined player " + event[i]);
+					}
+				}
+				log.append(event, n);
+			} catch (EOFException e) {
+				break;
+			}
+		}
+		log.written = log.length;
+		log.playersWritten = log.players.size();
+		return log;
+	}
+
+	/**
+	 * Record an event without a player
+	 * @param type Event type
+	 */
+	void record(int type){
+		ensure(1);
+		data[length++] = type;
+		count++;
+	}
+
+	/**
+	 * Record an undo or redo event
+	 * @param type UNDO or REDO
+	 * @param effect The changes another copy of the game applies for it
+	 */
+	void record(int type, List<GameChange> effect){
+		effects.put(length, effect);
+		record(type);
+	}
+
+	/**
+	 * Record an event with a player list whose changes depend on the game, such as UPDATE_PLAYERS
+	 * @param type Event type
+	 * @param list The players
+	 * @param effect The changes another copy of the game applies for it
+	 */
+	void record(int type, List<UUID> list, List<GameChange> effect){
+		effects.put(length, effect);
+		record(type, null, list);
+	}
+
+	/**
+	 * Record an event with a player
+	 * @param type Event type
+	 * @param player The player
+	 */
+	void record(int type, UUID player){
+		int id = playerId(player);
+		ensure(2);
+		data[length++] = type;
+		data[length++] = id;
+		count++;
+	}
+
+	/**
+	 * Record an event with a player and two values
+	 * @param type Event type
+	 * @param player The player
+	 * @param a First value
+	 * @param b Second value, ignored by events with only one value
+	 */
+	void record(int type, UUID player, int a, int b){
+		int id = playerId(player);
+		ensure(4);
+		data[length++] = type;
+		data[length++] = id;
+		data[length++] = a;
+		if (type == SET_STATS){
+			data[length++] = b;
+		}
+		count++;
+	}
+
+	/**
+	 * Record an event with a value
+	 * @param type Event type
+	 * @param value The value
+	 */
+	void record(int type, int value){
+		ensure(2);
+		data[length++] = type;
+		data[length++] = value;
+		count++;
+	}
+
+	/**
+	 * Record an event with a player list, and for RESTART a king
+	 * @param type Event type
+	 * @param king The king for RESTART, ignored otherwise
+	 * @param list The players
+	 */
+	void record(int type, UUID king, List<UUID> list){
+		int kingId = type == RESTART ? playerId(king) : NO_PLAYER;
+		ensure(list.size() + 3);
+		int start = length;
+		data[length++] = type;
+		length++;
+		if (type == RESTART){
+			data[length++] = kingId;
+		}
+		for (UUID p : list){
+			//the engine ignores null players
+			if (p != null){
+				int id = playerId(p);
+				data[length++] = id;
+			}
+		}
+		data[start + 1] = length - start - 2;
+		count++;
+	}
+
+	/**
+	 * Apply the event at a position
+	 * @param engine The engine
+	 * @param i Position of the event's type
+	 * @return Position of the next event
+	 */
+	private int apply(KingOfTheHillEngine engine, int i){
+		int type = data[i];
+		switch (type){
+			case RESTART:
+				engine.restart(player(data[i + 2]), players(i + 3, data[i + 1] - 1));
+				break;
+			case POLL_CHALLENGER:
+				engine.pollChallenger();
+				break;
+			case ADD_TO_BOTTOM:
+				engine.addToBottom(player(data[i + 1]));
+				break;
+			case MOVE_PLAYER:
+				engine.movePlayer(player(data[i + 1]), data[i + 2]);
+				break;
+			case KING_TO_END:
+				engine.moveKingToEnd();
+				break;
+			case CHALLENGER_TO_END:
+				engine.moveChallengerToEnd();
+				break;
+			case ADD_PLAYERS:
+				engine.addNewPlayersToBottom(players(i + 2, data[i + 1]));
+				break;
+			case UPDATE_PLAYERS:
+				engine.updatePlayerList(players(i + 2, data[i + 1]));
+				break;
+			case REPLACE_QUEUE:
+				engine.replaceQueue(players(i + 2, data[i + 1]));
+				break;
+			case REORDER_QUEUE:
+				engine.reorderQueue(players(i + 2, data[i + 1]));
+				break;
+			case SET_KING:
+				engine.setKing(player(data[i + 1]));
+				break;
+			case SET_STREAK:
+				engine.setKingWinsStreakCount(data[i + 1]);
+				break;
+			case SET_STATS:
+				engine.setStats(player(data[i + 1]), data[i + 2], data[i + 3]);
+				break;
+			case CLEAR_STATS:
+				engine.clearStats();
+				break;
+			case UNDO:
+				engine.undo();
+				break;
+			case REDO:
+				engine.redo();
+				break;
+			case REMOVE_PLAYERS:
+				engine.removePlayers(players(i + 2, data[i + 1]));
+				break;
+			default:
+				throw new IllegalStateException("Unknown event type " + type);
+		}
+		return i + 1 + arity(type, i);
+	}
+
+	/**
+	 * Get the players of a list event
+	 * @param start Position of the first player id
+	 * @param n Number of players
+	 * @return The players
+	 */
+	private List<UUID> players(int start, int n){
+		List<UUID> list = new ArrayList<UUID>(n);
+		for (int i = start; i < start + n; i++){
+			list.add(players.get(data[i]));
+		}
+		return list;
+	}
+
+	/**
+	 * Get a player by id
+	 * @param id Player id
+	 * @return The player, or null for NO_PLAYER
+	 */
+	private UUID player(int id){
+		return id == NO_PLAYER ? null : players.get(id);
+	}
+
+	/**
+	 * Get the id of a player, adding it to the player table if needed
+	 * @param player The player, may be null
+	 * @return Player id
+	 */
+	private int playerId(UUID player){
+		if (player == null){
+			return NO_PLAYER;
+		}
+		Integer id = playerIds.get(player);
+		if (id == null){
+			id = players.size();
+			players.add(player);
+			playerIds.put(player, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Append a complete event
+	 * @param event The event's ints
+	 * @param n Number of ints
+	 */
+	private void append(int[] event, int n){
+		ensure(n);
+		System.arraycopy(event, 0, data, length, n);
+		length += n;
+		count++;
+	}
+
+	/**
+	 * Make room for more ints
+	 * @param n Number of ints needed
+	 */
+	private void ensure(int n){
+		if (length + n > data.length){
+			int[] grown = new int[Math.max(data.length * 2, length + n)];
+			System.arraycopy(data, 0, grown, 0, length);
+			data = grown;
+		}
+	}
+
+	/**
+	 * Get the number of arguments of the event at a position
+	 * @param type Event type
+	 * @param i Position of the event's type
+	 * @return Number of ints following the type
+	 */
+	private int arity(int type, int i){
+		if (isListEvent(type)){
+			return 1 + data[i + 1];
+		}
+		return fixedArity(type);
+	}
+
+	/**
+	 * Check if a value is a known event type
+	 * @param type The value
+	 * @return True for event types
+	 */
+	private static boolean isEventType(int type){
+		return type >= RESTART && type <= REMOVE_PLAYERS;
+	}
+
+	/**
+	 * Check if an event type carries a player list
+	 * @param type Event type
+	 * @return True for list events
+	 */
+	private static boolean isListEvent(int type){
+		return type == RESTART || type == ADD_PLAYERS || type == UPDATE_PLAYERS || type == REPLACE_QUEUE || type == REORDER_QUEUE
+				|| type == REMOVE_PLAYERS;
+	}
+
+	/**
+	 * Get the number of arguments of an event type without a player list
+	 * @param type Event type
+	 * @return Number of ints following the type
+	 */
+	private static int fixedArity(int type){
+		switch (type){
+			case ADD_TO_BOTTOM:
+			case SET_KING:
+			case SET_STREAK:
+				return 1;
+			case MOVE_PLAYER:
+				return 2;
+			case SET_STATS:
+				return 3;
+			case POLL_CHALLENGER:
+			case KING_TO_END:
+			case CHALLENGER_TO_END:
+			case CLEAR_STATS:
+			case UNDO:
+			case REDO:
+				return 0;
+			default:
+				throw new IllegalStateException("Unknown event type " + type);
+		}
+	}
+
+	/**
+	 * Check if an argument of an event is a player id
+	 * @param type Event type
+	 * @param start Position of the event's type
+	 * @param i Position of the argument
+	 * @return True if the argument is a player id
+	 */
+	private static boolean isPlayerArgument(int type, int start, int i){
+		if (isListEvent(type)){
+			return i > start + 1;
+		}
+		return i == start + 1 && type != SET_STREAK;
+	}
+
+	/**
+	 * Write the player table entries up to a player id, if they haven't been written yet
+	 * @param id Player id
+	 * @throws IOException If writing fails
+	 */
+	private void writePlayer(int id) throws IOException {
+		while (playersWritten <= id){
+			UUID player = players.get(playersWritten++);
+			writeVarint(out, DEFINE_PLAYER);
+			writeLong(out, player.getMostSignificantBits());
+			writeLong(out, player.getLeastSignificantBits());
+		}
+	}
+
+	/**
+	 * Write a zigzag encoded variable length integer
+	 * @param out The stream
+	 * @param value The value
+	 * @throws IOException If writing fails
+	 */
+	static void writeVarint(OutputStream out, int value) throws IOException {
+		int v = (value << 1) ^ (value >> 31);
+		while ((v & ~0x7F) != 0){
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	/**
+	 * Read a zigzag encoded variable length integer
+	 * @param in The stream
+	 * @return The value
+	 * @throws IOException If reading fails, EOFException at the end of the stream
+	 */
+	static int readVarint(DataInputStream in) throws IOException {
+		int v = 0;
+		int shift = 0;
+		while (true){
+			int b = in.readUnsignedByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0){
+				break;
+			}
+			shift += 7;
+			if (shift > 28){
+				throw new IOException("Invalid varint");
+			}
+		}
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Write a long in big endian order
+	 * @param out The stream
+	 * @param value The value
+	 * @throws IOException If writing fails
+	 */
+	private static void writeLong(OutputStream out, long value) throws IOException {
+		for (int shift = 56; shift >= 0; shift -= 8){
+			out.write((int)(value >>> shift));
+		}
+	}
+}
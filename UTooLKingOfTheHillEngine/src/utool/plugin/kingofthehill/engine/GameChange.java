@@ -0,0 +1,261 @@
+package utool.plugin.kingofthehill.engine;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A single change to a game that can be sent to another device and applied to its copy of the game.
+ * Applying the same changes in the same order to the same game always gives the same result.
+ * Use EventLog.changesSince to get the changes made to an engine.
+ * @author Cory
+ *
+ */
+public final class GameChange {
+	/**
+	 * The king beat the challenger, who goes to the end of the queue
+	 */
+	public static final int ROTATE = 1;
+
+	/**
+	 * The challenger beat the king, who goes to the end of the queue
+	 */
+	public static final int DETHRONE = 2;
+
+	/**
+	 * A player was moved: player, position
+	 */
+	public static final int MOVE = 3;
+
+	/**
+	 * A player's score was set: player, wins, losses
+	 */
+	public static final int STATS = 4;
+
+	/**
+	 * Players were added to the bottom of the queue: players
+	 */
+	public static final int JOIN = 5;
+
+	/**
+	 * Players were removed from the game: players
+	 */
+	public static final int LEAVE = 6;
+
+	/**
+	 * A player was made king: player
+	 */
+	public static final int KING = 7;
+
+	/**
+	 * The king's streak was set: count
+	 */
+	public static final int STREAK = 8;
+
+	/**
+	 * Type of the change
+	 */
+	private final int type;
+
+	/**
+	 * The player changed, or null
+	 */
+	private final UUID player;
+
+	/**
+	 * The players changed, empty if the change isn't for a list of players
+	 */
+	private final List<UUID> players;
+
+	/**
+	 * Position, wins or streak, depending on the type
+	 */
+	private final int a;
+
+	/**
+	 * Losses for STATS changes
+	 */
+	private final int b;
+
+	/**
+	 * Constructor
+	 * @param type Type of the change
+	 * @param player The player changed, or null
+	 * @param players The players changed
+	 * @param a Position, wins or streak
+	 * @param b Losses
+	 */
+	private GameChange(int type, UUID player, List<UUID> players, int a, int b){
+		this.type = type;
+		this.player = player;
+		this.players = players;
+		this.a = a;
+		this.b = b;
+	}
+
+	/**
+	 * The king beat the challenger
+	 * @return The change
+	 */
+	public static GameChange rotate(){
+		return new GameChange(ROTATE, null, Collections.<UUID>emptyList(), 0, 0);
+	}
+
+	/**
+	 * The challenger beat the king
+	 * @return The change
+	 */
+	public static GameChange dethrone(){
+		return new GameChange(DETHRONE, null, Collections.<UUID>emptyList(), 0, 0);
+	}
+
+	/**
+	 * A player was moved
+	 * @param player The player
+	 * @param position The position moved to, KING_POSITION for the king
+	 * @return The change
+	 */
+	public static GameChange move(UUID player, int position){
+		return new GameChange(MOVE, player, Collections.<UUID>emptyList(), position, 0);
+	}
+
+	/**
+	 * A player's score was set
+	 * @param player The player
+	 * @param wins Number of wins
+	 * @param losses Number of losses
+	 * @return The change
+	 */
+	public static GameChange stats(UUID player, int wins, int losses){
+		return new GameChange(STATS, player, Collections.<UUID>emptyList(), wins, losses);
+	}
+
+	/**
+	 * Players were added to the bottom of the queue
+	 * @param players The players, in order
+	 * @return The change
+	 */
+	public static GameChange join(List<UUID> players){
+		return new GameChange(JOIN, null, Collections.unmodifiableList(players), 0, 0);
+	}
+
+	/**
+	 * Players were removed from the game
+	 * @param players The players
+	 * @return The change
+	 */
+	public static GameChange leave(List<UUID> players){
+		return new GameChange(LEAVE, null, Collections.unmodifiableList(players), 0, 0);
+	}
+
+	/**
+	 * A player was made king
+	 * @param player The new king
+	 * @return The change
+	 */
+	public static GameChange king(UUID player){
+		return new GameChange(KING, player, Collections.<UUID>emptyList(), 0, 0);
+	}
+
+	/**
+	 * The king's streak was set
+	 * @param count Number of wins
+	 * @return The change
+	 */
+	public static GameChange streak(int count){
+		return new GameChange(STREAK, null, Collections.<UUID>emptyList(), count, 0);
+	}
+
+	/**
+	 * Get the type of the change
+	 * @return One of the change type constants
+	 */
+	public int getType(){
+		return type;
+	}
+
+	/**
+	 * Get the player changed by a MOVE, STATS or KING change
+	 * @return The player's UUID, or null
+	 */
+	public UUID getPlayer(){
+		return player;
+	}
+
+	/**
+	 * Get the players changed by a JOIN or LEAVE change
+	 * @return Immutable list of players
+	 */
+	public List<UUID> getPlayers(){
+		return players;
+	}
+
+	/**
+	 * Get the position of a MOVE change
+	 * @return The position moved to
+	 */
+	public int getPosition(){
+		return a;
+	}
+
+	/**
+	 * Get the wins of a STATS change
+	 * @return Number of wins
+	 */
+	public int getWins(){
+		return a;
+	}
+
+	/**
+	 * Get the losses of a STATS change
+	 * @return Number of losses
+	 */
+	public int getLosses(){
+		return b;
+	}
+
+	/**
+	 * Get the streak of a STREAK change
+	 * @return Number of wins
+	 */
+	public int getStreak(){
+		return a;
+	}
+
+	/**
+	 * Apply the change to a game
+	 * @param engine The game
+	 */
+	public void applyTo(KingOfTheHillEngine engine){
+		switch (type){
+			case ROTATE:
+				engine.moveChallengerToEnd();
+				break;
+			case DETHRONE:
+				engine.moveKingToEnd();
+				break;
+			case MOVE:
+				if (engine.contains(player)){
+					engine.movePlayer(player, a);
+				}
+				break;
+			case STATS:
+				engine.setStats(player, a, b);
+				break;
+			case JOIN:
+				engine.addNewPlayersToBottom(players);
+				break;
+			case LEAVE:
+				engine.removePlayers(players);
+				break;
+			case KING:
+				engine.setKing(player);
+				break;
+			case STREAK:
+				engine.setKingWinsStreakCount(a);
+				break;
+			default:
+				throw new IllegalStateException("Unknown change type " + type);
+		}
+	}
+}
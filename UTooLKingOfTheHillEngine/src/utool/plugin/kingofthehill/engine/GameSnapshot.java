@@ -0,0 +1,116 @@
+package utool.plugin.kingofthehill.engine;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Immutable, versioned state of a King of the Hill game: the king, the game queue, the king's winning streak
+ * and every player's wins and losses.
+ * Snapshots share structure with the engine's queue and statistics, so taking one is O(1), and they can be read
+ * from any thread.
+ * @author Cory
+ *
+ */
+public final class GameSnapshot {
+	/**
+	 * The version of the game state. Increases every time a changed state is published.
+	 */
+	private final long version;
+
+	/**
+	 * The king, may be null
+	 */
+	private final UUID king;
+
+	/**
+	 * The game queue, excluding the king
+	 */
+	private final IndexedQueue.Snapshot queue;
+
+	/**
+	 * The king's winning streak
+	 */
+	private final int kingWins;
+
+	/**
+	 * Snapshot of the players' statistics
+	 */
+	private final PlayerStats stats;
+
+	/**
+	 * Constructor
+	 * @param version The version of the game state
+	 * @param king The king
+	 * @param queue The game queue
+	 * @param kingWins The king's winning streak
+	 * @param stats Snapshot of the players' statistics
+	 */
+	GameSnapshot(long version, UUID king, IndexedQueue.Snapshot queue, int kingWins, PlayerStats stats){
+		this.version = version;
+		this.king = king;
+		this.queue = queue;
+		this.kingWins = kingWins;
+		this.stats = stats;
+	}
+
+	/**
+	 * Get the version of this state
+	 * @return Version number
+	 */
+	public long getVersion(){
+		return version;
+	}
+
+	/**
+	 * Get the king
+	 * @return The king's UUID, or null if there is no king
+	 */
+	public UUID getKing(){
+		return king;
+	}
+
+	/**
+	 * Get the game queue, excluding the king
+	 * @return Immutable ordered list of player UUIDs
+	 */
+	public List<UUID> getQueue(){
+		return queue;
+	}
+
+	/**
+	 * Get the challenger
+	 * @return The UUID of the player at the top of the queue, or null if the queue is empty
+	 */
+	public UUID getChallenger(){
+		return queue.isEmpty() ? null : queue.get(0);
+	}
+
+	/**
+	 * Get the king's wins this round
+	 * @return Number of wins
+	 */
+	public int getKingWinsStreakCount(){
+		return kingWins;
+	}
+
+	/**
+	 * Get the wins and losses of all players in this state
+	 * @return Immutable statistics
+	 */
+	public PlayerStats getStats(){
+		return stats;
+	}
+
+	/**
+	 * Check if this state has the same king, queue, streak and statistics as the given values
+	 * @param king The king
+	 * @param queue The game queue
+	 * @param kingWins The king's winning streak
+	 * @param stats Snapshot of the players' statistics
+	 * @return True if nothing differs
+	 */
+	boolean matches(UUID king, IndexedQueue.Snapshot queue, int kingWins, PlayerStats stats){
+		return this.queue == queue && this.stats == stats && this.kingWins == kingWins
+				&& (this.king == null ? king == null : this.king.equals(king));
+	}
+}
@@ -0,0 +1,752 @@
+package utool.plugin.kingofthehill.engine;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * Ordered queue of unique player UUIDs with indexed access.
+ *
+ * Every player is given an order label, and the queue order is the order of the labels.
+ * Labels are stored in a treap that tracks subtree sizes, and a UUID to node map gives direct access to each player.
+ * Membership is O(1). Removal, insertion at any position, move to end, rank lookups (indexOf) and positional
+ * lookups (get) are expected O(log n).
+ *
+ * Inserting between two neighbours takes the middle label. When two neighbours run out of labels between them,
+ * only the players around them are relabeled: the range grows by doubling until its labels are sparse enough,
+ * so a relabel costs about the size of that range plus O(log n). The whole queue is only relabeled when labels
+ * are crowded everywhere.
+ *
+ * The treap is persistent: snapshot() returns an immutable view of the current order in O(1), and later changes
+ * copy the O(log n) nodes on their path instead of changing nodes a snapshot can see. Nodes created after the last
+ * snapshot are changed in place, so a queue that is never snapshotted doesn't copy anything.
+ * The queue itself is not thread safe, but snapshots can be shared with any thread.
+ * @author Cory
+ *
+ */
+public class IndexedQueue implements Iterable<UUID> {
+
+	/**
+	 * Label distance between neighbours after relabeling or appending
+	 */
+	private static final long LABEL_GAP = 1L << 32;
+
+	/**
+	 * Labels are kept strictly between -LABEL_LIMIT and LABEL_LIMIT so appending never overflows
+	 */
+	private static final long LABEL_LIMIT = Long.MAX_VALUE / 4;
+
+	/**
+	 * UUID to node mapping for every player in the queue
+	 */
+	private HashMap<UUID, Node> nodes = new HashMap<UUID, Node>();
+
+	/**
+	 * Root of the treap
+	 */
+	private Node root;
+
+	/**
+	 * Pseudo random state for node priorities
+	 */
+	private long seed = 0x2545F4914F6CDD1DL;
+
+	/**
+	 * Split result holder, reused between operations
+	 */
+	private final Node[] split = new Node[2];
+
+	/**
+	 * Current edit epoch. Nodes from an older epoch may be visible to a snapshot and are copied before changing.
+	 */
+	private int epoch = 0;
+
+	/**
+	 * Snapshot of the current order, or null if the queue changed since the last snapshot
+	 */
+	private Snapshot snapshot;
+
+	/**
+	 * Constructor for an empty queue
+	 */
+	public IndexedQueue(){
+	}
+
+	/**
+	 * Constructor
+	 * @param players Initial queue order. Duplicates are ignored.
+	 */
+	public IndexedQueue(Iterable<UUID> players){
+		build(players);
+	}
+
+	/**
+	 * Get the number of players in the queue
+	 * @return Queue size
+	 */
+	public int size(){
+		return size(root);
+	}
+
+	/**
+	 * Check if the queue is empty
+	 * @return True if empty
+	 */
+	public boolean isEmpty(){
+		return root == null;
+	}
+
+	/**
+	 * Check if a player is in the queue
+	 * @param player The player's UUID
+	 * @return True if the player is in the queue
+	 */
+	public boolean contains(UUID player){
+		return nodes.containsKey(player);
+	}
+
+	/**
+	 * Get the player at a position
+	 * @param index 0-based position
+	 * @return The player's UUID
+	 * @throws IndexOutOfBoundsException If the index is out of range
+	 */
+	public UUID get(int index){
+		return select(root, index).player;
+	}
+
+	/**
+	 * Get the first player in the queue
+	 * @return The first player, or null if the queue is empty
+	 */
+	public UUID peekFirst(){
+		Node n = first();
+		return n == null ? null : n.player;
+	}
+
+	/**
+	 * Get the last player in the queue
+	 * @return The last player, or null if the queue is empty
+	 */
+	public UUID peekLast(){
+		Node n = last();
+		return n == null ? null : n.player;
+	}
+
+	/**
+	 * Get the position of a player
+	 * @param player The player's UUID
+	 * @return 0-based position, or -1 if the player isn't in the queue
+	 */
+	public int indexOf(UUID player){
+		Node node = nodes.get(player);
+		if (node == null){
+			return -1;
+		}
+		long label = node.label;
+		int rank = 0;
+		Node n = root;
+		while (n != null){
+			if (label < n.label){
+				n = n.left;
+			} else if (label > n.label){
+				rank += size(n.left) + 1;
+				n = n.right;
+			} else {
+				return rank + size(n.left);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Add a player to the end of the queue
+	 * @param player The player's UUID
+	 * @return True if added, false if the player was already in the queue
+	 */
+	public boolean addLast(UUID player){
+		if (player == null || nodes.containsKey(player)){
+			return false;
+		}
+		Node last = last();
+		long label;
+		if (last == null){
+			label = 0;
+		} else if (last.label < LABEL_LIMIT - LABEL_GAP){
+			label = last.label + LABEL_GAP;
+		} else {
+			label = freeLabel(size());
+		}
+		insert(new Node(player, label, nextPriority(), epoch));
+		return true;
+	}
+
+	/**
+	 * Insert a player at a position, shifting the player at that position and every following player back
+	 * @param index 0-based position. Values past the end of the queue append the player.
+	 * @param player The player's UUID
+	 * @return True if added, false if the player was already in the queue
+	 */
+	public boolean add(int index, UUID player){
+		if (player == null || nodes.containsKey(player)){
+			return false;
+		}
+		int size = size();
+		if (index >= size){
+			return addLast(player);
+		}
+		if (index < 0){
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+		long label;
+		if (index == 0 && first().label > -LABEL_LIMIT + LABEL_GAP){
+			label = first().label - LABEL_GAP;
+		} else {
+			label = freeLabel(index);
+		}
+		insert(new Node(player, label, nextPriority(), epoch));
+		return true;
+	}
+
+	/**
+	 * Remove a player from the queue
+	 * @param player The player's UUID
+	 * @return True if the player was removed
+	 */
+	public boolean remove(UUID player){
+		Node node = nodes.remove(player);
+		if (node == null){
+			return false;
+		}
+		snapshot = null;
+		split(root, node.label);
+		Node left = split[0];
+		split(split[1], node.label + 1);
+		root = merge(left, split[1]);
+		return true;
+	}
+
+	/**
+	 * Remove and return the first player in the queue
+	 * @return The first player, or null if the queue is empty
+	 */
+	public UUID pollFirst(){
+		UUID first = peekFirst();
+		if (first != null){
+			remove(first);
+		}
+		return first;
+	}
+
+	/**
+	 * Move a player to the end of the queue, adding it if it isn't in the queue
+	 * @param player The player's UUID
+	 */
+	public void moveToEnd(UUID player){
+		remove(player);
+		addLast(player);
+	}
+
+	/**
+	 * Move a player to a position, adding it if it isn't in the queue
+	 * @param player The player's UUID
+	 * @param index The 0-based position, as counted after the player has been taken out of the queue
+	 */
+	public void move(UUID player, int index){
+		remove(player);
+		add(index, player);
+	}
+
+	/**
+	 * Remove every player from the queue
+	 */
+	public void clear(){
+		nodes.clear();
+		root = null;
+		snapshot = null;
+	}
+
+	/**
+	 * Replace the contents of the queue in O(n)
+	 * @param players New queue order. Duplicates are ignored.
+	 */
+	public void replaceAll(Iterable<UUID> players){
+		clear();
+		build(players);
+	}
+
+	/**
+	 * Copy the queue to a list
+	 * @return Ordered list of players
+	 */
+	public List<UUID> toList(){
+		List<UUID> list = new ArrayList<UUID>(size());
+		for (UUID p : this){
+			list.add(p);
+		}
+		return list;
+	}
+
+	/**
+	 * Get an immutable snapshot of the current order in O(1).
+	 * Taking several snapshots without changing the queue in between returns the same object.
+	 * @return Snapshot of the queue
+	 */
+	public Snapshot snapshot(){
+		if (snapshot == null){
+			snapshot = new Snapshot(root);
+			epoch++;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * In-order iterator over the queue. The iterator doesn't support modification of the queue.
+	 * @return Iterator
+	 */
+	@Override
+	public Iterator<UUID> iterator(){
+		return new InOrderIterator(root);
+	}
+
+	/**
+	 * Find the node at a position
+	 * @param root Root of the treap
+	 * @param index 0-based position
+	 * @return The node
+	 */
+	private static Node select(Node root, int index){
+		if (index < 0 || index >= size(root)){
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size(root));
+		}
+		Node n = root;
+		while (true){
+			int leftSize = size(n.left);
+			if (index < leftSize){
+				n = n.left;
+			} else if (index > leftSize){
+				index -= leftSize + 1;
+				n = n.right;
+			} else {
+				return n;
+			}
+		}
+	}
+
+	/**
+	 * Get the first node
+	 * @return The node with the lowest label, or null if empty
+	 */
+	private Node first(){
+		Node n = root;
+		while (n != null && n.left != null){
+			n = n.left;
+		}
+		return n;
+	}
+
+	/**
+	 * Get the last node
+	 * @return The node with the highest label, or null if empty
+	 */
+	private Node last(){
+		Node n = root;
+		while (n != null && n.right != null){
+			n = n.right;
+		}
+		return n;
+	}
+
+	/**
+	 * Get an unused label for a player inserted at a position, relabeling the players around it if needed
+	 * @param index 0-based position of the new player, size() to append
+	 * @return Label between the labels of the players at index - 1 and index
+	 */
+	private long freeLabel(int index){
+		long before = lowerBound(index);
+		long after = upperBound(index);
+		if (after - before < 2){
+			relabel(index);
+			before = lowerBound(index);
+			after = upperBound(index);
+		}
+		return before + (after - before) / 2;
+	}
+
+	/**
+	 * Get the label below every label from a position on
+	 * @param index 0-based position
+	 * @return Label of the player at index - 1, or -LABEL_LIMIT at the start of the queue
+	 */
+	private long lowerBound(int index){
+		return index == 0 ? -LABEL_LIMIT : select(root, index - 1).label;
+	}
+
+	/**
+	 * Get the label above every label before a position
+	 * @param index 0-based position
+	 * @return Label of the player at index, or LABEL_LIMIT at the end of the queue
+	 */
+	private long upperBound(int index){
+		return index == size() ? LABEL_LIMIT : select(root, index).label;
+	}
+
+	/**
+	 * Insert a node into the treap and the node map
+	 * @param node The new node, with its label set
+	 */
+	private void insert(Node node){
+		snapshot = null;
+		nodes.put(node.player, node);
+		split(root, node.label);
+		Node right = split[1];
+		root = merge(merge(split[0], node), right);
+	}
+
+	/**
+	 * Build the treap from an ordered list of players in O(n). The queue must be empty.
+	 * Nodes arrive in label order, so the treap is built as a cartesian tree on a stack of the rightmost path.
+	 * @param players The players in queue order
+	 */
+	private void build(Iterable<UUID> players){
+		snapshot = null;
+		LinkedHashSet<UUID> unique = new LinkedHashSet<UUID>();
+		for (UUID p : players){
+			if (p != null){
+				unique.add(p);
+			}
+		}
+		root = build(unique, 0, LABEL_GAP, -1);
+	}
+
+	/**
+	 * Build a treap of new nodes with evenly spaced labels in O(n), and map the players to them.
+	 * Nodes arrive in label order, so the treap is built as a cartesian tree on a stack of the rightmost path.
+	 * @param players The players in queue order, without duplicates
+	 * @param first Label of the first slot
+	 * @param gap Label distance between slots
+	 * @param skip Slot to leave free, or -1 for none
+	 * @return Root of the treap
+	 */
+	private Node build(Iterable<UUID> players, long first, long gap, int skip){
+		ArrayList<Node> rightPath = new ArrayList<Node>();
+		long label = first;
+		int slot = 0;
+		for (UUID p : players){
+			if (slot++ == skip){
+				label += gap;
+			}
+			Node node = new Node(p, label, nextPriority(), epoch);
+			nodes.put(p, node);
+			label += gap;
+
+			Node popped = null;
+			while (!rightPath.isEmpty() && rightPath.get(rightPath.size() - 1).priority < node.priority){
+				popped = rightPath.remove(rightPath.size() - 1);
+			}
+			node.left = popped;
+			if (!rightPath.isEmpty()){
+				rightPath.get(rightPath.size() - 1).right = node;
+			}
+			rightPath.add(node);
+		}
+		Node built = rightPath.isEmpty() ? null : rightPath.get(0);
+		updateSizes(built);
+		return built;
+	}
+
+	/**
+	 * Recalculate the subtree sizes of every node in a subtree
+	 * @param n Root of the subtree
+	 * @return Size of the subtree
+	 */
+	private static int updateSizes(Node n){
+		if (n == null){
+			return 0;
+		}
+		n.size = 1 + updateSizes(n.left) + updateSizes(n.right);
+		return n.size;
+	}
+
+	/**
+	 * Spread the labels of the players around a position evenly, leaving a free slot at the position.
+	 * The range doubles until the labels between its neighbours leave more room per player than it has players,
+	 * or it covers the whole queue, whose bounds always leave enough room.
+	 * Labels are final so snapshots keep their order, the range is rebuilt with new nodes.
+	 * @param index 0-based position that needs a free label
+	 */
+	private void relabel(int index){
+		int size = size();
+		for (int range = 1; ; range *= 2){
+			int lo = Math.max(0, index - range);
+			int hi = Math.min(size, index + range);
+			long low = lowerBound(lo);
+			long count = hi - lo + 1;
+			long gap = (upperBound(hi) - low) / (count + 1);
+			if (gap > count || (lo == 0 && hi == size)){
+				relabel(lo, hi, low + gap, gap, index - lo);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Replace the nodes of a range of positions with new nodes with evenly spaced labels, in O(hi - lo + log n)
+	 * @param lo First position of the range
+	 * @param hi Position after the range
+	 * @param first Label of the first slot
+	 * @param gap Label distance between slots
+	 * @param skip Slot to leave free
+	 */
+	private void relabel(int lo, int hi, long first, long gap, int skip){
+		snapshot = null;
+		long from = select(root, lo).label;
+		long to = hi == size() ? Long.MAX_VALUE : select(root, hi).label;
+		split(root, from);
+		Node left = split[0];
+		split(split[1], to);
+		Node right = split[1];
+		List<UUID> range = new ArrayList<UUID>(hi - lo);
+		Iterator<UUID> players = new InOrderIterator(split[0]);
+		while (players.hasNext()){
+			range.add(players.next());
+		}
+		root = merge(merge(left, build(range, first, gap, skip)), right);
+	}
+
+	/**
+	 * Split a treap by label
+	 * Results are stored in split: [0] has labels lower than the given label, [1] has the rest
+	 * @param n Root of the treap to split
+	 * @param label The label to split at
+	 */
+	private void split(Node n, long label){
+		if (n == null){
+			split[0] = null;
+			split[1] = null;
+		} else if (n.label < label){
+			n = edit(n);
+			split(n.right, label);
+			n.right = split[0];
+			update(n);
+			split[0] = n;
+		} else {
+			n = edit(n);
+			split(n.left, label);
+			n.left = split[1];
+			update(n);
+			split[1] = n;
+		}
+	}
+
+	/**
+	 * Merge two treaps where every label in a is lower than every label in b
+	 * @param a Left treap
+	 * @param b Right treap
+	 * @return Root of the merged treap
+	 */
+	private Node merge(Node a, Node b){
+		if (a == null){
+			return b;
+		}
+		if (b == null){
+			return a;
+		}
+		if (a.priority > b.priority){
+			a = edit(a);
+			a.right = merge(a.right, b);
+			update(a);
+			return a;
+		} else {
+			b = edit(b);
+			b.left = merge(a, b.left);
+			update(b);
+			return b;
+		}
+	}
+
+	/**
+	 * Get a node that may be changed in place, copying it if a snapshot may see it
+	 * @param n The node
+	 * @return The node itself, or a copy from the current epoch
+	 */
+	private Node edit(Node n){
+		if (n.epoch == epoch){
+			return n;
+		}
+		Node copy = new Node(n.player, n.label, n.priority, epoch);
+		copy.size = n.size;
+		copy.left = n.left;
+		copy.right = n.right;
+		return copy;
+	}
+
+	/**
+	 * Recalculate a node's subtree size
+	 * @param n The node
+	 */
+	private static void update(Node n){
+		n.size = 1 + size(n.left) + size(n.right);
+	}
+
+	/**
+	 * Get the size of a subtree
+	 * @param n Root of the subtree, may be null
+	 * @return Number of nodes in the subtree
+	 */
+	private static int size(Node n){
+		return n == null ? 0 : n.size;
+	}
+
+	/**
+	 * Next node priority from a xorshift generator
+	 * @return Pseudo random priority
+	 */
+	private int nextPriority(){
+		seed ^= seed << 13;
+		seed ^= seed >>> 7;
+		seed ^= seed << 17;
+		return (int)(seed >>> 32);
+	}
+
+	/**
+	 * Immutable snapshot of a queue's order. Safe to share between threads.
+	 * Positional lookups are O(log n), iteration is O(n).
+	 */
+	public static final class Snapshot extends AbstractList<UUID> {
+		/**
+		 * Root of the frozen treap
+		 */
+		private final Node root;
+
+		/**
+		 * Constructor
+		 * @param root Root of the treap. No node reachable from it may change afterwards.
+		 */
+		private Snapshot(Node root){
+			this.root = root;
+		}
+
+		@Override
+		public UUID get(int index){
+			return select(root, index).player;
+		}
+
+		@Override
+		public int size(){
+			return IndexedQueue.size(root);
+		}
+
+		@Override
+		public boolean isEmpty(){
+			return root == null;
+		}
+
+		@Override
+		public Iterator<UUID> iterator(){
+			return new InOrderIterator(root);
+		}
+	}
+
+	/**
+	 * In-order iterator over a treap
+	 */
+	private static final class InOrderIterator implements Iterator<UUID> {
+		/**
+		 * Nodes whose left subtree has been visited but not themselves
+		 */
+		private final ArrayList<Node> stack = new ArrayList<Node>();
+
+		/**
+		 * Constructor
+		 * @param root Root of the treap
+		 */
+		InOrderIterator(Node root){
+			pushLeft(root);
+		}
+
+		/**
+		 * Push a node and its chain of left children
+		 * @param n The node
+		 */
+		private void pushLeft(Node n){
+			while (n != null){
+				stack.add(n);
+				n = n.left;
+			}
+		}
+
+		@Override
+		public boolean hasNext(){
+			return !stack.isEmpty();
+		}
+
+		@Override
+		public UUID next(){
+			if (stack.isEmpty()){
+				throw new NoSuchElementException();
+			}
+			Node n = stack.remove(stack.size() - 1);
+			pushLeft(n.right);
+			return n.player;
+		}
+
+		@Override
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Treap node holding one player
+	 */
+	private static final class Node {
+		/**
+		 * The player's UUID
+		 */
+		final UUID player;
+		/**
+		 * The player's order label
+		 */
+		final long label;
+		/**
+		 * Heap priority
+		 */
+		final int priority;
+		/**
+		 * Edit epoch the node was created in
+		 */
+		final int epoch;
+		/**
+		 * Number of nodes in this subtree
+		 */
+		int size = 1;
+		/**
+		 * Left child, lower labels
+		 */
+		Node left;
+		/**
+		 * Right child, higher labels
+		 */
+		Node right;
+
+		/**
+		 * Constructor
+		 * @param player The player's UUID
+		 * @param label Order label
+		 * @param priority Heap priority
+		 * @param epoch Edit epoch
+		 */
+		Node(UUID player, long label, int priority, int epoch){
+			this.player = player;
+			this.label = label;
+			this.priority = priority;
+			this.epoch = epoch;
+		}
+	}
+}
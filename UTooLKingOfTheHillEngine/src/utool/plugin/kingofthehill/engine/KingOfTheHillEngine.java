@@ -0,0 +1,882 @@
+package utool.plugin.kingofthehill.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Platform independent King of the Hill game rules.
+ * Owns the king, the challenger queue, the king's winning streak and the win/loss record of every player.
+ * Players are identified only by their UUID, so this class has no Android dependencies and can be run on a plain JVM.
+ * This class is not thread safe, callers are responsible for synchronization.
+ * Immutable snapshots of the game, taken with snapshot(), can be shared with other threads.
+ * Every change can be recorded to an EventLog, and replaying the log rebuilds the game.
+ * Game results, moves and score changes can be undone and redone. Changes to the players in the game clear the history.
+ * @author Cory
+ *
+ */
+public class KingOfTheHillEngine {
+	/**
+	 * "Index" that the king is at in the player queue.
+	 */
+	public static final int KING_POSITION = -1;
+
+	/**
+	 * The value returned for wins and losses of a player that hasn't played yet
+	 */
+	public static final int STAT_NOT_SET = PlayerStats.STAT_NOT_SET;
+
+	/**
+	 * Maximum number of changes that can be undone
+	 */
+	public static final int HISTORY_LIMIT = 100;
+
+	/**
+	 * The current king of the game
+	 */
+	private UUID king;
+
+	/**
+	 * The game queue, excluding the current king. The challenger is at the head of the queue.
+	 */
+	private IndexedQueue queue = new IndexedQueue();
+
+	/**
+	 * Winning streak count for the king
+	 */
+	private int kingWins = 0;
+
+	/**
+	 * Win/loss record of each player
+	 */
+	private PlayerStats stats = new PlayerStats();
+
+	/**
+	 * The most recent snapshot of the game
+	 */
+	private GameSnapshot published;
+
+	/**
+	 * Version of the most recent snapshot
+	 */
+	private long version = 0;
+
+	/**
+	 * True if a score was set since the most recent snapshot
+	 */
+	private boolean statsChanged = false;
+
+	/**
+	 * Log every change is recorded to, or null
+	 */
+	private EventLog log;
+
+	/**
+	 * Changes that can be undone, most recent first
+	 */
+	private LinkedList<Change> undoHistory = new LinkedList<Change>();
+
+	/**
+	 * Undone changes that can be redone, most recently undone first
+	 */
+	private LinkedList<Change> redoHistory = new LinkedList<Change>();
+
+	/**
+	 * Constructor for an empty game
+	 */
+	public KingOfTheHillEngine(){
+	}
+
+	/**
+	 * Constructor
+	 * @param king The player to make the king. May be null.
+	 * @param players The game queue. If the king is part of this list it is removed from the queue.
+	 */
+	public KingOfTheHillEngine(UUID king, List<UUID> players){
+		restart(king, players);
+	}
+
+	/**
+	 * Restart the game with the given players, clearing all wins and losses
+	 * @param king The king to set
+	 * @param players The game queue
+	 */
+	public void restart(UUID king, List<UUID> players){
+		if (log != null){
+			log.record(EventLog.RESTART, king, players);
+		}
+		forget();
+		this.king = king;
+		this.queue = new IndexedQueue(players);
+		this.queue.remove(king);
+		this.stats.clear();
+		this.kingWins = 0;
+	}
+
+	/**
+	 * Get the log changes are recorded to
+	 * @return The log, or null if changes aren't recorded
+	 */
+	public EventLog getLog(){
+		return log;
+	}
+
+	/**
+	 * Record every following change to a log
+	 * @param log The log, or null to stop recording
+	 */
+	public void setLog(EventLog log){
+		this.log = log;
+	}
+
+	/**
+	 * Get the current king of the game
+	 * @return The king's UUID, or null if there is no king
+	 */
+	public UUID getKing(){
+		return king;
+	}
+
+	/**
+	 * Get the current challenger
+	 * @return The UUID of the player at the top of the queue, or null if the queue is empty
+	 */
+	public UUID getChallenger(){
+		return queue.peekFirst();
+	}
+
+	/**
+	 * Get the game queue, excluding the king. O(1)
+	 * @return Immutable ordered list of player UUIDs
+	 */
+	public List<UUID> getQueue(){
+		return queue.snapshot();
+	}
+
+	/**
+	 * Get an immutable snapshot of the king, queue, winning streak and statistics.
+	 * If nothing changed since the last snapshot, the same snapshot is returned.
+	 * Otherwise the version is increased, also if only a score was set.
+	 * @return Snapshot of the game
+	 */
+	public GameSnapshot snapshot(){
+		IndexedQueue.Snapshot current = queue.snapshot();
+		PlayerStats currentStats = stats.snapshot();
+		if (published == null || statsChanged || !published.matches(king, current, kingWins, currentStats)){
+			version++;
+			published = new GameSnapshot(version, king, current, kingWins, currentStats);
+			statsChanged = false;
+		}
+		return published;
+	}
+
+	/**
+	 * Get the number of players in the game queue, excluding the king
+	 * @return Queue size
+	 */
+	public int getQueueSize(){
+		return queue.size();
+	}
+
+	/**
+	 * Get the player at a position in the game queue
+	 * @param position 0-based position in the queue
+	 * @return The player's UUID
+	 */
+	public UUID getQueuedPlayer(int position){
+		return queue.get(position);
+	}
+
+	/**
+	 * Get the position of a player in the game queue
+	 * @param player The player's UUID
+	 * @return 0-based position, KING_POSITION for the king, or -2 if the player isn't in the game
+	 */
+	public int getPosition(UUID player){
+		if (player != null && player.equals(king)){
+			return KING_POSITION;
+		}
+		int position = queue.indexOf(player);
+		if (position == -1){
+			return -2;
+		}
+		return position;
+	}
+
+	/**
+	 * Check if a player is part of the game, either as king or in the queue
+	 * @param player The player's UUID
+	 * @return True if the player is in the game
+	 */
+	public boolean contains(UUID player){
+		return player != null && (player.equals(king) || queue.contains(player));
+	}
+
+	/**
+	 * Get the current king's wins this round
+	 * @return Number of wins
+	 */
+	public int getKingWinsStreakCount(){
+		return kingWins;
+	}
+
+	/**
+	 * Set the current king's wins this round
+	 * @param count Number of wins
+	 */
+	public void setKingWinsStreakCount(int count){
+		if (log != null){
+			log.record(EventLog.SET_STREAK, count);
+		}
+		remember(EventLog.SET_STREAK, null, count, 0);
+		kingWins = count;
+	}
+
+	/**
+	 * Pop the player at the top of the game queue. The player is removed from the queue.
+	 * @return The player at the top of the queue, or null if the queue is empty
+	 */
+	public UUID pollChallenger(){
+		if (log != null){
+			log.record(EventLog.POLL_CHALLENGER);
+		}
+		forget();
+		return queue.pollFirst();
+	}
+
+	/**
+	 * Add a player to the bottom of the game queue. If the player is already a part of the game queue, this method does nothing.
+	 * @param player The player to add.
+	 * @return True if the player was added
+	 */
+	public boolean addToBottom(UUID player){
+		if (log != null){
+			log.record(EventLog.ADD_TO_BOTTOM, player);
+		}
+		forget();
+		return queue.addLast(player);
+	}
+
+	/**
+	 * Move the specified player to another location.
+	 * @param player The player to move. Can be the king.
+	 * @param destinationPosition The position to move the player to. If position is KING_POSITION, this will move the player to the king position.
+	 * Otherwise, this value is a 0-based index of the position in the queue.
+	 */
+	public void movePlayer(UUID player, int destinationPosition){
+		if (log != null){
+			log.record(EventLog.MOVE_PLAYER, player, destinationPosition, 0);
+		}
+		if (contains(player)){
+			remember(EventLog.MOVE_PLAYER, player, destinationPosition, 0);
+		} else {
+			forget();
+		}
+		move(player, destinationPosition);
+	}
+
+	/**
+	 * Move a player without recording the change
+	 * @param player The player to move. Can be the king.
+	 * @param destinationPosition The position to move the player to
+	 */
+	private void move(UUID player, int destinationPosition){
+		if (player.equals(king)){
+			king = queue.pollFirst();
+		}
+		if (destinationPosition == KING_POSITION){
+			//move current king to top of queue
+			queue.remove(player);
+			if (king != null){
+				queue.add(0, king);
+			}
+			//set new king
+			king = player;
+		} else if (destinationPosition < queue.size()){
+			queue.move(player, destinationPosition);
+		} else {
+			//insert at end of queue
+			queue.moveToEnd(player);
+		}
+	}
+
+	/**
+	 * Move the player at a position to another location.
+	 * @param currentPosition The position the player is currently at. King is at KING_POSITION.
+	 * @param destinationPosition The position to move the player to.
+	 */
+	public void movePlayer(int currentPosition, int destinationPosition){
+		UUID player;
+		if (currentPosition == KING_POSITION){
+			player = king;
+		} else {
+			player = queue.get(currentPosition);
+		}
+		movePlayer(player, destinationPosition);
+	}
+
+	/**
+	 * Move the current king to the end of the game queue, and promote the challenger.
+	 * The challenger is credited with a win, the old king with a loss.
+	 * Does nothing if there is no challenger.
+	 * @return The new king
+	 */
+	public UUID moveKingToEnd(){
+		UUID oldKing = king;
+		if (oldKing == null || queue.isEmpty()){
+			return oldKing;
+		}
+		if (log != null){
+			log.record(EventLog.KING_TO_END);
+		}
+		remember(EventLog.KING_TO_END, null, 0, 0);
+		return kingToEnd();
+	}
+
+	/**
+	 * Move the king to the end of the queue without recording the change
+	 * @return The new king
+	 */
+	private UUID kingToEnd(){
+		UUID oldKing = king;
+		queue.addLast(oldKing);
+		king = queue.pollFirst();
+		kingWins = 1;
+
+		stats.addLoss(oldKing);
+		stats.addWin(king);
+		return king;
+	}
+
+	/**
+	 * Move the current challenger to the end of the game queue.
+	 * The king is credited with a win, the challenger with a loss.
+	 * Does nothing if there is no challenger.
+	 * @return The player who was moved, or null if there is no challenger.
+	 */
+	public UUID moveChallengerToEnd(){
+		if (king == null || queue.isEmpty()){
+			return null;
+		}
+		if (log != null){
+			log.record(EventLog.CHALLENGER_TO_END);
+		}
+		remember(EventLog.CHALLENGER_TO_END, null, 0, 0);
+		return challengerToEnd();
+	}
+
+	/**
+	 * Move the challenger to the end of the queue without recording the change
+	 * @return The player who was moved
+	 */
+	private UUID challengerToEnd(){
+		UUID challenger = queue.pollFirst();
+		queue.addLast(challenger);
+
+		kingWins += 1;
+		stats.addWin(king);
+		stats.addLoss(challenger);
+		return challenger;
+	}
+
+	/**
+	 * Add players to the bottom of the game queue. If there is no king, the first player becomes king.
+	 * @param players The players to add. Players already in the game are ignored.
+	 */
+	public void addNewPlayersToBottom(List<UUID> players){
+		if (log != null){
+			log.record(EventLog.ADD_PLAYERS, null, players);
+		}
+		forget();
+		addPlayers(players);
+	}
+
+	/**
+	 * Add players to the bottom of the game queue without recording the change
+	 * @param players The players to add. Players already in the game are ignored.
+	 */
+	private void addPlayers(List<UUID> players){
+		for (UUID p : players){
+			if (king == null){
+				king = p;
+			}
+			if (!king.equals(p)){
+				queue.addLast(p);
+			}
+		}
+	}
+
+	/**
+	 * Fully update the players in the game. The update is recorded as one change, and only if it changes the game.
+	 * @param players The new list of players. Players not in this list are fully removed from the game.
+	 * If the king is removed, the challenger is promoted.
+	 * @return The players that were removed from the game
+	 */
+	public List<UUID> updatePlayerList(List<UUID> players){
+		List<UUID> joined = new ArrayList<UUID>();
+		for (UUID p : players){
+			if (p != null && !contains(p)){
+				joined.add(p);
+			}
+		}
+
+		HashSet<UUID> remaining = new HashSet<UUID>(players);
+		List<UUID> removed = new ArrayList<UUID>();
+		for (UUID p : queue){
+			if (!remaining.contains(p)){
+				removed.add(p);
+			}
+		}
+		if (king != null && !remaining.contains(king)){
+			removed.add(king);
+		}
+
+		if (!joined.isEmpty() || !removed.isEmpty()){
+			if (log != null){
+				List<GameChange> effect = new ArrayList<GameChange>();
+				if (!joined.isEmpty()){
+					effect.add(GameChange.join(joined));
+				}
+				if (!removed.isEmpty()){
+					effect.add(GameChange.leave(removed));
+				}
+				log.record(EventLog.UPDATE_PLAYERS, players, effect);
+			}
+			forget();
+			addPlayers(joined);
+			dropPlayers(removed);
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove players from the game. If the king is removed, the challenger is promoted.
+	 * @param players The players to remove. Players not in the game are ignored.
+	 */
+	public void removePlayers(List<UUID> players){
+		if (log != null){
+			log.record(EventLog.REMOVE_PLAYERS, null, players);
+		}
+		forget();
+		dropPlayers(players);
+	}
+
+	/**
+	 * Remove players from the game without recording the change. If the king is removed, the challenger is promoted.
+	 * @param players The players to remove. Players not in the game are ignored.
+	 */
+	private void dropPlayers(List<UUID> players){
+		boolean kingRemoved = false;
+		for (UUID p : players){
+			if (p != null && p.equals(king)){
+				kingRemoved = true;
+			} else {
+				queue.remove(p);
+			}
+		}
+		if (kingRemoved){
+			king = queue.pollFirst();
+		}
+	}
+
+	/**
+	 * Replace the game queue. For use on participant devices, where the host decides the order.
+	 * @param players The new game queue. The king is removed from it if present.
+	 */
+	public void replaceQueue(List<UUID> players){
+		if (log != null){
+			log.record(EventLog.REPLACE_QUEUE, null, players);
+		}
+		forget();
+		queue.replaceAll(players);
+		queue.remove(king);
+	}
+
+	/**
+	 * Reorder the game queue. Players not in the current queue are ignored, and players missing from the given order are dropped.
+	 * Runs in a single pass over the given order, O(n).
+	 * @param order The ordered game queue
+	 */
+	public void reorderQueue(List<UUID> order){
+		if (log != null){
+			log.record(EventLog.REORDER_QUEUE, null, order);
+		}
+		forget();
+		List<UUID> sorted = new ArrayList<UUID>(order.size());
+		for (UUID player : order){
+			if (queue.contains(player)){
+				sorted.add(player);
+			}
+		}
+		queue.replaceAll(sorted);
+	}
+
+	/**
+	 * Set the current king. The new king is taken out of the queue and the old king is put at the bottom of the queue.
+	 * Does nothing if the player isn't in the queue.
+	 * @param player The UUID of the player to make the king
+	 */
+	public void setKing(UUID player){
+		if (player == null || player.equals(king) || !queue.contains(player)){
+			return;
+		}
+		if (log != null){
+			log.record(EventLog.SET_KING, player);
+		}
+		remember(EventLog.SET_KING, player, 0, 0);
+		crown(player);
+	}
+
+	/**
+	 * Set the current king without recording the change
+	 * @param player The new king, who must be in the queue
+	 */
+	private void crown(UUID player){
+		queue.remove(player);
+		if (king != null){
+			queue.addLast(king);
+		}
+		king = player;
+	}
+
+	/**
+	 * Get the win/loss record of all players
+	 * @return The statistics store. Changes to it affect the game.
+	 */
+	public PlayerStats getStats(){
+		return stats;
+	}
+
+	/**
+	 * Get a player's wins
+	 * @param player The player's UUID
+	 * @return Number of wins, or STAT_NOT_SET if the player hasn't played yet
+	 */
+	public int getWins(UUID player){
+		return stats.getWins(player);
+	}
+
+	/**
+	 * Get a player's losses
+	 * @param player The player's UUID
+	 * @return Number of losses, or STAT_NOT_SET if the player hasn't played yet
+	 */
+	public int getLosses(UUID player){
+		return stats.getLosses(player);
+	}
+
+	/**
+	 * Override a player's wins and losses
+	 * @param player The player's UUID
+	 * @param wins Number of wins
+	 * @param losses Number of losses
+	 */
+	public void setStats(UUID player, int wins, int losses){
+		if (log != null){
+			log.record(EventLog.SET_STATS, player, wins, losses);
+		}
+		remember(EventLog.SET_STATS, player, wins, losses);
+		statsChanged = true;
+		stats.setStats(player, wins, losses);
+	}
+
+	/**
+	 * Clear the wins and losses of all players
+	 */
+	public void clearStats(){
+		if (log != null){
+			log.record(EventLog.CLEAR_STATS);
+		}
+		forget();
+		statsChanged = true;
+		stats.clear();
+	}
+
+	/**
+	 * Check if there is a change to undo
+	 * @return True if undo() will change the game
+	 */
+	public boolean canUndo(){
+		return !undoHistory.isEmpty();
+	}
+
+	/**
+	 * Check if there is an undone change to redo
+	 * @return True if redo() will change the game
+	 */
+	public boolean canRedo(){
+		return !redoHistory.isEmpty();
+	}
+
+	/**
+	 * Revert the most recent game result, move or score change, including the wins, losses and streaks it changed.
+	 * Takes a fixed number of queue and score updates, independent of the history length.
+	 * @return True if a change was undone
+	 */
+	public boolean undo(){
+		if (undoHistory.isEmpty()){
+			return false;
+		}
+		Change change = undoHistory.removeFirst();
+		UUID oldKing = king;
+		revert(change);
+		statsChanged = true;
+		redoHistory.addFirst(change);
+		if (log != null){
+			log.record(EventLog.UNDO, effect(change, oldKing));
+		}
+		return true;
+	}
+
+	/**
+	 * Apply the most recently undone change again
+	 * @return True if a change was redone
+	 */
+	public boolean redo(){
+		if (redoHistory.isEmpty()){
+			return false;
+		}
+		Change change = redoHistory.removeFirst();
+		UUID oldKing = king;
+		perform(change);
+		statsChanged = true;
+		undoHistory.addFirst(change);
+		if (log != null){
+			log.record(EventLog.REDO, effect(change, oldKing));
+		}
+		return true;
+	}
+
+	/**
+	 * Add a change that is about to be made to the undo history, and drop the redo history.
+	 * Must be called before the game is changed.
+	 * @param type The EventLog event type of the change
+	 * @param player The player changed, if any
+	 * @param a First argument of the change
+	 * @param b Second argument of the change
+	 */
+	private void remember(int type, UUID player, int a, int b){
+		Change change = new Change();
+		change.type = type;
+		change.player = player;
+		change.a = a;
+		change.b = b;
+		change.king = king;
+		change.challenger = queue.peekFirst();
+		change.kingWins = kingWins;
+		switch (type){
+			case EventLog.KING_TO_END:
+			case EventLog.CHALLENGER_TO_END:
+				change.kingRecord = stats.record(king);
+				change.challengerRecord = stats.record(change.challenger);
+				break;
+			case EventLog.MOVE_PLAYER:
+			case EventLog.SET_KING:
+				change.position = getPosition(player);
+				break;
+			case EventLog.SET_STATS:
+				change.playerRecord = stats.record(player);
+				break;
+		}
+		if (undoHistory.size() == HISTORY_LIMIT){
+			undoHistory.removeLast();
+		}
+		undoHistory.addFirst(change);
+		redoHistory.clear();
+	}
+
+	/**
+	 * Drop the undo and redo history, for changes that can't be undone
+	 */
+	void forget(){
+		undoHistory.clear();
+		redoHistory.clear();
+	}
+
+	/**
+	 * Make a change from the history
+	 * @param change The change
+	 */
+	private void perform(Change change){
+		switch (change.type){
+			case EventLog.KING_TO_END:
+				kingToEnd();
+				break;
+			case EventLog.CHALLENGER_TO_END:
+				challengerToEnd();
+				break;
+			case EventLog.MOVE_PLAYER:
+				move(change.player, change.a);
+				break;
+			case EventLog.SET_KING:
+				crown(change.player);
+				break;
+			case EventLog.SET_STREAK:
+				kingWins = change.a;
+				break;
+			case EventLog.SET_STATS:
+				stats.setStats(change.player, change.a, change.b);
+				break;
+		}
+	}
+
+	/**
+	 * Return the game to the state it was in before a change
+	 * @param change The change, which must be the last change made
+	 */
+	private void revert(Change change){
+		UUID player = change.player;
+		switch (change.type){
+			case EventLog.KING_TO_END:
+				//the old king is at the bottom, the challenger is king
+				queue.remove(change.king);
+				queue.add(0, change.challenger);
+				king = change.king;
+				stats.restore(change.king, change.kingRecord);
+				stats.restore(change.challenger, change.challengerRecord);
+				break;
+			case EventLog.CHALLENGER_TO_END:
+				queue.remove(change.challenger);
+				queue.add(0, change.challenger);
+				stats.restore(change.king, change.kingRecord);
+				stats.restore(change.challenger, change.challengerRecord);
+				break;
+			case EventLog.MOVE_PLAYER:
+				if (change.position == KING_POSITION){
+					//the challenger took over, unless the king was moved back to the king position
+					if (!player.equals(king)){
+						queue.remove(player);
+						queue.add(0, king);
+						king = player;
+					}
+				} else if (player.equals(king)){
+					//the old king was put at the top of the queue
+					queue.remove(change.king);
+					queue.add(change.position, player);
+					king = change.king;
+				} else {
+					queue.move(player, change.position);
+				}
+				break;
+			case EventLog.SET_KING:
+				//the old king is at the bottom
+				queue.remove(change.king);
+				queue.add(change.position, player);
+				king = change.king;
+				break;
+			case EventLog.SET_STATS:
+				stats.restore(player, change.playerRecord);
+				break;
+		}
+		kingWins = change.kingWins;
+	}
+
+	/**
+	 * Describe the result of undoing or redoing a change as changes another copy of the game can apply.
+	 * The king is set first, the other players the change can have moved are taken to the end of the queue and
+	 * then put at their places in order, and the scores and streak are set.
+	 * @param change The change that was just undone or redone
+	 * @param oldKing The king before it was undone or redone
+	 * @return The changes, in order
+	 */
+	private List<GameChange> effect(Change change, UUID oldKing){
+		List<GameChange> changes = new ArrayList<GameChange>();
+		if (change.type != EventLog.SET_STATS && change.type != EventLog.SET_STREAK){
+			LinkedHashSet<UUID> moved = new LinkedHashSet<UUID>();
+			for (UUID p : new UUID[]{oldKing, change.king, change.challenger, change.player}){
+				if (p != null && !p.equals(king)){
+					moved.add(p);
+				}
+			}
+			if (king != null && !king.equals(oldKing)){
+				changes.add(GameChange.move(king, KING_POSITION));
+			}
+			List<UUID> order = new ArrayList<UUID>(moved);
+			for (UUID p : order){
+				changes.add(GameChange.move(p, queue.size()));
+			}
+			Collections.sort(order, new Comparator<UUID>() {
+				@Override
+				public int compare(UUID lhs, UUID rhs) {
+					return Integer.valueOf(getPosition(lhs)).compareTo(getPosition(rhs));
+				}
+			});
+			for (UUID p : order){
+				changes.add(GameChange.move(p, getPosition(p)));
+			}
+		}
+		if (change.type == EventLog.KING_TO_END || change.type == EventLog.CHALLENGER_TO_END){
+			changes.add(GameChange.stats(change.king, stats.getWins(change.king), stats.getLosses(change.king)));
+			changes.add(GameChange.stats(change.challenger, stats.getWins(change.challenger), stats.getLosses(change.challenger)));
+		} else if (change.type == EventLog.SET_STATS){
+			changes.add(GameChange.stats(change.player, stats.getWins(change.player), stats.getLosses(change.player)));
+		}
+		changes.add(GameChange.streak(kingWins));
+		return changes;
+	}
+
+	/**
+	 * A change in the undo history, with the state needed to revert it
+	 */
+	private static final class Change {
+		/**
+		 * The EventLog event type of the change
+		 */
+		int type;
+
+		/**
+		 * The player changed, if any
+		 */
+		UUID player;
+
+		/**
+		 * First argument of the change
+		 */
+		int a;
+
+		/**
+		 * Second argument of the change
+		 */
+		int b;
+
+		/**
+		 * The king before the change
+		 */
+		UUID king;
+
+		/**
+		 * The challenger before the change
+		 */
+		UUID challenger;
+
+		/**
+		 * The king's streak before the change
+		 */
+		int kingWins;
+
+		/**
+		 * The player's position before the change
+		 */
+		int position;
+
+		/**
+		 * The king's record before the change
+		 */
+		int[] kingRecord;
+
+		/**
+		 * The challenger's record before the change
+		 */
+		int[] challengerRecord;
+
+		/**
+		 * The player's record before the change
+		 */
+		int[] playerRecord;
+	}
+}
@@ -0,0 +1,427 @@
+package utool.plugin.kingofthehill.engine;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact win/loss store for all players of a game.
+ * Each player gets a dense ordinal the first time a statistic is recorded for them,
+ * and the statistics are kept in parallel int arrays indexed by that ordinal: wins, losses, games and streaks.
+ * Each array is split into blocks of BLOCK_SIZE players, so a snapshot can share them.
+ * Clearing the store keeps the blocks, so restarting a game doesn't allocate.
+ * This class is not thread safe, callers are responsible for synchronization. Immutable copies for other threads
+ * are taken with snapshot(); they share the blocks, and the store copies a block of each array the first time it
+ * writes a player of that block after a snapshot, so a game result copies two blocks instead of every player's statistics.
+ * @author Cory
+ *
+ */
+public class PlayerStats {
+	/**
+	 * The value returned for wins and losses of a player that hasn't played yet
+	 */
+	public static final int STAT_NOT_SET = -1;
+
+	/**
+	 * Initial number of player slots
+	 */
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/**
+	 * Number of players in a block
+	 */
+	private static final int BLOCK_SIZE = 64;
+
+	/**
+	 * Ordinal of each player with recorded statistics. Shared with snapshots, which ignore ordinals added after them.
+	 */
+	private ConcurrentHashMap<UUID, Integer> ordinals;
+
+	/**
+	 * Player at each ordinal
+	 */
+	private UUID[] players;
+
+	/**
+	 * Wins at each ordinal, in blocks of BLOCK_SIZE players. Blocks are allocated when first used.
+	 */
+	private int[][] wins;
+
+	/**
+	 * Losses at each ordinal, in blocks like wins
+	 */
+	private int[][] losses;
+
+	/**
+	 * Games played at each ordinal, in blocks like wins
+	 */
+	private int[][] games;
+
+	/**
+	 * Current winning streak at each ordinal, in blocks like wins
+	 */
+	private int[][] streaks;
+
+	/**
+	 * True for each block only this store uses, which can be written without copying it
+	 */
+	private boolean[] owned;
+
+	/**
+	 * Number of ordinals in use
+	 */
+	private int count = 0;
+
+	/**
+	 * The snapshot sharing this store's blocks, or null if the store was written since the last snapshot
+	 */
+	private PlayerStats published;
+
+	/**
+	 * True if a snapshot may share the player table, which clearing then has to replace instead of emptying
+	 */
+	private boolean playersShared = false;
+
+	/**
+	 * True if this is a snapshot, which can't be changed
+	 */
+	private final boolean frozen;
+
+	/**
+	 * Constructor
+	 */
+	public PlayerStats(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor
+	 * @param capacity Number of players to allocate room for
+	 */
+	public PlayerStats(int capacity){
+		frozen = false;
+		capacity = Math.max(capacity, 1);
+		ordinals = new ConcurrentHashMap<UUID, Integer>();
+		players = new UUID[capacity];
+		int blockCount = (capacity + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		wins = new int[blockCount][];
+		losses = new int[blockCount][];
+		games = new int[blockCount][];
+		streaks = new int[blockCount][];
+		owned = new boolean[blockCount];
+	}
+
+	/**
+	 * Constructor for a snapshot
+	 * @param source The store to take the snapshot of
+	 */
+	private PlayerStats(PlayerStats source){
+		frozen = true;
+		ordinals = source.ordinals;
+		players = source.players;
+		wins = source.wins;
+		losses = source.losses;
+		games = source.games;
+		streaks = source.streaks;
+		count = source.count;
+	}
+
+	/**
+	 * Get an immutable copy of the statistics, which can be read from any thread.
+	 * O(1) if nothing was written since the last snapshot, when the same snapshot is returned,
+	 * otherwise proportional to the number of blocks.
+	 * @return The snapshot
+	 */
+	public PlayerStats snapshot(){
+		if (frozen){
+			return this;
+		}
+		if (published == null){
+			published = new PlayerStats(this);
+			playersShared = true;
+			Arrays.fill(owned, false);
+		}
+		return published;
+	}
+
+	/**
+	 * Get the number of players with recorded statistics
+	 * @return Number of players
+	 */
+	public int size(){
+		return count;
+	}
+
+	/**
+	 * Get the ordinal of a player
+	 * @param player The player's UUID
+	 * @return The ordinal, or -1 if nothing is recorded for the player
+	 */
+	public int ordinal(UUID player){
+		if (player == null){
+			return -1;
+		}
+		Integer ordinal = ordinals.get(player);
+		//ordinals past count were added to the store after this snapshot
+		if (ordinal == null || ordinal >= count){
+			return -1;
+		}
+		return ordinal;
+	}
+
+	/**
+	 * Get the player at an ordinal
+	 * @param ordinal The ordinal
+	 * @return The player's UUID
+	 */
+	public UUID getPlayer(int ordinal){
+		return players[ordinal];
+	}
+
+	/**
+	 * Get a player's wins
+	 * @param player The player's UUID
+	 * @return Number of wins, or STAT_NOT_SET if the player hasn't played yet
+	 */
+	public int getWins(UUID player){
+		return get(wins, player, STAT_NOT_SET);
+	}
+
+	/**
+	 * Get a player's losses
+	 * @param player The player's UUID
+	 * @return Number of losses, or STAT_NOT_SET if the player hasn't played yet
+	 */
+	public int getLosses(UUID player){
+		return get(losses, player, STAT_NOT_SET);
+	}
+
+	/**
+	 * Get the number of games a player has been in
+	 * @param player The player's UUID
+	 * @return Number of games, 0 if the player hasn't played yet
+	 */
+	public int getGames(UUID player){
+		return get(games, player, 0);
+	}
+
+	/**
+	 * Get a player's current winning streak
+	 * @param player The player's UUID
+	 * @return Number of wins since the player's last loss
+	 */
+	public int getStreak(UUID player){
+		return get(streaks, player, 0);
+	}
+
+	/**
+	 * Add 1 to a player's wins
+	 * @param player The player's UUID
+	 */
+	public void addWin(UUID player){
+		int ordinal = prepareWinLoss(player);
+		int b = ordinal / BLOCK_SIZE;
+		int i = ordinal % BLOCK_SIZE;
+		wins[b][i] += 1;
+		games[b][i] += 1;
+		streaks[b][i] += 1;
+	}
+
+	/**
+	 * Add 1 to a player's losses
+	 * @param player The player's UUID
+	 */
+	public void addLoss(UUID player){
+		int ordinal = prepareWinLoss(player);
+		int b = ordinal / BLOCK_SIZE;
+		int i = ordinal % BLOCK_SIZE;
+		losses[b][i] += 1;
+		games[b][i] += 1;
+		streaks[b][i] = 0;
+	}
+
+	/**
+	 * Override a player's wins and losses
+	 * @param player The player's UUID
+	 * @param wins Number of wins
+	 * @param losses Number of losses
+	 */
+	public void setStats(UUID player, int wins, int losses){
+		int ordinal = getOrAdd(player);
+		int b = writableBlock(ordinal);
+		int i = ordinal % BLOCK_SIZE;
+		this.wins[b][i] = wins;
+		this.losses[b][i] = losses;
+		games[b][i] = Math.max(wins, 0) + Math.max(losses, 0);
+	}
+
+	/**
+	 * Copy a player's statistics, for restoring them later
+	 * @param player The player's UUID
+	 * @return Wins, losses, games and streak
+	 */
+	int[] record(UUID player){
+		int ordinal = ordinal(player);
+		if (ordinal == -1){
+			return new int[]{STAT_NOT_SET, STAT_NOT_SET, 0, 0};
+		}
+		int b = ordinal / BLOCK_SIZE;
+		int i = ordinal % BLOCK_SIZE;
+		return new int[]{wins[b][i], losses[b][i], games[b][i], streaks[b][i]};
+	}
+
+	/**
+	 * Restore a player's statistics
+	 * @param player The player's UUID
+	 * @param record Wins, losses, games and streak, as returned by record
+	 */
+	void restore(UUID player, int[] record){
+		int ordinal = getOrAdd(player);
+		int b = writableBlock(ordinal);
+		int i = ordinal % BLOCK_SIZE;
+		wins[b][i] = record[0];
+		losses[b][i] = record[1];
+		games[b][i] = record[2];
+		streaks[b][i] = record[3];
+	}
+
+	/**
+	 * Clear the statistics of all players. The blocks are kept for reuse.
+	 */
+	public void clear(){
+		prepareWrite();
+		if (playersShared){
+			//leave the snapshots' players alone
+			ordinals = new ConcurrentHashMap<UUID, Integer>();
+			players = new UUID[players.length];
+			playersShared = false;
+		} else {
+			ordinals.clear();
+			Arrays.fill(players, 0, count, null);
+		}
+		count = 0;
+	}
+
+	/**
+	 * Get one of a player's statistics
+	 * @param field The blocks of the statistic
+	 * @param player The player's UUID
+	 * @param unset Value if nothing is recorded for the player
+	 * @return The statistic
+	 */
+	private int get(int[][] field, UUID player, int unset){
+		int ordinal = ordinal(player);
+		if (ordinal == -1){
+			return unset;
+		}
+		return field[ordinal / BLOCK_SIZE][ordinal % BLOCK_SIZE];
+	}
+
+	/**
+	 * Make sure the store can be written without changing a snapshot. The first write after a snapshot copies
+	 * the block tables, the blocks themselves are copied by writableBlock.
+	 */
+	private void prepareWrite(){
+		if (frozen){
+			throw new UnsupportedOperationException("Statistics snapshots can't be changed");
+		}
+		if (published != null){
+			wins = wins.clone();
+			losses = losses.clone();
+			games = games.clone();
+			streaks = streaks.clone();
+			published = null;
+		}
+	}
+
+	/**
+	 * Make a player's block of each array writable, copying the blocks a snapshot shares. Call after prepareWrite.
+	 * @param ordinal The player's ordinal
+	 * @return Index of the block
+	 */
+	private int writableBlock(int ordinal){
+		int b = ordinal / BLOCK_SIZE;
+		if (!owned[b]){
+			wins[b] = wins[b].clone();
+			losses[b] = losses[b].clone();
+			games[b] = games[b].clone();
+			streaks[b] = streaks[b].clone();
+			owned[b] = true;
+		}
+		return b;
+	}
+
+	/**
+	 * Prepare a player's data for adding wins and losses.
+	 * @param player The player's UUID
+	 * @return The player's ordinal, its block writable
+	 */
+	private int prepareWinLoss(UUID player){
+		int ordinal = getOrAdd(player);
+		int b = writableBlock(ordinal);
+		int i = ordinal % BLOCK_SIZE;
+		if (wins[b][i] == STAT_NOT_SET){
+			wins[b][i] = 0;
+		}
+		if (losses[b][i] == STAT_NOT_SET){
+			losses[b][i] = 0;
+		}
+		return ordinal;
+	}
+
+	/**
+	 * Get the ordinal of a player, assigning the next one if needed. Prepares the store for writing.
+	 * @param player The player's UUID
+	 * @return The player's ordinal
+	 */
+	private int getOrAdd(UUID player){
+		prepareWrite();
+		int ordinal = ordinal(player);
+		if (ordinal != -1){
+			return ordinal;
+		}
+		if (count == players.length){
+			UUID[] grown = new UUID[players.length * 2];
+			System.arraycopy(players, 0, grown, 0, count);
+			players = grown;
+		}
+		ordinal = count++;
+		int b = ordinal / BLOCK_SIZE;
+		if (b == owned.length){
+			wins = grow(wins);
+			losses = grow(losses);
+			games = grow(games);
+			streaks = grow(streaks);
+			boolean[] grownOwned = new boolean[owned.length * 2];
+			System.arraycopy(owned, 0, grownOwned, 0, b);
+			owned = grownOwned;
+		}
+		if (wins[b] == null){
+			wins[b] = new int[BLOCK_SIZE];
+			losses[b] = new int[BLOCK_SIZE];
+			games[b] = new int[BLOCK_SIZE];
+			streaks[b] = new int[BLOCK_SIZE];
+			owned[b] = true;
+		}
+		ordinals.put(player, ordinal);
+		players[ordinal] = player;
+		writableBlock(ordinal);
+		int i = ordinal % BLOCK_SIZE;
+		wins[b][i] = STAT_NOT_SET;
+		losses[b][i] = STAT_NOT_SET;
+		games[b][i] = 0;
+		streaks[b][i] = 0;
+		return ordinal;
+	}
+
+	/**
+	 * Double the number of blocks of an array
+	 * @param blocks The blocks
+	 * @return The blocks, with room for as many more
+	 */
+	private static int[][] grow(int[][] blocks){
+		int[][] grown = new int[blocks.length * 2][];
+		System.arraycopy(blocks, 0, grown, 0, blocks.length);
+		return grown;
+	}
+}
@@ -0,0 +1,266 @@
+package utool.plugin.kingofthehill.engine;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Runs actions at deadlines on one dedicated thread, instead of polling timers.
+ * Pending actions are kept in a priority queue ordered by deadline, and the thread sleeps until the earliest one.
+ * Each action has a key, and scheduling a key again replaces its pending action, so restarting a timer just reschedules it.
+ * Deadlines are times of the scheduler's clock. Actions run in deadline order, one at a time.
+ * With a VirtualClock there is no thread, and actions run as the clock is advanced.
+ * @author Cory
+ *
+ */
+public class TimerScheduler {
+	/**
+	 * A pending action
+	 */
+	private static class Task implements Comparable<Task> {
+		/**
+		 * Key of the action
+		 */
+		final String key;
+
+		/**
+		 * Time to run the action, from the clock's nanoTime()
+		 */
+		final long deadline;
+
+		/**
+		 * Order the action was scheduled in, which breaks ties between equal deadlines
+		 */
+		final long sequence;
+
+		/**
+		 * The action
+		 */
+		final Runnable action;
+
+		/**
+		 * Constructor
+		 * @param key Key of the action
+		 * @param deadline Time to run the action
+		 * @param sequence Order the action was scheduled in
+		 * @param action The action
+		 */
+		Task(String key, long deadline, long sequence, Runnable action){
+			this.key = key;
+			this.deadline = deadline;
+			this.sequence = sequence;
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(Task other){
+			//compare the difference, nanoTime() may wrap
+			long difference = deadline - other.deadline;
+			if (difference != 0){
+				return difference < 0 ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Pending actions, earliest deadline first
+	 */
+	private final PriorityQueue<Task> queue = new PriorityQueue<Task>();
+
+	/**
+	 * Pending actions by key
+	 */
+	private final HashMap<String, Task> tasks = new HashMap<String, Task>();
+
+	/**
+	 * Name of the timer thread
+	 */
+	private final String name;
+
+	/**
+	 * The clock deadlines are compared to
+	 */
+	private final Clock clock;
+
+	/**
+	 * The timer thread, started with the first action
+	 */
+	private Thread thread;
+
+	/**
+	 * Number of actions scheduled
+	 */
+	private long sequence = 0;
+
+	/**
+	 * True once close() was called
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Constructor for a scheduler using the system clock
+	 * @param name Name of the timer thread
+	 */
+	public TimerScheduler(String name){
+		this(name, Clock.SYSTEM);
+	}
+
+	/**
+	 * Constructor
+	 * @param name Name of the timer thread
+	 * @param clock The clock deadlines are compared to
+	 */
+	public TimerScheduler(String name, Clock clock){
+		this.name = name;
+		this.clock = clock;
+		if (clock instanceof VirtualClock){
+			((VirtualClock)clock).attach(this);
+		}
+	}
+
+	/**
+	 * Get the current time deadlines are compared to
+	 * @return The time from the clock's nanoTime()
+	 */
+	public long now(){
+		return clock.nanoTime();
+	}
+
+	/**
+	 * Run an action at a deadline, replacing the pending action with the same key.
+	 * An action that throws is reported and the scheduler continues.
+	 * @param key Key of the action
+	 * @param deadline Time to run the action, from now(). A past deadline runs the action right away.
+	 * @param action The action
+	 */
+	public synchronized void schedule(String key, long deadline, Runnable action){
+		if (closed){
+			return;
+		}
+		Task old = tasks.remove(key);
+		if (old != null){
+			queue.remove(old);
+		}
+		Task task = new Task(key, deadline, sequence++, action);
+		tasks.put(key, task);
+		queue.add(task);
+		if (thread == null && !(clock instanceof VirtualClock)){
+			thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					runLoop();
+				}
+			}, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Remove the pending action with a key, if any
+	 * @param key Key of the action
+	 */
+	public synchronized void cancel(String key){
+		Task old = tasks.remove(key);
+		if (old != null){
+			queue.remove(old);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Check if an action is pending
+	 * @param key Key of the action
+	 * @return True if the action hasn't run or been cancelled
+	 */
+	public synchronized boolean isScheduled(String key){
+		return tasks.containsKey(key);
+	}
+
+	/**
+	 * Get the number of pending actions
+	 * @return Number of actions
+	 */
+	public synchronized int size(){
+		return queue.size();
+	}
+
+	/**
+	 * Drop the pending actions and stop the timer thread
+	 */
+	public synchronized void close(){
+		closed = true;
+		queue.clear();
+		tasks.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Get the earliest deadline, for a VirtualClock
+	 * @return The deadline, or Long.MAX_VALUE if no action is pending
+	 */
+	synchronized long getNextDeadline(){
+		Task task = queue.peek();
+		return task == null ? Long.MAX_VALUE : task.deadline;
+	}
+
+	/**
+	 * Run the actions whose deadline has come on the calling thread, for a VirtualClock
+	 */
+	void runDue(){
+		while (true){
+			Task task;
+			synchronized (this){
+				task = queue.peek();
+				if (task == null || task.deadline - now() > 0){
+					return;
+				}
+				queue.poll();
+				tasks.remove(task.key);
+			}
+			try {
+				task.action.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Run each action when its deadline comes, until closed
+	 */
+	private void runLoop(){
+		while (true){
+			Task task;
+			synchronized (this){
+				while (true){
+					if (closed){
+						return;
+					}
+					task = queue.peek();
+					long wait = task == null ? 0 : task.deadline - now();
+					if (task != null && wait <= 0){
+						break;
+					}
+					try {
+						if (task == null){
+							wait();
+						} else {
+							wait(wait / 1000000, (int)(wait % 1000000));
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				queue.poll();
+				tasks.remove(task.key);
+			}
+			try {
+				task.action.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package utool.plugin.kingofthehill.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Crash safe storage of a game in a directory.
+ * The game is stored as a binary checkpoint plus an append-only journal of every change since the checkpoint,
+ * written by the engine's EventLog. Restoring reads the checkpoint and replays the journal.
+ * When the journal gets long a new checkpoint is written and the journal starts over.
+ * A small memory mapped value file holds state outside the engine, such as timers.
+ * This class is not thread safe, use it from the thread that changes the engine.
+ * @author Cory
+ *
+ */
+public class TournamentStore {
+	/**
+	 * Number of journal events after which sync() writes a new checkpoint
+	 */
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+
+	/**
+	 * Number of values in the value file
+	 */
+	public static final int VALUE_COUNT = 16;
+
+	/**
+	 * First bytes of a checkpoint file, "KOTH"
+	 */
+	private static final int MAGIC = 0x4B4F5448;
+
+	/**
+	 * Checkpoint format version
+	 */
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Name of the checkpoint file
+	 */
+	private static final String CHECKPOINT = "checkpoint";
+
+	/**
+	 * Name prefix of journal files, followed by the checkpoint generation
+	 */
+	private static final String JOURNAL = "journal-";
+
+	/**
+	 * Name of the value file
+	 */
+	private static final String VALUES = "values";
+
+	/**
+	 * The directory the game is stored in
+	 */
+	private final File directory;
+
+	/**
+	 * Number of journal events after which a new checkpoint is written
+	 */
+	private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+	/**
+	 * The stored engine, or null if not attached
+	 */
+	private KingOfTheHillEngine engine;
+
+	/**
+	 * Generation of the current checkpoint. The journal of a generation only applies to that checkpoint.
+	 */
+	private long generation = 0;
+
+	/**
+	 * The open journal, or null if not attached
+	 */
+	private FileOutputStream journal;
+
+	/**
+	 * The value file, mapped into memory
+	 */
+	private MappedByteBuffer values;
+
+	/**
+	 * Constructor. Nothing is read or written until restore() or attach() is called.
+	 * @param directory The directory to store the game in. It is created if needed.
+	 */
+	public TournamentStore(File directory){
+		this.directory = directory;
+	}
+
+	/**
+	 * Set how many journal events are written before a new checkpoint
+	 * @param events Number of events
+	 */
+	public void setCheckpointInterval(int events){
+		checkpointInterval = events;
+	}
+
+	/**
+	 * Check if a game has been stored
+	 * @return True if restore() will return a game
+	 */
+	public boolean exists(){
+		return new File(directory, CHECKPOINT).isFile();
+	}
+
+	/**
+	 * Read the stored game
+	 * @return The game as it was after the last change written to the journal, or null if no game is stored
+	 * @throws IOException If reading fails or the files are invalid, including a journal that can't be replayed
+	 */
+	public KingOfTheHillEngine restore() throws IOException {
+		File file = new File(directory, CHECKPOINT);
+		if (!file.isFile()){
+			return null;
+		}
+		KingOfTheHillEngine restored = new KingOfTheHillEngine();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			generation = readCheckpoint(in, restored);
+		} finally {
+			in.close();
+		}
+		File journalFile = journalFile(generation);
+		if (journalFile.isFile()){
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), 65536));
+			try {
+				EventLog.read(in).replay(restored);
+			} catch (RuntimeException e) {
+				//well formed, but not a game this checkpoint can reach
+				IOException invalid = new IOException("Invalid journal " + journalFile);
+				invalid.initCause(e);
+				throw invalid;
+			} finally {
+				in.close();
+			}
+		}
+		return restored;
+	}
+
+	/**
+	 * Store an engine. A checkpoint of its current state is written, and every following change is journaled.
+	 * The engine's log is replaced, and its undo history is cleared, since the history isn't stored.
+	 * @param engine The engine
+	 * @throws IOException If writing fails
+	 */
+	public void attach(KingOfTheHillEngine engine) throws IOException {
+		this.engine = engine;
+		checkpoint();
+	}
+
+	/**
+	 * Write changes made since the last call to the journal.
+	 * Call after each change, or each batch of changes. Writes a new checkpoint when the journal gets long.
+	 * @throws IOException If writing fails
+	 */
+	public void sync() throws IOException {
+		if (engine == null){
+			return;
+		}
+		EventLog log = engine.getLog();
+		if (log.size() >= checkpointInterval){
+			checkpoint();
+		} else {
+			log.flush();
+		}
+	}
+
+	/**
+	 * Write a checkpoint of the attached engine and start a new journal.
+	 * The checkpoint is written to a temporary file and renamed, so a crash leaves either the old or the new game.
+	 * @throws IOException If writing fails
+	 */
+	public void checkpoint() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Cannot create " + directory);
+		}
+		long next = generation + 1;
+		File temp = new File(directory, CHECKPOINT + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 65536));
+			writeCheckpoint(out, engine, next);
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+		if (!temp.renameTo(new File(directory, CHECKPOINT))){
+			throw new IOException("Cannot replace the checkpoint in " + directory);
+		}
+
+		closeJournal();
+		generation = next;
+		deleteOldJournals();
+		journal = new FileOutputStream(journalFile(generation));
+		EventLog log = new EventLog();
+		log.attach(new BufferedOutputStream(journal, 8192));
+		engine.setLog(log);
+		engine.forget();
+	}
+
+	/**
+	 * Get a stored value
+	 * @param index Value index, less than VALUE_COUNT
+	 * @return The value, 0 if never set
+	 * @throws IOException If the value file can't be opened
+	 */
+	public long getValue(int index) throws IOException {
+		return values().getLong(index * 8);
+	}
+
+	/**
+	 * Set a stored value. The value is written to memory shared with the file, without a system call.
+	 * @param index Value index, less than VALUE_COUNT
+	 * @param value The value
+	 * @throws IOException If the value file can't be opened
+	 */
+	public void setValue(int index, long value) throws IOException {
+		values().putLong(index * 8, value);
+	}
+
+	/**
+	 * Stop journaling. The stored game is kept.
+	 * @throws IOException If closing the journal fails
+	 */
+	public void close() throws IOException {
+		if (engine != null){
+			engine.getLog().flush();
+			engine.getLog().attach(null);
+			engine = null;
+		}
+		closeJournal();
+		values = null;
+	}
+
+	/**
+	 * Stop journaling and delete the stored game
+	 * @throws IOException If closing the journal fails
+	 */
+	public void delete() throws IOException {
+		close();
+		File[] files = directory.listFiles();
+		if (files != null){
+			for (File f : files){
+				f.delete();
+			}
+		}
+		directory.delete();
+		generation = 0;
+	}
+
+	/**
+	 * Get the value file, mapping it on first use
+	 * @return The mapped value file
+	 * @throws IOException If the file can't be opened
+	 */
+	private MappedByteBuffer values() throws IOException {
+		if (values == null){
+			if (!directory.isDirectory() && !directory.mkdirs()){
+				throw new IOException("Cannot create " + directory);
+			}
+			RandomAccessFile file = new RandomAccessFile(new File(directory, VALUES), "rw");
+			try {
+				values = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, VALUE_COUNT * 8);
+			} finally {
+				//the mapping stays valid after the file is closed
+				file.close();
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Delete the journals of older checkpoints, including any left by a crash while writing a checkpoint
+	 */
+	private void deleteOldJournals(){
+		String current = journalFile(generation).getName();
+		File[] files = directory.listFiles();
+		if (files == null){
+			return;
+		}
+		for (File f : files){
+			if (f.getName().startsWith(JOURNAL) && !f.getName().equals(current)){
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Close the open journal, if any
+	 * @throws IOException If closing fails
+	 */
+	private void closeJournal() throws IOException {
+		if (journal != null){
+			journal.close();
+			journal = null;
+		}
+	}
+
+	/**
+	 * Get the journal file of a checkpoint generation
+	 * @param generation The generation
+	 * @return The journal file
+	 */
+	private File journalFile(long generation){
+		return new File(directory, JOURNAL + generation);
+	}
+
+	/**
+	 * Write a binary checkpoint of a game
+	 * @param out The stream to write to
+	 * @param engine The game
+	 * @param generation Generation of the checkpoint
+	 * @throws IOException If writing fails
+	 */
+	static void writeCheckpoint(DataOutputStream out, KingOfTheHillEngine engine, long generation) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeLong(generation);
+		UUID king = engine.getKing();
+		out.writeBoolean(king != null);
+		if (king != null){
+			writeUUID(out, king);
+		}
+		EventLog.writeVarint(out, engine.getKingWinsStreakCount());
+
+		List<UUID> queue = engine.getQueue();
+		EventLog.writeVarint(out, queue.size());
+		for (UUID p : queue){
+			writeUUID(out, p);
+		}
+
+		PlayerStats stats = engine.getStats();
+		EventLog.writeVarint(out, stats.size());
+		for (int i = 0; i < stats.size(); i++){
+			UUID p = stats.getPlayer(i);
+			writeUUID(out, p);
+			EventLog.writeVarint(out, stats.getWins(p));
+			EventLog.writeVarint(out, stats.getLosses(p));
+			EventLog.writeVarint(out, stats.getGames(p));
+			EventLog.writeVarint(out, stats.getStreak(p));
+		}
+	}
+
+	/**
+	 * Read a binary checkpoint into an engine
+	 * @param in The stream to read from
+	 * @param engine The engine to restore the game into, which must not have a log
+	 * @return Generation of the checkpoint
+	 * @throws IOException If reading fails or the data isn't a checkpoint
+	 */
+	static long readCheckpoint(DataInputStream in, KingOfTheHillEngine engine) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION){
+			throw new IOException("Not a game checkpoint");
+		}
+		long generation = in.readLong();
+		UUID king = in.readBoolean() ? readUUID(in) : null;
+		int kingWins = EventLog.readVarint(in);
+
+		int size = readSize(in);
+		List<UUID> queue = new ArrayList<UUID>(Math.min(size, 1024));
+		for (int i = 0; i < size; i++){
+			queue.add(readUUID(in));
+		}
+		engine.restart(king, queue);
+		engine.setKingWinsStreakCount(kingWins);
+
+		PlayerStats stats = engine.getStats();
+		int[] record = new int[4];
+		size = readSize(in);
+		for (int i = 0; i < size; i++){
+			UUID p = readUUID(in);
+			for (int j = 0; j < record.length; j++){
+				record[j] = EventLog.readVarint(in);
+			}
+			stats.restore(p, record);
+		}
+		engine.forget();
+		return generation;
+	}
+
+	/**
+	 * Read the length of a list in a checkpoint
+	 * @param in The stream to read from
+	 * @return The length
+	 * @throws IOException If reading fails or the length is negative
+	 */
+	private static int readSize(DataInputStream in) throws IOException {
+		int size = EventLog.readVarint(in);
+		if (size < 0){
+			throw new IOException("Invalid checkpoint list length " + size);
+		}
+		return size;
+	}
+
+	/**
+	 * Write a UUID as 16 bytes
+	 * @param out The stream
+	 * @param player The UUID
+	 * @throws IOException If writing fails
+	 */
+	private static void writeUUID(DataOutputStream out, UUID player) throws IOException {
+		out.writeLong(player.getMostSignificantBits());
+		out.writeLong(player.getLeastSignificantBits());
+	}
+
+	/**
+	 * Read a UUID written by writeUUID
+	 * @param in The stream
+	 * @return The UUID
+	 * @throws IOException If reading fails
+	 */
+	private static UUID readUUID(DataInputStream in) throws IOException {
+		return new UUID(in.readLong(), in.readLong());
+	}
+}
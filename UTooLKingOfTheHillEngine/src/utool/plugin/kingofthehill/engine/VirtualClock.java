@@ -0,0 +1,100 @@
+package utool.plugin.kingofthehill.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock that only moves when told to, for simulating tournaments faster than real time.
+ * Timer schedulers using it have no thread of their own. When the clock is advanced, their actions run on the
+ * advancing thread in deadline order, each with the clock set to its deadline, so hours of timers take milliseconds.
+ * @author Cory
+ *
+ */
+public class VirtualClock implements Clock {
+	/**
+	 * The current time in nanoseconds
+	 */
+	private long nanos;
+
+	/**
+	 * Wall clock time at nanoTime() 0, in milliseconds since the epoch
+	 */
+	private final long epochMillis;
+
+	/**
+	 * Schedulers whose actions run when the clock advances
+	 */
+	private final List<TimerScheduler> schedulers = new ArrayList<TimerScheduler>();
+
+	/**
+	 * Constructor for a clock starting at nanoTime() 0 and the current wall clock time
+	 */
+	public VirtualClock(){
+		this(System.currentTimeMillis());
+	}
+
+	/**
+	 * Constructor for a clock starting at nanoTime() 0
+	 * @param epochMillis Wall clock time at nanoTime() 0, in milliseconds since the epoch
+	 */
+	public VirtualClock(long epochMillis){
+		this.epochMillis = epochMillis;
+	}
+
+	@Override
+	public synchronized long nanoTime(){
+		return nanos;
+	}
+
+	@Override
+	public long currentTimeMillis(){
+		return epochMillis + nanoTime() / 1000000;
+	}
+
+	/**
+	 * Move the clock forward, running the scheduled actions that come due on the way
+	 * @param duration Time to move forward
+	 * @param unit Unit of the duration
+	 */
+	public void advance(long duration, TimeUnit unit){
+		long target = nanoTime() + unit.toNanos(duration);
+		while (true){
+			TimerScheduler next = null;
+			long deadline = target;
+			for (TimerScheduler scheduler : getSchedulers()){
+				long d = scheduler.getNextDeadline();
+				if (d <= deadline){
+					next = scheduler;
+					deadline = d;
+				}
+			}
+			if (next == null){
+				break;
+			}
+			synchronized (this){
+				nanos = Math.max(nanos, deadline);
+			}
+			next.runDue();
+		}
+		synchronized (this){
+			nanos = target;
+		}
+	}
+
+	/**
+	 * Add a scheduler whose actions run when the clock advances
+	 * @param scheduler The scheduler
+	 */
+	synchronized void attach(TimerScheduler scheduler){
+		schedulers.add(scheduler);
+	}
+
+	/**
+	 * Get the attached schedulers
+	 * @return Copy of the list of schedulers
+	 */
+	private synchronized List<TimerScheduler> getSchedulers(){
+		return new ArrayList<TimerScheduler>(schedulers);
+	}
+}
@@ -0,0 +1,210 @@
+package utool.plugin.kingofthehill.test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+import utool.networking.XmlMessageTypeException;
+import utool.plugin.kingofthehill.communications.BinaryGameStateCodec;
+import utool.plugin.kingofthehill.communications.GameStateMessage;
+import utool.plugin.kingofthehill.engine.GameChange;
+import utool.plugin.kingofthehill.engine.KingOfTheHillEngine;
+
+/**
+ * Tests for the binary game state encoding
+ * @author Cory
+ *
+ */
+public class BinaryGameStateCodecTest extends TestCase {
+
+	/**
+	 * Codec of the host
+	 */
+	BinaryGameStateCodec codec;
+
+	/**
+	 * Codec of a participant
+	 */
+	BinaryGameStateCodec receiver;
+
+	/**
+	 * Base list of players
+	 */
+	List<UUID> players;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		codec = new BinaryGameStateCodec();
+		receiver = new BinaryGameStateCodec();
+		players = new ArrayList<UUID>();
+		for (int i = 0; i < 5; i++){
+			players.add(UUID.randomUUID());
+		}
+	}
+
+	/**
+	 * A full game state survives a round trip, including players without a score
+	 * @throws Exception When something bad happens
+	 */
+	public void testGameState() throws Exception{
+		KingOfTheHillEngine engine = new KingOfTheHillEngine(players.get(0), players.subList(1, players.size()));
+		engine.setStats(players.get(0), 5, 1);
+		engine.setStats(players.get(2), 0, 3);
+		engine.setKingWinsStreakCount(2);
+		GameStateMessage m1 = new GameStateMessage(engine.snapshot(), engine.getStats(), 600, -1);
+		String text = codec.encode(m1);
+		assertTrue(BinaryGameStateCodec.isEncoded(text));
+		assertFalse(BinaryGameStateCodec.isEncoded(m1.getXml()));
+
+		GameStateMessage m2 = receiver.decode(text);
+		assertEquals(GameStateMessage.MessageType.GameState, m2.getMessageType());
+		assertEquals(m1.getVersion(), m2.getVersion());
+		assertEquals(600, m2.getGameTimeRemaining());
+		assertEquals(-1, m2.getRoundTimeRemaining());
+		assertEquals(players.get(0), m2.getKing());
+		assertEquals(2, m2.getKingWins());
+		assertEquals(m1.getPlayerList(), m2.getPlayerList());
+		assertEquals(5, m2.getPlayerExtras().get(players.get(0)).getWins());
+		assertEquals(3, m2.getPlayerExtras().get(players.get(2)).getLosses());
+		assertNull(m2.getPlayerExtras().get(players.get(1)));
+	}
+
+	/**
+	 * Timer ends survive a round trip in both encodings, and are absent unless set
+	 * @throws Exception When something bad happens
+	 */
+	public void testTimerEnds() throws Exception{
+		KingOfTheHillEngine engine = new KingOfTheHillEngine(players.get(0), players.subList(1, players.size()));
+		GameStateMessage m1 = new GameStateMessage(engine.snapshot(), engine.getStats(), 600, -1);
+		assertEquals(GameStateMessage.NO_DEADLINE, receiver.decode(codec.encode(m1)).getGameTimerEnd());
+
+		m1.setTimerEnds(-123456789012L, GameStateMessage.NO_DEADLINE);
+		GameStateMessage m2 = receiver.decode(codec.encode(m1));
+		assertEquals(-123456789012L, m2.getGameTimerEnd());
+		assertEquals(GameStateMessage.NO_DEADLINE, m2.getRoundTimerEnd());
+		assertEquals(600, m2.getGameTimeRemaining());
+		m2 = new GameStateMessage(m1.getXml());
+		assertEquals(-123456789012L, m2.getGameTimerEnd());
+		assertEquals(GameStateMessage.NO_DEADLINE, m2.getRoundTimerEnd());
+	}
+
+	/**
+	 * Every kind of change survives a round trip through a buffer
+	 * @throws Exception When something bad happens
+	 */
+	public void testDelta() throws Exception{
+		UUID p1 = players.get(0);
+		UUID p2 = players.get(1);
+		List<GameChange> changes = Arrays.asList(GameChange.rotate(), GameChange.dethrone(), GameChange.move(p1, -1),
+				GameChange.stats(p2, 3, 4), GameChange.join(Arrays.asList(p1, p2)), GameChange.leave(Arrays.asList(p2)),
+				GameChange.king(p1), GameChange.streak(2));
+		ByteBuffer buffer = codec.write(new GameStateMessage(7, 300, changes, 100, 50));
+		GameStateMessage m2 = receiver.read(buffer);
+		assertFalse(buffer.hasRemaining());
+		assertEquals(GameStateMessage.MessageType.GameStateDelta, m2.getMessageType());
+		assertEquals(7, m2.getBaseVersion());
+		assertEquals(300, m2.getVersion());
+		assertEquals(changes.size(), m2.getChanges().size());
+		for (int i = 0; i < changes.size(); i++){
+			GameChange expected = changes.get(i);
+			GameChange actual = m2.getChanges().get(i);
+			assertEquals(expected.getType(), actual.getType());
+			assertEquals(expected.getPlayer(), actual.getPlayer());
+			assertEquals(expected.getPlayers(), actual.getPlayers());
+			assertEquals(expected.getPosition(), actual.getPosition());
+			assertEquals(expected.getLosses(), actual.getLosses());
+		}
+	}
+
+	/**
+	 * Requests carry the binary capability in both encodings, and old requests don't have it
+	 * @throws Exception When something bad happens
+	 */
+	public void testCapability() throws Exception{
+		GameStateMessage request = new GameStateMessage(12);
+		assertFalse(new GameStateMessage(request.getXml()).acceptsBinary());
+		request.setAcceptsBinary(true);
+		assertTrue(new GameStateMessage(request.getXml()).acceptsBinary());
+		GameStateMessage decoded = receiver.decode(codec.encode(request));
+		assertTrue(decoded.acceptsBinary());
+		assertEquals(GameStateMessage.MessageType.RequestChanges, decoded.getMessageType());
+		assertEquals(12, decoded.getVersion());
+	}
+
+	/**
+	 * Players are sent once, and a participant that missed them gets them again when it asks
+	 * @throws Exception When something bad happens
+	 */
+	public void testDictionary() throws Exception{
+		KingOfTheHillEngine engine = new KingOfTheHillEngine(players.get(0), players.subList(1, players.size()));
+		GameStateMessage state = new GameStateMessage(engine.snapshot(), engine.getStats(), 0, 0);
+		String first = codec.encode(state);
+		assertNotNull(receiver.decode(first));
+		String second = codec.encode(state);
+		assertTrue(second.length() < first.length() / 2);
+		assertEquals(players.subList(1, players.size()), receiver.decode(second).getPlayerList());
+
+		//a join the participant misses
+		UUID joined = UUID.randomUUID();
+		codec.encode(new GameStateMessage(1, 2, Arrays.asList(GameChange.join(Arrays.asList(joined))), 0, 0));
+		GameStateMessage delta = new GameStateMessage(2, 3, Arrays.asList(GameChange.king(joined)), 0, 0);
+		assertNull(receiver.decode(codec.encode(delta)));
+
+		GameStateMessage request = new GameStateMessage(1);
+		receiver.addKnownPlayers(request);
+		request = new GameStateMessage(request.getXml());
+		assertEquals(players.size(), request.getKnownPlayers());
+		assertEquals(joined, receiver.decode(codec.encode(delta, request)).getChanges().get(0).getPlayer());
+
+		//a participant from another session needs the whole dictionary
+		BinaryGameStateCodec other = new BinaryGameStateCodec();
+		assertNull(other.decode(codec.encode(state)));
+		request = new GameStateMessage();
+		other.addKnownPlayers(request);
+		assertEquals(players.get(0), other.decode(codec.encode(state, request)).getKing());
+		assertEquals(players.get(0), new BinaryGameStateCodec().decode(codec.encodeComplete(state)).getKing());
+	}
+
+	/**
+	 * The remaining times of a cached message can be replaced in both encodings without changing the rest
+	 * @throws Exception When something bad happens
+	 */
+	public void testRemainingTimes() throws Exception{
+		KingOfTheHillEngine engine = new KingOfTheHillEngine(players.get(0), players.subList(1, players.size()));
+		engine.setStats(players.get(1), 3, 2);
+		GameStateMessage state = new GameStateMessage(engine.snapshot(), engine.getStats(), 600, 90);
+		state.setTimerEnds(123456789L, 987654L);
+
+		GameStateMessage binary = receiver.decode(BinaryGameStateCodec.setRemainingTimes(codec.encodeComplete(state), 12345, -1));
+		assertEquals(12345, binary.getGameTimeRemaining());
+		assertEquals(-1, binary.getRoundTimeRemaining());
+		assertEquals(123456789L, binary.getGameTimerEnd());
+		assertEquals(players.get(0), binary.getKing());
+		assertEquals(players.subList(1, players.size()), binary.getPlayerList());
+		assertEquals(3, binary.getPlayerExtras().get(players.get(1)).getWins());
+
+		GameStateMessage xml = new GameStateMessage(GameStateMessage.setRemainingTimes(state.getXml(), 599, 0));
+		assertEquals(599, xml.getGameTimeRemaining());
+		assertEquals(0, xml.getRoundTimeRemaining());
+		assertEquals(987654L, xml.getRoundTimerEnd());
+		assertEquals(players.get(0), xml.getKing());
+		assertEquals(players.subList(1, players.size()), xml.getPlayerList());
+	}
+
+	/**
+	 * A message cut short is rejected
+	 */
+	public void testTruncated(){
+		ByteBuffer buffer = codec.write(new GameStateMessage(1, 2, Arrays.asList(GameChange.king(players.get(0))), 0, 0));
+		buffer.limit(buffer.limit() - 1);
+		try {
+			receiver.read(buffer);
+			fail("Truncated message was read");
+		} catch (XmlMessageTypeException e) {
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.engine.ChangeBuffer;
+import utool.plugin.kingofthehill.engine.GameChange;
+
+/**
+ * Tests for the ring buffer of recent changes
+ * @author Cory
+ *
+ */
+public class ChangeBufferTest extends TestCase {
+
+	/**
+	 * Buffer instance
+	 */
+	ChangeBuffer buffer;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		buffer = new ChangeBuffer(4);
+	}
+
+	/**
+	 * Changes since a version are joined in order
+	 */
+	public void testSince(){
+		buffer.add(1, 2, Arrays.asList(GameChange.rotate()));
+		buffer.add(2, 3, Arrays.asList(GameChange.dethrone(), GameChange.streak(1)));
+		buffer.add(3, 3, Arrays.<GameChange>asList());
+		buffer.add(3, 4, Arrays.asList(GameChange.rotate()));
+
+		List<GameChange> changes = buffer.since(2);
+		assertEquals(3, changes.size());
+		assertEquals(GameChange.DETHRONE, changes.get(0).getType());
+		assertEquals(GameChange.ROTATE, changes.get(2).getType());
+		assertEquals(4, buffer.since(1).size());
+		assertTrue(buffer.since(4).isEmpty());
+		assertNull(buffer.since(0));
+		assertEquals(4, buffer.getLatestVersion());
+	}
+
+	/**
+	 * Old versions are dropped, and versions before a change that can't be sent as a delta are forgotten
+	 */
+	public void testBounds(){
+		for (int v = 1; v <= 10; v++){
+			buffer.add(v - 1, v, Arrays.asList(GameChange.rotate()));
+		}
+		assertNull(buffer.since(5));
+		assertEquals(4, buffer.since(6).size());
+
+		buffer.add(10, 11, null);
+		assertNull(buffer.since(10));
+		buffer.add(11, 12, Arrays.asList(GameChange.rotate()));
+		assertEquals(1, buffer.since(11).size());
+
+		//a jump in versions, such as a restored game, starts over
+		buffer.add(1, 2, Arrays.asList(GameChange.rotate()));
+		assertNull(buffer.since(11));
+		assertEquals(1, buffer.since(1).size());
+	}
+}
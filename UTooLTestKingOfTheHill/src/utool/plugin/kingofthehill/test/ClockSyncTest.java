@@ -0,0 +1,73 @@
+package utool.plugin.kingofthehill.test;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.communications.ClockMessage;
+import utool.plugin.kingofthehill.communications.ClockSync;
+import utool.plugin.kingofthehill.communications.MessageDispatcher;
+
+/**
+ * Tests for the clock offset measurement
+ * @author Cory
+ *
+ */
+public class ClockSyncTest extends TestCase {
+
+	/**
+	 * A symmetric round trip gives the exact offset, and the shortest round trip wins
+	 */
+	public void testOffset(){
+		ClockSync clock = new ClockSync();
+		assertFalse(clock.isSynchronized());
+
+		//host is 5000 ms ahead, 20 ms each way, 2 ms to answer
+		clock.addSample(1000, 6020, 6022, 1042);
+		assertTrue(clock.isSynchronized());
+		assertEquals(5000, clock.getOffset());
+		assertEquals(40, clock.getDelay());
+		assertEquals(1000, clock.toLocalTime(6000));
+
+		//a slow, lopsided round trip is ignored
+		clock.addSample(2000, 7300, 7300, 2400);
+		assertEquals(5000, clock.getOffset());
+
+		//a faster one replaces the estimate
+		clock.addSample(3000, 8006, 8006, 3010);
+		assertEquals(5001, clock.getOffset());
+		assertEquals(10, clock.getDelay());
+		assertEquals(3, clock.getSampleCount());
+	}
+
+	/**
+	 * Only the last SAMPLES measurements count
+	 */
+	public void testWindow(){
+		ClockSync clock = new ClockSync();
+		clock.addSample(0, 100, 100, 2);
+		for (int i = 1; i < ClockSync.SAMPLES; i++){
+			clock.addSample(0, 200, 200, 50);
+		}
+		assertEquals(99, clock.getOffset());
+		clock.addSample(0, 200, 200, 50);
+		assertEquals(175, clock.getOffset());
+	}
+
+	/**
+	 * Requests and answers survive a round trip
+	 * @throws Exception When something bad happens
+	 */
+	public void testMessage() throws Exception{
+		ClockMessage request = new ClockMessage(-42, 1000);
+		assertEquals(ClockMessage.ROOT_TAG, MessageDispatcher.rootTag(request.getXml()));
+		ClockMessage read = new ClockMessage(request.getXml());
+		assertFalse(read.isReply());
+		assertEquals(-42, read.getId());
+		assertEquals(1000, read.getRequested());
+
+		ClockMessage reply = new ClockMessage(read.reply(6020, 6022).getXml());
+		assertTrue(reply.isReply());
+		assertEquals(-42, reply.getId());
+		assertEquals(1000, reply.getRequested());
+		assertEquals(6020, reply.getReceived());
+		assertEquals(6022, reply.getReplied());
+	}
+}
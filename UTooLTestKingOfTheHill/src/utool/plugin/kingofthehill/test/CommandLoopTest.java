@@ -0,0 +1,132 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.engine.CommandLoop;
+
+/**
+ * Tests for the single writer command loop
+ * @author Cory
+ *
+ */
+public class CommandLoopTest extends TestCase {
+
+	/**
+	 * Loop instance
+	 */
+	CommandLoop loop;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		loop = new CommandLoop("test loop");
+	}
+
+	@Override
+	protected void tearDown() throws Exception{
+		loop.shutdown();
+		super.tearDown();
+	}
+
+	/**
+	 * Commands from several threads run one at a time on the loop thread, in the order each thread submitted them
+	 * @throws Exception When something bad happens
+	 */
+	public void testSingleWriter() throws Exception{
+		final List<Integer> applied = new ArrayList<Integer>();
+		final boolean[] wrongThread = new boolean[1];
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++){
+			final int writer = t;
+			writers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 500; i++){
+						final int value = writer * 1000 + i;
+						loop.post(new Runnable() {
+							@Override
+							public void run() {
+								if (!loop.isLoopThread()){
+									wrongThread[0] = true;
+								}
+								applied.add(value);
+							}
+						});
+					}
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread t : writers){
+			t.join();
+		}
+
+		int size = loop.call(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return applied.size();
+			}
+		});
+		assertEquals(2000, size);
+		assertFalse(wrongThread[0]);
+		int[] last = {-1, -1, -1, -1};
+		for (int value : applied){
+			assertTrue(value % 1000 > last[value / 1000]);
+			last[value / 1000] = value % 1000;
+		}
+	}
+
+	/**
+	 * Commands can submit commands without deadlocking, and exceptions reach the waiting caller
+	 */
+	public void testNestedCallsAndErrors(){
+		int result = loop.call(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return loop.call(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return 42;
+					}
+				});
+			}
+		});
+		assertEquals(42, result);
+
+		try {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					throw new IllegalStateException("expected");
+				}
+			});
+			fail("Exception not passed to the caller");
+		} catch (IllegalStateException e) {
+		}
+
+		//the loop is still running
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+	}
+
+	/**
+	 * Commands posted after shutdown are dropped instead of failing the caller
+	 */
+	public void testPostAfterShutdown(){
+		final boolean[] ran = new boolean[1];
+		loop.shutdown();
+		loop.post(new Runnable() {
+			@Override
+			public void run() {
+				ran[0] = true;
+			}
+		});
+		assertFalse(ran[0]);
+	}
+}
@@ -0,0 +1,296 @@
+package utool.plugin.kingofthehill.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.engine.EventLog;
+import utool.plugin.kingofthehill.engine.GameChange;
+import utool.plugin.kingofthehill.engine.KingOfTheHillEngine;
+
+/**
+ * Tests for recording and replaying the game event log
+ * @author Cory
+ *
+ */
+public class EventLogTest extends TestCase {
+
+	/**
+	 * Base list of players
+	 */
+	List<UUID> players;
+
+	/**
+	 * Engine recording to the log
+	 */
+	KingOfTheHillEngine engine;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		players = new ArrayList<UUID>();
+		for (int i = 0; i < 20; i++){
+			players.add(UUID.randomUUID());
+		}
+		engine = new KingOfTheHillEngine();
+		engine.setLog(new EventLog());
+		engine.restart(players.get(0), players);
+	}
+
+	/**
+	 * Check that two engines have the same game
+	 * @param expected The original engine
+	 * @param actual The rebuilt engine
+	 */
+	private void assertSameGame(KingOfTheHillEngine expected, KingOfTheHillEngine actual){
+		assertEquals(expected.getKing(), actual.getKing());
+		assertEquals(expected.getQueue(), actual.getQueue());
+		assertEquals(expected.getKingWinsStreakCount(), actual.getKingWinsStreakCount());
+		for (UUID p : players){
+			assertEquals(expected.getWins(p), actual.getWins(p));
+			assertEquals(expected.getLosses(p), actual.getLosses(p));
+		}
+	}
+
+	/**
+	 * Play a random game
+	 * @param random Random source
+	 * @param operations Number of operations
+	 */
+	private void play(Random random, int operations){
+		for (int i = 0; i < operations; i++){
+			int op = random.nextInt(12);
+			UUID p = players.get(random.nextInt(players.size()));
+			if (op < 4){
+				engine.moveKingToEnd();
+			} else if (op < 8){
+				engine.moveChallengerToEnd();
+			} else if (op == 8 && engine.contains(p)){
+				engine.movePlayer(p, random.nextInt(engine.getQueueSize() + 1) - 1);
+			} else if (op == 9){
+				engine.setStats(p, random.nextInt(10), random.nextInt(10));
+			} else if (op == 10){
+				engine.undo();
+			} else {
+				engine.redo();
+			}
+		}
+		List<UUID> order = engine.getQueue();
+		List<UUID> shuffled = new ArrayList<UUID>(order);
+		Collections.shuffle(shuffled, random);
+		engine.reorderQueue(shuffled);
+		engine.updatePlayerList(players.subList(1, players.size()));
+	}
+
+	/**
+	 * Replaying the in memory log rebuilds the game
+	 */
+	public void testReplay(){
+		play(new Random(1), 2000);
+
+		KingOfTheHillEngine rebuilt = new KingOfTheHillEngine();
+		engine.getLog().replay(rebuilt);
+		assertSameGame(engine, rebuilt);
+	}
+
+	/**
+	 * The log survives a round trip through a stream, and a partly written last event is ignored
+	 * @throws Exception When something bad happens
+	 */
+	public void testStream() throws Exception{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		engine.getLog().attach(out);
+		play(new Random(2), 500);
+		engine.getLog().flush();
+		int events = engine.getLog().size();
+
+		KingOfTheHillEngine rebuilt = new KingOfTheHillEngine();
+		EventLog.read(new ByteArrayInputStream(out.toByteArray())).replay(rebuilt);
+		assertSameGame(engine, rebuilt);
+
+		engine.setStats(players.get(3), 100, 100);
+		engine.getLog().flush();
+		byte[] torn = out.toByteArray();
+		EventLog read = EventLog.read(new ByteArrayInputStream(torn, 0, torn.length - 1));
+		assertEquals(events, read.size());
+	}
+
+	/**
+	 * Write a zigzag encoded variable length integer, as the log does
+	 * @param out The stream
+	 * @param value The value
+	 */
+	private static void varint(ByteArrayOutputStream out, int value){
+		int v = (value << 1) ^ (value >> 31);
+		while ((v & ~0x7F) != 0){
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	/**
+	 * Check that reading a damaged log fails with an IOException
+	 * @param values The damaged log
+	 */
+	private static void assertDamaged(int... values){
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int v : values){
+			varint(out, v);
+		}
+		try {
+			EventLog.read(new ByteArrayInputStream(out.toByteArray()));
+			fail("Damaged log was read");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * Damaged logs fail to read with an IOException, and a damaged list length doesn't allocate past the data
+	 * @throws Exception When something bad happens
+	 */
+	public void testDamagedStream() throws Exception{
+		assertDamaged(30);
+		assertDamaged(EventLog.ADD_PLAYERS, -5);
+		assertDamaged(EventLog.RESTART, 0);
+		assertDamaged(EventLog.SET_KING, 3);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		varint(out, EventLog.UPDATE_PLAYERS);
+		varint(out, Integer.MAX_VALUE - 10);
+		varint(out, -1);
+		assertEquals(0, EventLog.read(new ByteArrayInputStream(out.toByteArray())).size());
+	}
+
+	/**
+	 * A roster update is recorded as one event that replays into the same game, and an update that changes nothing
+	 * isn't recorded
+	 */
+	public void testUpdatePlayers(){
+		engine.moveChallengerToEnd();
+		List<UUID> roster = new ArrayList<UUID>(players.subList(2, players.size()));
+		UUID joined = UUID.randomUUID();
+		roster.add(joined);
+		players.add(joined);
+
+		int size = engine.getLog().size();
+		List<UUID> removed = engine.updatePlayerList(roster);
+		assertEquals(2, removed.size());
+		assertEquals(size + 1, engine.getLog().size());
+		engine.updatePlayerList(roster);
+		assertEquals(size + 1, engine.getLog().size());
+
+		KingOfTheHillEngine rebuilt = new KingOfTheHillEngine();
+		engine.getLog().replay(rebuilt);
+		assertSameGame(engine, rebuilt);
+		assertTrue(rebuilt.contains(joined));
+		assertFalse(rebuilt.contains(players.get(0)));
+	}
+
+	/**
+	 * A 100k match session replays into the same game
+	 */
+	public void testLongReplay(){
+		for (int i = 0; i < 100000; i++){
+			if (i % 3 == 0){
+				engine.moveKingToEnd();
+			} else {
+				engine.moveChallengerToEnd();
+			}
+		}
+		KingOfTheHillEngine rebuilt = new KingOfTheHillEngine();
+		engine.getLog().replay(rebuilt);
+		assertSameGame(engine, rebuilt);
+	}
+
+	/**
+	 * Changes taken from the log turn a copy of the game into the same game
+	 */
+	public void testChanges(){
+		play(new Random(5), 200);
+		KingOfTheHillEngine copy = new KingOfTheHillEngine();
+		engine.getLog().replay(copy);
+
+		int mark = engine.getLog().mark();
+		engine.moveChallengerToEnd();
+		engine.moveKingToEnd();
+		engine.movePlayer(engine.getQueuedPlayer(3), 0);
+		engine.setStats(players.get(5), 7, 2);
+		engine.setKing(engine.getQueuedPlayer(2));
+		engine.setKingWinsStreakCount(4);
+		List<UUID> updated = new ArrayList<UUID>(players.subList(3, players.size()));
+		updated.add(UUID.randomUUID());
+		engine.updatePlayerList(updated);
+		players.addAll(updated);
+
+		List<GameChange> changes = engine.getLog().changesSince(mark);
+		assertEquals(8, changes.size());
+		assertEquals(GameChange.ROTATE, changes.get(0).getType());
+		assertEquals(GameChange.DETHRONE, changes.get(1).getType());
+		assertEquals(GameChange.JOIN, changes.get(6).getType());
+		assertEquals(GameChange.LEAVE, changes.get(7).getType());
+		for (GameChange change : changes){
+			change.applyTo(copy);
+		}
+		assertSameGame(engine, copy);
+
+		//changes without a matching delta need the whole game
+		mark = engine.getLog().mark();
+		engine.reorderQueue(engine.getQueue());
+		assertNull(engine.getLog().changesSince(mark));
+	}
+
+	/**
+	 * Undo and redo are sent as changes that turn a copy of the game into the same game
+	 * @throws Exception When something bad happens
+	 */
+	public void testUndoChanges() throws Exception{
+		KingOfTheHillEngine copy = new KingOfTheHillEngine();
+		engine.getLog().replay(copy);
+		Random random = new Random(6);
+		for (int i = 0; i < 2000; i++){
+			int mark = engine.getLog().mark();
+			int op = random.nextInt(8);
+			UUID p = players.get(random.nextInt(players.size()));
+			if (op == 0){
+				engine.moveKingToEnd();
+			} else if (op == 1){
+				engine.moveChallengerToEnd();
+			} else if (op == 2){
+				engine.movePlayer(p, random.nextInt(engine.getQueueSize() + 1) - 1);
+			} else if (op == 3){
+				engine.setStats(p, random.nextInt(10), random.nextInt(10));
+			} else if (op == 4){
+				engine.setKing(p);
+			} else if (op == 5){
+				engine.setKingWinsStreakCount(random.nextInt(5));
+			} else if (op == 6){
+				engine.undo();
+			} else {
+				engine.redo();
+			}
+			List<GameChange> changes = engine.getLog().changesSince(mark);
+			assertNotNull(changes);
+			for (GameChange change : changes){
+				change.applyTo(copy);
+			}
+			assertSameGame(engine, copy);
+		}
+
+		//a log read from a stream only has the undo event, which needs the whole game
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		engine.getLog().attach(out);
+		engine.moveKingToEnd();
+		engine.undo();
+		engine.getLog().flush();
+		EventLog read = EventLog.read(new ByteArrayInputStream(out.toByteArray()));
+		assertNull(read.changesSince(read.mark() - 1));
+	}
+}
@@ -0,0 +1,63 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.communications.BinaryGameStateCodec;
+import utool.plugin.kingofthehill.communications.GameStateMessage;
+import utool.plugin.kingofthehill.engine.KingOfTheHillEngine;
+
+/**
+ * Tests comparing the XML and binary encodings of a full game state, from a small game to a large one.
+ * Checks the sizes of the encodings and that both read back the same game.
+ * @author Cory
+ *
+ */
+public class GameStateCodecBenchmarkTest extends TestCase {
+
+	/**
+	 * Game sizes to check
+	 */
+	private static final int[] SIZES = {16, 250, 2500};
+
+	/**
+	 * Build a game state message with every player scored
+	 * @param size Number of players
+	 * @return The message
+	 */
+	private GameStateMessage message(int size){
+		List<UUID> players = new ArrayList<UUID>(size);
+		for (int i = 0; i < size; i++){
+			players.add(UUID.randomUUID());
+		}
+		KingOfTheHillEngine engine = new KingOfTheHillEngine(players.get(0), players.subList(1, size));
+		for (int i = 0; i < size; i++){
+			engine.setStats(players.get(i), i % 50, i % 7);
+		}
+		return new GameStateMessage(engine.snapshot(), engine.getStats(), 3600, 300);
+	}
+
+	/**
+	 * Binary messages should be much smaller than XML, and smaller again once the receiver knows the players
+	 * @throws Exception When something bad happens
+	 */
+	public void testCodecs() throws Exception{
+		for (int size : SIZES){
+			BinaryGameStateCodec codec = new BinaryGameStateCodec();
+			BinaryGameStateCodec receiver = new BinaryGameStateCodec();
+			GameStateMessage message = message(size);
+			String xml = message.getXml();
+			assertEquals(size - 1, new GameStateMessage(xml).getPlayerList().size());
+
+			String first = codec.encode(message);
+			assertEquals(message.getPlayerList(), receiver.decode(first).getPlayerList());
+			String binary = codec.encode(message);
+			assertEquals(message.getPlayerList(), receiver.decode(binary).getPlayerList());
+
+			assertTrue(first.length() < xml.length() / 2);
+			assertTrue(binary.length() < first.length() / 2);
+		}
+	}
+}
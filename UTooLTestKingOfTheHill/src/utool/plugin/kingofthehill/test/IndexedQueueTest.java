@@ -0,0 +1,149 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.engine.IndexedQueue;
+
+/**
+ * Tests for the indexed player queue
+ * @author Cory
+ *
+ */
+public class IndexedQueueTest extends TestCase {
+
+	/**
+	 * Queue instance
+	 */
+	IndexedQueue queue;
+
+	/**
+	 * Base list of players
+	 */
+	List<UUID> players;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		players = new ArrayList<UUID>();
+		for (int i = 0; i < 5; i++){
+			players.add(UUID.randomUUID());
+		}
+		queue = new IndexedQueue(players);
+	}
+
+	/**
+	 * Test positional and rank lookups
+	 */
+	public void testLookups(){
+		assertEquals(5, queue.size());
+		for (int i = 0; i < players.size(); i++){
+			assertEquals(players.get(i), queue.get(i));
+			assertEquals(i, queue.indexOf(players.get(i)));
+		}
+		assertEquals(-1, queue.indexOf(UUID.randomUUID()));
+		assertEquals(players, queue.toList());
+	}
+
+	/**
+	 * Test moving players around the queue
+	 */
+	public void testMoves(){
+		assertFalse(queue.addLast(players.get(0)));
+		queue.moveToEnd(players.get(0));
+		assertEquals(players.get(1), queue.peekFirst());
+		assertEquals(players.get(0), queue.peekLast());
+
+		queue.move(players.get(0), 2);
+		assertEquals(2, queue.indexOf(players.get(0)));
+
+		assertEquals(players.get(1), queue.pollFirst());
+		assertFalse(queue.contains(players.get(1)));
+		assertEquals(4, queue.size());
+	}
+
+	/**
+	 * Compare against a list with random operations, including enough inserts into one gap to force relabeling
+	 */
+	public void testRandomOperations(){
+		Random random = new Random(42);
+		List<UUID> expected = new ArrayList<UUID>(players);
+		for (int i = 0; i < 5000; i++){
+			int op = random.nextInt(4);
+			if (op == 0){
+				UUID p = UUID.randomUUID();
+				int index = expected.isEmpty() ? 0 : 1 % (expected.size() + 1);
+				queue.add(index, p);
+				expected.add(index, p);
+			} else if (op == 1 && !expected.isEmpty()){
+				UUID p = expected.remove(random.nextInt(expected.size()));
+				assertTrue(queue.remove(p));
+			} else if (op == 2 && !expected.isEmpty()){
+				UUID p = expected.remove(0);
+				expected.add(p);
+				queue.moveToEnd(p);
+			} else if (!expected.isEmpty()){
+				UUID p = expected.remove(random.nextInt(expected.size()));
+				int index = random.nextInt(expected.size() + 1);
+				expected.add(index, p);
+				queue.move(p, index);
+			}
+		}
+		assertEquals(expected, queue.toList());
+		for (int i = 0; i < expected.size(); i++){
+			assertEquals(i, queue.indexOf(expected.get(i)));
+		}
+	}
+
+	/**
+	 * Inserts that keep splitting the same gaps relabel the players around them and keep the order
+	 */
+	public void testCrowdedGaps(){
+		List<UUID> expected = new ArrayList<UUID>(players);
+		List<UUID> snapshot = queue.snapshot();
+		for (int i = 0; i < 3000; i++){
+			UUID p = UUID.randomUUID();
+			int index = i % 3 == 0 ? 0 : i % 3 == 1 ? 2 : expected.size() - 1;
+			queue.add(index, p);
+			expected.add(index, p);
+		}
+		assertEquals(expected, queue.toList());
+		for (int i = 0; i < expected.size(); i++){
+			assertEquals(i, queue.indexOf(expected.get(i)));
+		}
+		assertEquals(players, snapshot);
+	}
+
+	/**
+	 * Snapshots must keep their order while the queue keeps changing, including across relabeling
+	 */
+	public void testSnapshots(){
+		List<UUID> first = queue.snapshot();
+		assertSame(first, queue.snapshot());
+		assertEquals(players, first);
+
+		Random random = new Random(7);
+		List<List<UUID>> snapshots = new ArrayList<List<UUID>>();
+		List<List<UUID>> copies = new ArrayList<List<UUID>>();
+		for (int i = 0; i < 2000; i++){
+			if (random.nextBoolean()){
+				queue.add(1 % (queue.size() + 1), UUID.randomUUID());
+			} else {
+				queue.moveToEnd(queue.peekFirst());
+			}
+			if (i % 100 == 0){
+				List<UUID> snapshot = queue.snapshot();
+				snapshots.add(snapshot);
+				copies.add(new ArrayList<UUID>(snapshot));
+			}
+		}
+		assertEquals(players, first);
+		for (int i = 0; i < snapshots.size(); i++){
+			assertEquals(copies.get(i), snapshots.get(i));
+		}
+		assertEquals(queue.toList(), queue.snapshot());
+	}
+}
@@ -0,0 +1,270 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.engine.GameSnapshot;
+import utool.plugin.kingofthehill.engine.KingOfTheHillEngine;
+import utool.plugin.kingofthehill.engine.PlayerStats;
+
+/**
+ * Tests for the platform independent KOTH engine. These run on a plain JVM.
+ * @author Cory
+ *
+ */
+public class KingOfTheHillEngineTest extends TestCase {
+
+	/**
+	 * Engine instance
+	 */
+	KingOfTheHillEngine engine;
+
+	/**
+	 * Base list of players
+	 */
+	List<UUID> players;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		players = new LinkedList<UUID>();
+		for (int i = 0; i < 3; i++){
+			players.add(UUID.randomUUID());
+		}
+		engine = new KingOfTheHillEngine(players.get(0), players);
+	}
+
+	/**
+	 * Test king and challenger
+	 */
+	public void testKingAndChallenger(){
+		assertEquals(players.get(0), engine.getKing());
+		assertEquals(players.get(1), engine.getChallenger());
+		assertEquals(2, engine.getQueueSize());
+	}
+
+	/**
+	 * Test an entire game
+	 */
+	public void testGame(){
+		//Player 1 (king) wins, Player 2 goes to bottom
+		assertEquals(players.get(1), engine.moveChallengerToEnd());
+		assertEquals(players.get(0), engine.getKing());
+		assertEquals(players.get(1), engine.getQueuedPlayer(engine.getQueueSize() - 1));
+		assertEquals(1, engine.getKingWinsStreakCount());
+
+		//Player 3 (challenger) wins, Player 1 goes to bottom
+		assertEquals(players.get(2), engine.moveKingToEnd());
+		assertEquals(players.get(0), engine.getQueuedPlayer(engine.getQueueSize() - 1));
+		assertEquals(1, engine.getKingWinsStreakCount());
+
+		assertEquals(1, engine.getWins(players.get(0)));
+		assertEquals(1, engine.getLosses(players.get(0)));
+		assertEquals(0, engine.getWins(players.get(1)));
+		assertEquals(1, engine.getLosses(players.get(1)));
+		assertEquals(1, engine.getWins(players.get(2)));
+		assertEquals(0, engine.getLosses(players.get(2)));
+
+		PlayerStats stats = engine.getStats();
+		assertEquals(2, stats.getGames(players.get(0)));
+		assertEquals(0, stats.getStreak(players.get(0)));
+		assertEquals(1, stats.getStreak(players.get(2)));
+	}
+
+	/**
+	 * Test that snapshots are versioned and don't change with the game
+	 */
+	public void testSnapshots(){
+		GameSnapshot before = engine.snapshot();
+		assertSame(before, engine.snapshot());
+
+		engine.moveKingToEnd();
+		GameSnapshot after = engine.snapshot();
+		assertEquals(before.getVersion() + 1, after.getVersion());
+		assertEquals(players.get(0), before.getKing());
+		assertEquals(players.get(1), before.getChallenger());
+		assertEquals(players.get(1), after.getKing());
+		assertEquals(players.get(0), after.getQueue().get(after.getQueue().size() - 1));
+		assertEquals(PlayerStats.STAT_NOT_SET, before.getStats().getWins(players.get(1)));
+		assertEquals(1, after.getStats().getWins(players.get(1)));
+	}
+
+	/**
+	 * Test that statistics snapshots don't change with the store, also when it is cleared
+	 */
+	public void testStatsSnapshots(){
+		PlayerStats stats = new PlayerStats(1);
+		UUID p1 = players.get(0);
+		UUID p2 = players.get(1);
+		stats.setStats(p1, 3, 1);
+		PlayerStats first = stats.snapshot();
+		assertSame(first, stats.snapshot());
+
+		stats.addWin(p1);
+		stats.addLoss(p2);
+		PlayerStats second = stats.snapshot();
+		assertEquals(3, first.getWins(p1));
+		assertEquals(1, first.size());
+		assertEquals(-1, first.ordinal(p2));
+		assertEquals(4, second.getWins(p1));
+		assertEquals(1, second.getLosses(p2));
+
+		stats.clear();
+		stats.setStats(p2, 7, 0);
+		assertEquals(4, second.getWins(p1));
+		assertEquals(p1, second.getPlayer(0));
+		assertEquals(PlayerStats.STAT_NOT_SET, stats.getWins(p1));
+		assertEquals(7, stats.snapshot().getWins(p2));
+
+		try {
+			second.addWin(p1);
+			fail("Snapshots can't be changed");
+		} catch (UnsupportedOperationException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * Test the statistics store growing past its capacity and being reused after a clear
+	 */
+	public void testStatsStore(){
+		PlayerStats stats = new PlayerStats(1);
+		List<UUID> many = new LinkedList<UUID>();
+		for (int i = 0; i < 40; i++){
+			UUID p = UUID.randomUUID();
+			many.add(p);
+			stats.addWin(p);
+			stats.addWin(p);
+			stats.addLoss(p);
+		}
+		assertEquals(40, stats.size());
+		for (int i = 0; i < many.size(); i++){
+			UUID p = many.get(i);
+			assertEquals(i, stats.ordinal(p));
+			assertEquals(2, stats.getWins(p));
+			assertEquals(1, stats.getLosses(p));
+			assertEquals(3, stats.getGames(p));
+			assertEquals(0, stats.getStreak(p));
+		}
+
+		stats.clear();
+		assertEquals(0, stats.size());
+		assertEquals(PlayerStats.STAT_NOT_SET, stats.getWins(many.get(0)));
+		stats.setStats(many.get(5), 4, 2);
+		assertEquals(0, stats.ordinal(many.get(5)));
+		assertEquals(6, stats.getGames(many.get(5)));
+	}
+
+	/**
+	 * Test moving players
+	 */
+	public void testMovePlayers(){
+		//swap king and challenger
+		engine.movePlayer(KingOfTheHillEngine.KING_POSITION, 0);
+		assertEquals(players.get(1), engine.getKing());
+		assertEquals(players.get(0), engine.getQueuedPlayer(0));
+
+		engine.movePlayer(0, KingOfTheHillEngine.KING_POSITION);
+		assertEquals(players.get(0), engine.getKing());
+		assertEquals(players.get(1), engine.getQueuedPlayer(0));
+
+		engine.movePlayer(0, 1);
+		assertEquals(players.get(2), engine.getQueuedPlayer(0));
+		assertEquals(players.get(1), engine.getQueuedPlayer(1));
+		assertEquals(1, engine.getPosition(players.get(1)));
+	}
+
+	/**
+	 * Test adding and removing players
+	 */
+	public void testUpdatePlayerList(){
+		UUID newPlayer = UUID.randomUUID();
+		List<UUID> updated = new LinkedList<UUID>(players);
+		updated.add(newPlayer);
+		updated.remove(players.get(0));
+		List<UUID> removed = engine.updatePlayerList(updated);
+		assertEquals(1, removed.size());
+		assertEquals(players.get(0), removed.get(0));
+
+		//king was removed, challenger is promoted
+		assertEquals(players.get(1), engine.getKing());
+		assertEquals(players.get(2), engine.getQueuedPlayer(0));
+		assertEquals(newPlayer, engine.getQueuedPlayer(1));
+		assertFalse(engine.contains(players.get(0)));
+	}
+
+	/**
+	 * Get the king, queue, streak and every player's statistics
+	 * @param all The players to include
+	 * @return The game as a list of values
+	 */
+	private List<Object> state(List<UUID> all){
+		List<Object> state = new ArrayList<Object>();
+		state.add(engine.getKing());
+		state.add(new ArrayList<UUID>(engine.getQueue()));
+		state.add(engine.getKingWinsStreakCount());
+		PlayerStats stats = engine.getStats();
+		for (UUID p : all){
+			state.add(stats.getWins(p) + "/" + stats.getLosses(p) + "/" + stats.getGames(p) + "/" + stats.getStreak(p));
+		}
+		return state;
+	}
+
+	/**
+	 * Undo reverts results, moves and score changes, and redo applies them again
+	 */
+	public void testUndo(){
+		List<UUID> all = new ArrayList<UUID>();
+		for (int i = 0; i < 6; i++){
+			all.add(UUID.randomUUID());
+		}
+		engine.restart(all.get(0), all);
+		assertFalse(engine.canUndo());
+
+		Random random = new Random(3);
+		List<List<Object>> history = new ArrayList<List<Object>>();
+		for (int i = 0; i < 60; i++){
+			history.add(state(all));
+			int op = random.nextInt(6);
+			UUID p = all.get(random.nextInt(all.size()));
+			if (op == 0){
+				engine.moveKingToEnd();
+			} else if (op == 1){
+				engine.moveChallengerToEnd();
+			} else if (op == 2){
+				engine.movePlayer(p, random.nextInt(engine.getQueueSize() + 1) - 1);
+			} else if (op == 3 && !p.equals(engine.getKing())){
+				engine.setKing(p);
+			} else if (op == 4){
+				engine.setStats(p, random.nextInt(5), random.nextInt(5));
+			} else {
+				engine.setKingWinsStreakCount(random.nextInt(5));
+			}
+		}
+		List<Object> end = state(all);
+
+		for (int i = history.size() - 1; i >= 0; i--){
+			assertTrue(engine.undo());
+			assertEquals(history.get(i), state(all));
+		}
+		assertFalse(engine.undo());
+		for (int i = 1; i < history.size(); i++){
+			assertTrue(engine.redo());
+			assertEquals(history.get(i), state(all));
+		}
+		assertTrue(engine.redo());
+		assertEquals(end, state(all));
+		assertFalse(engine.canRedo());
+
+		//a new change drops the redo history, roster changes drop everything
+		engine.undo();
+		engine.moveChallengerToEnd();
+		assertFalse(engine.canRedo());
+		engine.addToBottom(UUID.randomUUID());
+		assertFalse(engine.canUndo());
+	}
+}
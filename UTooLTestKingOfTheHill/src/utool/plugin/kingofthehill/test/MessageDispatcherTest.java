@@ -0,0 +1,119 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.communications.MessageDispatcher;
+
+/**
+ * Tests for routing received messages by their header
+ * @author Cory
+ *
+ */
+public class MessageDispatcherTest extends TestCase {
+
+	/**
+	 * Dispatcher instance
+	 */
+	MessageDispatcher dispatcher;
+
+	/**
+	 * Types of the decoders that were offered a message, in order
+	 */
+	List<String> offered;
+
+	/**
+	 * Create a decoder that records being offered a message
+	 * @param type Name of the decoder
+	 * @param accept Text a message must contain to be accepted
+	 * @return The decoder
+	 */
+	private MessageDispatcher.Decoder decoder(final String type, final String accept){
+		return new MessageDispatcher.Decoder(){
+			@Override
+			public boolean handle(String data){
+				offered.add(type);
+				return data.contains(accept);
+			}
+		};
+	}
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		offered = new ArrayList<String>();
+		dispatcher = new MessageDispatcher();
+		dispatcher.registerPrefix("binary", "KOTH1:", decoder("binary", "KOTH1:"));
+		dispatcher.registerRootTag("xml", "utool_kingofthehill", decoder("xml", "type="));
+		dispatcher.registerFallback("player", decoder("player", "players"));
+		dispatcher.registerFallback("termination", decoder("termination", "terminate"));
+	}
+
+	/**
+	 * The root tag is found after the declaration, comments and whitespace
+	 */
+	public void testRootTag(){
+		assertEquals("a", MessageDispatcher.rootTag("<a/>"));
+		assertEquals("utool_kingofthehill", MessageDispatcher.rootTag(
+				"<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>\n<!-- c --><utool_kingofthehill type=\"GameState\">"));
+		assertEquals("b", MessageDispatcher.rootTag("  <!DOCTYPE b><b>"));
+		assertNull(MessageDispatcher.rootTag("KOTH1:AAAA"));
+		assertNull(MessageDispatcher.rootTag("<?xml"));
+		assertNull(MessageDispatcher.rootTag(""));
+	}
+
+	/**
+	 * Registered types go straight to their decoder
+	 */
+	public void testRoutes(){
+		assertTrue(dispatcher.dispatch("KOTH1:AAAA"));
+		assertTrue(dispatcher.dispatch("<?xml version='1.0' ?><utool_kingofthehill type=\"GameState\"/>"));
+		assertFalse(dispatcher.dispatch("<utool_kingofthehill/>"));
+		assertEquals(3, offered.size());
+		assertEquals(1, dispatcher.getCount("binary"));
+		assertEquals(1, dispatcher.getCount("xml"));
+		assertEquals(1, dispatcher.getCount(MessageDispatcher.REJECTED));
+	}
+
+	/**
+	 * Unknown tags are offered to the fallbacks, and the accepting fallback is tried first for later messages
+	 */
+	public void testFallbacks(){
+		assertTrue(dispatcher.dispatch("<core terminate/>"));
+		assertEquals(2, offered.size());
+		offered.clear();
+		assertTrue(dispatcher.dispatch("<core terminate/>"));
+		assertEquals(1, offered.size());
+		offered.clear();
+		assertTrue(dispatcher.dispatch("<core players/>"));
+		assertEquals("termination", offered.get(0));
+		assertEquals("player", offered.get(1));
+		assertEquals(2, dispatcher.getCount("termination"));
+		assertEquals(1, dispatcher.getCount("player"));
+
+		//text that isn't XML isn't offered to anything
+		offered.clear();
+		assertFalse(dispatcher.dispatch("hello"));
+		assertFalse(dispatcher.dispatch("<other/>"));
+		assertEquals(2, offered.size());
+		assertEquals(2, dispatcher.getCount(MessageDispatcher.REJECTED));
+
+		//a tag every fallback keeps rejecting is ignored without being offered
+		for (int i = 1; i < MessageDispatcher.FOREIGN_LIMIT; i++){
+			assertFalse(dispatcher.dispatch("<other/>"));
+		}
+		offered.clear();
+		assertFalse(dispatcher.dispatch("<other players/>"));
+		assertTrue(offered.isEmpty());
+		assertEquals(2 + MessageDispatcher.FOREIGN_LIMIT, dispatcher.getCount(MessageDispatcher.REJECTED));
+
+		//a tag a fallback accepted is never ignored
+		for (int i = 0; i < MessageDispatcher.FOREIGN_LIMIT; i++){
+			assertFalse(dispatcher.dispatch("<core/>"));
+		}
+		offered.clear();
+		assertTrue(dispatcher.dispatch("<core players/>"));
+		assertEquals(2, offered.size());
+	}
+}
@@ -0,0 +1,156 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.communications.MessageSender;
+
+/**
+ * Tests for the outbound message sender
+ * @author Cory
+ *
+ */
+public class MessageSenderTest extends TestCase {
+
+	/**
+	 * Messages sent, in order
+	 */
+	List<String> sent;
+
+	/**
+	 * Released to let the transport send
+	 */
+	CountDownLatch release;
+
+	/**
+	 * Counted down when the transport starts sending the first message
+	 */
+	CountDownLatch started;
+
+	/**
+	 * Sender instance
+	 */
+	MessageSender sender;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		sent = Collections.synchronizedList(new ArrayList<String>());
+		release = new CountDownLatch(1);
+		started = new CountDownLatch(1);
+		sender = new MessageSender("test sender", new MessageSender.Transport(){
+			@Override
+			public void send(String data){
+				started.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				sent.add(data);
+			}
+		}, message("full"), 4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception{
+		release.countDown();
+		sender.close();
+		super.tearDown();
+	}
+
+	/**
+	 * Create a message encoding to a fixed string
+	 * @param data The encoded message
+	 * @return The message
+	 */
+	private MessageSender.Message message(final String data){
+		return new MessageSender.Message(){
+			@Override
+			public String encode(){
+				return data;
+			}
+		};
+	}
+
+	/**
+	 * Post a first message and wait until the transport is blocked sending it
+	 * @throws InterruptedException If interrupted
+	 */
+	private void block() throws InterruptedException{
+		sender.post(MessageSender.OTHER, message("first"));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * A game state broadcast replaces the broadcasts queued before it, but not answers
+	 * @throws InterruptedException If interrupted
+	 */
+	public void testCoalesce() throws InterruptedException{
+		block();
+		sender.post(MessageSender.STATE, message("state1"));
+		sender.post(MessageSender.DELTA, message("delta1"));
+		sender.post(MessageSender.OTHER, message("answer"));
+		sender.post(MessageSender.STATE, message("state2"));
+		assertEquals(2, sender.getQueueDepth());
+		assertEquals(2, sender.getDropped());
+
+		release.countDown();
+		assertTrue(sender.awaitIdle(5000));
+		assertEquals(3, sender.getSent());
+		assertEquals("[first, answer, state2]", sent.toString());
+	}
+
+	/**
+	 * A delta that doesn't fit replaces the queued broadcasts with the full game state
+	 * @throws InterruptedException If interrupted
+	 */
+	public void testOverflow() throws InterruptedException{
+		block();
+		sender.post(MessageSender.DELTA, message("delta1"));
+		sender.post(MessageSender.OTHER, message("answer"));
+		sender.post(MessageSender.DELTA, message("delta2"));
+		sender.post(MessageSender.DELTA, message("delta3"));
+		sender.post(MessageSender.DELTA, message("delta4"));
+		assertEquals(2, sender.getQueueDepth());
+		assertEquals(4, sender.getMaxQueueDepth());
+
+		release.countDown();
+		assertTrue(sender.awaitIdle(5000));
+		assertEquals("[first, answer, full]", sent.toString());
+	}
+
+	/**
+	 * The latency covers the time a message waited in the outbox
+	 * @throws InterruptedException If interrupted
+	 */
+	public void testLatency() throws InterruptedException{
+		block();
+		sender.post(MessageSender.OTHER, message("second"));
+		Thread.sleep(20);
+		release.countDown();
+		assertTrue(sender.awaitIdle(5000));
+		assertEquals(2, sender.getSent());
+		assertTrue(sender.getLastLatency() >= TimeUnit.MILLISECONDS.toNanos(20));
+		assertTrue(sender.getMaxLatency() >= sender.getLastLatency());
+		assertTrue(sender.getAverageLatency() > 0);
+	}
+
+	/**
+	 * Messages posted after closing are ignored
+	 * @throws InterruptedException If interrupted
+	 */
+	public void testClose() throws InterruptedException{
+		release.countDown();
+		sender.post(MessageSender.OTHER, message("first"));
+		assertTrue(sender.awaitIdle(5000));
+		sender.close();
+		sender.post(MessageSender.OTHER, message("second"));
+		assertEquals(0, sender.getQueueDepth());
+		assertEquals("[first]", sent.toString());
+	}
+}
@@ -0,0 +1,106 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.communications.ReceiveQueue;
+
+/**
+ * Tests for the queue of received messages
+ * @author Cory
+ *
+ */
+public class ReceiveQueueTest extends TestCase {
+
+	/**
+	 * Queue instance
+	 */
+	ReceiveQueue queue;
+
+	/**
+	 * Names of the actions run, in order
+	 */
+	List<String> applied;
+
+	/**
+	 * Tasks scheduled on the fake applying thread
+	 */
+	List<Runnable> tasks;
+
+	/**
+	 * Delays of the scheduled tasks
+	 */
+	List<Long> delays;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		queue = new ReceiveQueue();
+		applied = new ArrayList<String>();
+		tasks = new ArrayList<Runnable>();
+		delays = new ArrayList<Long>();
+	}
+
+	/**
+	 * Create an action recording that it ran
+	 * @param name Name of the action
+	 * @return The action
+	 */
+	private Runnable action(final String name){
+		return new Runnable(){
+			@Override
+			public void run(){
+				applied.add(name);
+			}
+		};
+	}
+
+	/**
+	 * A full game state drops the game states and deltas before it, but nothing else
+	 */
+	public void testConflation(){
+		queue.add(ReceiveQueue.DELTA, action("delta 1"));
+		queue.add(ReceiveQueue.OTHER, action("players"));
+		queue.add(ReceiveQueue.SNAPSHOT, action("state 1"));
+		queue.add(ReceiveQueue.DELTA, action("delta 2"));
+		queue.add(ReceiveQueue.SNAPSHOT, action("state 2"));
+		queue.add(ReceiveQueue.DELTA, action("delta 3"));
+		assertEquals(3, queue.size());
+		assertEquals(3, queue.getDropped());
+
+		queue.flush();
+		assertEquals(3, applied.size());
+		assertEquals("players", applied.get(0));
+		assertEquals("state 2", applied.get(1));
+		assertEquals("delta 3", applied.get(2));
+		assertEquals(0, queue.size());
+	}
+
+	/**
+	 * A burst of messages is applied in one drain, and drains are at least a frame apart
+	 */
+	public void testOncePerFrame(){
+		queue.setScheduler(new ReceiveQueue.Scheduler(){
+			@Override
+			public void schedule(Runnable task, long delayMillis){
+				tasks.add(task);
+				delays.add(delayMillis);
+			}
+		});
+		for (int i = 0; i < 10; i++){
+			queue.add(ReceiveQueue.DELTA, action("delta " + i));
+			queue.flush();
+		}
+		assertEquals(1, tasks.size());
+		assertTrue(applied.isEmpty());
+		tasks.get(0).run();
+		assertEquals(10, applied.size());
+
+		queue.add(ReceiveQueue.OTHER, action("players"));
+		queue.flush();
+		assertEquals(2, tasks.size());
+		assertTrue(delays.get(1) >= 0);
+		assertTrue(delays.get(1) <= ReceiveQueue.FRAME_MILLIS);
+	}
+}
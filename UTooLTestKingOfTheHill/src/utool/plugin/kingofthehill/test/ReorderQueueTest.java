@@ -0,0 +1,49 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.engine.KingOfTheHillEngine;
+
+/**
+ * Tests for reordering the game queue from an incoming game state, as done by TournamentLogic.setPlayers.
+ * Its timing is measured by EngineBenchmark in the benchmark project.
+ * @author Cory
+ *
+ */
+public class ReorderQueueTest extends TestCase {
+
+	/**
+	 * Queue sizes to check
+	 */
+	private static final int[] SIZES = {500, 1000, 2500, 5000};
+
+	/**
+	 * Number of reorders per size
+	 */
+	private static final int RUNS = 30;
+
+	/**
+	 * Every reorder should leave the queue in the requested order
+	 */
+	public void testReorder(){
+		for (int size : SIZES){
+			List<UUID> players = new ArrayList<UUID>(size);
+			for (int i = 0; i < size; i++){
+				players.add(UUID.randomUUID());
+			}
+			KingOfTheHillEngine engine = new KingOfTheHillEngine(null, players);
+			List<UUID> order = new ArrayList<UUID>(players);
+			Random random = new Random(size);
+			for (int run = 0; run < RUNS; run++){
+				Collections.shuffle(order, random);
+				engine.reorderQueue(order);
+				assertEquals(order, engine.getQueue());
+			}
+		}
+	}
+}
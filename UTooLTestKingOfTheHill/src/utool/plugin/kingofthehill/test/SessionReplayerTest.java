@@ -0,0 +1,236 @@
+package utool.plugin.kingofthehill.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+import utool.plugin.Player;
+import utool.plugin.kingofthehill.communications.MessageSender;
+import utool.plugin.kingofthehill.communications.SessionRecorder;
+import utool.plugin.kingofthehill.communications.SessionReplayer;
+import utool.plugin.kingofthehill.tournament.KingOfTheHillTournament;
+import utool.plugin.kingofthehill.tournament.TournamentLogic;
+
+/**
+ * Tests for recording a participant's session and replaying it into a new participant
+ * @author Cory
+ *
+ */
+public class SessionReplayerTest extends TestCase {
+
+	/**
+	 * Tournament id of the host, clear of the ids the other tests use. The participants use the following ids.
+	 */
+	private static final long HOST_ID = 2700;
+
+	/**
+	 * Number of host changes recorded
+	 */
+	private static final int CHANGES = 50;
+
+	/**
+	 * Players of the game
+	 */
+	List<Player> players;
+
+	/**
+	 * The host
+	 */
+	KingOfTheHillTournament host;
+
+	/**
+	 * The recorded session
+	 */
+	File file;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		players = new ArrayList<Player>();
+		for (int i = 0; i < 20; i++){
+			players.add(new Player(UUID.randomUUID(), "Player " + i));
+		}
+		host = (KingOfTheHillTournament) TournamentLogic.getNewInstance(null, HOST_ID, players, Player.HOST);
+		host.awaitCommands();
+		file = File.createTempFile("koth", ".session");
+	}
+
+	@Override
+	protected void tearDown() throws Exception{
+		for (int i = 0; i < 4; i++){
+			TournamentLogic.removeInstance(HOST_ID + i);
+		}
+		file.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * Create a participant
+	 * @param id Tournament id
+	 * @return The participant
+	 */
+	private TournamentLogic participant(long id){
+		return TournamentLogic.getNewInstance(null, id, players, Player.PARTICIPANT);
+	}
+
+	/**
+	 * Record a participant receiving the game state and the host's changes, and asking for the game state once
+	 * @return Number of messages received
+	 * @throws Exception When something bad happens
+	 */
+	private int record() throws Exception{
+		TournamentLogic participant = participant(HOST_ID + 1);
+		participant.getOutgoingCommandHandler().setTransport(new MessageSender.Transport(){
+			@Override
+			public void send(String data){
+				//nowhere to go
+			}
+		});
+		SessionRecorder recorder = new SessionRecorder(file);
+		participant.setRecorder(recorder);
+		participant.getOutgoingCommandHandler().requestGameState();
+		assertTrue(participant.getOutgoingCommandHandler().getSender().awaitIdle(5000));
+
+		participant.getIncomingCommandHandler().handleMessage(host.getGameStateMessage().getXml());
+		for (int i = 0; i < CHANGES; i++){
+			long version = host.getSnapshot().getVersion();
+			if (i % 2 == 0){
+				host.moveChallengerToEnd();
+			} else {
+				host.moveKingToEnd();
+			}
+			participant.getIncomingCommandHandler().handleMessage(host.getChangesSince(version).getXml());
+			Thread.sleep(1);
+		}
+		participant.setRecorder(null);
+		recorder.close();
+
+		assertEquals(host.getSnapshot().getVersion(), participant.getIncomingCommandHandler().getVersion());
+		assertEquals(CHANGES + 2, recorder.getCount());
+		return CHANGES + 1;
+	}
+
+	/**
+	 * Check that a participant has the host's king and queue
+	 * @param participant The participant
+	 */
+	private void assertMatchesHost(TournamentLogic participant){
+		assertEquals(host.getSnapshot().getKing(), participant.getSnapshot().getKing());
+		assertEquals(host.getSnapshot().getQueue(), participant.getSnapshot().getQueue());
+	}
+
+	/**
+	 * A replayed session brings a new participant to the same game, and times every received message
+	 * @throws Exception When something bad happens
+	 */
+	public void testReplay() throws Exception{
+		int received = record();
+		SessionReplayer replayer = new SessionReplayer(file);
+		assertEquals(received + 1, replayer.size());
+		assertEquals(SessionRecorder.OUTGOING, replayer.getDirection(0));
+		assertEquals(SessionRecorder.INCOMING, replayer.getDirection(1));
+
+		TournamentLogic fast = participant(HOST_ID + 2);
+		long[] times = replayer.replay(fast, false);
+		assertEquals(received, times.length);
+		assertMatchesHost(fast);
+		long total = 0;
+		for (long time : times){
+			assertTrue(time > 0);
+			total += time;
+		}
+		assertEquals(total, replayer.getTotalTime());
+		assertTrue(replayer.getPercentile(50) <= replayer.getPercentile(99));
+		assertTrue(replayer.getPercentile(99) <= replayer.getPercentile(100));
+
+		TournamentLogic paced = participant(HOST_ID + 3);
+		long start = System.nanoTime();
+		replayer.replay(paced, true);
+		long elapsed = (System.nanoTime() - start) / 1000;
+		assertTrue(elapsed >= replayer.getTime(replayer.size() - 1) - replayer.getTime(1));
+		assertMatchesHost(paced);
+	}
+
+	/**
+	 * A session cut short is read up to the last complete message
+	 * @throws Exception When something bad happens
+	 */
+	public void testTruncated() throws Exception{
+		int received = record();
+		byte[] bytes = new byte[(int)file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			assertEquals(bytes.length, in.read(bytes));
+		} finally {
+			in.close();
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes, 0, bytes.length * 2 / 3);
+		} finally {
+			out.close();
+		}
+
+		SessionReplayer replayer = new SessionReplayer(file);
+		assertTrue(replayer.size() > 0);
+		assertTrue(replayer.size() < received + 1);
+	}
+
+	/**
+	 * A copy of a session still being recorded, as left by a crash, has every message recorded so far
+	 * @throws Exception When something bad happens
+	 */
+	public void testOpenSession() throws Exception{
+		TournamentLogic participant = participant(HOST_ID + 1);
+		SessionRecorder recorder = new SessionRecorder(file);
+		participant.setRecorder(recorder);
+		File copy = File.createTempFile("koth", ".session");
+		try {
+			copy(file, copy);
+			assertEquals(0, new SessionReplayer(copy).size());
+
+			participant.getIncomingCommandHandler().handleMessage(host.getGameStateMessage().getXml());
+			for (int i = 0; i < CHANGES; i++){
+				long version = host.getSnapshot().getVersion();
+				host.moveChallengerToEnd();
+				participant.getIncomingCommandHandler().handleMessage(host.getChangesSince(version).getXml());
+			}
+			copy(file, copy);
+
+			SessionReplayer replayer = new SessionReplayer(copy);
+			assertEquals(recorder.getCount(), replayer.size());
+			TournamentLogic replayed = participant(HOST_ID + 2);
+			replayer.replay(replayed, false);
+			assertMatchesHost(replayed);
+		} finally {
+			participant.setRecorder(null);
+			recorder.close();
+			copy.delete();
+		}
+	}
+
+	/**
+	 * Copy a file
+	 * @param from The file to copy
+	 * @param to The copy
+	 * @throws Exception When something bad happens
+	 */
+	private void copy(File from, File to) throws Exception{
+		FileInputStream in = new FileInputStream(from);
+		FileOutputStream out = new FileOutputStream(to);
+		try {
+			byte[] buffer = new byte[4096];
+			int length;
+			while ((length = in.read(buffer)) > 0){
+				out.write(buffer, 0, length);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utool.plugin.Player;
+import utool.plugin.kingofthehill.communications.GameStateMessage;
+import utool.plugin.kingofthehill.communications.MessageSender;
+import utool.plugin.kingofthehill.tournament.KingOfTheHillTournament;
+import utool.plugin.kingofthehill.tournament.TournamentLogic;
+
+/**
+ * In-process stand-in for the core, linking one host tournament with simulated participant tournaments.
+ * Messages the host sends go to every participant, and messages a participant sends go to the host, like the core.
+ * Each tournament receives on its own delivery thread, as the activity's receive thread does, after a configurable
+ * latency and jitter. Messages can be lost at a configurable rate. Delivery keeps the order of each link.
+ * Host changes made through mutate() are timed until each participant reaches the host's version, giving the
+ * end to end latency from a host change to the participant's game matching it.
+ * @author Cory
+ *
+ */
+public class SimulatedCore {
+	/**
+	 * A tournament connected to the simulated core
+	 */
+	private class Endpoint {
+		/**
+		 * The tournament
+		 */
+		final TournamentLogic tournament;
+
+		/**
+		 * Runs the deliveries to the tournament in order
+		 */
+		final ScheduledThreadPoolExecutor delivery;
+
+		/**
+		 * System.nanoTime() of the last scheduled delivery, so later messages never overtake it
+		 */
+		long lastDelivery = 0;
+
+		/**
+		 * Host version the tournament reached. Only used on the tournament's command loop.
+		 */
+		long reached = GameStateMessage.NO_VERSION;
+
+		/**
+		 * Constructor
+		 * @param tournament The tournament
+		 */
+		Endpoint(TournamentLogic tournament){
+			this.tournament = tournament;
+			delivery = new ScheduledThreadPoolExecutor(1);
+		}
+
+		/**
+		 * Deliver a message after the link's latency, unless it is lost
+		 * @param data The message
+		 */
+		void deliver(final String data){
+			long delay;
+			synchronized (this){
+				if (random.nextDouble() < loss){
+					lost.incrementAndGet();
+					return;
+				}
+				delivered.incrementAndGet();
+				long at = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latency) + (jitter > 0 ? (long)(random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(jitter)) : 0);
+				lastDelivery = Math.max(lastDelivery, at);
+				delay = lastDelivery - System.nanoTime();
+			}
+			try {
+				delivery.schedule(new Runnable(){
+					@Override
+					public void run(){
+						tournament.getIncomingCommandHandler().receive(data);
+						if (tournament != host){
+							//after the commands applying the message
+							tournament.post(new Runnable(){
+								@Override
+								public void run(){
+									converged(Endpoint.this, tournament.getIncomingCommandHandler().getVersion());
+								}
+							});
+						}
+					}
+				}, Math.max(0, delay), TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				//disconnected by close(), like a message sent as the core shuts down
+			}
+		}
+	}
+
+	/**
+	 * Source of lost messages and jitter
+	 */
+	private final Random random;
+
+	/**
+	 * Milliseconds every message takes
+	 */
+	private volatile long latency = 0;
+
+	/**
+	 * Largest random milliseconds added to the latency
+	 */
+	private volatile long jitter = 0;
+
+	/**
+	 * Chance a message is lost, from 0 to 1
+	 */
+	private volatile double loss = 0;
+
+	/**
+	 * Number of messages delivered
+	 */
+	private final AtomicLong delivered = new AtomicLong();
+
+	/**
+	 * Number of messages lost
+	 */
+	private final AtomicLong lost = new AtomicLong();
+
+	/**
+	 * The host tournament
+	 */
+	private final KingOfTheHillTournament host;
+
+	/**
+	 * The host's connection
+	 */
+	private final Endpoint hostEndpoint;
+
+	/**
+	 * The participants' connections. The host may send while they are added.
+	 */
+	private final List<Endpoint> participants = new CopyOnWriteArrayList<Endpoint>();
+
+	/**
+	 * Start times of the host changes, by the host version they made. Guarded by this.
+	 */
+	private final TreeMap<Long, Long> changes = new TreeMap<Long, Long>();
+
+	/**
+	 * Nanoseconds from a host change to a participant reaching it, one for each participant and change
+	 */
+	private final List<Long> latencies = new ArrayList<Long>();
+
+	/**
+	 * Constructor. Creates the tournaments and has each participant ask for the game state, as the activity does.
+	 * @param firstId Tournament id of the host. The participants use the following ids.
+	 * @param players Players of the game, the first one the king
+	 * @param participantCount Number of participant tournaments
+	 * @param seed Seed of the lost messages and jitter
+	 */
+	public SimulatedCore(long firstId, List<Player> players, int participantCount, long seed){
+		random = new Random(seed);
+		host = (KingOfTheHillTournament) TournamentLogic.getNewInstance(null, firstId, players, Player.HOST);
+		hostEndpoint = new Endpoint(host);
+		host.getOutgoingCommandHandler().setTransport(new MessageSender.Transport(){
+			@Override
+			public void send(String data){
+				for (Endpoint participant : participants){
+					participant.deliver(data);
+				}
+			}
+		});
+		for (int i = 1; i <= participantCount; i++){
+			TournamentLogic participant = TournamentLogic.getNewInstance(null, firstId + i, players, Player.PARTICIPANT);
+			participant.getOutgoingCommandHandler().setTransport(new MessageSender.Transport(){
+				@Override
+				public void send(String data){
+					hostEndpoint.deliver(data);
+				}
+			});
+			participants.add(new Endpoint(participant));
+		}
+		for (Endpoint participant : participants){
+			participant.tournament.getOutgoingCommandHandler().requestGameState();
+			participant.tournament.getIncomingCommandHandler().syncClock();
+		}
+	}
+
+	/**
+	 * Set the time every message takes
+	 * @param latency Milliseconds every message takes
+	 * @param jitter Largest random milliseconds added
+	 */
+	public void setLatency(long latency, long jitter){
+		this.latency = latency;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Set the chance a message is lost
+	 * @param loss Chance from 0 to 1
+	 */
+	public void setLoss(double loss){
+		this.loss = loss;
+	}
+
+	/**
+	 * Get the host tournament
+	 * @return The host
+	 */
+	public KingOfTheHillTournament getHost(){
+		return host;
+	}
+
+	/**
+	 * Get the participant tournaments
+	 * @return The participants
+	 */
+	public List<TournamentLogic> getParticipants(){
+		List<TournamentLogic> result = new ArrayList<TournamentLogic>();
+		for (Endpoint participant : participants){
+			result.add(participant.tournament);
+		}
+		return result;
+	}
+
+	/**
+	 * Change the host's game, timing until the participants reach the change
+	 * @param change Runnable changing the host's game
+	 */
+	public void mutate(Runnable change){
+		long start = System.nanoTime();
+		change.run();
+		host.awaitCommands();
+		long version = host.getSnapshot().getVersion();
+		synchronized (this){
+			if (!changes.containsKey(version)){
+				changes.put(version, start);
+			}
+		}
+	}
+
+	/**
+	 * Record the host version a participant reached
+	 * @param participant The participant
+	 * @param version The host version its game matches
+	 */
+	private void converged(Endpoint participant, long version){
+		if (version == GameStateMessage.NO_VERSION || version <= participant.reached){
+			return;
+		}
+		long now = System.nanoTime();
+		long reached = participant.reached;
+		participant.reached = version;
+		synchronized (this){
+			for (Long start : changes.subMap(reached + 1, version + 1).values()){
+				latencies.add(now - start);
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Wait until every participant matches the host's current version
+	 * @param timeoutMillis Maximum milliseconds to wait
+	 * @return True if every participant caught up
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public synchronized boolean awaitConvergence(long timeoutMillis) throws InterruptedException{
+		long end = System.currentTimeMillis() + timeoutMillis;
+		while (true){
+			long version = host.getSnapshot().getVersion();
+			boolean done = true;
+			for (Endpoint participant : participants){
+				done &= participant.tournament.getIncomingCommandHandler().getVersion() >= version;
+			}
+			long wait = end - System.currentTimeMillis();
+			if (done || wait <= 0){
+				return done;
+			}
+			wait(Math.min(wait, 10));
+		}
+	}
+
+	/**
+	 * Get the end to end latencies measured so far
+	 * @return Nanoseconds from a host change to a participant reaching it, sorted
+	 */
+	public synchronized long[] getLatencies(){
+		long[] result = new long[latencies.size()];
+		for (int i = 0; i < result.length; i++){
+			result[i] = latencies.get(i);
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Get the number of messages delivered
+	 * @return Number of messages
+	 */
+	public long getDelivered(){
+		return delivered.get();
+	}
+
+	/**
+	 * Get the number of messages lost
+	 * @return Number of messages
+	 */
+	public long getLost(){
+		return lost.get();
+	}
+
+	/**
+	 * Disconnect and remove all tournaments
+	 */
+	public void close(){
+		for (Endpoint endpoint : allEndpoints()){
+			TournamentLogic.removeInstance(endpoint.tournament.getTournamentId());
+			endpoint.delivery.shutdownNow();
+		}
+	}
+
+	/**
+	 * Get the host's and the participants' connections
+	 * @return The connections
+	 */
+	private List<Endpoint> allEndpoints(){
+		List<Endpoint> result = new ArrayList<Endpoint>(participants);
+		result.add(0, hostEndpoint);
+		return result;
+	}
+}
@@ -0,0 +1,145 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import utool.plugin.Player;
+import utool.plugin.kingofthehill.tournament.KingOfTheHillTournament;
+import utool.plugin.kingofthehill.tournament.TournamentLogic;
+
+/**
+ * Load tests of a host and participants linked by the simulated core.
+ * Prints the end to end latency from host changes to the participants' games matching them.
+ * @author Cory
+ *
+ */
+public class SimulatedCoreTest extends TestCase {
+
+	/**
+	 * Tournament id of the host, clear of the ids the other tests use
+	 */
+	private static final long HOST_ID = 2500;
+
+	/**
+	 * Number of participant tournaments
+	 */
+	private static final int PARTICIPANTS = 8;
+
+	/**
+	 * Number of players in the game
+	 */
+	private static final int PLAYERS = 100;
+
+	/**
+	 * Number of host changes made
+	 */
+	private static final int CHANGES = 300;
+
+	/**
+	 * The simulated core
+	 */
+	SimulatedCore core;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		List<Player> players = new ArrayList<Player>();
+		for (int i = 0; i < PLAYERS; i++){
+			players.add(new Player(UUID.randomUUID(), "Player " + i));
+		}
+		core = new SimulatedCore(HOST_ID, players, PARTICIPANTS, 42);
+	}
+
+	@Override
+	protected void tearDown() throws Exception{
+		core.close();
+		super.tearDown();
+	}
+
+	/**
+	 * Make random host changes, a few per millisecond
+	 * @throws Exception When something bad happens
+	 */
+	private void makeChanges() throws Exception{
+		final KingOfTheHillTournament host = core.getHost();
+		final Random random = new Random(7);
+		for (int i = 0; i < CHANGES; i++){
+			core.mutate(new Runnable(){
+				@Override
+				public void run(){
+					switch (random.nextInt(3)){
+						case 0:
+							host.moveChallengerToEnd();
+							break;
+						case 1:
+							host.moveKingToEnd();
+							break;
+						default:
+							host.movePlayer(random.nextInt(PLAYERS - 1), random.nextInt(PLAYERS - 1));
+							break;
+					}
+				}
+			});
+			if (i % 4 == 0){
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	/**
+	 * Check that every participant has the host's king and queue
+	 */
+	private void assertConverged(){
+		for (TournamentLogic participant : core.getParticipants()){
+			assertEquals(core.getHost().getSnapshot().getKing(), participant.getSnapshot().getKing());
+			assertEquals(core.getHost().getSnapshot().getQueue(), participant.getSnapshot().getQueue());
+		}
+	}
+
+	/**
+	 * Check the measured latencies: every change reached the participants, none faster than the link allows
+	 * @param minMillis Shortest latency of the links
+	 */
+	private void assertLatencies(long minMillis){
+		long[] latencies = core.getLatencies();
+		assertTrue(latencies.length > 0);
+		assertTrue(core.getDelivered() > 0);
+		assertTrue("Fastest change took " + latencies[0] + " ns", latencies[0] >= TimeUnit.MILLISECONDS.toNanos(minMillis));
+		assertTrue("Slowest change took " + latencies[latencies.length - 1] + " ns",
+				latencies[latencies.length - 1] < TimeUnit.SECONDS.toNanos(10));
+	}
+
+	/**
+	 * Participants follow a busy host over links with latency and jitter
+	 * @throws Exception When something bad happens
+	 */
+	public void testConvergence() throws Exception{
+		core.setLatency(2, 3);
+		assertTrue(core.awaitConvergence(10000));
+		makeChanges();
+		assertTrue(core.awaitConvergence(10000));
+		assertConverged();
+		assertLatencies(2);
+	}
+
+	/**
+	 * Participants catch up after lost messages, once the host sends the game state
+	 * @throws Exception When something bad happens
+	 */
+	public void testLoss() throws Exception{
+		core.setLatency(2, 3);
+		assertTrue(core.awaitConvergence(10000));
+		core.setLoss(0.05);
+		makeChanges();
+		core.setLoss(0);
+		core.getHost().sendGameState();
+		assertTrue(core.awaitConvergence(10000));
+		assertConverged();
+		assertLatencies(2);
+		assertTrue(core.getLost() > 0);
+	}
+}
@@ -0,0 +1,121 @@
+package utool.plugin.kingofthehill.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.engine.TimerScheduler;
+import utool.plugin.kingofthehill.engine.VirtualClock;
+
+/**
+ * Tests for the deadline scheduler of the timers
+ * @author Cory
+ *
+ */
+public class TimerSchedulerTest extends TestCase {
+
+	/**
+	 * Scheduler instance
+	 */
+	TimerScheduler scheduler;
+
+	/**
+	 * Names of the actions run, in order
+	 */
+	List<String> fired;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		scheduler = new TimerScheduler("test timers");
+		fired = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	@Override
+	protected void tearDown() throws Exception{
+		scheduler.close();
+		super.tearDown();
+	}
+
+	/**
+	 * Create an action recording the time it ran
+	 * @param name Name of the action
+	 * @param deadline Deadline the action is scheduled for
+	 * @param done Counted down when the action runs
+	 * @return The action
+	 */
+	private Runnable action(final String name, final long deadline, final CountDownLatch done){
+		return new Runnable(){
+			@Override
+			public void run(){
+				fired.add(scheduler.now() >= deadline ? name : name + " early");
+				done.countDown();
+			}
+		};
+	}
+
+	/**
+	 * Actions run in deadline order, never before their deadline
+	 * @throws Exception When something bad happens
+	 */
+	public void testOrder() throws Exception{
+		CountDownLatch done = new CountDownLatch(3);
+		long now = scheduler.now();
+		long round = now + TimeUnit.MILLISECONDS.toNanos(60);
+		long game = now + TimeUnit.MILLISECONDS.toNanos(30);
+		scheduler.schedule("round", round, action("round", round, done));
+		scheduler.schedule("game", game, action("game", game, done));
+		scheduler.schedule("past", now - 1, action("past", now - 1, done));
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("[past, game, round]", fired.toString());
+		assertEquals(0, scheduler.size());
+		assertFalse(scheduler.isScheduled("round"));
+	}
+
+	/**
+	 * Scheduling a key again replaces its action, and cancelled actions don't run
+	 * @throws Exception When something bad happens
+	 */
+	public void testReplaceAndCancel() throws Exception{
+		CountDownLatch done = new CountDownLatch(1);
+		CountDownLatch never = new CountDownLatch(1);
+		long now = scheduler.now();
+		long late = now + TimeUnit.MILLISECONDS.toNanos(40);
+		scheduler.schedule("round", now + TimeUnit.HOURS.toNanos(1), action("old round", now, never));
+		scheduler.schedule("round", late, action("round", late, done));
+		scheduler.schedule("game", now + TimeUnit.MILLISECONDS.toNanos(20), action("game", now, never));
+		assertEquals(2, scheduler.size());
+		scheduler.cancel("game");
+		assertFalse(scheduler.isScheduled("game"));
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertFalse(never.await(50, TimeUnit.MILLISECONDS));
+		assertEquals("[round]", fired.toString());
+	}
+
+	/**
+	 * With a virtual clock, actions run on the advancing thread once the clock passes their deadline
+	 */
+	public void testVirtualClock(){
+		VirtualClock clock = new VirtualClock(1000);
+		TimerScheduler virtual = new TimerScheduler("virtual timers", clock);
+		CountDownLatch done = new CountDownLatch(2);
+		long round = TimeUnit.MINUTES.toNanos(90);
+		long game = TimeUnit.HOURS.toNanos(3);
+		scheduler = virtual;
+		virtual.schedule("game", game, action("game", game, done));
+		virtual.schedule("round", round, action("round", round, done));
+
+		clock.advance(89, TimeUnit.MINUTES);
+		assertEquals("[]", fired.toString());
+		clock.advance(1, TimeUnit.MINUTES);
+		assertEquals("[round]", fired.toString());
+		assertEquals(round, clock.nanoTime());
+		clock.advance(1, TimeUnit.DAYS);
+		assertEquals("[round, game]", fired.toString());
+		assertEquals(0, done.getCount());
+		assertEquals(1000 + TimeUnit.MINUTES.toMillis(90) + TimeUnit.DAYS.toMillis(1), clock.currentTimeMillis());
+	}
+}
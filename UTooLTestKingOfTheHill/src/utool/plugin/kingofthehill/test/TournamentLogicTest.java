@@ -1,14 +1,33 @@
 package utool.plugin.kingofthehill.test;
 
+import java.io.StringReader;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import utool.plugin.Player;
+import org.xmlpull.v1.XmlPullParser;
+
+import utool.plugin.kingofthehill.communications.BinaryGameStateCodec;
 import utool.plugin.kingofthehill.communications.GameStateMessage;
+import utool.plugin.kingofthehill.communications.MessageSender;
+import utool.plugin.kingofthehill.communications.OutgoingCommandHandler;
+import utool.plugin.kingofthehill.engine.GameChange;
+import utool.plugin.kingofthehill.engine.VirtualClock;
+import utool.plugin.kingofthehill.tournament.KingOfTheHillPlayerExtra;
 import utool.plugin.kingofthehill.tournament.KingOfTheHillTournament;
+import utool.plugin.kingofthehill.tournament.TournamentBatch;
 import utool.plugin.kingofthehill.tournament.TournamentLogic;
+import android.database.DataSetObserver;
+import android.os.Handler;
+import android.os.Looper;
 import android.test.AndroidTestCase;
+import android.util.Xml;
 
 /**
  * Tests for KOTH
@@ -17,6 +36,20 @@ import android.test.AndroidTestCase;
  */
 public class TournamentLogicTest extends AndroidTestCase {
 	
+	/**
+	 * The game state message types known to participants from before deltas and binary game state
+	 */
+	private enum LegacyMessageType {
+		/**
+		 * The whole game state
+		 */
+		GameState,
+		/**
+		 * Request for the game state
+		 */
+		RequestGameState
+	}
+
 	/**
 	 * Tournament instance
 	 */
@@ -36,7 +69,7 @@ public class TournamentLogicTest extends AndroidTestCase {
 		players.add(new Player(UUID.randomUUID(), "Player 3"));
 		
 		tournament = (KingOfTheHillTournament) TournamentLogic.getNewInstance(this.getContext(), 0, players, Player.HOST);
-		
+		tournament.awaitCommands();
 	}
 	
 	@Override
@@ -45,6 +78,23 @@ public class TournamentLogicTest extends AndroidTestCase {
 		TournamentLogic.removeInstance(tournament.getTournamentId());
 	}
 	
+	/**
+	 * Wait until the tournament applied the changes made so far, and the list shows them
+	 * @param t The tournament
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private void awaitShown(TournamentLogic t) throws InterruptedException{
+		t.awaitCommands();
+		final CountDownLatch shown = new CountDownLatch(1);
+		new Handler(Looper.getMainLooper()).post(new Runnable() {
+			@Override
+			public void run() {
+				shown.countDown();
+			}
+		});
+		assertTrue(shown.await(5, TimeUnit.SECONDS));
+	}
+
 	/**
 	 * Test king
 	 */
@@ -66,11 +116,13 @@ public class TournamentLogicTest extends AndroidTestCase {
 	public void testTournament() throws Exception{
 		//Player 1 (king) wins, Player 2 goes to bottom
 		tournament.moveChallengerToEnd();
+		tournament.awaitCommands();
 		assertEquals(players.get(0), tournament.getKing());
 		assertEquals(players.get(1), tournament.getPlayers().get(tournament.getPlayers().size()-1));
 		
 		//Player 3 (challenger) wins, Player 1 goes to bottom
 		tournament.moveKingToEnd();
+		tournament.awaitCommands();
 		assertEquals(players.get(2), tournament.getKing());
 		assertEquals(players.get(0), tournament.getPlayers().get(tournament.getPlayers().size()-1));
 		
@@ -94,21 +146,25 @@ public class TournamentLogicTest extends AndroidTestCase {
 	public void testMovePlayers() throws Exception{
 		//swap king (Player 1) and challenger (Player 2)
 		tournament.movePlayer(TournamentLogic.KING_POSITION, 0);
+		tournament.awaitCommands();
 		assertEquals(players.get(0), tournament.getPlayers().get(0));
 		assertEquals(players.get(1), tournament.getKing());
 		
 		//swap challenger (Player 1) and king (Player 2)
 		tournament.movePlayer(0, TournamentLogic.KING_POSITION);
+		tournament.awaitCommands();
 		assertEquals(players.get(1), tournament.getPlayers().get(0));
 		assertEquals(players.get(0), tournament.getKing());
 		
 		//swap Player 2 and Player 3
 		tournament.movePlayer(0, 1);
+		tournament.awaitCommands();
 		assertEquals(players.get(1), tournament.getPlayers().get(1));
 		assertEquals(players.get(2), tournament.getPlayers().get(0));
 		
 		//swap back
 		tournament.movePlayer(1, 0);
+		tournament.awaitCommands();
 		assertEquals(players.get(1), tournament.getPlayers().get(0));
 		assertEquals(players.get(2), tournament.getPlayers().get(1));
 	}
@@ -122,10 +178,80 @@ public class TournamentLogicTest extends AndroidTestCase {
 		p.add(new Player(UUID.randomUUID(), "Player 4"));
 		p.add(new Player(UUID.randomUUID(), "Player 5"));
 		tournament.addNewPlayersToBottom(p);
+		tournament.awaitCommands();
 		assertEquals(p.get(0), tournament.getPlayers().get(tournament.getPlayers().size() - 2));
 		assertEquals(p.get(1), tournament.getPlayers().get(tournament.getPlayers().size() - 1));
 	}
 	
+	/**
+	 * Test that applying a batch doesn't wait for the command loop, and calls back once the batch is applied
+	 * @throws Exception When something bad happens
+	 */
+	public void testApplyDoesNotWait() throws Exception{
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch applied = new CountDownLatch(1);
+		tournament.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		tournament.apply(new TournamentBatch().moveKingToEnd(), new Runnable() {
+			@Override
+			public void run() {
+				applied.countDown();
+			}
+		});
+		assertEquals(1, applied.getCount());
+		assertEquals(players.get(0), tournament.getKing());
+
+		release.countDown();
+		assertTrue(applied.await(5, TimeUnit.SECONDS));
+		assertEquals(players.get(1), tournament.getKing());
+	}
+
+	/**
+	 * Test that a batch applies all of its changes with a single list notification
+	 * @throws Exception When something bad happens
+	 */
+	public void testBatch() throws Exception{
+		final int[] notifications = new int[1];
+		tournament.registerDataSetObserver(new DataSetObserver() {
+			@Override
+			public void onChanged() {
+				notifications[0]++;
+			}
+		});
+		
+		Player newPlayer = new Player(UUID.randomUUID(), "Player 4");
+		List<Player> added = new LinkedList<Player>();
+		added.add(newPlayer);
+		tournament.apply(new TournamentBatch()
+				.moveChallengerToEnd()
+				.addNewPlayersToBottom(added)
+				.movePlayer(newPlayer.getUUID(), 0)
+				.setStats(players.get(0).getUUID(), 5, 2));
+		awaitShown(tournament);
+		assertEquals(1, notifications[0]);
+		assertEquals(newPlayer, tournament.getItem(0));
+		assertEquals(newPlayer, tournament.getPlayers().get(0));
+		assertEquals(5, tournament.getPlayerExtra(players.get(0)).getWins());
+		assertEquals(2, tournament.getPlayerExtra(players.get(0)).getLosses());
+		
+		//adding and removing players in one update is a single change too
+		List<Player> updated = new LinkedList<Player>(players);
+		updated.remove(players.get(2));
+		updated.add(new Player(UUID.randomUUID(), "Player 5"));
+		tournament.updatePlayerList(updated);
+		awaitShown(tournament);
+		assertEquals(2, notifications[0]);
+		assertNull(tournament.getPlayer(players.get(2).getUUID()));
+	}
+	
 	/**
 	 * Test network messages
 	 * @throws Exception When something bad happens
@@ -139,4 +265,301 @@ public class TournamentLogicTest extends AndroidTestCase {
 		assertEquals(m1.getRoundTimeRemaining(), m2.getRoundTimeRemaining());
 		assertEquals(m1.getPlayerExtras(), m2.getPlayerExtras());
 	}
+
+	/**
+	 * Test extras made without a statistics store
+	 */
+	public void testStandaloneExtra(){
+		UUID p1 = players.get(0).getUUID();
+		KingOfTheHillPlayerExtra unset = new KingOfTheHillPlayerExtra(p1);
+		assertEquals(-1, unset.getWins());
+		assertEquals(0, unset.getGames());
+
+		tournament.apply(new TournamentBatch().setStats(p1, 5, 2));
+		tournament.awaitCommands();
+		KingOfTheHillPlayerExtra preset = new KingOfTheHillPlayerExtra(p1, 5, 2);
+		assertEquals(7, preset.getGames());
+		assertEquals(tournament.getPlayerExtra(players.get(0)), preset);
+		assertEquals(preset, tournament.getPlayerExtra(players.get(0)));
+	}
+
+	/**
+	 * Test delta messages
+	 * @throws Exception When something bad happens
+	 */
+	public void testGameStateDelta() throws Exception{
+		UUID p1 = players.get(0).getUUID();
+		UUID p2 = players.get(1).getUUID();
+		List<GameChange> changes = Arrays.asList(GameChange.rotate(), GameChange.dethrone(), GameChange.move(p1, 1),
+				GameChange.stats(p2, 3, 4), GameChange.join(Arrays.asList(p1, p2)), GameChange.leave(Arrays.asList(p2)),
+				GameChange.king(p1), GameChange.streak(2));
+		GameStateMessage m1 = new GameStateMessage(7, 8, changes, 100, 50);
+		GameStateMessage m2 = new GameStateMessage(m1.getXml());
+		assertEquals(GameStateMessage.MessageType.GameStateDelta, m2.getMessageType());
+		assertEquals(7, m2.getBaseVersion());
+		assertEquals(8, m2.getVersion());
+		assertEquals(100, m2.getGameTimeRemaining());
+		assertEquals(50, m2.getRoundTimeRemaining());
+		assertEquals(changes.size(), m2.getChanges().size());
+		for (int i = 0; i < changes.size(); i++){
+			GameChange expected = changes.get(i);
+			GameChange actual = m2.getChanges().get(i);
+			assertEquals(expected.getType(), actual.getType());
+			assertEquals(expected.getPlayer(), actual.getPlayer());
+			assertEquals(expected.getPlayers(), actual.getPlayers());
+			assertEquals(expected.getPosition(), actual.getPosition());
+			assertEquals(expected.getLosses(), actual.getLosses());
+		}
+
+		//full game states carry the version
+		GameStateMessage state = tournament.getGameStateMessage();
+		assertEquals(tournament.getSnapshot().getVersion(), new GameStateMessage(state.getXml()).getVersion());
+	}
+
+	/**
+	 * Test catching up from a version
+	 * @throws Exception When something bad happens
+	 */
+	public void testChangesSince() throws Exception{
+		long start = tournament.getSnapshot().getVersion();
+		tournament.moveChallengerToEnd();
+		tournament.moveKingToEnd();
+		tournament.awaitCommands();
+		GameStateMessage delta = tournament.getChangesSince(start);
+		assertEquals(start, delta.getBaseVersion());
+		assertEquals(tournament.getSnapshot().getVersion(), delta.getVersion());
+		assertEquals(2, delta.getChanges().size());
+		assertEquals(GameChange.ROTATE, delta.getChanges().get(0).getType());
+		assertTrue(tournament.getChangesSince(delta.getVersion()).getChanges().isEmpty());
+
+		GameStateMessage request = new GameStateMessage(new GameStateMessage(start).getXml());
+		assertEquals(GameStateMessage.MessageType.RequestChanges, request.getMessageType());
+		assertEquals(start, request.getVersion());
+
+		//an unknown version needs the whole game
+		assertNull(tournament.getChangesSince(delta.getVersion() + 1000));
+	}
+
+	/**
+	 * Test that timers are sent as their end times, and can be set to end at a time
+	 */
+	public void testTimerEnds(){
+		assertEquals(GameStateMessage.NO_DEADLINE, tournament.getGameStateMessage().getGameTimerEnd());
+		tournament.apply(new TournamentBatch().setGameTimerSetting(600));
+		tournament.awaitCommands();
+		long end = tournament.getGameTimerEnd();
+		long now = tournament.getClockSync().now();
+		assertTrue(end >= now + 599000 && end <= now + 600000);
+		assertEquals(end, tournament.getGameStateMessage().getGameTimerEnd());
+
+		tournament.apply(new TournamentBatch().setRoundTimerEnd(tournament.getClockSync().now() + 90500));
+		tournament.awaitCommands();
+		assertEquals(91, tournament.getRemainingRoundTime());
+		tournament.apply(new TournamentBatch().setRoundTimerEnd(tournament.getClockSync().now() - 1000));
+		tournament.awaitCommands();
+		assertEquals(0, tournament.getRemainingRoundTime());
+	}
+
+	/**
+	 * Test that the timers are redrawn when their seconds change, and not while they don't run
+	 */
+	public void testMillisToNextSecond(){
+		assertEquals(-1, tournament.getMillisToNextSecond());
+		tournament.apply(new TournamentBatch().setRoundTimerSetting(60));
+		tournament.awaitCommands();
+		long delay = tournament.getMillisToNextSecond();
+		assertTrue(delay > 0 && delay <= 1001);
+		tournament.apply(new TournamentBatch().setRoundTimerEnd(tournament.getClockSync().now() - 1000));
+		tournament.awaitCommands();
+		assertEquals(-1, tournament.getMillisToNextSecond());
+	}
+
+	/**
+	 * Test that repeated requests reuse the encoded game state until the game changes
+	 * @throws Exception When something bad happens
+	 */
+	public void testCachedGameState() throws Exception{
+		OutgoingCommandHandler out = tournament.getOutgoingCommandHandler();
+		GameStateMessage request = new GameStateMessage();
+		out.sendGameState(request);
+		assertTrue(out.getSender().awaitIdle(5000));
+		long misses = out.getCache().getMisses();
+
+		out.sendGameState(request);
+		out.sendGameState(request);
+		assertTrue(out.getSender().awaitIdle(5000));
+		assertEquals(misses, out.getCache().getMisses());
+		assertTrue(out.getCache().getHits() > 0);
+
+		tournament.moveChallengerToEnd();
+		tournament.awaitCommands();
+		out.sendGameState(request);
+		assertTrue(out.getSender().awaitIdle(5000));
+		assertEquals(misses + 1, out.getCache().getMisses());
+
+		//a running timer only changes the remaining seconds written in the cached message
+		tournament.apply(new TournamentBatch().setRoundTimerSetting(60));
+		tournament.awaitCommands();
+		out.sendGameState(request);
+		assertTrue(out.getSender().awaitIdle(5000));
+		Thread.sleep(1100);
+		out.sendGameState(request);
+		assertTrue(out.getSender().awaitIdle(5000));
+		assertEquals(misses + 2, out.getCache().getMisses());
+	}
+
+	/**
+	 * Participants that only read XML must never get a message type they don't know, before any participant
+	 * asked for the game state or once one of them asked for XML
+	 * @throws Exception When something bad happens
+	 */
+	public void testLegacyClients() throws Exception{
+		final List<String> sent = new CopyOnWriteArrayList<String>();
+		OutgoingCommandHandler out = tournament.getOutgoingCommandHandler();
+		out.setTransport(new MessageSender.Transport(){
+			@Override
+			public void send(String data){
+				sent.add(data);
+			}
+		});
+
+		tournament.moveChallengerToEnd();
+		tournament.undo();
+		tournament.redo();
+		tournament.awaitCommands();
+		assertTrue(out.getSender().awaitIdle(5000));
+		assertFalse(sent.isEmpty());
+		assertLegacy(sent);
+
+		GameStateMessage binary = new GameStateMessage();
+		binary.setAcceptsBinary(true);
+		out.clientRequested(binary);
+		out.clientRequested(new GameStateMessage());
+		sent.clear();
+		tournament.moveChallengerToEnd();
+		tournament.moveKingToEnd();
+		tournament.undo();
+		tournament.awaitCommands();
+		out.sendChangesSince(new GameStateMessage(tournament.getSnapshot().getVersion() - 1));
+		assertTrue(out.getSender().awaitIdle(5000));
+		assertFalse(out.isSendingBinary());
+		assertFalse(sent.isEmpty());
+		assertLegacy(sent);
+	}
+
+	/**
+	 * Check that messages can be read by a participant that only reads XML game state
+	 * @param messages The messages sent
+	 * @throws Exception When a message can't be read
+	 */
+	private void assertLegacy(List<String> messages) throws Exception{
+		for (String message : messages){
+			assertFalse(BinaryGameStateCodec.isEncoded(message));
+			XmlPullParser parser = Xml.newPullParser();
+			parser.setInput(new StringReader(message));
+			parser.nextTag();
+			assertEquals("utool_kingofthehill", parser.getName());
+			LegacyMessageType.valueOf(parser.getAttributeValue("", "type"));
+		}
+	}
+
+	/**
+	 * A participant missing a player the host has doesn't ask for the game state again with every delta
+	 * @throws Exception When something bad happens
+	 */
+	public void testUnknownPlayerResync() throws Exception{
+		final List<String> sent = new CopyOnWriteArrayList<String>();
+		TournamentLogic participant = TournamentLogic.getNewInstance(null, 2, players.subList(0, 2), Player.PARTICIPANT);
+		try {
+			participant.getOutgoingCommandHandler().setTransport(new MessageSender.Transport(){
+				@Override
+				public void send(String data){
+					sent.add(data);
+				}
+			});
+			participant.getIncomingCommandHandler().handleMessage(tournament.getGameStateMessage().getXml());
+			int requests = 0;
+			for (int i = 0; i < 30; i++){
+				long version = tournament.getSnapshot().getVersion();
+				tournament.moveChallengerToEnd();
+				participant.getIncomingCommandHandler().handleMessage(tournament.getChangesSince(version).getXml());
+				assertTrue(participant.getOutgoingCommandHandler().getSender().awaitIdle(5000));
+				for (String message : sent){
+					if (message.contains(LegacyMessageType.RequestGameState.name())){
+						requests++;
+						participant.getIncomingCommandHandler().handleMessage(tournament.getGameStateMessage().getXml());
+					}
+				}
+				sent.clear();
+			}
+			assertTrue("Game state requested " + requests + " times", requests <= 2);
+		} finally {
+			TournamentLogic.removeInstance(2);
+		}
+	}
+
+	/**
+	 * The event log of a tournament without a store stays bounded
+	 */
+	public void testLogBounded(){
+		final AtomicInteger largest = new AtomicInteger();
+		LinkedList<Player> queue = new LinkedList<Player>(players.subList(1, players.size()));
+		KingOfTheHillTournament unstored = new KingOfTheHillTournament(null, 1, queue, players.get(0), new VirtualClock()){
+			@Override
+			protected void batchApplied(GameStateMessage update){
+				super.batchApplied(update);
+				largest.set(Math.max(largest.get(), engine.getLog().size()));
+			}
+		};
+		try {
+			for (int i = 0; i < 5000; i++){
+				unstored.moveChallengerToEnd();
+			}
+			unstored.awaitCommands();
+			assertTrue(largest.get() > 0);
+			assertTrue("Log grew to " + largest.get() + " events", largest.get() <= 1024);
+		} finally {
+			unstored.getOutgoingCommandHandler().close();
+		}
+	}
+
+	/**
+	 * Simulate a three hour game of 90 second rounds on a virtual clock
+	 */
+	public void testSimulatedTimers(){
+		final VirtualClock clock = new VirtualClock();
+		final AtomicInteger rounds = new AtomicInteger();
+		final AtomicInteger games = new AtomicInteger();
+		LinkedList<Player> queue = new LinkedList<Player>(players.subList(1, players.size()));
+		KingOfTheHillTournament simulated = new KingOfTheHillTournament(null, 1, queue, players.get(0), clock){
+			@Override
+			protected void timerExpired(boolean game){
+				super.timerExpired(game);
+				if (game){
+					games.incrementAndGet();
+				} else {
+					rounds.incrementAndGet();
+					apply(new TournamentBatch().setRoundTimerSetting(90));
+					//restart the round before the clock moves on
+					awaitCommands();
+				}
+			}
+		};
+		try {
+			simulated.apply(new TournamentBatch().setGameTimerSetting(3 * 60 * 60).setRoundTimerSetting(90));
+			simulated.awaitCommands();
+
+			clock.advance(100, TimeUnit.SECONDS);
+			assertEquals(1, rounds.get());
+			assertEquals(80, simulated.getRemainingRoundTime());
+			assertEquals(3 * 60 * 60 - 100, simulated.getRemainingGameTime());
+
+			clock.advance(3 * 60 * 60 - 100, TimeUnit.SECONDS);
+			assertEquals(120, rounds.get());
+			assertEquals(1, games.get());
+			assertEquals(0, simulated.getRemainingGameTime());
+		} finally {
+			simulated.getOutgoingCommandHandler().close();
+		}
+	}
 }
@@ -0,0 +1,224 @@
+package utool.plugin.kingofthehill.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+import utool.plugin.kingofthehill.engine.EventLog;
+import utool.plugin.kingofthehill.engine.KingOfTheHillEngine;
+import utool.plugin.kingofthehill.engine.PlayerStats;
+import utool.plugin.kingofthehill.engine.TournamentStore;
+
+/**
+ * Tests for the crash safe game checkpoint and journal
+ * @author Cory
+ *
+ */
+public class TournamentStoreTest extends TestCase {
+
+	/**
+	 * Directory the game is stored in
+	 */
+	File directory;
+
+	/**
+	 * Store instance
+	 */
+	TournamentStore store;
+
+	/**
+	 * Base list of players
+	 */
+	List<UUID> players;
+
+	/**
+	 * Engine being stored
+	 */
+	KingOfTheHillEngine engine;
+
+	@Override
+	protected void setUp() throws Exception{
+		super.setUp();
+		directory = new File(System.getProperty("java.io.tmpdir"), "koth-store-" + UUID.randomUUID());
+		store = new TournamentStore(directory);
+		players = new ArrayList<UUID>();
+		for (int i = 0; i < 20; i++){
+			players.add(UUID.randomUUID());
+		}
+		engine = new KingOfTheHillEngine();
+		engine.setLog(new EventLog());
+		engine.restart(players.get(0), players);
+	}
+
+	@Override
+	protected void tearDown() throws Exception{
+		store.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * Check that two engines have the same game
+	 * @param expected The original engine
+	 * @param actual The restored engine
+	 */
+	private void assertSameGame(KingOfTheHillEngine expected, KingOfTheHillEngine actual){
+		assertEquals(expected.getKing(), actual.getKing());
+		assertEquals(expected.getQueue(), actual.getQueue());
+		assertEquals(expected.getKingWinsStreakCount(), actual.getKingWinsStreakCount());
+		PlayerStats e = expected.getStats();
+		PlayerStats a = actual.getStats();
+		for (UUID p : players){
+			assertEquals(e.getWins(p), a.getWins(p));
+			assertEquals(e.getLosses(p), a.getLosses(p));
+			assertEquals(e.getGames(p), a.getGames(p));
+			assertEquals(e.getStreak(p), a.getStreak(p));
+		}
+	}
+
+	/**
+	 * Play a random game, syncing the store after every change
+	 * @param random Random source
+	 * @param operations Number of operations
+	 * @throws Exception When something bad happens
+	 */
+	private void play(Random random, int operations) throws Exception{
+		for (int i = 0; i < operations; i++){
+			int op = random.nextInt(10);
+			UUID p = players.get(random.nextInt(players.size()));
+			if (op < 4){
+				engine.moveKingToEnd();
+			} else if (op < 7){
+				engine.moveChallengerToEnd();
+			} else if (op == 7){
+				engine.movePlayer(p, random.nextInt(engine.getQueueSize() + 1) - 1);
+			} else if (op == 8){
+				engine.setStats(p, random.nextInt(10), random.nextInt(10));
+			} else {
+				engine.undo();
+			}
+			store.sync();
+		}
+	}
+
+	/**
+	 * The checkpoint plus the journal restore the game
+	 * @throws Exception When something bad happens
+	 */
+	public void testRestore() throws Exception{
+		assertNull(store.restore());
+		play(new Random(1), 100);
+		store.attach(engine);
+		assertTrue(store.exists());
+		play(new Random(2), 300);
+
+		assertSameGame(engine, new TournamentStore(directory).restore());
+	}
+
+	/**
+	 * Long journals are folded into a new checkpoint, and only one journal is kept
+	 * @throws Exception When something bad happens
+	 */
+	public void testCheckpoints() throws Exception{
+		store.setCheckpointInterval(50);
+		store.attach(engine);
+		play(new Random(3), 1000);
+
+		assertSameGame(engine, new TournamentStore(directory).restore());
+		int journals = 0;
+		for (String name : directory.list()){
+			if (name.startsWith("journal-")){
+				journals++;
+			}
+		}
+		assertEquals(1, journals);
+	}
+
+	/**
+	 * A change partly written when the process died is ignored
+	 * @throws Exception When something bad happens
+	 */
+	public void testTornJournal() throws Exception{
+		store.attach(engine);
+		play(new Random(4), 100);
+		store.close();
+
+		KingOfTheHillEngine restored = new TournamentStore(directory).restore();
+		for (String name : directory.list()){
+			if (name.startsWith("journal-")){
+				FileOutputStream out = new FileOutputStream(new File(directory, name), true);
+				out.write(EventLog.SET_STATS << 1);
+				out.close();
+			}
+		}
+		assertSameGame(restored, new TournamentStore(directory).restore());
+	}
+
+	/**
+	 * Stored values survive reopening the store
+	 * @throws Exception When something bad happens
+	 */
+	public void testValues() throws Exception{
+		store.setValue(0, 42);
+		store.setValue(TournamentStore.VALUE_COUNT - 1, -7);
+		store.close();
+
+		TournamentStore reopened = new TournamentStore(directory);
+		assertEquals(42, reopened.getValue(0));
+		assertEquals(-7, reopened.getValue(TournamentStore.VALUE_COUNT - 1));
+		assertEquals(0, reopened.getValue(1));
+	}
+
+	/**
+	 * A damaged journal fails to restore with an IOException
+	 * @throws Exception When something bad happens
+	 */
+	public void testDamagedJournal() throws Exception{
+		store.attach(engine);
+		play(new Random(5), 100);
+		store.close();
+
+		for (String name : directory.list()){
+			if (name.startsWith("journal-")){
+				FileOutputStream out = new FileOutputStream(new File(directory, name), true);
+				//a well formed move of a defined player to position -5
+				out.write(EventLog.MOVE_PLAYER << 1);
+				out.write(0);
+				out.write(9);
+				out.close();
+			}
+		}
+		try {
+			new TournamentStore(directory).restore();
+			fail("Damaged journal was restored");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * A large tournament restores the same game
+	 * @throws Exception When something bad happens
+	 */
+	public void testLargeRestore() throws Exception{
+		players = new ArrayList<UUID>();
+		for (int i = 0; i < 10000; i++){
+			players.add(UUID.randomUUID());
+		}
+		engine.restart(players.get(0), players);
+		for (int i = 0; i < 50000; i++){
+			engine.moveKingToEnd();
+		}
+		store.attach(engine);
+		for (int i = 0; i < 5000; i++){
+			engine.moveChallengerToEnd();
+		}
+		store.sync();
+
+		assertSameGame(engine, new TournamentStore(directory).restore());
+	}
+}